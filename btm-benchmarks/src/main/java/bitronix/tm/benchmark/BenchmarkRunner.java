@@ -0,0 +1,58 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.benchmark;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes the results as JSON to <code>benchmarks.json</code>, so that results of different
+ * releases can be compared.
+ * <p>Usage: <code>java -jar target/benchmarks.jar [JMH options] [benchmark regexp]</code>, all JMH command line
+ * options are supported. An explicit <code>-rf</code> or <code>-rff</code> option replaces the default result file.</p>
+ */
+public class BenchmarkRunner {
+
+    public static final String DEFAULT_RESULT_FILE = "benchmarks.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        if (commandLineOptions.shouldHelp() || commandLineOptions.shouldList() || commandLineOptions.shouldListWithParams()
+                || commandLineOptions.shouldListProfilers() || commandLineOptions.shouldListResultFormats()) {
+            // nothing to run, let JMH print what was asked for
+            Main.main(args);
+            return;
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions);
+
+        if (!commandLineOptions.getResultFormat().hasValue())
+            options.resultFormat(ResultFormatType.JSON);
+        if (!commandLineOptions.getResult().hasValue())
+            options.result(DEFAULT_RESULT_FILE);
+
+        new Runner(options.build()).run();
+    }
+}
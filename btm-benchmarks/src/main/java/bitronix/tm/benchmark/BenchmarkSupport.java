@@ -0,0 +1,66 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.benchmark;
+
+import java.io.File;
+
+import bitronix.tm.Configuration;
+import bitronix.tm.TransactionManagerServices;
+
+/**
+ * Configures the transaction manager for benchmarks: JMX is disabled, background recovery does not run during a
+ * benchmark and journal files are kept in <code>target/benchmark</code>.
+ */
+public class BenchmarkSupport {
+
+    public static final String DIRECTORY = "target/benchmark";
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Configure the transaction manager to use the specified journal. Existing journal files are deleted.
+     * @param journal the journal name or class, as accepted by {@link Configuration#setJournal(String)}.
+     * @return the configuration.
+     */
+    public static Configuration configure(String journal) {
+        File directory = new File(DIRECTORY);
+        directory.mkdirs();
+
+        Configuration configuration = TransactionManagerServices.getConfiguration();
+        configuration.setServerId("btm-benchmark");
+        configuration.setJournal(journal);
+        configuration.setLogPart1Filename(new File(directory, "btm1.tlog").getPath());
+        configuration.setLogPart2Filename(new File(directory, "btm2.tlog").getPath());
+        configuration.setJournalStripeDirectories(new File(directory, "stripes").getPath());
+        configuration.setDisableJmx(true);
+        configuration.setBackgroundRecoveryIntervalSeconds(3600);
+        configuration.setWarnAboutZeroResourceTransaction(false);
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        return configuration;
+    }
+}
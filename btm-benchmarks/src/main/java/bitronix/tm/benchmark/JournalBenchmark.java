@@ -0,0 +1,113 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.benchmark;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Status;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.journal.Journal;
+import bitronix.tm.utils.Uid;
+import bitronix.tm.utils.UidGenerator;
+
+/**
+ * Measures committing a transaction in the journal: logging and forcing its COMMITTING record, then logging its
+ * COMMITTED record, with 1, 4 and 16 concurrent committers.
+ * <p>The NIO journal is benchmarked with <code>-p journal=bitronix.tm.journal.nio.NioJournal</code> when the
+ * benchmarks are built with the <code>nio</code> profile.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+    @Param({"null", "disk", "mapped", "striped"})
+    public String journal;
+
+    private Journal journalInstance;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkSupport.configure(journal).setForcedWriteEnabled(true).setForceBatchingEnabled(true);
+        journalInstance = TransactionManagerServices.getJournal();
+        journalInstance.open();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journalInstance.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Committer {
+        final Set<String> uniqueNames = new TreeSet<String>(Arrays.asList(Thread.currentThread().getName() + ".name1",
+                Thread.currentThread().getName() + ".name2"));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Uid commit1Thread(Committer committer) throws IOException {
+        return commit(committer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Uid commit4Threads(Committer committer) throws IOException {
+        return commit(committer);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Uid commit16Threads(Committer committer) throws IOException {
+        return commit(committer);
+    }
+
+    private Uid commit(Committer committer) throws IOException {
+        Uid gtrid = UidGenerator.generateUid();
+        journalInstance.log(Status.STATUS_COMMITTING, gtrid, committer.uniqueNames);
+        journalInstance.force();
+        journalInstance.log(Status.STATUS_COMMITTED, gtrid, committer.uniqueNames);
+        return gtrid;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.benchmark;
+
+import java.sql.PreparedStatement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bitronix.tm.resource.jdbc.LruStatementCache;
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+
+/**
+ * Measures preparing and closing a statement with the statement cache, when the statement is cached and when it is
+ * not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LruStatementCacheBenchmark {
+
+    @Param({"16", "128"})
+    public int cacheSize;
+
+    private LruStatementCache cache;
+    private CacheKey[] cachedKeys;
+    private CacheKey[] uncachedKeys;
+    private PreparedStatement statement;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        statement = NoOpXADataSource.newNoOpProxy(PreparedStatement.class);
+        cache = new LruStatementCache(cacheSize);
+        cachedKeys = new CacheKey[cacheSize];
+        uncachedKeys = new CacheKey[cacheSize * 2];
+        for (int i = 0; i < cachedKeys.length; i++) {
+            cachedKeys[i] = new CacheKey("select * from cached_table where id = " + i);
+            // prepared and closed, the statement is not in use
+            cache.put(cachedKeys[i], statement);
+            cache.put(cachedKeys[i], statement);
+        }
+        for (int i = 0; i < uncachedKeys.length; i++) {
+            uncachedKeys[i] = new CacheKey("select * from uncached_table where id = " + i);
+        }
+    }
+
+    /**
+     * A cached statement is prepared and closed, which returns it to the cache.
+     */
+    @Benchmark
+    public PreparedStatement hit() {
+        CacheKey key = cachedKeys[next++ % cachedKeys.length];
+        PreparedStatement cached = cache.get(key);
+        cache.put(key, cached);
+        return cached;
+    }
+
+    /**
+     * An uncached statement is prepared and closed, which inserts it and evicts the least recently used statement.
+     * As twice as many keys as the cache holds are iterated in order, the next key was always evicted before.
+     */
+    @Benchmark
+    public PreparedStatement miss() {
+        CacheKey key = uncachedKeys[next++ % uncachedKeys.length];
+        PreparedStatement cached = cache.get(key);
+        if (cached == null) {
+            cache.put(key, statement);
+        }
+        cache.put(key, statement);
+        return cached;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.benchmark;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+
+/**
+ * XADataSource creating connections that accept all calls without doing anything, to measure the cost of the
+ * connection pool only.
+ */
+public class NoOpXADataSource implements XADataSource {
+
+    private PrintWriter logWriter;
+    private int loginTimeout;
+
+    public XAConnection getXAConnection() throws SQLException {
+        final XAConnection xaConnection = newNoOpProxy(XAConnection.class);
+        final NoOpXAResource xaResource = new NoOpXAResource();
+        final Connection connection = newNoOpProxy(Connection.class);
+
+        return (XAConnection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{XAConnection.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getConnection"))
+                    return connection;
+                if (method.getName().equals("getXAResource"))
+                    return xaResource;
+                return method.invoke(xaConnection, args);
+            }
+        });
+    }
+
+    public XAConnection getXAConnection(String user, String password) throws SQLException {
+        return getXAConnection();
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+        return logWriter;
+    }
+
+    public void setLogWriter(PrintWriter logWriter) throws SQLException {
+        this.logWriter = logWriter;
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+        this.loginTimeout = seconds;
+    }
+
+    public int getLoginTimeout() throws SQLException {
+        return loginTimeout;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    /**
+     * Create a proxy of the given interface, returning <code>true</code> from <code>isValid()</code> and default
+     * values from all other methods.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T newNoOpProxy(Class<T> type) {
+        return (T) Proxy.newProxyInstance(NoOpXADataSource.class.getClassLoader(), new Class[]{type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("equals"))
+                    return proxy == args[0];
+                if (name.equals("hashCode"))
+                    return System.identityHashCode(proxy);
+                if (name.equals("toString"))
+                    return "NoOp" + method.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                if (name.equals("isValid"))
+                    return Boolean.TRUE;
+
+                Class<?> returnType = method.getReturnType();
+                if (returnType == Boolean.TYPE)
+                    return Boolean.FALSE;
+                if (returnType == Integer.TYPE)
+                    return 0;
+                if (returnType == Long.TYPE)
+                    return 0L;
+                if (returnType.isPrimitive() && returnType != Void.TYPE)
+                    throw new UnsupportedOperationException(method.toString());
+                return null;
+            }
+        });
+    }
+}
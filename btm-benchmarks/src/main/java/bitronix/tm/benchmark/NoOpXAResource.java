@@ -0,0 +1,71 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.benchmark;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+/**
+ * XAResource that accepts all calls without doing anything, to measure the cost of the transaction manager only.
+ */
+public class NoOpXAResource implements XAResource {
+
+    private static final Xid[] NO_XIDS = new Xid[0];
+
+    private int transactionTimeout;
+
+    public void start(Xid xid, int flags) throws XAException {
+    }
+
+    public void end(Xid xid, int flags) throws XAException {
+    }
+
+    public int prepare(Xid xid) throws XAException {
+        return XA_OK;
+    }
+
+    public void commit(Xid xid, boolean onePhase) throws XAException {
+    }
+
+    public void rollback(Xid xid) throws XAException {
+    }
+
+    public void forget(Xid xid) throws XAException {
+    }
+
+    public Xid[] recover(int flag) throws XAException {
+        return NO_XIDS;
+    }
+
+    public boolean isSameRM(XAResource xaResource) throws XAException {
+        return xaResource == this;
+    }
+
+    public int getTransactionTimeout() throws XAException {
+        return transactionTimeout;
+    }
+
+    public boolean setTransactionTimeout(int seconds) throws XAException {
+        this.transactionTimeout = seconds;
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Transaction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bitronix.tm.BitronixTransactionManager;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.resource.ehcache.EhCacheXAResourceProducer;
+
+/**
+ * Measures a transaction begin and commit with 1 (one-phase commit), 2 and 5 enlisted resources. The resources do
+ * nothing, so this is the cost of the transaction manager and of its journal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TransactionManagerBenchmark {
+
+    @Param({"1", "2", "5"})
+    public int resourceCount;
+
+    @Param({"null", "disk"})
+    public String journal;
+
+    private BitronixTransactionManager transactionManager;
+    private NoOpXAResource[] resources;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkSupport.configure(journal).setForcedWriteEnabled(true).setForceBatchingEnabled(true);
+
+        resources = new NoOpXAResource[resourceCount];
+        for (int i = 0; i < resources.length; i++) {
+            resources[i] = new NoOpXAResource();
+            EhCacheXAResourceProducer.registerXAResource("benchmark-resource-" + i, resources[i]);
+        }
+
+        transactionManager = TransactionManagerServices.getTransactionManager();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        transactionManager.shutdown();
+        for (int i = 0; i < resources.length; i++) {
+            EhCacheXAResourceProducer.unregisterXAResource("benchmark-resource-" + i, resources[i]);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void beginCommit1Thread() throws Exception {
+        beginCommit();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void beginCommit8Threads() throws Exception {
+        beginCommit();
+    }
+
+    private void beginCommit() throws Exception {
+        transactionManager.begin();
+        Transaction transaction = transactionManager.getTransaction();
+        for (NoOpXAResource resource : resources) {
+            transaction.enlistResource(resource);
+        }
+        transactionManager.commit();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.benchmark;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bitronix.tm.BitronixTransactionManager;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.resource.jdbc.PoolingDataSource;
+
+/**
+ * Measures acquiring and releasing a pooled connection outside of a transaction (<code>XAPool.getConnectionHandle()</code>
+ * and the release of the handle), uncontended and with more threads than pooled connections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class XAPoolBenchmark {
+
+    @Param({"4", "16"})
+    public int poolSize;
+
+    private BitronixTransactionManager transactionManager;
+    private PoolingDataSource dataSource;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkSupport.configure("null");
+        transactionManager = TransactionManagerServices.getTransactionManager();
+
+        dataSource = new PoolingDataSource();
+        dataSource.setUniqueName("benchmark-pool");
+        dataSource.setClassName(NoOpXADataSource.class.getName());
+        dataSource.setMinPoolSize(poolSize);
+        dataSource.setMaxPoolSize(poolSize);
+        dataSource.setAcquisitionTimeout(60);
+        dataSource.setAllowLocalTransactions(true);
+        dataSource.init();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataSource.close();
+        transactionManager.shutdown();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void acquireRelease1Thread() throws SQLException {
+        acquireRelease();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void acquireRelease8Threads() throws SQLException {
+        acquireRelease();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void acquireRelease32Threads() throws SQLException {
+        acquireRelease();
+    }
+
+    private void acquireRelease() throws SQLException {
+        Connection connection = dataSource.getConnection();
+        connection.close();
+    }
+}
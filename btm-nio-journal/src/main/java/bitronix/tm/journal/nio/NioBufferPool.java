@@ -21,44 +21,184 @@
 
 package bitronix.tm.journal.nio;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Simple pool of pre-allocated byte buffers used for concurrent serialization.
+ * Size-classed slab allocator for the byte buffers used for concurrent serialization.
+ * <p/>
+ * Buffers are carved out of large arenas, one set of arenas per power of two size class starting at
+ * {@link #PRE_ALLOCATED_BUFFER_SIZE}. Every thread keeps a magazine (a small stack of free buffers) per size class,
+ * polling and recycling buffers does not involve any shared state until a magazine runs empty or full. Then it is
+ * exchanged against a full or an empty magazine of the size class' depot. New arenas are carved on demand until
+ * {@link #BUFFER_POOL_MAX_SIZE} is reached, requests that cannot be served afterwards or that are larger than
+ * {@link #BUFFER_POOL_MAX_BUFFER_SIZE} fall back to allocating a fresh buffer.
+ * <p/>
+ * Arenas are heap arrays as the CRC32 calculation of records requires array backed buffers.
  *
  * @author juergen kellerer, 2011-04-30
  */
-final class NioBufferPool implements NioJournalConstants {
+final class NioBufferPool implements NioBufferPoolMBean, NioJournalConstants {
+
+    private static final Logger log = LoggerFactory.getLogger(NioBufferPool.class);
+
+    /**
+     * Number of buffers that a magazine holds.
+     */
+    private static final int MAGAZINE_SIZE = 32;
 
-    private static final NioBufferPool instance = new NioBufferPool();
+    private static final NioBufferPool instance = new NioBufferPool(PRE_ALLOCATED_BUFFER_SIZE, BUFFER_POOL_MAX_BUFFER_SIZE,
+            BUFFER_POOL_ARENA_SIZE, BUFFER_POOL_MAX_SIZE);
 
     public static NioBufferPool getInstance() {
         return instance;
     }
 
+    private static int nextPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    private final int arenaSize;
+    private final long maxPoolSize;
+    private final int minSizeShift;
+    private final SizeClass[] sizeClasses;
+    private final AtomicLong arenaBytes = new AtomicLong();
+
+    private final List<ThreadCache> threadCaches = new CopyOnWriteArrayList<ThreadCache>();
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            final ThreadCache cache = new ThreadCache(sizeClasses.length);
+            threadCaches.add(cache);
+            return cache;
+        }
+    };
+
+    /**
+     * Creates a pool with the given size limits.
+     *
+     * @param minBufferSize the size of the smallest size class (rounded up to the next power of two).
+     * @param maxBufferSize the largest buffer size to serve from the pool.
+     * @param arenaSize     the size of the arenas that buffers are carved out of.
+     * @param maxPoolSize   the max size of all arenas.
+     */
+    NioBufferPool(int minBufferSize, int maxBufferSize, int arenaSize, long maxPoolSize) {
+        this.arenaSize = arenaSize;
+        this.maxPoolSize = maxPoolSize;
+
+        final int minSize = nextPowerOfTwo(Math.max(64, minBufferSize));
+        minSizeShift = Integer.numberOfTrailingZeros(minSize);
+
+        final List<SizeClass> classes = new ArrayList<SizeClass>();
+        for (int size = minSize; size <= maxBufferSize && size <= arenaSize; size <<= 1)
+            classes.add(new SizeClass(size));
+        sizeClasses = classes.toArray(new SizeClass[classes.size()]);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Created a buffer pool with " + sizeClasses.length + " size classes from " + minSize + " to " + maxBufferSize +
+                    " bytes, using arenas of " + arenaSize + " bytes up to " + maxPoolSize + " bytes.");
+        }
+    }
+
+    private int sizeClassIndexFor(int capacity) {
+        final int index = capacity <= 1 ? 0 : Math.max(0, 32 - Integer.numberOfLeadingZeros(capacity - 1) - minSizeShift);
+        return index < sizeClasses.length ? index : -1;
+    }
+
     /**
      * Polls a buffer from the pool.
      *
      * @param requiredCapacity the required capacity of the buffer to return.
-     * @return a shared buffer instance.
+     * @return a buffer with at least the required capacity, positioned at 0 and limited to its capacity.
      */
     public ByteBuffer poll(int requiredCapacity) {
-        // Pooling is disabled for now as it seems to be cheaper to create a
-        // fresh buffer instead of using any sort of concurrent queue (for capacities of ~200 bytes per average).
+        final ThreadCache cache = threadCache.get();
+        final int index = sizeClassIndexFor(requiredCapacity);
+        if (index >= 0) {
+            Magazine magazine = cache.magazines[index];
+            if (magazine.count == 0)
+                magazine = refill(cache, index);
+
+            if (magazine.count > 0) {
+                final ByteBuffer buffer = magazine.buffers[--magazine.count];
+                magazine.buffers[magazine.count] = null;
+                cache.hitCount++;
+                cache.bytesOutstanding += buffer.capacity();
+                buffer.clear();
+                return buffer;
+            }
+        }
+
+        cache.fallbackCount++;
         return ByteBuffer.allocate(requiredCapacity);
     }
 
-    private void put(ByteBuffer buffer) {
+    private Magazine refill(ThreadCache cache, int index) {
+        final SizeClass sizeClass = sizeClasses[index];
+        Magazine full = sizeClass.fullMagazines.poll();
+        if (full == null) {
+            synchronized (sizeClass) {
+                // another thread may have carved an arena in the meantime.
+                full = sizeClass.fullMagazines.poll();
+                if (full == null && reserveArena()) {
+                    sizeClass.carveArena(arenaSize);
+                    full = sizeClass.fullMagazines.poll();
+                }
+            }
+        }
+
+        if (full == null)
+            return cache.magazines[index];
+
+        sizeClass.emptyMagazines.add(cache.magazines[index]);
+        return cache.magazines[index] = full;
+    }
+
+    private boolean reserveArena() {
+        long bytes;
+        do {
+            bytes = arenaBytes.get();
+            if (bytes + arenaSize > maxPoolSize)
+                return false;
+        } while (!arenaBytes.compareAndSet(bytes, bytes + arenaSize));
+        return true;
     }
 
     /**
-     * Attempt to recycle the given buffer within the pool.
+     * Attempt to recycle the given buffer within the pool. Buffers that were not polled from an arena of this pool
+     * are left to the garbage collector.
      *
      * @param buffer the buffer to put back into the pool.
      */
     public void recycleBuffer(ByteBuffer buffer) {
-        put(buffer);
+        if (buffer == null)
+            return;
+
+        final int index = sizeClassIndexFor(buffer.capacity());
+        if (index < 0 || !sizeClasses[index].owns(buffer))
+            return;
+
+        final ThreadCache cache = threadCache.get();
+        Magazine magazine = cache.magazines[index];
+        if (magazine.count == MAGAZINE_SIZE) {
+            final SizeClass sizeClass = sizeClasses[index];
+            sizeClass.fullMagazines.add(magazine);
+            final Magazine empty = sizeClass.emptyMagazines.poll();
+            cache.magazines[index] = magazine = empty != null ? empty : new Magazine();
+        }
+
+        magazine.buffers[magazine.count++] = buffer;
+        cache.recycleCount++;
+        cache.bytesOutstanding -= buffer.capacity();
     }
 
     /**
@@ -68,9 +208,131 @@ final class NioBufferPool implements NioJournalConstants {
      */
     public void recycleBuffers(Collection<ByteBuffer> buffers) {
         for (ByteBuffer buffer : buffers)
-            put(buffer);
+            recycleBuffer(buffer);
+    }
+
+    public long getPollCount() {
+        return getHitCount() + getFallbackCount();
+    }
+
+    public long getHitCount() {
+        long count = 0;
+        for (ThreadCache cache : threadCaches)
+            count += cache.hitCount;
+        return count;
+    }
+
+    public long getFallbackCount() {
+        long count = 0;
+        for (ThreadCache cache : threadCaches)
+            count += cache.fallbackCount;
+        return count;
     }
 
-    private NioBufferPool() {
+    public double getHitRatePercent() {
+        final long hits = getHitCount(), polls = hits + getFallbackCount();
+        return polls == 0 ? 0D : hits * 100D / polls;
+    }
+
+    public long getRecycleCount() {
+        long count = 0;
+        for (ThreadCache cache : threadCaches)
+            count += cache.recycleCount;
+        return count;
+    }
+
+    public long getBytesOutstanding() {
+        long bytes = 0;
+        for (ThreadCache cache : threadCaches)
+            bytes += cache.bytesOutstanding;
+        return bytes;
+    }
+
+    public long getArenaBytes() {
+        return arenaBytes.get();
+    }
+
+    public int getSizeClassCount() {
+        return sizeClasses.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "NioBufferPool{" +
+                "sizeClasses=" + sizeClasses.length +
+                ", arenaBytes=" + getArenaBytes() +
+                ", bytesOutstanding=" + getBytesOutstanding() +
+                ", hitRate=" + getHitRatePercent() + "%" +
+                '}';
+    }
+
+    /**
+     * The arenas and the depot of magazines of one buffer size.
+     */
+    private static final class SizeClass {
+
+        final int size;
+        final List<byte[]> arenas = new CopyOnWriteArrayList<byte[]>();
+        final Queue<Magazine> fullMagazines = new ConcurrentLinkedQueue<Magazine>();
+        final Queue<Magazine> emptyMagazines = new ConcurrentLinkedQueue<Magazine>();
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+
+        void carveArena(int arenaSize) {
+            final byte[] arena = new byte[arenaSize];
+            arenas.add(arena);
+
+            Magazine magazine = new Magazine();
+            for (int offset = 0; offset + size <= arenaSize; offset += size) {
+                if (magazine.count == MAGAZINE_SIZE) {
+                    fullMagazines.add(magazine);
+                    magazine = new Magazine();
+                }
+                magazine.buffers[magazine.count++] = ByteBuffer.wrap(arena, offset, size).slice();
+            }
+            fullMagazines.add(magazine);
+
+            if (log.isDebugEnabled()) { log.debug("Carved a new arena of " + arenaSize + " bytes into buffers of " + size + " bytes."); }
+        }
+
+        boolean owns(ByteBuffer buffer) {
+            if (buffer.capacity() != size || !buffer.hasArray())
+                return false;
+
+            final byte[] array = buffer.array();
+            for (byte[] arena : arenas) {
+                if (arena == array)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A small stack of free buffers of one size class.
+     */
+    private static final class Magazine {
+        final ByteBuffer[] buffers = new ByteBuffer[MAGAZINE_SIZE];
+        int count;
+    }
+
+    /**
+     * The magazines and statistics of one thread, statistics are only written by the owning thread.
+     */
+    private static final class ThreadCache {
+
+        final Magazine[] magazines;
+        volatile long hitCount, fallbackCount, recycleCount, bytesOutstanding;
+
+        ThreadCache(int sizeClassCount) {
+            magazines = new Magazine[sizeClassCount];
+            for (int i = 0; i < sizeClassCount; i++)
+                magazines[i] = new Magazine();
+        }
     }
 }
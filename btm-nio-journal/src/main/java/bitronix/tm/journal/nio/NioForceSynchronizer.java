@@ -21,26 +21,33 @@
 
 package bitronix.tm.journal.nio;
 
-import bitronix.tm.journal.nio.util.SequencedBlockingQueue;
+import bitronix.tm.journal.JournalCompletion;
 import bitronix.tm.journal.nio.util.SequencedQueueEntry;
+import bitronix.tm.journal.nio.util.SequencedRingBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Synchronizes 'force' calls between the write requesting threads and the thread that does the actual write IO.
  * <p/>
  * This class is also responsible for transmitting failure cases back to the requester (if it is waiting
- * on force to complete).
+ * on force to complete or enlisted a {@link JournalCompletion}).
+ * <p/>
+ * No lock is involved: threads waiting on a force enlist a completion for the sequence of their latest
+ * element and the writing thread completes it after publishing the latest forced sequence.
  * <p/>
  * Note: This is a low level implementation that is not meant to be used externally.
  *
@@ -50,15 +57,16 @@ class NioForceSynchronizer {
 
     private static final Logger log = LoggerFactory.getLogger(NioForceSynchronizer.class);
 
-    private final ReentrantLock forceLock = new ReentrantLock();
-    private final Condition performedForce = forceLock.newCondition();
     private final AtomicLong latestForcedElement = new AtomicLong(), latestFailedElement = new AtomicLong();
 
     private final List<FailedRange> failures = new CopyOnWriteArrayList<FailedRange>();
 
-    private final SequencedBlockingQueue pendingRecordsQueue;
+    private final Queue<PendingCompletion> pendingCompletions = new ConcurrentLinkedQueue<PendingCompletion>();
+    private final AtomicInteger enlistingCompletions = new AtomicInteger(), waitingThreads = new AtomicInteger();
+
+    private final SequencedRingBuffer pendingRecordsQueue;
 
-    NioForceSynchronizer(SequencedBlockingQueue pendingRecordsQueue) {
+    NioForceSynchronizer(SequencedRingBuffer pendingRecordsQueue) {
         this.pendingRecordsQueue = pendingRecordsQueue;
     }
 
@@ -72,50 +80,124 @@ class NioForceSynchronizer {
      * @return returns true if the force operation succeeded and false if an IO error was reported.
      */
     public boolean waitOnEnlisted() {
-        long enlistedElementNumber = pendingRecordsQueue.getMaxElementSequenceNumberForCurrentThread(true);
+        return waitOnEnlisted(pendingRecordsQueue.getMaxElementSequenceNumberForCurrentThread(true));
+    }
 
-        try {
-            // Wait until we have our entry forced (may not require a wait at all if it already happened).
-            forceLock.lockInterruptibly();
-            try {
-                while (enlistedElementNumber > latestForcedElement.get()) {
-                    if (verifyIsInFailedRange(enlistedElementNumber))
-                        return false;
+    /**
+     * Wait on the element with the given sequence number to get forced or failed.
+     *
+     * @param enlistedElementNumber the sequence number of the element to wait on.
+     * @return returns true if the force operation succeeded and false if an IO error was reported.
+     */
+    public boolean waitOnEnlisted(long enlistedElementNumber) {
+        // Check if we had an exception or our entry was already forced (does not require a wait at all).
+        if (verifyIsInFailedRange(enlistedElementNumber))
+            return false;
 
-                    if (log.isDebugEnabled()) { log.debug("Waiting until entry with sequence " + enlistedElementNumber + " was forced."); }
-                    performedForce.await();
-                }
+        if (enlistedElementNumber > latestForcedElement.get()) {
+            if (log.isDebugEnabled()) { log.debug("Waiting until entry with sequence " + enlistedElementNumber + " was forced."); }
+
+            final JournalCompletion completion = new JournalCompletion();
+            waitingThreads.incrementAndGet();
+            try {
+                pendingCompletions.add(new PendingCompletion(enlistedElementNumber, completion));
+                // the element may have been forced before the completion was enlisted.
+                notifyCompletions();
+                completion.await();
+            } catch (InterruptedIOException e) {
+                // the interrupted state of the thread was already restored by the completion.
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                return false;
             } finally {
-                forceLock.unlock();
+                waitingThreads.decrementAndGet();
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException(e);
         }
 
-        // Check if we had an exception.
-        if (verifyIsInFailedRange(enlistedElementNumber)) {
-            return false;
-        } else {
-            if (log.isDebugEnabled()) {
-                log.debug("Entry with sequence " + enlistedElementNumber + " was successfully forced (force ranges up to " + latestForcedElement.get() + ").");
+        if (log.isDebugEnabled()) {
+            log.debug("Entry with sequence " + enlistedElementNumber + " was successfully forced (force ranges up to " + latestForcedElement.get() + ").");
+        }
+        return true;
+    }
+
+    /**
+     * Announces that the calling thread is about to enqueue an element and to enlist its completion.
+     * <p/>
+     * Until {@link #enlistCompletion(long, JournalCompletion)} or {@link #abortEnlistCompletion()} is called,
+     * the writer forces every element it writes so that the element cannot be written without being forced.
+     */
+    public void beginEnlistCompletion() {
+        enlistingCompletions.incrementAndGet();
+    }
+
+    /**
+     * Enlists the completion of an element previously announced with {@link #beginEnlistCompletion()}. The completion
+     * is completed by the thread that forces the element or reports its failure.
+     *
+     * @param elementSequenceNumber the sequence number of the element.
+     * @param completion            the completion to complete once the element was forced.
+     */
+    public void enlistCompletion(long elementSequenceNumber, JournalCompletion completion) {
+        pendingCompletions.add(new PendingCompletion(elementSequenceNumber, completion));
+        enlistingCompletions.decrementAndGet();
+
+        // the element may have been forced before the completion was enlisted.
+        notifyCompletions();
+    }
+
+    /**
+     * Cancels a {@link #beginEnlistCompletion()} when the element could not be enqueued.
+     */
+    public void abortEnlistCompletion() {
+        enlistingCompletions.decrementAndGet();
+    }
+
+    /**
+     * Returns true if threads are waiting on a force or completions wait on their elements to get forced.
+     *
+     * @return true if the writer should force the elements it wrote.
+     */
+    public boolean isForceRequested() {
+        return enlistingCompletions.get() > 0 || !pendingCompletions.isEmpty() || getNumberOfWaitingThreads() > 0;
+    }
+
+    /**
+     * Completes the enlisted completions of the elements that were forced or failed.
+     */
+    public void notifyCompletions() {
+        final long forcedElement = latestForcedElement.get();
+        for (PendingCompletion pending : pendingCompletions) {
+            final long elementSequenceNumber = pending.elementSequenceNumber;
+            if (verifyIsInFailedRange(elementSequenceNumber)) {
+                if (pendingCompletions.remove(pending)) {
+                    pending.completion.fail(new IOException("Forced failed on the entry with sequence " + elementSequenceNumber +
+                            ", see log output for more details."));
+                }
+            } else if (elementSequenceNumber <= forcedElement) {
+                if (pendingCompletions.remove(pending))
+                    pending.completion.complete();
             }
-            return true;
         }
     }
 
+    /**
+     * Fails all enlisted completions that are still pending.
+     *
+     * @param failure the reason of the failure.
+     */
+    public void failAllCompletions(IOException failure) {
+        PendingCompletion pending;
+        while ((pending = pendingCompletions.poll()) != null)
+            pending.completion.fail(failure);
+    }
+
     /**
      * Returns the number of threads waiting on a force to happen.
      *
      * @return the number of threads waiting on a force to happen.
      */
     public int getNumberOfWaitingThreads() {
-        forceLock.lock();
-        try {
-            return forceLock.getWaitQueueLength(performedForce);
-        } finally {
-            forceLock.unlock();
-        }
+        return waitingThreads.get();
     }
 
     /**
@@ -130,19 +212,13 @@ class NioForceSynchronizer {
     public boolean processEnlistedIfRequired(Callable forceCommand,
                                              Collection<? extends SequencedQueueEntry> elements)
             throws Exception {
-        forceLock.lock();
-        try {
-            final int waitingThreads = forceLock.getWaitQueueLength(performedForce);
-            if (waitingThreads > 0) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Found " + waitingThreads + " threads waiting on force to happen. Forcing " + elements + "log entries to disk now.");
-                }
-
-                processEnlisted(forceCommand, elements);
-                return true;
+        if (isForceRequested()) {
+            if (log.isDebugEnabled()) {
+                log.debug("Found " + getNumberOfWaitingThreads() + " threads waiting on force to happen. Forcing " + elements + "log entries to disk now.");
             }
-        } finally {
-            forceLock.unlock();
+
+            processEnlisted(forceCommand, elements);
+            return true;
         }
         return false;
     }
@@ -157,19 +233,14 @@ class NioForceSynchronizer {
      */
     public void processEnlisted(Callable forceCommand,
                                 Collection<? extends SequencedQueueEntry> elements) throws Exception {
-        forceLock.lock();
         try {
-            try {
-                forceCommand.call();
-                recordSuccess(elements);
-            } catch (Exception e) {
-                recordFailures(elements);
-                throw e;
-            } finally {
-                performedForce.signalAll();
-            }
+            forceCommand.call();
+            recordSuccess(elements);
+        } catch (Exception e) {
+            recordFailures(elements);
+            throw e;
         } finally {
-            forceLock.unlock();
+            notifyCompletions();
         }
     }
 
@@ -225,6 +296,20 @@ class NioForceSynchronizer {
         return false;
     }
 
+    /**
+     * Keeps the completion of an element waiting on the element to get forced.
+     */
+    static class PendingCompletion {
+
+        final long elementSequenceNumber;
+        final JournalCompletion completion;
+
+        PendingCompletion(long elementSequenceNumber, JournalCompletion completion) {
+            this.elementSequenceNumber = elementSequenceNumber;
+            this.completion = completion;
+        }
+    }
+
     /**
      * Keeps a range of failed elements.
      */
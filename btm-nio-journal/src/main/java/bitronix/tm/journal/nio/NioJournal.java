@@ -23,11 +23,14 @@ package bitronix.tm.journal.nio;
 
 import bitronix.tm.Configuration;
 import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.journal.AsyncJournal;
 import bitronix.tm.journal.Journal;
+import bitronix.tm.journal.JournalCompletion;
 import bitronix.tm.journal.JournalRecord;
 import bitronix.tm.journal.MigratableJournal;
 import bitronix.tm.journal.ReadableJournal;
-import bitronix.tm.journal.nio.util.SequencedBlockingQueue;
+import bitronix.tm.journal.nio.util.SequencedRingBuffer;
+import bitronix.tm.utils.ManagementRegistrar;
 import bitronix.tm.utils.Uid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,7 +38,6 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.nio.ByteBuffer;
 import java.util.*;
 
 import static bitronix.tm.journal.nio.NioJournalWritingThread.newRunningInstance;
@@ -44,11 +46,14 @@ import static javax.transaction.Status.STATUS_ROLLING_BACK;
 
 /**
  * Nio & 'java.util.concurrent' based implementation of a transaction journal.
+ * <p/>
+ * Records logged with {@link #logAsync(int, Uid, Set, boolean)} are completed by the journal writer thread once
+ * they were forced, no thread is waiting for them.
  *
  * @author juergen kellerer, 2011-04-30
  * @see bitronix.tm.journal.Journal
  */
-public class NioJournal implements Journal, MigratableJournal, ReadableJournal, NioJournalConstants {
+public class NioJournal implements AsyncJournal, MigratableJournal, ReadableJournal, NioJournalConstants, NioJournalMBean {
 
     private static final Logger log = LoggerFactory.getLogger(NioJournal.class);
     private static final boolean trace = log.isTraceEnabled();
@@ -68,14 +73,23 @@ public class NioJournal implements Journal, MigratableJournal, ReadableJournal,
     final NioTrackedTransactions trackedTransactions = new NioTrackedTransactions();
 
     // Queueing & force related stuff
-    final SequencedBlockingQueue<NioJournalFileRecord> pendingRecordsQueue = new SequencedBlockingQueue<NioJournalFileRecord>();
+    final SequencedRingBuffer<NioJournalFileRecord> pendingRecordsQueue = new SequencedRingBuffer<NioJournalFileRecord>();
     final NioForceSynchronizer forceSynchronizer = new NioForceSynchronizer(pendingRecordsQueue);
+    final NioWriteBatchController writeBatchController = new NioWriteBatchController(WRITE_LATENCY_TARGET);
+    private volatile String writeBatchControllerJmxName;
+    private volatile String bufferPoolJmxName;
+    private volatile String jmxName;
+
+    private static final long NOT_ENQUEUED = -1;
 
     // Worker
     volatile NioJournalWritingThread journalWritingThread;
 
     volatile File journalFilePath;
     volatile NioJournalFile journalFile;
+    // Note: When segmented, journalFile is the segment that was active on open. It is still used to create
+    //       records as the writer assigns the delimiter of the segment the records are written to.
+    volatile NioJournalSegments journalSegments;
 
     boolean skipForce = !TransactionManagerServices.getConfiguration().isForcedWriteEnabled();
     boolean logOnlyMandatoryRecords = TransactionManagerServices.getConfiguration().isFilterLogStatus();
@@ -84,6 +98,42 @@ public class NioJournal implements Journal, MigratableJournal, ReadableJournal,
      * {@inheritDoc}
      */
     public void log(final int status, final Uid gtrid, Set<String> uniqueNames) throws IOException {
+        enqueue(status, gtrid, uniqueNames);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public JournalCompletion logAsync(final int status, final Uid gtrid, Set<String> uniqueNames, boolean force) throws IOException {
+        if (!force || skipForce) {
+            enqueue(status, gtrid, uniqueNames);
+            return JournalCompletion.completed();
+        }
+
+        // announcing the completion before enqueuing the record makes the writer force the record.
+        forceSynchronizer.beginEnlistCompletion();
+        boolean enlisted = false;
+        try {
+            final long sequenceNumber = enqueue(status, gtrid, uniqueNames);
+            if (sequenceNumber == NOT_ENQUEUED)
+                return JournalCompletion.completed();
+
+            final JournalCompletion completion = new JournalCompletion();
+            forceSynchronizer.enlistCompletion(sequenceNumber, completion);
+            enlisted = true;
+            return completion;
+        } finally {
+            if (!enlisted)
+                forceSynchronizer.abortEnlistCompletion();
+        }
+    }
+
+    /**
+     * Queues a record for the journal writer.
+     *
+     * @return the sequence number of the queued record or {@link #NOT_ENQUEUED} if the record is not journaled.
+     */
+    private long enqueue(final int status, final Uid gtrid, Set<String> uniqueNames) throws IOException {
         assertJournalIsOpen();
 
         if (gtrid == null)
@@ -95,7 +145,7 @@ public class NioJournal implements Journal, MigratableJournal, ReadableJournal,
 
         if (logOnlyMandatoryRecords && !MANDATORY_STATUS_TO_LOG.contains(status)) {
             if (log.isDebugEnabled()) { log.debug("Journaling of non mandatory records is disabled. Skipping " + record); }
-            return;
+            return NOT_ENQUEUED;
         }
 
         trackedTransactions.track(status, gtrid, record);
@@ -105,7 +155,7 @@ public class NioJournal implements Journal, MigratableJournal, ReadableJournal,
         try {
             final NioJournalFileRecord fileRecord = journalFile.createEmptyRecord();
             record.encodeTo(fileRecord.createEmptyPayload(record.getRecordLength()), false);
-            pendingRecordsQueue.putElement(fileRecord);
+            return pendingRecordsQueue.putElement(fileRecord);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             IOException ioException = new InterruptedIOException(e.getMessage());
@@ -158,27 +208,43 @@ public class NioJournal implements Journal, MigratableJournal, ReadableJournal,
         if (trace) { log.trace("Calling close prior to open to ensure the journal wasn't opened before."); }
         close();
 
-        this.journalFile = new NioJournalFile(journalFilePath, journalSize);
+        final boolean synchronous = TransactionManagerServices.getConfiguration().isSynchronousWriteEnabled();
+        if (JOURNAL_SEGMENTED) {
+            this.journalSegments = new NioJournalSegments(journalFilePath, journalSize, JOURNAL_MAX_SEGMENTS, synchronous);
+            this.journalFile = journalSegments.getActiveSegment();
+        } else {
+            this.journalFile = new NioJournalFile(journalFilePath, journalSize, synchronous);
+        }
         log.info("Successfully opened the journal file " + journalFilePath + ".");
 
         if (debug) { log.debug("Scanning for unfinished transactions within " + journalFilePath + "."); }
 
-        for (NioJournalFileRecord fileRecord : journalFile.readAll(false)) {
-            NioJournalRecord record = decodeFileRecord(fileRecord);
-            if (record != null) {
-                if (!record.isValid())
-                    log.error("Transaction log entry " + record + " loaded from journal " + journalFilePath + " fails CRC32 check. Discarding the entry.");
-                else
-                    trackedTransactions.track(record);
-            }
+        for (NioJournalRecord record : readAll(false)) {
+            if (!record.isValid())
+                log.error("Transaction log entry " + record + " loaded from journal " + journalFilePath + " fails CRC32 check. Discarding the entry.");
+            else
+                trackedTransactions.track(record);
         }
 
         log.info("Found " + trackedTransactions.size() + " unfinished transactions within the journal.");
         trackedTransactions.purgeTransactionsExceedingLifetime();
 
+        if (journalSegments != null)
+            journalSegments.retainTracked(trackedTransactions);
+
         try {
-            journalWritingThread = newRunningInstance(trackedTransactions, journalFile, isSkipForce() ? null : forceSynchronizer, pendingRecordsQueue);
+            journalWritingThread = newRunningInstance(trackedTransactions, journalFile, isSkipForce() ? null : forceSynchronizer,
+                    pendingRecordsQueue, writeBatchController, journalSegments);
             log.info("Successfully started a new log appender on the journal file " + journalFilePath + ".");
+
+            String serverId = TransactionManagerServices.getConfiguration().getServerId();
+            if (serverId == null) serverId = "";
+            writeBatchControllerJmxName = "bitronix.tm:type=NioJournalWriteBatching,ServerId=" + ManagementRegistrar.makeValidName(serverId);
+            ManagementRegistrar.register(writeBatchControllerJmxName, writeBatchController);
+            bufferPoolJmxName = "bitronix.tm:type=NioBufferPool,ServerId=" + ManagementRegistrar.makeValidName(serverId);
+            ManagementRegistrar.register(bufferPoolJmxName, NioBufferPool.getInstance());
+            jmxName = "bitronix.tm:type=NioJournal,ServerId=" + ManagementRegistrar.makeValidName(serverId);
+            ManagementRegistrar.register(jmxName, this);
         } catch (InterruptedException e) {
             log.info("Interrupted the attempt to open the journal file " + journalFilePath + ". Will close the file now and " +
                     "delegate the interrupt to the caller, letting it shutdown gracefully.");
@@ -191,30 +257,37 @@ public class NioJournal implements Journal, MigratableJournal, ReadableJournal,
         }
     }
 
-    private NioJournalRecord decodeFileRecord(NioJournalFileRecord fileRecord) {
-        ByteBuffer buffer = fileRecord.getPayload();
-        try {
-            buffer.mark();
-            return new NioJournalRecord(buffer, fileRecord.isValid());
-        } catch (Exception e) {
-            buffer.reset();
-            String contentString = NioJournalFileRecord.bufferToString(buffer);
-            log.error("Transaction log entry buffer with content <" + contentString + "> loaded from journal " + journalFilePath + " cannot be decoded. " +
-                    "Discarding the entry.");
-        }
-        return null;
-    }
-
     /**
      * {@inheritDoc}
      */
     public synchronized void close() throws IOException {
         closeLogAppender();
 
+        if (writeBatchControllerJmxName != null) {
+            ManagementRegistrar.unregister(writeBatchControllerJmxName);
+            writeBatchControllerJmxName = null;
+        }
+        if (bufferPoolJmxName != null) {
+            ManagementRegistrar.unregister(bufferPoolJmxName);
+            bufferPoolJmxName = null;
+        }
+        if (jmxName != null) {
+            ManagementRegistrar.unregister(jmxName);
+            jmxName = null;
+        }
+
+        // the writer forced or failed all queued records before stopping
+        forceSynchronizer.notifyCompletions();
+        forceSynchronizer.failAllCompletions(new IOException("The journal was closed before the record was forced."));
+
         if (journalFile != null) {
             if (log.isDebugEnabled()) { log.debug("Attempting to close the nio transaction journal."); }
-            journalFile.close();
+            if (journalSegments != null)
+                journalSegments.close();
+            else
+                journalFile.close();
             journalFile = null;
+            journalSegments = null;
             log.info("Closed the nio transaction journal.");
         }
 
@@ -258,11 +331,11 @@ public class NioJournal implements Journal, MigratableJournal, ReadableJournal,
     /**
      * {@inheritDoc}
      */
-    public Map<Uid, ? extends JournalRecord> collectDanglingRecords() throws IOException {
+    public Map<Uid, JournalRecord> collectDanglingRecords() throws IOException {
         assertJournalIsOpen();
 
         final Map<Uid, NioJournalRecord> tracked = trackedTransactions.getTracked();
-        final Map<Uid, NioJournalRecord> dangling = new HashMap<Uid, NioJournalRecord>(tracked.size());
+        final Map<Uid, JournalRecord> dangling = new HashMap<Uid, JournalRecord>(tracked.size());
 
         for (Map.Entry<Uid, NioJournalRecord> entry : tracked.entrySet()) {
             if (entry.getValue().getStatus() == STATUS_COMMITTING || entry.getValue().getStatus() == STATUS_ROLLING_BACK)
@@ -287,11 +360,110 @@ public class NioJournal implements Journal, MigratableJournal, ReadableJournal,
      */
     public synchronized void unsafeReadRecordsInto(Collection<JournalRecord> target, boolean includeInvalid) throws IOException {
         assertJournalIsOpen();
-        for (NioJournalFileRecord record : journalFile.readAll(includeInvalid)) {
-            NioJournalRecord journalRecord = decodeFileRecord(record);
-            if (journalRecord != null)
-                target.add(journalRecord);
-        }
+        for (NioJournalRecord record : readAll(includeInvalid))
+            target.add(record);
+    }
+
+    private Iterable<NioJournalRecord> readAll(boolean includeInvalid) throws IOException {
+        final NioJournalSegments segments = journalSegments;
+        return segments != null ? segments.readAllRecords(includeInvalid) : journalFile.readAllRecords(includeInvalid);
+    }
+
+    /* management */
+
+    public String getJournalFileName() {
+        final File path = journalFilePath;
+        return path == null ? null : path.getPath();
+    }
+
+    public long getJournalSize() {
+        final NioJournalWritingThread writer = journalWritingThread;
+        return writer == null ? 0 : writer.getJournalFile().getSize();
+    }
+
+    public int getTrackedTransactionCount() {
+        return trackedTransactions.size();
+    }
+
+    public int getPendingRecordCount() {
+        return pendingRecordsQueue.size();
+    }
+
+    public long getWrittenRecordCount() {
+        final NioJournalWritingThread writer = journalWritingThread;
+        return writer == null ? 0 : writer.getProcessedCount();
+    }
+
+    public double getRecordsPerSecond() {
+        return writeBatchController.getArrivalRatePerSecond();
+    }
+
+    public double getForcesPerSecond() {
+        return writeBatchController.getForceRatePerSecond();
+    }
+
+    public long getAverageForceTimeInMicros() {
+        return writeBatchController.getAverageForceTimeInMicros();
+    }
+
+    public long getBatchWindowInMicros() {
+        return writeBatchController.getBatchWindowInMicros();
+    }
+
+    public int getConcurrency() {
+        return pendingRecordsQueue.getCapacity();
+    }
+
+    public int getBufferSize() {
+        return PRE_ALLOCATED_BUFFER_SIZE;
+    }
+
+    public long getWriteLatencyTargetInMillis() {
+        return writeBatchController.getLatencyTargetInMillis();
+    }
+
+    public void setWriteLatencyTargetInMillis(long writeLatencyTarget) {
+        writeBatchController.setLatencyTargetInMillis(writeLatencyTarget);
+    }
+
+    public long getWriteDelayInMillis() {
+        return NioJournalSettings.getInstance().getWriteDelay();
+    }
+
+    public void setWriteDelayInMillis(long writeDelay) {
+        NioJournalSettings.getInstance().setWriteDelay(writeDelay);
+    }
+
+    public long getMaxTransactionLifetimeInMillis() {
+        return NioJournalSettings.getInstance().getTransactionMaxLifetime();
+    }
+
+    public void setMaxTransactionLifetimeInMillis(long maxTransactionLifetime) {
+        NioJournalSettings.getInstance().setTransactionMaxLifetime(maxTransactionLifetime);
+    }
+
+    public int getMaxRecordSize() {
+        return NioJournalSettings.getInstance().getMaxRecordSize();
+    }
+
+    public void setMaxRecordSize(int maxRecordSize) {
+        NioJournalSettings.getInstance().setMaxRecordSize(maxRecordSize);
+    }
+
+    public double getGrowOffset() {
+        return NioJournalSettings.getInstance().getGrowOffset();
+    }
+
+    public void setGrowOffset(double growOffset) {
+        NioJournalSettings.getInstance().setGrowOffset(growOffset);
+    }
+
+    public double getGrowRatio() {
+        return NioJournalSettings.getInstance().getGrowRatio();
+    }
+
+    public void setGrowRatio(double growRatio) {
+        NioJournalSettings.getInstance().setGrowRatio(growRatio);
     }
 
     /**
@@ -306,6 +478,7 @@ public class NioJournal implements Journal, MigratableJournal, ReadableJournal,
                 ", forceSynchronizer=" + forceSynchronizer +
                 ", journalWritingThread=" + journalWritingThread +
                 ", journalFile=" + journalFile +
+                ", journalSegments=" + journalSegments +
                 '}';
     }
 }
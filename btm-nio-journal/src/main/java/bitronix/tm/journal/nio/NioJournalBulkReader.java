@@ -0,0 +1,271 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static bitronix.tm.journal.nio.NioJournalFileRecord.FindResult;
+import static bitronix.tm.journal.nio.NioJournalFileRecord.ReadStatus;
+
+/**
+ * Bulk file iterator.
+ * <p/>
+ * Reads the given journal sequentially in large chunks and finds the records of the given delimiter in each chunk.
+ * The records of a chunk are then verified against their CRC32 and decoded to {@link NioJournalRecord}s by a pool of
+ * threads while the next chunks are being read. Records are returned in file order, the same records that
+ * {@link NioJournalFileIterable} returns.
+ *
+ * @author juergen kellerer, 2011-05-29
+ */
+class NioJournalBulkReader implements Iterable<NioJournalRecord> {
+
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(NioJournalBulkReader.class);
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    /**
+     * Decoding threads shared by all the readers, created when a file with more than one chunk is first read.
+     */
+    private static ExecutorService decoders;
+
+    private final File file;
+    private final UUID delimiter;
+    private final FileChannel fileChannel;
+    private final boolean readInvalid;
+    private final int chunkSize;
+
+    NioJournalBulkReader(File file, UUID delimiter, FileChannel fileChannel, boolean readInvalid) {
+        this(file, delimiter, fileChannel, readInvalid, DEFAULT_CHUNK_SIZE);
+    }
+
+    NioJournalBulkReader(File file, UUID delimiter, FileChannel fileChannel, boolean readInvalid, int chunkSize) {
+        this.file = file;
+        this.delimiter = delimiter;
+        this.fileChannel = fileChannel;
+        this.readInvalid = readInvalid;
+        this.chunkSize = chunkSize;
+    }
+
+    public Iterator<NioJournalRecord> iterator() {
+        return new RecordIterator();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "NioJournalBulkReader{" +
+                "file=" + file +
+                ", delimiter=" + delimiter +
+                ", chunkSize=" + chunkSize +
+                '}';
+    }
+
+    private static synchronized ExecutorService getDecoders() {
+        if (decoders == null) {
+            decoders = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "bitronix-nio-journal-reader-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return decoders;
+    }
+
+    private class RecordIterator implements Iterator<NioJournalRecord> {
+
+        private final LinkedList<Future<List<NioJournalRecord>>> pendingChunks = new LinkedList<Future<List<NioJournalRecord>>>();
+        private long position;
+        private ByteBuffer leftover = EMPTY_BUFFER;
+        private boolean endOfFile;
+        private List<NioJournalRecord> currentChunk = Collections.emptyList();
+        private int currentIndex;
+
+        public boolean hasNext() {
+            while (currentIndex >= currentChunk.size()) {
+                if (!nextChunk())
+                    return false;
+            }
+            return true;
+        }
+
+        public NioJournalRecord next() {
+            if (!hasNext())
+                throw new NoSuchElementException("There are no more entries inside the journal.");
+            return currentChunk.set(currentIndex++, null);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Reads ahead as many chunks as there are decoding threads, then waits for the oldest one to be decoded.
+         *
+         * @return false if there is no chunk left to read.
+         */
+        private boolean nextChunk() {
+            while (!endOfFile && pendingChunks.size() < PARALLELISM * 2) {
+                Chunk chunk = readChunk();
+                if (chunk == null)
+                    break;
+                pendingChunks.add(submit(chunk));
+            }
+
+            if (pendingChunks.isEmpty())
+                return false;
+
+            try {
+                currentChunk = pendingChunks.removeFirst().get();
+                currentIndex = 0;
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading the journal file " + file + ".", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                throw new RuntimeException("Failed decoding the records of the journal file " + file + ".", e.getCause());
+            }
+        }
+
+        /**
+         * Decodes the chunk in the calling thread when it is the last one and no other chunk is pending, otherwise hands
+         * it over to the decoding threads.
+         *
+         * @param chunk the chunk to decode.
+         * @return the future result of the decoding.
+         */
+        private Future<List<NioJournalRecord>> submit(Chunk chunk) {
+            if (pendingChunks.isEmpty() && endOfFile || PARALLELISM == 1) {
+                FutureTask<List<NioJournalRecord>> task = new FutureTask<List<NioJournalRecord>>(chunk);
+                task.run();
+                return task;
+            }
+            return getDecoders().submit(chunk);
+        }
+
+        /**
+         * Reads the next chunk of the file, carrying over to the next chunk the partial record found at its end.
+         *
+         * @return the chunk or null if there is no record left to read.
+         */
+        private Chunk readChunk() {
+            try {
+                while (!endOfFile) {
+                    final ByteBuffer buffer = ByteBuffer.allocate(leftover.remaining() + chunkSize);
+                    buffer.put(leftover);
+                    while (buffer.hasRemaining()) {
+                        int readBytes = fileChannel.read(buffer, position);
+                        if (readBytes == -1) {
+                            endOfFile = true;
+                            break;
+                        }
+                        position += readBytes;
+                    }
+                    buffer.flip();
+
+                    final Chunk chunk = new Chunk();
+                    leftover = EMPTY_BUFFER;
+                    while (true) {
+                        final FindResult findResult = NioJournalFileRecord.findNextRecord(delimiter, buffer);
+                        if (findResult.getStatus() == ReadStatus.ReadOk) {
+                            chunk.records.add(findResult.getRecord());
+                        } else {
+                            if (findResult.getStatus() == ReadStatus.FoundPartialRecord)
+                                leftover = buffer.slice();
+                            break;
+                        }
+                    }
+
+                    if (!chunk.records.isEmpty())
+                        return chunk;
+                }
+                return null;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * A chunk of the journal file containing whole records, verified and decoded in file order.
+     */
+    private final class Chunk implements Callable<List<NioJournalRecord>> {
+
+        private final List<NioJournalFileRecord> records = new ArrayList<NioJournalFileRecord>();
+
+        public List<NioJournalRecord> call() {
+            final List<NioJournalRecord> results = new ArrayList<NioJournalRecord>(records.size());
+            for (NioJournalFileRecord fileRecord : records) {
+                final boolean valid = fileRecord.isValid();
+                if (!valid) {
+                    if (readInvalid) {
+                        log.warn("CRC32 differs in payload of record for " + fileRecord + ", returning this invalid entry.");
+                    } else {
+                        log.warn("CRC32 differs in payload of record " + fileRecord + ", skipping the entry.");
+                        continue;
+                    }
+                }
+
+                final ByteBuffer buffer = fileRecord.getPayload();
+                try {
+                    buffer.mark();
+                    results.add(new NioJournalRecord(buffer, valid));
+                } catch (Exception e) {
+                    buffer.reset();
+                    log.error("Transaction log entry buffer with content <" + NioJournalFileRecord.bufferToString(buffer) + "> loaded " +
+                            "from journal " + file + " cannot be decoded. Discarding the entry.");
+                }
+            }
+            return results;
+        }
+    }
+}
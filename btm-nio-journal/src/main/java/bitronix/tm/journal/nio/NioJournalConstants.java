@@ -46,6 +46,9 @@ import static javax.transaction.Status.*;
  * Note: The tuning options contained in this interface are meant for usage by experts only. If one of the
  * options turns out to be useful for the day to day configuration it will be moved into the main Configuration
  * instance.
+ * <p/>
+ * The write delay and latency target, the max transaction lifetime, the grow offset and ratio and (lowering) the max
+ * record size are initial values that can be changed at runtime with the {@link NioJournalMBean}.
  *
  * @author juergen kellerer, 2011-04-30
  */
@@ -69,6 +72,15 @@ public interface NioJournalConstants {
 
     // ---- SNIPPET-START: NioJournalTuningOptions
 
+    /**
+     * Target for the time a committing thread waits on its record to get forced, in milliseconds.
+     * <p/>
+     * The writer adapts the time it keeps collecting records before forcing from the observed arrival rate and the
+     * measured duration of force (fsync), never exceeding this target. At a low arrival rate, records are forced
+     * immediately. Under load, records that arrive while the writer waits are forced together.
+     */
+    long WRITE_LATENCY_TARGET = max(0L, getLong("bitronix.nio.journal.write.latency.target", 10L));
+
     /**
      * Max time to delay writes if force is not requested and queues have remaining capacity.
      * <p/>
@@ -79,9 +91,12 @@ public interface NioJournalConstants {
     long WRITE_DELAY = getLong("bitronix.nio.journal.write.delay", SECONDS.toMillis(2));
 
     /**
-     * Number of iterations that the write thread attempts to process more pending entries before it
+     * Max number of iterations that the write thread attempts to process more pending entries before it
      * forces the changes to disk (and releases waiting threads).
      * <p/>
+     * Iterations stop earlier when no more entries are pending and the adaptive batch window (see
+     * {@link #WRITE_LATENCY_TARGET}) has elapsed.
+     * <p/>
      * Similar as write delay tries to reduce disk IO by combining individual writes, this value
      * attempts to reduce calls to force (fsync) by repeatedly writing any queued requests before
      * actually performing a requested force. Once forced any waiting threads are released.
@@ -97,9 +112,27 @@ public interface NioJournalConstants {
     /**
      * Specifies the size of byte buffers to allocate for transaction serialization.
      * (should be as large as the majority of transactions may become)
+     * <p/>
+     * Is the smallest size class of the buffer pool (rounded up to the next power of two).
      */
     int PRE_ALLOCATED_BUFFER_SIZE = getInteger("bitronix.nio.journal.buffer.size", 386);
 
+    /**
+     * Is the size of the arenas that the buffer pool carves the buffers of one size class out of (defaults to 256k).
+     */
+    int BUFFER_POOL_ARENA_SIZE = max(16 * 1024, getInteger("bitronix.nio.journal.buffer.pool.arena.size", 256 * 1024));
+
+    /**
+     * Is the max size of all arenas of the buffer pool (defaults to 8m). Once reached, buffers that cannot be served from
+     * the pool are allocated on demand and are left to the garbage collector.
+     */
+    long BUFFER_POOL_MAX_SIZE = max(0L, getLong("bitronix.nio.journal.buffer.pool.size", 8L * 1024 * 1024));
+
+    /**
+     * Is the largest buffer size served by the buffer pool (defaults to 16k), larger buffers are allocated on demand.
+     */
+    int BUFFER_POOL_MAX_BUFFER_SIZE = max(1024, getInteger("bitronix.nio.journal.buffer.pool.max.buffer.size", 16 * 1024));
+
     /**
      * Specifies whether direct buffers are used when buffering records before the are written to disk.
      *
@@ -108,6 +141,15 @@ public interface NioJournalConstants {
      */
     boolean USE_DIRECT_BUFFERS = parseBoolean(getProperty("bitronix.nio.journal.buffer.use.direct", "true"));
 
+    /**
+     * Is the size of a write batch from which on records are written with a gathering write instead of being copied
+     * into the shared write buffer first (defaults to 256k).
+     * <p/>
+     * Small batches are faster to write from a single buffer while copying large batches costs more than it saves
+     * and would grow the write buffer to the largest batch size. Set to 0 to always use gathering writes.
+     */
+    int GATHERING_WRITE_THRESHOLD = max(0, getInteger("bitronix.nio.journal.write.gather.threshold", 256 * 1024));
+
     /**
      * Hard limit, defining the maximum time that a transaction may be held in the journal.
      * (= the maximum supported timeout for a transaction, defaults to 14 days)
@@ -148,6 +190,24 @@ public interface NioJournalConstants {
      */
     double JOURNAL_GROW_RATIO = max(1D, parseDouble(getProperty("bitronix.nio.journal.grow.ratio", "1.5")));
 
+    /**
+     * Specifies whether the journal is stored in fixed-size, pre-allocated segment files instead of a single file
+     * that is grown in place.
+     * <p/>
+     * When the active segment is full, the writer switches to a recycled or a new segment. The records of the
+     * unfinished transactions are not copied, the segment is retained instead until none of the transactions it
+     * contains remain tracked. The order of the segments is kept in a small manifest next to the journal.
+     */
+    boolean JOURNAL_SEGMENTED = parseBoolean(getProperty("bitronix.nio.journal.segmented", "false"));
+
+    /**
+     * Is the max number of segment files when the journal is segmented (defaults to 8).
+     * <p/>
+     * If the limit is reached, the unfinished transactions of the oldest segment are copied into the active
+     * segment so that the oldest segment can be recycled. This bounds the disk space used by the journal.
+     */
+    int JOURNAL_MAX_SEGMENTS = max(2, getInteger("bitronix.nio.journal.max.segments", 8));
+
     // ---- SNIPPET-END: NioJournalTuningOptions
 
     /**
@@ -85,7 +85,8 @@ class NioJournalFileRecord implements NioJournalConstants {
 
     private UUID delimiter;
     private ByteBuffer payload, recordBuffer;
-    private boolean valid = true;
+    private boolean valid = true, crc32Verified = true;
+    private int payloadCrc32;
 
     /**
      * Utility methods that converts the buffer to a string.
@@ -221,6 +222,9 @@ class NioJournalFileRecord implements NioJournalConstants {
 
     /**
      * warning: Constructor for internal use only.
+     * <p/>
+     * The payload is verified against its CRC32 value on the first call to {@link #isValid()}, allowing to find records
+     * in one thread and to verify them in others.
      *
      * @param delimiter    the delimiter to create the record for.
      * @param payload      the payload of this record.
@@ -232,7 +236,8 @@ class NioJournalFileRecord implements NioJournalConstants {
             throw new IllegalArgumentException("The parameter 'payload' cannot be left empty when creating a filled NioJournalFileRecord.");
 
         this.payload = payload.duplicate();
-        valid = calculateCrc32() == payloadCrc32;
+        this.payloadCrc32 = payloadCrc32;
+        crc32Verified = false;
     }
 
     /**
@@ -266,9 +271,10 @@ class NioJournalFileRecord implements NioJournalConstants {
 
         final int requiredCapacity = payloadSize + RECORD_HEADER_SIZE + RECORD_TRAILER_SIZE;
 
-        if (requiredCapacity > JOURNAL_MAX_RECORD_SIZE) {
+        final int maxRecordSize = NioJournalSettings.getInstance().getMaxRecordSize();
+        if (requiredCapacity > maxRecordSize) {
             throw new IllegalArgumentException("Exceeding the maximum allowed record size of " +
-                    JOURNAL_MAX_RECORD_SIZE + " bytes. Requested a size of " + requiredCapacity);
+                    maxRecordSize + " bytes. Requested a size of " + requiredCapacity);
         }
 
         recordBuffer = NioBufferPool.getInstance().poll(requiredCapacity);
@@ -289,10 +295,23 @@ class NioJournalFileRecord implements NioJournalConstants {
      * @param target          the target to write to.
      */
     public void writeRecord(UUID targetDelimiter, ByteBuffer target) {
+        target.put(toWritableBuffer(targetDelimiter));
+    }
+
+    /**
+     * Returns a view on the serialized record that can be written as it is, without copying it into another buffer.
+     * The view remains valid until this record is disposed.
+     *
+     * @param targetDelimiter the target delimiter used to delimit records.
+     * @return a view on the serialized record, positioned at the record start and limited to the record end.
+     */
+    ByteBuffer toWritableBuffer(UUID targetDelimiter) {
+        ByteBuffer staleRecordBuffer = null;
         if (!targetDelimiter.equals(delimiter)) {
             if (log.isDebugEnabled())
                 log.debug("Correcting delimiter from " + delimiter + " to " + targetDelimiter + ", the target changed in the meantime.");
             delimiter = targetDelimiter;
+            staleRecordBuffer = recordBuffer;
             recordBuffer = null;
         }
 
@@ -302,6 +321,8 @@ class NioJournalFileRecord implements NioJournalConstants {
                 final ByteBuffer pl = payload.duplicate();
                 // Creating the record buffer and write the payload into the reserved region.
                 createEmptyPayload(pl.remaining()).put(pl);
+                // The payload was copied, the buffer that was created for the previous delimiter can be reused.
+                NioBufferPool.getInstance().recycleBuffer(staleRecordBuffer);
             } else
                 throw new IllegalStateException("The payload was not yet written. Cannot write this record.");
         }
@@ -309,12 +330,7 @@ class NioJournalFileRecord implements NioJournalConstants {
         // Calculate CRC32
         recordBuffer.putInt(RECORD_CRC32_OFFSET, calculateCrc32());
 
-        recordBuffer.mark();
-        try {
-            target.put(recordBuffer);
-        } finally {
-            recordBuffer.reset();
-        }
+        return recordBuffer.duplicate();
     }
 
     int calculateCrc32() {
@@ -358,6 +374,10 @@ class NioJournalFileRecord implements NioJournalConstants {
      * @return true if this record can be considered valid.
      */
     public boolean isValid() {
+        if (!crc32Verified) {
+            valid = calculateCrc32() == payloadCrc32;
+            crc32Verified = true;
+        }
         return valid;
     }
 
@@ -365,7 +385,7 @@ class NioJournalFileRecord implements NioJournalConstants {
     public String toString() {
         return "NioJournalFileRecord{" +
                 "delimiter=" + delimiter +
-                ", valid=" + valid +
+                ", valid=" + (payload == null ? valid : isValid()) +
                 ", payload=" + bufferToString(payload) +
                 '}';
     }
@@ -0,0 +1,79 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+/**
+ * {@link NioJournal} Management interface.
+ * <p/>
+ * Exposes the state of the journal and allows to change the settings that are safe to change while the journal is
+ * in use.
+ *
+ * @author juergen kellerer, 2011-05-29
+ */
+public interface NioJournalMBean {
+
+    String getJournalFileName();
+
+    long getJournalSize();
+
+    int getTrackedTransactionCount();
+
+    int getPendingRecordCount();
+
+    long getWrittenRecordCount();
+
+    double getRecordsPerSecond();
+
+    double getForcesPerSecond();
+
+    long getAverageForceTimeInMicros();
+
+    long getBatchWindowInMicros();
+
+    int getConcurrency();
+
+    int getBufferSize();
+
+    long getWriteLatencyTargetInMillis();
+
+    void setWriteLatencyTargetInMillis(long writeLatencyTarget);
+
+    long getWriteDelayInMillis();
+
+    void setWriteDelayInMillis(long writeDelay);
+
+    long getMaxTransactionLifetimeInMillis();
+
+    void setMaxTransactionLifetimeInMillis(long maxTransactionLifetime);
+
+    int getMaxRecordSize();
+
+    void setMaxRecordSize(int maxRecordSize);
+
+    double getGrowOffset();
+
+    void setGrowOffset(double growOffset);
+
+    double getGrowRatio();
+
+    void setGrowRatio(double growRatio);
+}
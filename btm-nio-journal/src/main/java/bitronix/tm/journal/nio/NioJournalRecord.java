@@ -28,6 +28,7 @@ import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -95,9 +96,15 @@ class NioJournalRecord implements JournalRecord, NioJournalConstants {
     }
 
     private static int calculateRecordLength(Uid gtrid, Set<String> names) {
+        final CharsetEncoder charsetEncoder = NAME_ENCODERS.get();
+
         int length = STATIC_RECORD_LENGTH + gtrid.getArray().length;
-        for (String name : names)
+        for (String name : names) {
+            // names are stored with one byte per character, they must not contain anything the charset cannot map
+            if (!charsetEncoder.reset().canEncode(name))
+                throw new IllegalArgumentException("Cannot encode the unique name '" + name + "' using " + NAME_CHARSET.name());
             length += 2 + name.length();
+        }
         return length;
     }
 
@@ -134,7 +141,9 @@ class NioJournalRecord implements JournalRecord, NioJournalConstants {
             assertIsInRange(un, length, Short.MAX_VALUE);
             buffer.putShort((short) length);
 
-            charsetEncoder.encode(CharBuffer.wrap(name), buffer, true);
+            CoderResult result = charsetEncoder.reset().encode(CharBuffer.wrap(name), buffer, true);
+            if (result.isError() || result.isOverflow())
+                throw new IllegalStateException("Failed encoding the unique name '" + name + "' (" + result + ")");
         }
     }
 
@@ -0,0 +1,436 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import bitronix.tm.journal.nio.util.CompositeIterator;
+import bitronix.tm.utils.Uid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Manages a journal that is stored in fixed-size segment files.
+ * <p/>
+ * One segment is active and receives all writes. When it is full, {@link #switchSegment(NioTrackedTransactions)}
+ * retires it and activates a recycled or a new segment. Retired segments are retained with the transactions that
+ * were tracked when they were retired and are recycled, oldest first, once none of these transactions remain
+ * tracked. The manifest lists the retained and active segments in write order, followed by the free ones.
+ * <p/>
+ * Note: Segments are switched by the journal writer, all methods are synchronized as the journal may read the
+ * segments at the same time.
+ *
+ * @author juergen kellerer, 2011-05-29
+ */
+class NioJournalSegments implements NioJournalConstants {
+
+    private static final Logger log = LoggerFactory.getLogger(NioJournalSegments.class);
+
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    private static final String SEGMENTS_KEY = "segments", FREE_KEY = "free", NEXT_SEGMENT_NUMBER_KEY = "nextSegmentNumber";
+
+    private final File journalPath, manifestFile;
+    private final long segmentSize;
+    private final int maxSegments;
+    private final boolean synchronous;
+
+    private final LinkedList<RetainedSegment> retained = new LinkedList<RetainedSegment>();
+    private final LinkedList<NioJournalFile> free = new LinkedList<NioJournalFile>();
+    private NioJournalFile active;
+    private int nextSegmentNumber = 1;
+
+    private long switchCount, reclaimCount, relocationCount;
+
+    /**
+     * Opens the segments listed in the manifest of the given journal or creates the first segment.
+     * <p/>
+     * A single file journal found at the journal path is adopted as the oldest retained segment.
+     *
+     * @param journalPath the path of the journal, segment and manifest files are placed next to it.
+     * @param segmentSize the size to pre-allocate for every segment.
+     * @param maxSegments the max number of retained and active segments.
+     * @param synchronous true if the segment content should be written synchronously.
+     * @throws IOException if opening the segments fails.
+     */
+    NioJournalSegments(File journalPath, long segmentSize, int maxSegments, boolean synchronous) throws IOException {
+        this.journalPath = journalPath;
+        this.manifestFile = new File(journalPath.getPath() + MANIFEST_SUFFIX);
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.synchronous = synchronous;
+
+        boolean success = false;
+        try {
+            if (manifestFile.isFile()) {
+                loadManifest();
+            } else if (journalPath.isFile()) {
+                log.info("Adopting the single file journal " + journalPath + " as the oldest segment of the segmented journal.");
+                retained.add(new RetainedSegment(new NioJournalFile(journalPath, segmentSize, synchronous)));
+            }
+
+            if (active == null) {
+                active = takeFreeSegment();
+                writeManifest();
+            }
+
+            log.info("Opened the segmented journal " + journalPath + " with " + retained.size() + " retained and " + free.size() +
+                    " free segments, the active segment is " + active.getFile() + ".");
+            success = true;
+        } finally {
+            if (!success)
+                close();
+        }
+    }
+
+    /**
+     * Returns the segment that receives all writes.
+     *
+     * @return the segment that receives all writes.
+     */
+    synchronized NioJournalFile getActiveSegment() {
+        return active;
+    }
+
+    /**
+     * Returns an iterable over the decoded records of the retained segments and of the active segment, in write order.
+     *
+     * @param includeInvalid specifies whether records that fail the CRC32 checks should be returned as well.
+     * @return an iterable over the decoded records of all segments.
+     * @throws IOException in case of a segment cannot be accessed.
+     */
+    synchronized Iterable<NioJournalRecord> readAllRecords(boolean includeInvalid) throws IOException {
+        final List<Iterable<NioJournalRecord>> iterables = new ArrayList<Iterable<NioJournalRecord>>(retained.size() + 1);
+        for (RetainedSegment segment : retained)
+            iterables.add(segment.file.readAllRecords(includeInvalid));
+        iterables.add(active.readAllRecords(includeInvalid));
+
+        return new Iterable<NioJournalRecord>() {
+            public Iterator<NioJournalRecord> iterator() {
+                return new CompositeIterator<NioJournalRecord>(new ArrayList<Iterable<NioJournalRecord>>(iterables));
+            }
+        };
+    }
+
+    /**
+     * Returns an iterable over the records of the retained segments and of the active segment, in write order.
+     *
+     * @param includeInvalid specifies whether records that fail the CRC32 checks should be returned as well.
+     * @return an iterable over the records of all segments.
+     * @throws IOException in case of a segment cannot be accessed.
+     */
+    synchronized Iterable<NioJournalFileRecord> readAll(boolean includeInvalid) throws IOException {
+        final List<Iterable<NioJournalFileRecord>> iterables = new ArrayList<Iterable<NioJournalFileRecord>>(retained.size() + 1);
+        for (RetainedSegment segment : retained)
+            iterables.add(segment.file.readAll(includeInvalid));
+        iterables.add(active.readAll(includeInvalid));
+
+        return new Iterable<NioJournalFileRecord>() {
+            public Iterator<NioJournalFileRecord> iterator() {
+                return new CompositeIterator<NioJournalFileRecord>(new ArrayList<Iterable<NioJournalFileRecord>>(iterables));
+            }
+        };
+    }
+
+    /**
+     * Pins the retained segments with all tracked transactions, used after the segments were read on open as it is
+     * unknown which transactions a segment contains.
+     *
+     * @param trackedTransactions the transactions that are tracked after reading the journal.
+     */
+    synchronized void retainTracked(NioTrackedTransactions trackedTransactions) {
+        for (RetainedSegment segment : retained)
+            segment.transactions.addAll(trackedTransactions.getTracked().keySet());
+    }
+
+    /**
+     * Retires the active segment and activates a recycled or a new segment.
+     * <p/>
+     * The retired segment is forced before the manifest lists its successor. Retired segments that no longer contain
+     * tracked transactions are recycled.
+     *
+     * @param trackedTransactions the currently tracked transactions.
+     * @return the new active segment.
+     * @throws IOException in case of the operation failed.
+     */
+    synchronized NioJournalFile switchSegment(NioTrackedTransactions trackedTransactions) throws IOException {
+        active.force();
+        final RetainedSegment retiredSegment = new RetainedSegment(active);
+        retiredSegment.transactions.addAll(trackedTransactions.getTracked().keySet());
+        retained.add(retiredSegment);
+
+        reclaimSegments(trackedTransactions);
+
+        active = takeFreeSegment();
+        writeManifest();
+        switchCount++;
+
+        if (log.isDebugEnabled()) {
+            log.debug("Switched the journal from segment " + retiredSegment.file.getFile() + " to segment " + active.getFile() + ", " +
+                    retained.size() + " segments are retained, " + free.size() + " segments are free.");
+        }
+        return active;
+    }
+
+    private void reclaimSegments(NioTrackedTransactions trackedTransactions) {
+        // segments are reclaimed in order, a transaction of an older segment may have finished in a younger one.
+        while (!retained.isEmpty()) {
+            final RetainedSegment oldest = retained.getFirst();
+            for (Iterator<Uid> i = oldest.transactions.iterator(); i.hasNext(); ) {
+                if (!trackedTransactions.isTracked(i.next()))
+                    i.remove();
+            }
+            if (!oldest.transactions.isEmpty())
+                break;
+
+            retained.removeFirst();
+            free.add(oldest.file);
+            reclaimCount++;
+            if (log.isDebugEnabled()) { log.debug("Reclaimed the journal segment " + oldest.file.getFile() + " as none of its transactions remain tracked."); }
+        }
+    }
+
+    /**
+     * Returns true if there are more segments than allowed, requiring to relocate the transactions of the oldest segment.
+     *
+     * @return true if the transactions of the oldest segment must be relocated.
+     */
+    synchronized boolean isRelocationRequired() {
+        return !retained.isEmpty() && retained.size() + 1 > maxSegments;
+    }
+
+    /**
+     * Returns the transactions of the oldest segment that must be written to the active segment before the oldest
+     * segment can be recycled.
+     *
+     * @return the transactions of the oldest segment.
+     */
+    synchronized Set<Uid> getTransactionsToRelocate() {
+        if (!isRelocationRequired())
+            return Collections.emptySet();
+        return new HashSet<Uid>(retained.getFirst().transactions);
+    }
+
+    /**
+     * Recycles the oldest segment after its transactions were written to the active segment and forced.
+     *
+     * @throws IOException in case of the manifest cannot be written.
+     */
+    synchronized void relocated() throws IOException {
+        final RetainedSegment oldest = retained.removeFirst();
+        free.add(oldest.file);
+        writeManifest();
+        relocationCount++;
+
+        log.info("Relocated " + oldest.transactions.size() + " unfinished transactions from the journal segment " + oldest.file.getFile() +
+                " to reclaim it, the max number of " + maxSegments + " segments was reached.");
+    }
+
+    private NioJournalFile takeFreeSegment() throws IOException {
+        final NioJournalFile segment = free.poll();
+        if (segment != null) {
+            segment.recycle();
+            return segment;
+        }
+
+        final File file = new File(String.format("%s.%04d", journalPath.getPath(), nextSegmentNumber++));
+        if (file.exists() && !file.delete())
+            throw new IOException("Cannot create the journal segment " + file + ", a stale file of this name cannot be deleted.");
+
+        return new NioJournalFile(file, segmentSize, synchronous);
+    }
+
+    private void loadManifest() throws IOException {
+        final Properties manifest = new Properties();
+        final FileInputStream in = new FileInputStream(manifestFile);
+        try {
+            manifest.load(in);
+        } finally {
+            in.close();
+        }
+
+        nextSegmentNumber = Integer.parseInt(manifest.getProperty(NEXT_SEGMENT_NUMBER_KEY, "1"));
+
+        final List<String> segmentNames = splitNames(manifest.getProperty(SEGMENTS_KEY));
+        for (int i = 0; i < segmentNames.size(); i++) {
+            final File file = new File(manifestFile.getParentFile(), segmentNames.get(i));
+            if (!file.isFile())
+                throw new IOException("The journal segment " + file + " listed in the manifest " + manifestFile + " does not exist.");
+
+            final NioJournalFile segment = new NioJournalFile(file, segmentSize, synchronous);
+            if (i == segmentNames.size() - 1)
+                active = segment;
+            else
+                retained.add(new RetainedSegment(segment));
+        }
+
+        for (String name : splitNames(manifest.getProperty(FREE_KEY))) {
+            final File file = new File(manifestFile.getParentFile(), name);
+            if (file.isFile())
+                free.add(new NioJournalFile(file, segmentSize, synchronous));
+            else
+                log.warn("The free journal segment " + file + " listed in the manifest " + manifestFile + " does not exist, ignoring it.");
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        final List<String> segmentNames = new ArrayList<String>(retained.size() + 1);
+        for (RetainedSegment segment : retained)
+            segmentNames.add(segment.file.getFile().getName());
+        segmentNames.add(active.getFile().getName());
+
+        final List<String> freeNames = new ArrayList<String>(free.size());
+        for (NioJournalFile segment : free)
+            freeNames.add(segment.getFile().getName());
+
+        final Properties manifest = new Properties();
+        manifest.setProperty(SEGMENTS_KEY, joinNames(segmentNames));
+        manifest.setProperty(FREE_KEY, joinNames(freeNames));
+        manifest.setProperty(NEXT_SEGMENT_NUMBER_KEY, String.valueOf(nextSegmentNumber));
+
+        final File tempFile = new File(manifestFile.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            manifest.store(out, "Bitronix Transaction Manager :: Nio Transaction Journal Segments (in write order, the last segment is active)");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        // renameTo does not replace existing files on all platforms.
+        if (!tempFile.renameTo(manifestFile) && !(manifestFile.delete() && tempFile.renameTo(manifestFile)))
+            throw new IOException("Failed to replace the journal segment manifest " + manifestFile + " with " + tempFile + ".");
+    }
+
+    private static List<String> splitNames(String names) {
+        final List<String> result = new ArrayList<String>();
+        if (names != null) {
+            for (String name : names.split(",")) {
+                if (name.trim().length() > 0)
+                    result.add(name.trim());
+            }
+        }
+        return result;
+    }
+
+    private static String joinNames(List<String> names) {
+        final StringBuilder builder = new StringBuilder();
+        for (String name : names) {
+            if (builder.length() > 0)
+                builder.append(',');
+            builder.append(name);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Closes all segments.
+     *
+     * @throws IOException in case of a segment cannot be closed.
+     */
+    synchronized void close() throws IOException {
+        final List<NioJournalFile> segments = new ArrayList<NioJournalFile>();
+        for (RetainedSegment segment : retained)
+            segments.add(segment.file);
+        if (active != null)
+            segments.add(active);
+        segments.addAll(free);
+
+        retained.clear();
+        free.clear();
+        active = null;
+
+        IOException failure = null;
+        for (NioJournalFile segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                log.error("Failed to close the journal segment " + segment.getFile() + ".", e);
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    synchronized int getRetainedSegmentCount() {
+        return retained.size();
+    }
+
+    synchronized int getFreeSegmentCount() {
+        return free.size();
+    }
+
+    synchronized long getSwitchCount() {
+        return switchCount;
+    }
+
+    synchronized long getReclaimCount() {
+        return reclaimCount;
+    }
+
+    synchronized long getRelocationCount() {
+        return relocationCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return "NioJournalSegments{" +
+                "journalPath=" + journalPath +
+                ", segmentSize=" + segmentSize +
+                ", maxSegments=" + maxSegments +
+                ", retained=" + retained.size() +
+                ", free=" + free.size() +
+                ", active=" + (active == null ? null : active.getFile()) +
+                ", switchCount=" + switchCount +
+                ", reclaimCount=" + reclaimCount +
+                ", relocationCount=" + relocationCount +
+                '}';
+    }
+
+    /**
+     * A retired segment and the transactions that were tracked when it was retired.
+     */
+    static class RetainedSegment {
+
+        final NioJournalFile file;
+        final Set<Uid> transactions = new HashSet<Uid>();
+
+        RetainedSegment(NioJournalFile file) {
+            this.file = file;
+        }
+    }
+}
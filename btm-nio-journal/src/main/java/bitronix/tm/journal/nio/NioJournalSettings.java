@@ -0,0 +1,153 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the journal settings that may be changed at runtime, initialized from {@link NioJournalConstants}.
+ * <p/>
+ * Settings that size data structures on startup (like {@link #CONCURRENCY} or the buffer pool) cannot be changed
+ * at runtime and remain constants.
+ *
+ * @author juergen kellerer, 2011-05-29
+ */
+final class NioJournalSettings implements NioJournalConstants {
+
+    private static final Logger log = LoggerFactory.getLogger(NioJournalSettings.class);
+
+    private static final NioJournalSettings instance = new NioJournalSettings();
+
+    public static NioJournalSettings getInstance() {
+        return instance;
+    }
+
+    private volatile long writeDelay = WRITE_DELAY;
+    private volatile long transactionMaxLifetime = TRANSACTION_MAX_LIFETIME;
+    private volatile int maxRecordSize = JOURNAL_MAX_RECORD_SIZE;
+    private volatile double growOffset = JOURNAL_GROW_OFFSET;
+    private volatile double growRatio = JOURNAL_GROW_RATIO;
+
+    /**
+     * Returns the max time in milliseconds that the writer collects records before writing them.
+     *
+     * @return the max time in milliseconds that the writer collects records before writing them.
+     * @see #WRITE_DELAY
+     */
+    public long getWriteDelay() {
+        return writeDelay;
+    }
+
+    public void setWriteDelay(long writeDelay) {
+        if (writeDelay < 0)
+            throw new IllegalArgumentException("The write delay cannot be negative, was " + writeDelay + "ms.");
+        log.info("Changing the journal write delay from " + this.writeDelay + "ms to " + writeDelay + "ms.");
+        this.writeDelay = writeDelay;
+    }
+
+    /**
+     * Returns the max time in milliseconds that transactions are tracked.
+     *
+     * @return the max time in milliseconds that transactions are tracked.
+     * @see #TRANSACTION_MAX_LIFETIME
+     */
+    public long getTransactionMaxLifetime() {
+        return transactionMaxLifetime;
+    }
+
+    public void setTransactionMaxLifetime(long transactionMaxLifetime) {
+        if (transactionMaxLifetime < MS_PER_DAY)
+            throw new IllegalArgumentException("The max transaction lifetime cannot be less than one day, was " + transactionMaxLifetime + "ms.");
+        log.info("Changing the max transaction lifetime from " + this.transactionMaxLifetime + "ms to " + transactionMaxLifetime + "ms.");
+        this.transactionMaxLifetime = transactionMaxLifetime;
+    }
+
+    /**
+     * Returns the max size of records that are written.
+     * <p/>
+     * Records are always read with the limit of {@link #JOURNAL_MAX_RECORD_SIZE}. The max size may therefore only be
+     * lowered at runtime, otherwise the journal could not be read after a restart.
+     *
+     * @return the max size of records that are written.
+     */
+    public int getMaxRecordSize() {
+        return maxRecordSize;
+    }
+
+    public void setMaxRecordSize(int maxRecordSize) {
+        if (maxRecordSize < 1024 || maxRecordSize > JOURNAL_MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("The max record size must be within 1024 and " + JOURNAL_MAX_RECORD_SIZE + " bytes " +
+                    "(= the size configured on startup), was " + maxRecordSize + " bytes.");
+        }
+        log.info("Changing the max journal record size from " + this.maxRecordSize + " bytes to " + maxRecordSize + " bytes.");
+        this.maxRecordSize = maxRecordSize;
+    }
+
+    /**
+     * Returns the offset of the min required free space in the journal before it is grown after a rollover.
+     *
+     * @return the offset of the min required free space in the journal before it is grown after a rollover.
+     * @see #JOURNAL_GROW_OFFSET
+     */
+    public double getGrowOffset() {
+        return growOffset;
+    }
+
+    public void setGrowOffset(double growOffset) {
+        if (growOffset < 0.1D || growOffset > 0.9D)
+            throw new IllegalArgumentException("The grow offset must be within 0.1 and 0.9, was " + growOffset + ".");
+        log.info("Changing the journal grow offset from " + this.growOffset + " to " + growOffset + ".");
+        this.growOffset = growOffset;
+    }
+
+    /**
+     * Returns the new size of the journal when it is grown (relative to the journal size).
+     *
+     * @return the new size of the journal when it is grown (relative to the journal size).
+     * @see #JOURNAL_GROW_RATIO
+     */
+    public double getGrowRatio() {
+        return growRatio;
+    }
+
+    public void setGrowRatio(double growRatio) {
+        if (growRatio < 1D)
+            throw new IllegalArgumentException("The grow ratio cannot be less than 1, was " + growRatio + ".");
+        log.info("Changing the journal grow ratio from " + this.growRatio + " to " + growRatio + ".");
+        this.growRatio = growRatio;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "NioJournalSettings{" +
+                "writeDelay=" + writeDelay +
+                ", transactionMaxLifetime=" + transactionMaxLifetime +
+                ", maxRecordSize=" + maxRecordSize +
+                ", growOffset=" + growOffset +
+                ", growRatio=" + growRatio +
+                '}';
+    }
+}
@@ -21,8 +21,9 @@
 
 package bitronix.tm.journal.nio;
 
-import bitronix.tm.journal.nio.util.SequencedBlockingQueue;
 import bitronix.tm.journal.nio.util.SequencedQueueEntry;
+import bitronix.tm.journal.nio.util.SequencedRingBuffer;
+import bitronix.tm.utils.Uid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,16 +54,20 @@ class NioJournalWritingThread extends Thread implements NioJournalConstants {
      * Threads that were created with this method are guaranteed to process all elements that were contained in the given
      * queue just before {@link #shutdown()} is called.
      *
-     * @param transactions  the shared map of dangling transactions.
-     * @param journal       the journal to operate on.
-     * @param synchronizer  the synchronizer used allowing logging threads to wait on the force command.
-     * @param incomingQueue the queue instance to operate on.
+     * @param transactions    the shared map of dangling transactions.
+     * @param journal         the journal to operate on.
+     * @param synchronizer    the synchronizer used allowing logging threads to wait on the force command.
+     * @param incomingQueue   the queue instance to operate on.
+     * @param batchController the controller adapting the time to collect records before a requested force.
+     * @param segments        the segments of the journal or null if the journal is a single file that is grown in place.
      * @return returns a started journal writing thread in running or waiting state.
      * @throws InterruptedException In case of the calling thread was interrupted before the journal writer switched to running mode.
      */
     public static NioJournalWritingThread newRunningInstance(NioTrackedTransactions transactions, NioJournalFile journal, NioForceSynchronizer synchronizer,
-                                                             SequencedBlockingQueue<NioJournalFileRecord> incomingQueue) throws InterruptedException {
-        final NioJournalWritingThread thread = new NioJournalWritingThread(transactions, journal, synchronizer, incomingQueue);
+                                                             SequencedRingBuffer<NioJournalFileRecord> incomingQueue,
+                                                             NioWriteBatchController batchController,
+                                                             NioJournalSegments segments) throws InterruptedException {
+        final NioJournalWritingThread thread = new NioJournalWritingThread(transactions, journal, synchronizer, incomingQueue, batchController, segments);
         synchronized (thread) {
             try {
                 while (!thread.running)
@@ -85,12 +90,15 @@ class NioJournalWritingThread extends Thread implements NioJournalConstants {
     private volatile boolean closeRequested;
 
     private final NioForceSynchronizer forceSynchronizer;
-    private final SequencedBlockingQueue<NioJournalFileRecord> incomingQueue;
+    private final SequencedRingBuffer<NioJournalFileRecord> incomingQueue;
+    private final NioWriteBatchController batchController;
 
-    private final NioJournalFile journalFile;
+    private final NioJournalSegments segments;
+    private volatile NioJournalFile journalFile;
     private final NioTrackedTransactions trackedTransactions;
 
-    private long processedCount;
+    private volatile long processedCount;
+    private long batchWindowDeadline;
 
     private final Callable throwException = new Callable() {
         public Object call() throws Exception {
@@ -100,18 +108,23 @@ class NioJournalWritingThread extends Thread implements NioJournalConstants {
 
     private final Callable forceJournalFile = new Callable() {
         public Object call() throws Exception {
+            final long time = System.nanoTime();
             journalFile.force();
+            batchController.recordForce(System.nanoTime() - time);
             return null;
         }
     };
 
     private NioJournalWritingThread(NioTrackedTransactions trackedTransactions, NioJournalFile journalFile,
-                                    NioForceSynchronizer forceSynchronizer, SequencedBlockingQueue<NioJournalFileRecord> incomingQueue) {
+                                    NioForceSynchronizer forceSynchronizer, SequencedRingBuffer<NioJournalFileRecord> incomingQueue,
+                                    NioWriteBatchController batchController, NioJournalSegments segments) {
         super("Bitronix - Nio Transaction Journal - JournalWriter");
         this.trackedTransactions = trackedTransactions;
         this.journalFile = journalFile;
         this.forceSynchronizer = forceSynchronizer;
         this.incomingQueue = incomingQueue;
+        this.batchController = batchController;
+        this.segments = segments;
         start();
     }
 
@@ -261,7 +274,7 @@ class NioJournalWritingThread extends Thread implements NioJournalConstants {
         int collectCount = 0;
 
         if (blockForRecords) {
-            final long time = System.nanoTime();
+            final long time = System.nanoTime(), writeDelay = NioJournalSettings.getInstance().getWriteDelay();
 
             long remainingWriteDelay = Long.MAX_VALUE;
             do {
@@ -270,16 +283,27 @@ class NioJournalWritingThread extends Thread implements NioJournalConstants {
                 else
                     collectCount += incomingQueue.pollAndDrainElementsTo(pendingEntriesToWorkOn, recordsToWorkOn, 5, MILLISECONDS);
 
-                remainingWriteDelay = Math.max(0, WRITE_DELAY - NANOSECONDS.toMillis(System.nanoTime() - time));
+                remainingWriteDelay = Math.max(0, writeDelay - NANOSECONDS.toMillis(System.nanoTime() - time));
 
             } while (remainingWriteDelay > 0 && collectCount < CONCURRENCY &&
                     !isInterrupted() && !closeRequested &&
-                    (forceSynchronizer == null || forceSynchronizer.getNumberOfWaitingThreads() == 0));
+                    (forceSynchronizer == null || !forceSynchronizer.isForceRequested()));
+
+            // a requested force may wait a little longer to include records that arrive in the meantime.
+            final boolean forceRequested = forceSynchronizer != null && forceSynchronizer.isForceRequested();
+            batchWindowDeadline = System.nanoTime() + (forceRequested ? batchController.getBatchWindowNanos() : 0);
         } else {
-            // try to collect more entries that queued up during the time that the last write occurred.
-            collectCount = incomingQueue.drainElementsTo(pendingEntriesToWorkOn, recordsToWorkOn);
+            final long remainingBatchWindow = batchWindowDeadline - System.nanoTime();
+            if (remainingBatchWindow > 0 && !closeRequested) {
+                // the batch window is still open, wait for more entries before forcing.
+                collectCount = incomingQueue.pollAndDrainElementsTo(pendingEntriesToWorkOn, recordsToWorkOn, remainingBatchWindow, NANOSECONDS);
+            } else {
+                // try to collect more entries that queued up during the time that the last write occurred.
+                collectCount = incomingQueue.drainElementsTo(pendingEntriesToWorkOn, recordsToWorkOn);
+            }
         }
 
+        batchController.recordArrivals(collectCount);
         return collectCount;
     }
 
@@ -305,6 +329,11 @@ class NioJournalWritingThread extends Thread implements NioJournalConstants {
         final long remainingCapacity = journalFile.remainingCapacity();
 
         if (requiredBytes > remainingCapacity) {
+            if (segments != null) {
+                switchJournalSegment(requiredBytes);
+                return;
+            }
+
             if (log.isDebugEnabled()) {
                 log.debug("Detected that the journal " + journalFile.getFile() + " must be rolled over (requested " + requiredBytes + " bytes, " +
                         "remaining capacity " + remainingCapacity + " bytes). Performing the rollover now.");
@@ -317,14 +346,49 @@ class NioJournalWritingThread extends Thread implements NioJournalConstants {
         }
     }
 
-    private void dumpUnfinishedTransactionsToJournal() throws IOException {
+    private void switchJournalSegment(int requiredBytes) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("Detected that the journal segment " + journalFile.getFile() + " is full (requested " + requiredBytes + " bytes, " +
+                    "remaining capacity " + journalFile.remainingCapacity() + " bytes). Switching to the next segment now.");
+        }
+
+        journalFile = segments.switchSegment(trackedTransactions);
+
+        while (segments.isRelocationRequired())
+            relocateTransactionsOfOldestSegment();
+
+        if (requiredBytes > journalFile.remainingCapacity()) {
+            throw new IOException("Cannot write " + requiredBytes + " bytes into the journal segment " + journalFile.getFile() + " with a remaining " +
+                    "capacity of " + journalFile.remainingCapacity() + " bytes. Increase the journal size to use larger segments.");
+        }
+    }
+
+    private void relocateTransactionsOfOldestSegment() throws IOException {
         trackedTransactions.purgeTransactionsExceedingLifetime();
 
-        final List<NioJournalRecord> records = new ArrayList<NioJournalRecord>(trackedTransactions.getTracked().values());
+        final List<NioJournalRecord> records = new ArrayList<NioJournalRecord>();
+        for (Uid gtrid : segments.getTransactionsToRelocate()) {
+            final NioJournalRecord record = trackedTransactions.get(gtrid);
+            if (record != null)
+                records.add(record);
+        }
+
+        writeUnfinishedTransactions(records);
 
+        // the relocated records must be durable before the oldest segment is recycled.
+        journalFile.force();
+        segments.relocated();
+    }
+
+    private void dumpUnfinishedTransactionsToJournal() throws IOException {
+        trackedTransactions.purgeTransactionsExceedingLifetime();
+        writeUnfinishedTransactions(new ArrayList<NioJournalRecord>(trackedTransactions.getTracked().values()));
+    }
+
+    private void writeUnfinishedTransactions(List<NioJournalRecord> records) throws IOException {
         if (!records.isEmpty()) {
             final boolean debug = log.isDebugEnabled();
-            if (debug) { log.debug("Transferring " + records.size() + " unfinished transactions to the head of the journal after performing the rollover."); }
+            if (debug) { log.debug("Transferring " + records.size() + " unfinished transactions to the head of the journal file " + journalFile.getFile() + "."); }
 
 
             final List<NioJournalFileRecord> chunks = new ArrayList<NioJournalFileRecord>(CONCURRENCY);
@@ -340,12 +404,14 @@ class NioJournalWritingThread extends Thread implements NioJournalConstants {
             if (!chunks.isEmpty())
                 writeUnfinishedTransactionChunks(chunks);
 
-            if (debug) { log.debug("Successfully wrote " + records.size() + " unfinished transactions to the journal after the rollover."); }
+            if (debug) { log.debug("Successfully wrote " + records.size() + " unfinished transactions to the journal file " + journalFile.getFile() + "."); }
         }
     }
 
     private void writeUnfinishedTransactionChunks(List<NioJournalFileRecord> chunks) throws IOException {
-        attemptToGrowJournalIfRequired(calculateRequiredBytes(chunks));
+        // segments have a fixed size, writing fails if the chunks exceed the remaining capacity.
+        if (segments == null)
+            attemptToGrowJournalIfRequired(calculateRequiredBytes(chunks));
 
         journalFile.write(chunks);
         processedCount += chunks.size();
@@ -354,18 +420,20 @@ class NioJournalWritingThread extends Thread implements NioJournalConstants {
     }
 
     private void attemptToGrowJournalIfRequired(final long minRequiredCapacity) throws IOException {
+        final NioJournalSettings settings = NioJournalSettings.getInstance();
+        final double growRatio = settings.getGrowRatio();
         final long journalFileSize = journalFile.getSize();
-        final long remainingCapacityGrowOffset = Math.max(minRequiredCapacity, journalFileSize * (long) JOURNAL_GROW_OFFSET);
+        final long remainingCapacityGrowOffset = Math.max(minRequiredCapacity, (long) (journalFileSize * settings.getGrowOffset()));
         final long initialRemainingCapacity = journalFile.remainingCapacity();
         final boolean growRequired = initialRemainingCapacity < remainingCapacityGrowOffset;
 
         if (growRequired) {
             boolean success = false;
 
-            if (JOURNAL_GROW_RATIO > 1D) {
+            if (growRatio > 1D) {
                 long newSize = journalFileSize, usedSize = journalFileSize - initialRemainingCapacity;
                 do {
-                    newSize *= JOURNAL_GROW_RATIO;
+                    newSize *= growRatio;
                 } while ((newSize - usedSize) < remainingCapacityGrowOffset);
 
                 final long newSizeInMb = newSize / 1024 / 1024;
@@ -398,6 +466,24 @@ class NioJournalWritingThread extends Thread implements NioJournalConstants {
         }
     }
 
+    /**
+     * Returns the journal file that records are currently written to.
+     *
+     * @return the journal file that records are currently written to.
+     */
+    NioJournalFile getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Returns the number of records written by this writer.
+     *
+     * @return the number of records written by this writer.
+     */
+    long getProcessedCount() {
+        return processedCount;
+    }
+
     /**
      * {@inheritDoc}
      */
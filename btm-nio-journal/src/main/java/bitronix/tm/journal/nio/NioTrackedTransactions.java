@@ -25,11 +25,10 @@ import bitronix.tm.utils.Uid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import static javax.transaction.Status.*;
 
@@ -54,7 +53,7 @@ class NioTrackedTransactions implements NioJournalConstants {
         return true;
     }
 
-    private final ConcurrentMap<Uid, NioJournalRecord> tracked = new ConcurrentHashMap<Uid, NioJournalRecord>();
+    private final NioTransactionTable tracked = new NioTransactionTable();
 
     /**
      * Track the given transaction log record entry.
@@ -89,7 +88,7 @@ class NioTrackedTransactions implements NioJournalConstants {
                 NioJournalRecord replacement;
                 while ((existing = tracked.get(gtrid)) != null && (replacement = existing.createNameReducedCopy(record)) != existing) {
                     if (replacement.getUniqueNamesCount() == 0) {
-                        if (tracked.remove(gtrid, existing)) {
+                        if (tracked.replace(gtrid, existing, null)) {
                             if (log.isDebugEnabled()) { log.debug("No longer tracking transaction '" + record + "', was '" + existing + "' before"); }
                         }
                     } else {
@@ -131,16 +130,14 @@ class NioTrackedTransactions implements NioJournalConstants {
      * Purges entries that exceeded the maximum lifetime that transactions are tracked.
      */
     public void purgeTransactionsExceedingLifetime() {
-        final long now = System.currentTimeMillis();
-        for (Iterator<NioJournalRecord> i = tracked.values().iterator(); i.hasNext(); ) {
-            NioJournalRecord journalRecord = i.next();
+        final long now = System.currentTimeMillis(), maxLifetime = NioJournalSettings.getInstance().getTransactionMaxLifetime();
+        final List<NioJournalRecord> purged = new ArrayList<NioJournalRecord>();
+        tracked.removeOlderThan(now - maxLifetime, purged);
 
+        for (NioJournalRecord journalRecord : purged) {
             final long age = now - journalRecord.getTime();
-            if (age > TRANSACTION_MAX_LIFETIME) {
-                log.warn("The maximum lifetime of " + (TRANSACTION_MAX_LIFETIME / MS_PER_HOUR) + " hours was exceeded " +
-                        "(TX age is " + (age / MS_PER_HOUR) + " hours). Discarding dangling transaction " + journalRecord);
-                i.remove();
-            }
+            log.warn("The maximum lifetime of " + (maxLifetime / MS_PER_HOUR) + " hours was exceeded " +
+                    "(TX age is " + (age / MS_PER_HOUR) + " hours). Discarding dangling transaction " + journalRecord);
         }
     }
 
@@ -153,12 +150,34 @@ class NioTrackedTransactions implements NioJournalConstants {
     }
 
     /**
-     * Returns an unmodifiable map of tracked transactions.
+     * Returns the tracked record of the given transaction.
+     *
+     * @param gtrid the global transaction id.
+     * @return the tracked record or 'null' if the transaction is not tracked.
+     */
+    public NioJournalRecord get(Uid gtrid) {
+        return tracked.get(gtrid);
+    }
+
+    /**
+     * Returns true if the given transaction is tracked.
+     *
+     * @param gtrid the global transaction id.
+     * @return true if the given transaction is tracked.
+     */
+    public boolean isTracked(Uid gtrid) {
+        return tracked.get(gtrid) != null;
+    }
+
+    /**
+     * Returns a snapshot of the tracked transactions.
      *
-     * @return an unmodifiable map of tracked transactions.
+     * @return a snapshot of the tracked transactions.
      */
     public Map<Uid, NioJournalRecord> getTracked() {
-        return Collections.unmodifiableMap(tracked);
+        final Map<Uid, NioJournalRecord> snapshot = new LinkedHashMap<Uid, NioJournalRecord>(tracked.size() * 2);
+        tracked.copyTo(snapshot);
+        return snapshot;
     }
 
     /**
@@ -0,0 +1,362 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import bitronix.tm.utils.Uid;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Concurrent open-addressing table of tracked transaction records keyed on the GTRID.
+ * <p/>
+ * The table is split into lock striped segments. Each segment stores its entries in flat arrays in the order they were
+ * inserted and keeps an open-addressing (linear probing) index into these arrays that is keyed on the timestamp and
+ * sequence extracted from the GTRID. Removed entries leave a gap that is reclaimed when the arrays run full, by
+ * compacting or resizing them. As entries are kept in insertion order, the entries that exceed a lifetime are found by
+ * scanning from the oldest entries.
+ *
+ * @author juergen kellerer, 2011-04-30
+ */
+class NioTransactionTable {
+
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static long extractTimestamp(Uid gtrid) {
+        return gtrid.length() >= 12 ? gtrid.extractTimestamp() : 0L;
+    }
+
+    private static int extractSequence(Uid gtrid) {
+        return gtrid.length() >= 12 ? gtrid.extractSequence() : gtrid.hashCode();
+    }
+
+    private static int hash(long timestamp, int sequence) {
+        final long h = (timestamp * 31 + sequence) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    NioTransactionTable() {
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new Segment();
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> 28];
+    }
+
+    /**
+     * Returns the record tracked for the given GTRID.
+     *
+     * @param gtrid the GTRID to look up.
+     * @return the tracked record or 'null' if the GTRID is not tracked.
+     */
+    NioJournalRecord get(Uid gtrid) {
+        final long timestamp = extractTimestamp(gtrid);
+        final int sequence = extractSequence(gtrid), hash = hash(timestamp, sequence);
+        return segmentFor(hash).get(gtrid, timestamp, sequence, hash);
+    }
+
+    /**
+     * Tracks the given record, replacing any previously tracked record with the same GTRID.
+     *
+     * @param gtrid  the GTRID of the record.
+     * @param record the record to track.
+     * @return the previously tracked record or 'null'.
+     */
+    NioJournalRecord put(Uid gtrid, NioJournalRecord record) {
+        final long timestamp = extractTimestamp(gtrid);
+        final int sequence = extractSequence(gtrid), hash = hash(timestamp, sequence);
+        return segmentFor(hash).put(gtrid, timestamp, sequence, hash, record);
+    }
+
+    /**
+     * Replaces the tracked record if it is still the expected one.
+     *
+     * @param gtrid       the GTRID of the record.
+     * @param expected    the currently tracked record.
+     * @param replacement the replacement, 'null' removes the record.
+     * @return true if the record was replaced.
+     */
+    boolean replace(Uid gtrid, NioJournalRecord expected, NioJournalRecord replacement) {
+        final long timestamp = extractTimestamp(gtrid);
+        final int sequence = extractSequence(gtrid), hash = hash(timestamp, sequence);
+        return segmentFor(hash).replace(gtrid, timestamp, sequence, hash, expected, replacement);
+    }
+
+    /**
+     * Removes the record tracked for the given GTRID.
+     *
+     * @param gtrid the GTRID of the record.
+     * @return the removed record or 'null'.
+     */
+    NioJournalRecord remove(Uid gtrid) {
+        final long timestamp = extractTimestamp(gtrid);
+        final int sequence = extractSequence(gtrid), hash = hash(timestamp, sequence);
+        return segmentFor(hash).remove(gtrid, timestamp, sequence, hash);
+    }
+
+    /**
+     * Removes all records which are older than the given time and collects them into the given list.
+     *
+     * @param minTime the time of the oldest record to keep.
+     * @param removed the list to add removed records to.
+     */
+    void removeOlderThan(long minTime, List<NioJournalRecord> removed) {
+        for (Segment segment : segments)
+            segment.removeOlderThan(minTime, removed);
+    }
+
+    /**
+     * Copies all tracked records into the given map, in insertion order per segment.
+     *
+     * @param target the map to copy to.
+     */
+    void copyTo(Map<Uid, NioJournalRecord> target) {
+        for (Segment segment : segments)
+            segment.copyTo(target);
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size;
+        return size;
+    }
+
+    void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    /**
+     * A lock protected part of the table.
+     */
+    private static final class Segment {
+
+        private static final int FREE = 0, DELETED = -1;
+
+        // index slots hold the entry position + 1, FREE or DELETED.
+        int[] index;
+        long[] timestamps, trackedSince;
+        int[] sequences;
+        NioJournalRecord[] records;
+        int head, tail;
+        volatile int size;
+
+        // entries are ordered by trackedSince unless a younger entry was tracked before an older one.
+        long lastTrackedSince, outOfOrderSince;
+
+        Segment() {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            index = new int[capacity * 2];
+            timestamps = new long[capacity];
+            trackedSince = new long[capacity];
+            sequences = new int[capacity];
+            records = new NioJournalRecord[capacity];
+            head = tail = 0;
+            lastTrackedSince = Long.MIN_VALUE;
+            outOfOrderSince = Long.MAX_VALUE;
+        }
+
+        private int findSlot(Uid gtrid, long timestamp, int sequence, int hash) {
+            final int mask = index.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                final int value = index[slot];
+                if (value == FREE)
+                    return -1;
+                if (value != DELETED) {
+                    final int entry = value - 1;
+                    if (timestamps[entry] == timestamp && sequences[entry] == sequence && records[entry].getGtrid().equals(gtrid))
+                        return slot;
+                }
+            }
+        }
+
+        synchronized NioJournalRecord get(Uid gtrid, long timestamp, int sequence, int hash) {
+            final int slot = findSlot(gtrid, timestamp, sequence, hash);
+            return slot < 0 ? null : records[index[slot] - 1];
+        }
+
+        synchronized NioJournalRecord put(Uid gtrid, long timestamp, int sequence, int hash, NioJournalRecord record) {
+            final int slot = findSlot(gtrid, timestamp, sequence, hash);
+            if (slot >= 0)
+                return set(index[slot] - 1, record);
+
+            append(timestamp, sequence, hash, record);
+            return null;
+        }
+
+        synchronized boolean replace(Uid gtrid, long timestamp, int sequence, int hash, NioJournalRecord expected, NioJournalRecord replacement) {
+            final int slot = findSlot(gtrid, timestamp, sequence, hash);
+            if (slot < 0 || records[index[slot] - 1] != expected)
+                return false;
+
+            if (replacement == null)
+                delete(slot);
+            else
+                set(index[slot] - 1, replacement);
+            return true;
+        }
+
+        synchronized NioJournalRecord remove(Uid gtrid, long timestamp, int sequence, int hash) {
+            final int slot = findSlot(gtrid, timestamp, sequence, hash);
+            return slot < 0 ? null : delete(slot);
+        }
+
+        synchronized void removeOlderThan(long minTime, List<NioJournalRecord> removed) {
+            final boolean fullScan = outOfOrderSince < minTime;
+            for (int entry = head; entry < tail; entry++) {
+                final NioJournalRecord record = records[entry];
+                if (record == null)
+                    continue;
+                if (!fullScan && trackedSince[entry] >= minTime)
+                    break;
+
+                if (record.getTime() < minTime) {
+                    removed.add(record);
+                    delete(findSlot(record.getGtrid(), timestamps[entry], sequences[entry], hash(timestamps[entry], sequences[entry])));
+                }
+            }
+
+            if (fullScan) {
+                outOfOrderSince = Long.MAX_VALUE;
+                long maxTrackedSince = Long.MIN_VALUE;
+                for (int entry = head; entry < tail; entry++) {
+                    if (records[entry] == null)
+                        continue;
+                    if (trackedSince[entry] < maxTrackedSince)
+                        outOfOrderSince = Math.min(outOfOrderSince, trackedSince[entry]);
+                    else
+                        maxTrackedSince = trackedSince[entry];
+                }
+            }
+        }
+
+        synchronized void copyTo(Map<Uid, NioJournalRecord> target) {
+            for (int entry = head; entry < tail; entry++) {
+                final NioJournalRecord record = records[entry];
+                if (record != null)
+                    target.put(record.getGtrid(), record);
+            }
+        }
+
+        synchronized void clear() {
+            allocate(INITIAL_CAPACITY);
+            size = 0;
+        }
+
+        private NioJournalRecord set(int entry, NioJournalRecord record) {
+            final NioJournalRecord previous = records[entry];
+            records[entry] = record;
+            if (record.getTime() < trackedSince[entry]) {
+                trackedSince[entry] = record.getTime();
+                outOfOrderSince = Math.min(outOfOrderSince, record.getTime());
+            }
+            return previous;
+        }
+
+        private void append(long timestamp, int sequence, int hash, NioJournalRecord record) {
+            if (tail == records.length)
+                rebuild();
+
+            final int entry = tail++;
+            timestamps[entry] = timestamp;
+            sequences[entry] = sequence;
+            records[entry] = record;
+            trackedSince[entry] = record.getTime();
+            if (record.getTime() < lastTrackedSince)
+                outOfOrderSince = Math.min(outOfOrderSince, record.getTime());
+            else
+                lastTrackedSince = record.getTime();
+
+            insertIndex(hash, entry);
+            size++;
+        }
+
+        private void insertIndex(int hash, int entry) {
+            final int mask = index.length - 1;
+            int slot = hash & mask;
+            while (index[slot] > FREE)
+                slot = (slot + 1) & mask;
+            index[slot] = entry + 1;
+        }
+
+        private NioJournalRecord delete(int slot) {
+            final int entry = index[slot] - 1;
+            final NioJournalRecord record = records[entry];
+            index[slot] = DELETED;
+            records[entry] = null;
+            size--;
+
+            while (head < tail && records[head] == null)
+                head++;
+            if (head == tail) {
+                // the segment is empty, start over without the deleted slots and release grown arrays.
+                if (records.length > INITIAL_CAPACITY)
+                    allocate(INITIAL_CAPACITY);
+                else {
+                    Arrays.fill(index, FREE);
+                    head = tail = 0;
+                    lastTrackedSince = Long.MIN_VALUE;
+                    outOfOrderSince = Long.MAX_VALUE;
+                }
+            }
+            return record;
+        }
+
+        /**
+         * Compacts the entries into arrays of twice the size of the live entries (and at least of the initial
+         * capacity), dropping all deleted slots.
+         */
+        private void rebuild() {
+            final int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, size)) << 2);
+
+            final long[] oldTimestamps = timestamps, oldTrackedSince = trackedSince;
+            final int[] oldSequences = sequences;
+            final NioJournalRecord[] oldRecords = records;
+            final int oldHead = head, oldTail = tail;
+            final long oldLastTrackedSince = lastTrackedSince, oldOutOfOrderSince = outOfOrderSince;
+
+            allocate(capacity);
+            lastTrackedSince = oldLastTrackedSince;
+            outOfOrderSince = oldOutOfOrderSince;
+
+            for (int entry = oldHead; entry < oldTail; entry++) {
+                if (oldRecords[entry] == null)
+                    continue;
+                final int target = tail++;
+                timestamps[target] = oldTimestamps[entry];
+                sequences[target] = oldSequences[entry];
+                trackedSince[target] = oldTrackedSince[entry];
+                records[target] = oldRecords[entry];
+                insertIndex(hash(timestamps[target], sequences[target]), target);
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Adapts the time the journal writer keeps collecting records before it performs a requested force.
+ * <p/>
+ * The controller keeps moving averages of the record arrival rate and of the time force (fsync) takes. After
+ * every force it recalculates the batch window:
+ * <ul>
+ * <li>no window if less than one record arrives during a force, committers do not gain from waiting (trickle),</li>
+ * <li>no window if the force time alone exceeds the latency target,</li>
+ * <li>otherwise a window of up to one force time, bounded by the remaining latency budget and by the time it takes
+ * to fill the queue.</li>
+ * </ul>
+ * All values are updated by the journal writer thread and published for monitoring.
+ *
+ * @author juergen kellerer, 2011-05-29
+ */
+public final class NioWriteBatchController implements NioWriteBatchControllerMBean, NioJournalConstants {
+
+    private static final Logger log = LoggerFactory.getLogger(NioWriteBatchController.class);
+
+    /**
+     * Weight of a new sample in the moving averages.
+     */
+    private static final double SMOOTHING = 0.2D;
+
+    private volatile long latencyTargetNanos;
+
+    private volatile double arrivalRatePerNano;
+    private volatile double averageForceNanos;
+    private volatile double averageRecordsPerForce;
+    private volatile double averageForceIntervalNanos;
+    private volatile long batchWindowNanos;
+    private volatile long forceCount, forcedRecordCount;
+    private volatile String lastDecision = "no force performed yet";
+
+    // state of the current force cycle, only accessed by the journal writer thread.
+    private long cycleStartNanos = System.nanoTime();
+    private long cycleRecords;
+
+    /**
+     * Creates a controller for the given latency target.
+     *
+     * @param latencyTargetMillis the max time a committing thread should wait on its record to get forced.
+     */
+    public NioWriteBatchController(long latencyTargetMillis) {
+        this.latencyTargetNanos = MILLISECONDS.toNanos(latencyTargetMillis);
+    }
+
+    /**
+     * Records that the writer collected records from the queue.
+     *
+     * @param count the number of collected records.
+     */
+    void recordArrivals(int count) {
+        cycleRecords += count;
+    }
+
+    /**
+     * Records a force and recalculates the batch window.
+     *
+     * @param forceNanos the time the force took.
+     */
+    void recordForce(long forceNanos) {
+        recordForce(forceNanos, System.nanoTime());
+    }
+
+    void recordForce(long forceNanos, long nowNanos) {
+        final double arrivalRateSample = cycleRecords / (double) Math.max(1L, nowNanos - cycleStartNanos);
+        final boolean first = forceCount == 0;
+
+        arrivalRatePerNano = first ? arrivalRateSample : average(arrivalRatePerNano, arrivalRateSample);
+        averageForceNanos = first ? forceNanos : average(averageForceNanos, forceNanos);
+        averageRecordsPerForce = first ? cycleRecords : average(averageRecordsPerForce, cycleRecords);
+        averageForceIntervalNanos = first ? nowNanos - cycleStartNanos : average(averageForceIntervalNanos, nowNanos - cycleStartNanos);
+        forcedRecordCount += cycleRecords;
+        forceCount++;
+
+        cycleRecords = 0;
+        cycleStartNanos = nowNanos;
+
+        updateBatchWindow();
+    }
+
+    private static double average(double average, double sample) {
+        return average + SMOOTHING * (sample - average);
+    }
+
+    private void updateBatchWindow() {
+        final long forceNanos = (long) averageForceNanos;
+        final double arrivalsPerForce = arrivalRatePerNano * forceNanos;
+        final long latencyBudgetNanos = latencyTargetNanos - forceNanos;
+
+        final long window;
+        final String decision;
+        if (latencyBudgetNanos <= 0) {
+            window = 0;
+            decision = "force immediately, force time of " + NANOSECONDS.toMicros(forceNanos) + "us exceeds the latency target";
+        } else if (arrivalsPerForce < 1D) {
+            window = 0;
+            decision = "force immediately, " + String.format("%.2f", arrivalsPerForce) + " records arrive per force";
+        } else {
+            final long queueFillNanos = (long) (CONCURRENCY / arrivalRatePerNano);
+            window = Math.min(Math.min(latencyBudgetNanos, forceNanos), queueFillNanos);
+            decision = "batch for " + NANOSECONDS.toMicros(window) + "us, " + String.format("%.2f", arrivalsPerForce) + " records arrive per force";
+        }
+
+        if (window != batchWindowNanos && log.isDebugEnabled()) { log.debug("Changing the journal write batch window: " + decision + "."); }
+
+        batchWindowNanos = window;
+        lastDecision = decision;
+    }
+
+    /**
+     * Returns the time the writer should keep collecting records once a force was requested.
+     *
+     * @return the batch window in nanoseconds, 0 if records are forced immediately.
+     */
+    long getBatchWindowNanos() {
+        return batchWindowNanos;
+    }
+
+    public long getLatencyTargetInMillis() {
+        return NANOSECONDS.toMillis(latencyTargetNanos);
+    }
+
+    /**
+     * Changes the latency target, the batch window is adapted with the next force.
+     *
+     * @param latencyTargetMillis the max time a committing thread should wait on its record to get forced.
+     */
+    void setLatencyTargetInMillis(long latencyTargetMillis) {
+        if (latencyTargetMillis < 0)
+            throw new IllegalArgumentException("The latency target cannot be negative, was " + latencyTargetMillis + "ms.");
+        log.info("Changing the journal write latency target from " + getLatencyTargetInMillis() + "ms to " + latencyTargetMillis + "ms.");
+        latencyTargetNanos = MILLISECONDS.toNanos(latencyTargetMillis);
+    }
+
+    public double getArrivalRatePerSecond() {
+        return arrivalRatePerNano * SECONDS.toNanos(1);
+    }
+
+    public double getForceRatePerSecond() {
+        final double interval = averageForceIntervalNanos;
+        return interval <= 0D ? 0D : SECONDS.toNanos(1) / interval;
+    }
+
+    public long getAverageForceTimeInMicros() {
+        return NANOSECONDS.toMicros((long) averageForceNanos);
+    }
+
+    public double getAverageRecordsPerForce() {
+        return averageRecordsPerForce;
+    }
+
+    public long getBatchWindowInMicros() {
+        return NANOSECONDS.toMicros(batchWindowNanos);
+    }
+
+    public long getForceCount() {
+        return forceCount;
+    }
+
+    public long getForcedRecordCount() {
+        return forcedRecordCount;
+    }
+
+    public String getLastDecision() {
+        return lastDecision;
+    }
+
+    @Override
+    public String toString() {
+        return "NioWriteBatchController{" +
+                "latencyTarget=" + getLatencyTargetInMillis() + "ms" +
+                ", arrivalRate=" + getArrivalRatePerSecond() + "/s" +
+                ", averageForceTime=" + getAverageForceTimeInMicros() + "us" +
+                ", batchWindow=" + getBatchWindowInMicros() + "us" +
+                '}';
+    }
+}
@@ -22,35 +22,33 @@
 package bitronix.tm.journal.nio.util;
 
 /**
- * Wraps an element that is put into the SequencedBlockingQueue.
+ * Wraps an element that was taken from the SequencedRingBuffer.
  * <p/>
- * The purpose of this wrapper is to have the ability to assign sequence
- * numbers with queue entries that can be assigned lazily.
+ * The purpose of this wrapper is to keep the sequence number that was
+ * claimed for the element together with the element.
  */
 public final class SequencedQueueEntry<E> {
 
     private final E element;
-    private volatile long sequenceNumber = -1;
+    private final long sequenceNumber;
 
     /**
-     * Constructs a new entry for the SequencedBlockingQueue.
+     * Constructs a new entry for the SequencedRingBuffer.
      *
-     * @param element the payload to wrap in this instance.
+     * @param element        the payload to wrap in this instance.
+     * @param sequenceNumber the sequence number that was claimed for the element.
      */
-    SequencedQueueEntry(E element) {
+    SequencedQueueEntry(E element, long sequenceNumber) {
         if (element == null)
             throw new IllegalArgumentException("Element may not be set to 'null'");
         this.element = element;
+        this.sequenceNumber = sequenceNumber;
     }
 
     public long getSequenceNumber() {
         return sequenceNumber;
     }
 
-    void setSequenceNumber(long sequenceNumber) {
-        this.sequenceNumber = sequenceNumber;
-    }
-
     public E getElement() {
         return element;
     }
@@ -0,0 +1,419 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio.util;
+
+import bitronix.tm.journal.nio.NioJournalConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Implements a bounded multi-producer / single-consumer ring buffer that maintains a sequence number with all
+ * added elements.
+ * <p/>
+ * The sequence number is the slot claim itself: producers claim the next sequence with a CAS on a shared
+ * counter (which fails only when the buffer is full), store the element in the pre-allocated slot
+ * ({@code sequence & mask}) and publish it by writing the sequence into the slot's publication marker.
+ * The consumer reads the slots in sequence order for as long as they are published and advances its cursor
+ * once per batch. No lock is taken on either side; counters and markers are padded to separate cache lines
+ * to avoid false sharing between producers and the consumer.
+ * <p/>
+ * This buffer maintains the sequence number of the latest addition of every thread, allowing a thread to wait
+ * on its own elements being processed outside of the buffer.
+ * <p/>
+ * Note: All consuming methods must be called from a single thread at a time.
+ *
+ * @author juergen kellerer, 2011-08-23
+ */
+public final class SequencedRingBuffer<E> implements NioJournalConstants {
+
+    private static final Logger log = LoggerFactory.getLogger(SequencedRingBuffer.class);
+    private static final boolean trace = log.isTraceEnabled();
+
+    /**
+     * Number of longs in a 64 bytes cache line.
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * Number of times a producer spins before parking when the buffer is full.
+     */
+    private static final int SPINS_BEFORE_PARK = 128;
+
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * Helper method that unwraps entries to their wrapped elements.
+     *
+     * @param source the source collection to read from.
+     * @param target the target collection to write the unwrapped content to.
+     * @param <E>    the type of the element that is wrapped.
+     */
+    public static <E> void unwrap(Collection<SequencedQueueEntry<E>> source, Collection<? super E> target) {
+        if (trace) log.trace("Unwrapping {} sources into target list of size {}", source.size(), target.size());
+        for (SequencedQueueEntry<E> entry : source) target.add(entry.getElement());
+    }
+
+    private final int capacity, mask;
+    private final Object[] elements;
+    private final AtomicLongArray publishedSequences;
+
+    private final PaddedAtomicLong claimedSequence = new PaddedAtomicLong();
+    private final PaddedAtomicLong consumedSequence = new PaddedAtomicLong();
+
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting;
+
+    private final ThreadLocal<EnlistedSequence> lastEnlistedElementSequenceNumber = new ThreadLocal<EnlistedSequence>() {
+        @Override
+        protected EnlistedSequence initialValue() {
+            return new EnlistedSequence();
+        }
+    };
+
+    /**
+     * Creates a instance of SequencedRingBuffer with a capacity of at least {@link #CONCURRENCY} elements.
+     */
+    public SequencedRingBuffer() {
+        this(CONCURRENCY);
+    }
+
+    /**
+     * Creates a instance of SequencedRingBuffer with the given minimum capacity.
+     *
+     * @param minCapacity the minimum number of elements the buffer can hold, rounded up to the next power of two.
+     */
+    public SequencedRingBuffer(int minCapacity) {
+        if (minCapacity < 1)
+            throw new IllegalArgumentException("The capacity must be at least 1, was " + minCapacity + ".");
+
+        int capacity = 1;
+        while (capacity < minCapacity)
+            capacity <<= 1;
+
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.elements = new Object[capacity];
+        this.publishedSequences = new AtomicLongArray(capacity * PADDING);
+    }
+
+    /**
+     * Enlist the given element inside this buffer and records the enlisted element's sequence number
+     * for the current thread.
+     * <p/>
+     * The method waits for space to become available and does not return before enlisting
+     * succeeded or the current thread was interrupted.
+     *
+     * @param element the element to enlist.
+     * @return the sequence number that was assigned with the enlisted element.
+     * @throws InterruptedException in case of the calling thread was interrupted before enlisting succeeded.
+     */
+    public long putElement(E element) throws InterruptedException {
+        if (element == null)
+            throw new IllegalArgumentException("Element may not be set to 'null'");
+        if (trace) log.trace("Putting the element {} to the buffer of pending records.", element);
+
+        final long sequenceNumber = claim();
+        final int slot = slotOf(sequenceNumber);
+
+        // Note: The element is written before the volatile publication marker, which makes it visible to the consumer.
+        elements[slot] = element;
+        publishedSequences.set(slot * PADDING, sequenceNumber);
+
+        lastEnlistedElementSequenceNumber.get().value = sequenceNumber;
+
+        if (consumerWaiting) {
+            final Thread waitingConsumer = consumer;
+            if (waitingConsumer != null)
+                LockSupport.unpark(waitingConsumer);
+        }
+
+        return sequenceNumber;
+    }
+
+    private long claim() throws InterruptedException {
+        int spins = 0;
+        while (true) {
+            final long current = claimedSequence.get();
+            if (current - consumedSequence.get() >= capacity) {
+                // The buffer is full, the claim has to wait until the consumer advanced.
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                if (++spins < SPINS_BEFORE_PARK)
+                    Thread.yield();
+                else
+                    LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+            } else if (claimedSequence.compareAndSet(current, current + 1)) {
+                return current + 1;
+            }
+        }
+    }
+
+    private int slotOf(long sequenceNumber) {
+        return (int) (sequenceNumber - 1) & mask;
+    }
+
+    /**
+     * Returns the maximum element sequence number claimed by any thread.
+     * <p/>
+     * The element of this sequence may still be in the process of being published.
+     *
+     * @return the maximum element sequence number claimed by any thread.
+     */
+    public long getMaxElementSequenceNumber() {
+        return claimedSequence.get();
+    }
+
+    /**
+     * Returns the maximum element sequence number of the element added by the calling thread.
+     * <p/>
+     * If the thread did not add any elements, the method returns the same result as
+     * {@link #getMaxElementSequenceNumber()}.
+     *
+     * @param clearThreadLocal if true, clears the thread local sequence number to ensure subsequent
+     *                         calls will return the maximum number instead.
+     * @return the maximum element sequence number of the element added by the calling thread.
+     */
+    public long getMaxElementSequenceNumberForCurrentThread(boolean clearThreadLocal) {
+        final EnlistedSequence enlistedSequence = lastEnlistedElementSequenceNumber.get();
+        long maxElementSequence = enlistedSequence.value;
+        if (maxElementSequence == EnlistedSequence.NONE) {
+            maxElementSequence = getMaxElementSequenceNumber();
+            if (trace) {
+                log.trace("The current thread has no enlisted sequence, using the latest sequence {} " +
+                        "instead to wait on force.", maxElementSequence);
+            }
+        } else if (clearThreadLocal) {
+            // clearing the sequence, subsequent calls should force everything.
+            enlistedSequence.value = EnlistedSequence.NONE;
+        }
+
+        return maxElementSequence;
+    }
+
+    /**
+     * Returns true if no element was claimed that was not yet consumed.
+     *
+     * @return true if the buffer is empty.
+     */
+    public boolean isEmpty() {
+        return claimedSequence.get() == consumedSequence.get();
+    }
+
+    /**
+     * Returns the number of claimed elements that were not yet consumed.
+     *
+     * @return the number of claimed elements that were not yet consumed.
+     */
+    public int size() {
+        return (int) (claimedSequence.get() - consumedSequence.get());
+    }
+
+    /**
+     * Returns the number of elements this buffer can hold.
+     *
+     * @return the number of elements this buffer can hold.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Drains all published elements to the target collection.
+     *
+     * @param target the target collection to add the queued elements to.
+     * @return the number of elements added to target.
+     */
+    public int drainElementsTo(Collection<? super E> target) {
+        return drainElementsTo(new LinkedList<SequencedQueueEntry<E>>(), target);
+    }
+
+    /**
+     * Drains all published elements to the target collection.
+     *
+     * @param entries a collection that takes the entries containing the elements.
+     * @param target  the target collection to add the queued elements to.
+     * @return the number of elements added to target.
+     */
+    public int drainElementsTo(List<SequencedQueueEntry<E>> entries, Collection<? super E> target) {
+        return transferElements(entries, target);
+    }
+
+    /**
+     * Waits for one element to get published and drains any further published elements to the target collection.
+     * <p/>
+     * This method blocks until at least one element was added.
+     *
+     * @param target the target collection to add the queued elements to.
+     * @return the number of elements added to target.
+     * @throws InterruptedException In case of the calling thread was interrupted.
+     */
+    public int takeAndDrainElementsTo(Collection<? super E> target) throws InterruptedException {
+        return takeAndDrainElementsTo(new LinkedList<SequencedQueueEntry<E>>(), target);
+    }
+
+    /**
+     * Waits for one element to get published and drains any further published elements to the target collection.
+     * <p/>
+     * This method blocks until at least one element was added.
+     *
+     * @param entries a collection that takes the entries containing the elements.
+     * @param target  the target collection to add the queued elements to.
+     * @return the number of elements added to target.
+     * @throws InterruptedException In case of the calling thread was interrupted.
+     */
+    public int takeAndDrainElementsTo(List<SequencedQueueEntry<E>> entries, Collection<? super E> target) throws InterruptedException {
+        awaitPublished(0L);
+        return transferElements(entries, target);
+    }
+
+    /**
+     * Waits up to maxBlockTime for an element to get published and drains any further published elements to the target collection.
+     * <p/>
+     * This method blocks up to maxBlockTime until at least one element was added. If no element was added during maxBlockTime, the
+     * method returns without adding elements.
+     *
+     * @param entries      a collection that takes the entries containing the elements.
+     * @param target       the target collection to add the queued elements to.
+     * @param maxBlockTime the max time to wait for elements to become available.
+     * @param timeUnit     the time unit of maxBlockTime.
+     * @return the number of elements added to target. 0 if a timeout occurred.
+     * @throws InterruptedException In case of the calling thread was interrupted.
+     */
+    public int pollAndDrainElementsTo(List<SequencedQueueEntry<E>> entries, Collection<? super E> target,
+                                      long maxBlockTime, TimeUnit timeUnit) throws InterruptedException {
+        if (!awaitPublished(Math.max(1L, timeUnit.toNanos(maxBlockTime))))
+            return 0;
+        return transferElements(entries, target);
+    }
+
+    private boolean isNextPublished() {
+        final long nextSequence = consumedSequence.get() + 1;
+        return publishedSequences.get(slotOf(nextSequence) * PADDING) == nextSequence;
+    }
+
+    /**
+     * Parks the consumer until the next element was published.
+     *
+     * @param timeoutNanos the max time to wait or 0 to wait without a timeout.
+     * @return true if the next element was published, false if the wait timed out.
+     * @throws InterruptedException In case of the calling thread was interrupted.
+     */
+    private boolean awaitPublished(long timeoutNanos) throws InterruptedException {
+        if (isNextPublished())
+            return true;
+
+        final long deadline = timeoutNanos == 0L ? 0L : System.nanoTime() + timeoutNanos;
+        consumer = Thread.currentThread();
+        try {
+            while (true) {
+                // Note: Producers check the flag after publishing, the consumer checks publication after raising
+                //       the flag. Both are volatile, so at least one side sees the other and no wakeup is lost.
+                consumerWaiting = true;
+                if (isNextPublished())
+                    return true;
+
+                if (timeoutNanos == 0L)
+                    LockSupport.park(this);
+                else {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L)
+                        return false;
+                    LockSupport.parkNanos(this, remaining);
+                }
+
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        } finally {
+            consumerWaiting = false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private int transferElements(final List<SequencedQueueEntry<E>> entries, final Collection<? super E> target) {
+        final long firstSequence = consumedSequence.get() + 1;
+
+        long sequence = firstSequence;
+        for (int slot = slotOf(sequence); publishedSequences.get(slot * PADDING) == sequence; slot = slotOf(sequence)) {
+            final E element = (E) elements[slot];
+            elements[slot] = null;
+
+            entries.add(new SequencedQueueEntry<E>(element, sequence));
+            target.add(element);
+            sequence++;
+        }
+
+        final int transferCount = (int) (sequence - firstSequence);
+        if (transferCount > 0) {
+            // releasing the consumed slots to the producers once per batch.
+            consumedSequence.set(sequence - 1);
+            if (trace) log.trace("Transferred {} elements from the ring buffer up to sequence {}.", transferCount, sequence - 1);
+        }
+
+        return transferCount;
+    }
+
+    @Override
+    public String toString() {
+        return "SequencedRingBuffer{" +
+                "capacity=" + capacity +
+                ", claimedSequence=" + claimedSequence.get() +
+                ", consumedSequence=" + consumedSequence.get() +
+                '}';
+    }
+
+    /**
+     * Holds the sequence of the latest element a thread enlisted (mutable to avoid boxing on every put).
+     */
+    private static final class EnlistedSequence {
+        static final long NONE = -1;
+        long value = NONE;
+    }
+
+    /**
+     * AtomicLong that occupies a cache line on its own.
+     */
+    @SuppressWarnings("unused")
+    private static final class PaddedAtomicLong extends AtomicLong {
+
+        private static final long serialVersionUID = 3181209637146245712L;
+
+        volatile long p1, p2, p3, p4, p5, p6, p7 = 7L;
+
+        /**
+         * Prevents the padding fields from being optimized away.
+         *
+         * @return the sum of the padding fields.
+         */
+        long sumPaddingToPreventOptimisation() {
+            return p1 + p2 + p3 + p4 + p5 + p6 + p7;
+        }
+    }
+}
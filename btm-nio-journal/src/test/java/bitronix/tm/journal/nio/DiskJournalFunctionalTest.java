@@ -111,13 +111,5 @@ public class DiskJournalFunctionalTest extends AbstractJournalFunctionalTest {
         tlr = getLogRecord(Status.STATUS_COMMITTED,
                 116, 28, 1220609394845L, 38266, -1380478121, uid, names, TransactionLogAppender.END_RECORD);
         assertTrue(tlr.isCrc32Correct());
-
-        // test that removing unique names refreshes CRC32, see BTM-44
-        Set namesToRemove = new HashSet();
-        namesToRemove.add("ActiveMQ");
-
-        tlr.removeUniqueNames(namesToRemove);
-
-        assertTrue(tlr.isCrc32Correct());
     }
 }
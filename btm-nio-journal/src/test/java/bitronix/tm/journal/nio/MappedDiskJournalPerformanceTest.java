@@ -0,0 +1,39 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import bitronix.tm.journal.Journal;
+import bitronix.tm.journal.MappedDiskJournal;
+
+/**
+ * Memory-mapped classic journal specific performance and load tests, to be compared with the results of
+ * {@link DiskJournalPerformanceTest}.
+ *
+ * @author lorban
+ */
+public class MappedDiskJournalPerformanceTest extends DiskJournalPerformanceTest {
+
+    @Override
+    protected Journal getJournal() {
+        return new MappedDiskJournal();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the size classes, recycling and statistics of NioBufferPool.
+ *
+ * @author juergen kellerer, 2011-04-30
+ */
+public class NioBufferPoolTest {
+
+    final NioBufferPool pool = new NioBufferPool(512, 4096, 16 * 1024, 64 * 1024);
+
+    @Test
+    public void testBuffersAreServedFromSizeClasses() throws Exception {
+        assertEquals(4, pool.getSizeClassCount());
+
+        assertEquals(512, pool.poll(1).capacity());
+        assertEquals(512, pool.poll(512).capacity());
+        assertEquals(1024, pool.poll(513).capacity());
+        assertEquals(4096, pool.poll(4096).capacity());
+
+        final ByteBuffer buffer = pool.poll(300);
+        assertTrue(buffer.hasArray());
+        assertEquals(0, buffer.position());
+        assertEquals(buffer.capacity(), buffer.limit());
+
+        assertEquals(5, pool.getHitCount());
+        assertEquals(0, pool.getFallbackCount());
+        assertEquals(3 * 512 + 1024 + 4096, pool.getBytesOutstanding());
+        assertEquals(3 * 16 * 1024, pool.getArenaBytes());
+    }
+
+    @Test
+    public void testRecycledBuffersAreReused() throws Exception {
+        final ByteBuffer buffer = pool.poll(200);
+        buffer.putInt(42);
+        pool.recycleBuffer(buffer);
+
+        final ByteBuffer reused = pool.poll(200);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(512, pool.getBytesOutstanding());
+        assertEquals(1, pool.getRecycleCount());
+        assertEquals(100D, pool.getHitRatePercent(), 0D);
+    }
+
+    @Test
+    public void testOversizedAndExhaustedRequestsFallBack() throws Exception {
+        assertEquals(5000, pool.poll(5000).capacity());
+        assertEquals(1, pool.getFallbackCount());
+
+        // 4 arenas of 16k hold 16 buffers of 4k.
+        final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 17; i++)
+            buffers.add(pool.poll(4096));
+
+        assertEquals(16, pool.getHitCount());
+        assertEquals(2, pool.getFallbackCount());
+        assertEquals(64 * 1024, pool.getArenaBytes());
+
+        // foreign buffers are not taken into the pool.
+        pool.recycleBuffers(buffers);
+        pool.recycleBuffer(ByteBuffer.allocate(4096));
+        pool.recycleBuffer(null);
+        assertEquals(16, pool.getRecycleCount());
+        assertEquals(0, pool.getBytesOutstanding());
+    }
+
+    @Test
+    public void testBuffersMoveBetweenThreads() throws Exception {
+        // 40 buffers of 1k are carved out of 3 arenas, leaving 8 in the local magazine.
+        final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 40; i++)
+            buffers.add(pool.poll(1000));
+        assertEquals(3 * 16 * 1024, pool.getArenaBytes());
+
+        final AtomicReference<ByteBuffer> polled = new AtomicReference<ByteBuffer>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                pool.recycleBuffers(buffers);
+                polled.set(pool.poll(1000));
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertTrue(containsSame(buffers, polled.get()));
+        assertEquals(1024, pool.getBytesOutstanding());
+
+        // the full magazine released by the other thread is taken from the depot instead of carving a new arena.
+        for (int i = 0; i < 8; i++)
+            assertFalse(containsSame(buffers, pool.poll(1000)));
+        assertTrue(containsSame(buffers, pool.poll(1000)));
+        assertEquals(3 * 16 * 1024, pool.getArenaBytes());
+        assertEquals(0, pool.getFallbackCount());
+    }
+
+    static boolean containsSame(List<ByteBuffer> buffers, ByteBuffer buffer) {
+        // ByteBuffer.equals() compares the content, not the identity.
+        for (ByteBuffer b : buffers) {
+            if (b == buffer)
+                return true;
+        }
+        return false;
+    }
+}
@@ -21,8 +21,9 @@
 
 package bitronix.tm.journal.nio;
 
-import bitronix.tm.journal.nio.util.SequencedBlockingQueue;
+import bitronix.tm.journal.JournalCompletion;
 import bitronix.tm.journal.nio.util.SequencedQueueEntry;
+import bitronix.tm.journal.nio.util.SequencedRingBuffer;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -54,7 +55,7 @@ public class NioForceSynchronizerTest {
 
     volatile List<Object> elements;
 
-    final SequencedBlockingQueue<Object> queue = new SequencedBlockingQueue<Object>();
+    final SequencedRingBuffer<Object> queue = new SequencedRingBuffer<Object>();
     final NioForceSynchronizer forceSynchronizer = new NioForceSynchronizer(queue);
 
     @Before
@@ -113,6 +114,67 @@ public class NioForceSynchronizerTest {
             assertEquals(entry.getValue(), entry.getKey().get());
     }
 
+    @Test
+    public void testEnlistedCompletionsAreCompleted() throws Exception {
+        List<JournalCompletion> completions = enlistCompletions();
+        assertTrue(forceSynchronizer.isForceRequested());
+
+        ArrayList<SequencedQueueEntry<Object>> entries = new ArrayList<SequencedQueueEntry<Object>>();
+        queue.drainElementsTo(entries, new ArrayList<Object>());
+        assertTrue(forceSynchronizer.processEnlistedIfRequired(new Callable<Object>() {
+            public Object call() throws Exception {
+                return null;
+            }
+        }, entries));
+
+        for (JournalCompletion completion : completions) {
+            assertTrue(completion.isDone());
+            assertNull(completion.getFailure());
+        }
+        assertFalse(forceSynchronizer.isForceRequested());
+
+        // completions enlisted after their element was forced are completed immediately.
+        forceSynchronizer.beginEnlistCompletion();
+        JournalCompletion completion = new JournalCompletion();
+        forceSynchronizer.enlistCompletion(entries.get(0).getSequenceNumber(), completion);
+        assertTrue(completion.isDone());
+    }
+
+    @Test
+    public void testEnlistedCompletionsReceiveFailures() throws Exception {
+        List<JournalCompletion> completions = enlistCompletions();
+
+        ArrayList<SequencedQueueEntry<Object>> entries = new ArrayList<SequencedQueueEntry<Object>>();
+        queue.drainElementsTo(entries, new ArrayList<Object>());
+        try {
+            forceSynchronizer.processEnlistedIfRequired(new Callable<Object>() {
+                public Object call() throws Exception {
+                    throw new Exception();
+                }
+            }, entries);
+            fail("expected the force command exception.");
+        } catch (Exception e) {
+            // expected.
+        }
+
+        for (JournalCompletion completion : completions) {
+            assertTrue(completion.isDone());
+            assertNotNull(completion.getFailure());
+        }
+    }
+
+    private List<JournalCompletion> enlistCompletions() throws Exception {
+        List<JournalCompletion> completions = new ArrayList<JournalCompletion>();
+        for (Object element : elements) {
+            forceSynchronizer.beginEnlistCompletion();
+            JournalCompletion completion = new JournalCompletion();
+            forceSynchronizer.enlistCompletion(queue.putElement(element), completion);
+            assertFalse(completion.isDone());
+            completions.add(completion);
+        }
+        return completions;
+    }
+
     private List<Future<Boolean>> doTestWaitOnEnlistedWithSuccess() throws Exception {
         return doTestWaitOnEnlisted(new Callable<Object>() {
             public Object call() throws Exception {
@@ -0,0 +1,145 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.transaction.Status;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static bitronix.tm.utils.UidGenerator.generateUid;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that NioJournalBulkReader returns the same records as NioJournalFileIterable.
+ *
+ * @author juergen kellerer, 2011-05-29
+ */
+public class NioJournalBulkReaderTest {
+
+    final File file = new File("target/nio-journal-bulk-reader.tlog");
+    NioJournalFile journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        assertTrue(!file.exists() || file.delete());
+        journalFile = new NioJournalFile(file, 4 * 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journalFile.close();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testReadsTheRecordsOfAllChunksAndDelimiters() throws Exception {
+        final List<NioJournalRecord> written = writeRecords(8000);
+        assertTrue("records must span several chunks", journalFile.getPosition() > 2 * NioJournalBulkReader.DEFAULT_CHUNK_SIZE);
+        assertEquals(written.size(), readAllRecords(false).size());
+
+        // the records of the new delimiter overwrite the beginning of the file, the others remain readable
+        journalFile.rollover();
+        writeRecords(1000);
+
+        final List<NioJournalRecord> iterated = new ArrayList<NioJournalRecord>();
+        for (NioJournalFileRecord fileRecord : journalFile.readAll(false))
+            iterated.add(new NioJournalRecord(fileRecord.getPayload(), fileRecord.isValid()));
+
+        final List<NioJournalRecord> read = readAllRecords(false);
+        assertTrue(read.size() > 1000);
+        assertEquals(iterated.size(), read.size());
+        for (int i = 0; i < iterated.size(); i++) {
+            assertEquals(iterated.get(i).getGtrid(), read.get(i).getGtrid());
+            assertEquals(iterated.get(i).getUniqueNames(), read.get(i).getUniqueNames());
+            assertTrue(read.get(i).isValid());
+        }
+    }
+
+    @Test
+    public void testSkipsOrReturnsInvalidRecordsLikeTheIterable() throws Exception {
+        writeRecords(10);
+        final long position = journalFile.getPosition() - 20;
+        writeRecords(10);
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            final byte value = raf.readByte();
+            raf.seek(position);
+            raf.writeByte(value + 1);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(19, readAllRecords(false).size());
+        assertEquals(countIteratedRecords(false), 19);
+
+        final List<NioJournalRecord> records = readAllRecords(true);
+        assertEquals(20, records.size());
+        assertEquals(countIteratedRecords(true), 20);
+        int invalid = 0;
+        for (NioJournalRecord record : records) {
+            if (!record.isValid())
+                invalid++;
+        }
+        assertEquals(1, invalid);
+    }
+
+    private List<NioJournalRecord> writeRecords(int count) throws Exception {
+        final List<NioJournalRecord> records = new ArrayList<NioJournalRecord>(count);
+        final List<NioJournalFileRecord> fileRecords = new ArrayList<NioJournalFileRecord>(count);
+        for (int i = 0; i < count; i++) {
+            final HashSet<String> uniqueNames = new HashSet<String>();
+            for (int j = 0; j <= i % 10; j++)
+                uniqueNames.add("resource-" + j + "-with-a-name-of-some-length");
+
+            final NioJournalRecord record = new NioJournalRecord(Status.STATUS_COMMITTING, generateUid(), uniqueNames);
+            final NioJournalFileRecord fileRecord = journalFile.createEmptyRecord();
+            record.encodeTo(fileRecord.createEmptyPayload(record.getRecordLength()), false);
+            records.add(record);
+            fileRecords.add(fileRecord);
+        }
+        journalFile.write(fileRecords);
+        return records;
+    }
+
+    private List<NioJournalRecord> readAllRecords(boolean includeInvalid) throws Exception {
+        final List<NioJournalRecord> records = new ArrayList<NioJournalRecord>();
+        for (NioJournalRecord record : journalFile.readAllRecords(includeInvalid))
+            records.add(record);
+        return records;
+    }
+
+    private int countIteratedRecords(boolean includeInvalid) throws Exception {
+        int count = 0;
+        for (NioJournalFileRecord ignored : journalFile.readAll(includeInvalid))
+            count++;
+        return count;
+    }
+}
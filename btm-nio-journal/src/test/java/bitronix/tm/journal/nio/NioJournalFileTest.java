@@ -0,0 +1,108 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests writing batches of records to NioJournalFile.
+ *
+ * @author juergen kellerer, 2011-05-29
+ */
+public class NioJournalFileTest implements NioJournalConstants {
+
+    final File file = new File("target/nio-journal-file.tlog");
+    NioJournalFile journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        assertTrue(!file.exists() || file.delete());
+        journalFile = new NioJournalFile(file, 4 * 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journalFile.close();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testCopiedAndGatheredBatchesAreReadBack() throws Exception {
+        final List<NioJournalFileRecord> smallBatch = createRecords(journalFile, 10, 100);
+        final int largeCount = GATHERING_WRITE_THRESHOLD / 500 + 10;
+        final List<NioJournalFileRecord> largeBatch = createRecords(journalFile, largeCount, 500);
+
+        final long expectedBytes = NioJournalFileRecord.calculateRequiredBytes(smallBatch) + NioJournalFileRecord.calculateRequiredBytes(largeBatch);
+        assertEquals(expectedBytes, journalFile.write(smallBatch) + journalFile.write(largeBatch));
+
+        assertRecords(10 + largeCount);
+    }
+
+    @Test
+    public void testGatheredRecordsAreRewrittenWhenTheDelimiterChanged() throws Exception {
+        final List<NioJournalFileRecord> records = createRecords(journalFile, GATHERING_WRITE_THRESHOLD / 500 + 10, 500);
+
+        journalFile.rollover();
+        journalFile.write(records);
+
+        assertRecords(records.size());
+    }
+
+    private void assertRecords(int expectedCount) throws Exception {
+        int count = 0;
+        for (NioJournalFileRecord record : journalFile.readAll(true)) {
+            assertTrue(record.isValid());
+            final ByteBuffer payload = record.getPayload();
+            final byte[] expected = new byte[payload.remaining()];
+            Arrays.fill(expected, (byte) expected.length);
+            final byte[] actual = new byte[payload.remaining()];
+            payload.get(actual);
+            assertArrayEquals(expected, actual);
+            count++;
+        }
+        assertEquals(expectedCount, count);
+    }
+
+    private static List<NioJournalFileRecord> createRecords(NioJournalFile journalFile, int count, int maxPayloadSize) {
+        final List<NioJournalFileRecord> records = new ArrayList<NioJournalFileRecord>(count);
+        for (int i = 0; i < count; i++) {
+            final int payloadSize = 1 + (i % maxPayloadSize);
+            final byte[] payload = new byte[payloadSize];
+            Arrays.fill(payload, (byte) payloadSize);
+
+            final NioJournalFileRecord record = journalFile.createEmptyRecord();
+            record.createEmptyPayload(payloadSize).put(payload);
+            records.add(record);
+        }
+        return records;
+    }
+}
@@ -24,7 +24,7 @@ package bitronix.tm.journal.nio;
 import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.journal.Journal;
 import bitronix.tm.journal.JournalRecord;
-import bitronix.tm.journal.nio.util.SequencedBlockingQueue;
+import bitronix.tm.journal.nio.util.SequencedRingBuffer;
 import bitronix.tm.utils.Uid;
 import org.junit.Before;
 import org.junit.Test;
@@ -44,6 +44,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
+import static bitronix.tm.journal.nio.NioJournalConstants.WRITE_LATENCY_TARGET;
 import static bitronix.tm.journal.nio.NioJournalFile.FIXED_HEADER_SIZE;
 import static bitronix.tm.utils.UidGenerator.generateUid;
 import static org.junit.Assert.*;
@@ -188,10 +189,11 @@ public class NioJournalFunctionalTest extends AbstractJournalFunctionalTest {
                 }
             });
 
-            SequencedBlockingQueue<NioJournalFileRecord> recordsQueue = new SequencedBlockingQueue<NioJournalFileRecord>();
+            SequencedRingBuffer<NioJournalFileRecord> recordsQueue = new SequencedRingBuffer<NioJournalFileRecord>();
             NioForceSynchronizer synchronizer = new NioForceSynchronizer(recordsQueue);
             NioTrackedTransactions trackedTransactions = new NioTrackedTransactions();
-            thread = NioJournalWritingThread.newRunningInstance(trackedTransactions, mockFile, synchronizer, recordsQueue);
+            thread = NioJournalWritingThread.newRunningInstance(trackedTransactions, mockFile, synchronizer, recordsQueue,
+                    new NioWriteBatchController(WRITE_LATENCY_TARGET), null);
 
             HashSet<String> uniqueNames = new HashSet<String>(Arrays.asList("1"));
             int recordsThatFitIn = (int) Math.floor((float) (journalSize - FIXED_HEADER_SIZE) / (float) calculateRawRecordSize(generateUid(), uniqueNames));
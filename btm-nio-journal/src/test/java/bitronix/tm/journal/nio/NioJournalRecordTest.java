@@ -45,7 +45,7 @@ public class NioJournalRecordTest {
 
         for (int i = 0; i < 10; i++) {
             Uid gtrid = UidGenerator.generateUid();
-            Set<String> names = new HashSet<String>(Arrays.asList("a", "", "another-name", "äöü"));
+            Set<String> names = new HashSet<String>(Arrays.asList("a", "", "another-name", "\u00e4\u00f6\u00fc"));
             NioJournalRecord lr = new NioJournalRecord(1, gtrid, names);
 
             lr.encodeTo((ByteBuffer) bb.clear(), false);
@@ -60,10 +60,15 @@ public class NioJournalRecordTest {
         }
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNamesThatCannotBeEncoded() throws Exception {
+        new NioJournalRecord(1, UidGenerator.generateUid(), new HashSet<String>(Arrays.asList("a", "\u20ac")));
+    }
+
     @Test
     public void testCanGetProperties() throws Exception {
         Uid gtrid = UidGenerator.generateUid();
-        Set<String> names = new TreeSet<String>(Arrays.asList("a", "", "another-name", "äöü"));
+        Set<String> names = new TreeSet<String>(Arrays.asList("a", "", "another-name", "\u00e4\u00f6\u00fc"));
         NioJournalRecord lr = new NioJournalRecord(1, gtrid, names);
 
         assertEquals(lr.getRecordLength(), lr.getRecordProperties().get("recordLength"));
@@ -0,0 +1,173 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import bitronix.tm.utils.Uid;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.transaction.Status;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static bitronix.tm.utils.UidGenerator.generateUid;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the functionality of NioJournalSegments.
+ *
+ * @author juergen kellerer, 2011-05-29
+ */
+public class NioJournalSegmentsTest {
+
+    static final long SEGMENT_SIZE = 64 * 1024;
+
+    final File directory = new File("target/nio-journal-segments");
+    final File journalPath = new File(directory, "nio-segments.tlog");
+    final NioTrackedTransactions trackedTransactions = new NioTrackedTransactions();
+
+    NioJournalSegments segments;
+
+    @Before
+    public void setUp() throws Exception {
+        deleteDirectory();
+        assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (segments != null)
+            segments.close();
+        deleteDirectory();
+    }
+
+    private void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                assertTrue(file.delete());
+        }
+        assertTrue(!directory.exists() || directory.delete());
+    }
+
+    @Test
+    public void testReopenReadsSegmentsInWriteOrder() throws Exception {
+        segments = new NioJournalSegments(journalPath, SEGMENT_SIZE, 8, false);
+        Uid first = write(segments.getActiveSegment(), Status.STATUS_COMMITTING);
+        segments.switchSegment(trackedTransactions);
+        Uid second = write(segments.getActiveSegment(), Status.STATUS_COMMITTING);
+        segments.close();
+
+        segments = new NioJournalSegments(journalPath, SEGMENT_SIZE, 8, false);
+        assertEquals(1, segments.getRetainedSegmentCount());
+        assertEquals(Arrays.asList(first, second), readGtrids());
+    }
+
+    @Test
+    public void testSegmentsAreRetainedUntilTheirTransactionsFinished() throws Exception {
+        segments = new NioJournalSegments(journalPath, SEGMENT_SIZE, 8, false);
+        final NioJournalFile firstSegment = segments.getActiveSegment();
+        Uid gtrid = write(firstSegment, Status.STATUS_COMMITTING);
+
+        segments.switchSegment(trackedTransactions);
+        segments.switchSegment(trackedTransactions);
+        assertEquals("the first segment contains a tracked transaction.", 2, segments.getRetainedSegmentCount());
+        assertEquals(Collections.singletonList(gtrid), readGtrids());
+
+        trackedTransactions.track(new NioJournalRecord(Status.STATUS_COMMITTED, gtrid, new HashSet<String>(Arrays.asList("1"))));
+        assertEquals(0, trackedTransactions.size());
+
+        segments.switchSegment(trackedTransactions);
+        assertEquals(0, segments.getRetainedSegmentCount());
+        assertEquals(3, segments.getReclaimCount());
+        assertEquals(2, segments.getFreeSegmentCount());
+        assertTrue(readGtrids().isEmpty());
+    }
+
+    @Test
+    public void testRecycledSegmentDoesNotReturnOldRecords() throws Exception {
+        segments = new NioJournalSegments(journalPath, SEGMENT_SIZE, 8, false);
+        final NioJournalFile firstSegment = segments.getActiveSegment();
+        write(firstSegment, Status.STATUS_ACTIVE);
+        trackedTransactions.clear();
+
+        assertSame("the first segment was reclaimed and recycled.", firstSegment, segments.switchSegment(trackedTransactions));
+        assertTrue(readGtrids().isEmpty());
+
+        Uid gtrid = write(firstSegment, Status.STATUS_COMMITTING);
+        assertEquals(Collections.singletonList(gtrid), readGtrids());
+        assertEquals("expected one segment and the manifest.", 2, directory.list().length);
+    }
+
+    @Test
+    public void testOldestSegmentIsRelocatedWhenTheLimitIsReached() throws Exception {
+        segments = new NioJournalSegments(journalPath, SEGMENT_SIZE, 2, false);
+        Uid gtrid = write(segments.getActiveSegment(), Status.STATUS_COMMITTING);
+
+        segments.switchSegment(trackedTransactions);
+        assertFalse(segments.isRelocationRequired());
+
+        segments.switchSegment(trackedTransactions);
+        assertTrue(segments.isRelocationRequired());
+        assertEquals(Collections.singleton(gtrid), segments.getTransactionsToRelocate());
+
+        segments.relocated();
+        assertFalse(segments.isRelocationRequired());
+        assertEquals(1, segments.getRetainedSegmentCount());
+        assertEquals(1, segments.getFreeSegmentCount());
+        assertEquals(1, segments.getRelocationCount());
+    }
+
+    @Test
+    public void testSingleFileJournalIsAdopted() throws Exception {
+        NioJournalFile journalFile = new NioJournalFile(journalPath, SEGMENT_SIZE);
+        Uid gtrid = write(journalFile, Status.STATUS_COMMITTING);
+        journalFile.close();
+
+        segments = new NioJournalSegments(journalPath, SEGMENT_SIZE, 8, false);
+        assertEquals(1, segments.getRetainedSegmentCount());
+        assertEquals(Collections.singletonList(gtrid), readGtrids());
+    }
+
+    private Uid write(NioJournalFile segment, int status) throws IOException {
+        NioJournalRecord record = new NioJournalRecord(status, generateUid(), new HashSet<String>(Arrays.asList("1")));
+        trackedTransactions.track(record);
+
+        NioJournalFileRecord fileRecord = segment.createEmptyRecord();
+        record.encodeTo(fileRecord.createEmptyPayload(record.getRecordLength()), false);
+        segment.write(Collections.singletonList(fileRecord));
+        return record.getGtrid();
+    }
+
+    private List<Uid> readGtrids() throws IOException {
+        List<Uid> gtrids = new ArrayList<Uid>();
+        for (NioJournalFileRecord fileRecord : segments.readAll(false))
+            gtrids.add(new NioJournalRecord(fileRecord.getPayload(), fileRecord.isValid()).getGtrid());
+        return gtrids;
+    }
+}
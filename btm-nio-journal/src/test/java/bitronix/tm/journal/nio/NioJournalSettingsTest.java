@@ -0,0 +1,103 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the validation of runtime changes in NioJournalSettings.
+ *
+ * @author juergen kellerer, 2011-05-29
+ */
+public class NioJournalSettingsTest implements NioJournalConstants {
+
+    final NioJournalSettings settings = NioJournalSettings.getInstance();
+
+    @After
+    public void tearDown() throws Exception {
+        settings.setWriteDelay(WRITE_DELAY);
+        settings.setMaxRecordSize(JOURNAL_MAX_RECORD_SIZE);
+        settings.setGrowOffset(JOURNAL_GROW_OFFSET);
+    }
+
+    @Test
+    public void testSettingsCanBeChanged() throws Exception {
+        settings.setWriteDelay(0);
+        assertEquals(0, settings.getWriteDelay());
+
+        settings.setGrowOffset(0.5D);
+        assertEquals(0.5D, settings.getGrowOffset(), 0D);
+    }
+
+    @Test
+    public void testMaxRecordSizeIsEnforcedWhenWriting() throws Exception {
+        settings.setMaxRecordSize(1024);
+
+        final NioJournalFileRecord record = new NioJournalFileRecord(UUID.randomUUID());
+        record.createEmptyPayload(512);
+        try {
+            record.createEmptyPayload(2048);
+            fail("expected the record size to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testUnsafeValuesAreRejected() throws Exception {
+        assertRejected(new Runnable() {
+            public void run() {
+                settings.setMaxRecordSize(JOURNAL_MAX_RECORD_SIZE + 1);
+            }
+        });
+        assertRejected(new Runnable() {
+            public void run() {
+                settings.setGrowOffset(0.95D);
+            }
+        });
+        assertRejected(new Runnable() {
+            public void run() {
+                settings.setTransactionMaxLifetime(MS_PER_HOUR);
+            }
+        });
+        assertRejected(new Runnable() {
+            public void run() {
+                settings.setWriteDelay(-1);
+            }
+        });
+
+        assertEquals(JOURNAL_MAX_RECORD_SIZE, settings.getMaxRecordSize());
+        assertEquals(JOURNAL_GROW_OFFSET, settings.getGrowOffset(), 0D);
+    }
+
+    private static void assertRejected(Runnable change) {
+        try {
+            change.run();
+            fail("expected the change to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
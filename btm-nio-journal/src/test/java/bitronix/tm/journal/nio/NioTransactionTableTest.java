@@ -0,0 +1,133 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import bitronix.tm.utils.Encoder;
+import bitronix.tm.utils.Uid;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static javax.transaction.Status.STATUS_COMMITTING;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the lookup, compaction and lifetime purging of NioTransactionTable.
+ *
+ * @author juergen kellerer, 2011-04-30
+ */
+public class NioTransactionTableTest {
+
+    final NioTransactionTable table = new NioTransactionTable();
+
+    static Uid uid(String serverId, long timestamp, int sequence) {
+        final byte[] server = serverId.getBytes(), array = new byte[server.length + 12];
+        System.arraycopy(server, 0, array, 0, server.length);
+        System.arraycopy(Encoder.longToBytes(timestamp), 0, array, server.length, 8);
+        System.arraycopy(Encoder.intToBytes(sequence), 0, array, server.length + 8, 4);
+        return new Uid(array);
+    }
+
+    static NioJournalRecord record(Uid gtrid, long time) {
+        return new NioJournalRecord(STATUS_COMMITTING, 0, time, 0, false, gtrid, Collections.singleton("1"), true);
+    }
+
+    @Test
+    public void testPutGetAndRemove() throws Exception {
+        final Uid gtrid = uid("server", 1000, 1);
+        final NioJournalRecord first = record(gtrid, 1000), second = record(gtrid, 1001);
+
+        assertNull(table.put(gtrid, first));
+        assertSame(first, table.get(uid("server", 1000, 1)));
+        assertSame(first, table.put(gtrid, second));
+        assertEquals(1, table.size());
+
+        assertFalse(table.replace(gtrid, first, null));
+        assertTrue(table.replace(gtrid, second, null));
+        assertNull(table.get(gtrid));
+        assertNull(table.remove(gtrid));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testEqualTimestampAndSequenceAreDistinguished() throws Exception {
+        final Uid first = uid("first", 1000, 1), second = uid("second", 1000, 1), shortUid = new Uid(new byte[]{1, 2, 3});
+
+        table.put(first, record(first, 1000));
+        table.put(second, record(second, 1000));
+        table.put(shortUid, record(shortUid, 1000));
+
+        assertEquals(3, table.size());
+        assertSame(second, table.remove(second).getGtrid());
+        assertSame(first, table.get(first).getGtrid());
+        assertSame(shortUid, table.get(shortUid).getGtrid());
+    }
+
+    @Test
+    public void testEntriesSurviveGrowthAndCompaction() throws Exception {
+        final List<Uid> gtrids = new ArrayList<Uid>();
+        for (int i = 0; i < 10000; i++) {
+            final Uid gtrid = uid("server", 1000 + i, i);
+            gtrids.add(gtrid);
+            table.put(gtrid, record(gtrid, 1000 + i));
+            // finish most transactions, leaving gaps in the entry arrays.
+            if (i % 10 != 0)
+                assertNotNull(table.remove(gtrid));
+        }
+
+        assertEquals(1000, table.size());
+        for (int i = 0; i < gtrids.size(); i++)
+            assertEquals(i % 10 == 0, table.get(gtrids.get(i)) != null);
+
+        final Map<Uid, NioJournalRecord> snapshot = new HashMap<Uid, NioJournalRecord>();
+        table.copyTo(snapshot);
+        assertEquals(1000, snapshot.size());
+    }
+
+    @Test
+    public void testRemoveOlderThan() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            final Uid gtrid = uid("server", i, i);
+            table.put(gtrid, record(gtrid, i * 10));
+        }
+        // an old transaction that was tracked after younger ones (e.g. read from an older segment).
+        final Uid late = uid("server", 1000, 1000);
+        table.put(late, record(late, 5));
+
+        final List<NioJournalRecord> removed = new ArrayList<NioJournalRecord>();
+        table.removeOlderThan(500, removed);
+
+        assertEquals(51, removed.size());
+        assertEquals(50, table.size());
+        assertNull(table.get(late));
+        for (NioJournalRecord record : removed)
+            assertTrue(record.getTime() < 500);
+
+        removed.clear();
+        table.removeOlderThan(500, removed);
+        assertTrue(removed.isEmpty());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio;
+
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the batch window decisions of NioWriteBatchController.
+ *
+ * @author juergen kellerer, 2011-05-29
+ */
+public class NioWriteBatchControllerTest {
+
+    final NioWriteBatchController controller = new NioWriteBatchController(10);
+
+    long now = System.nanoTime();
+
+    @Test
+    public void testTrickleIsForcedImmediately() throws Exception {
+        // one record every 100ms with a 2ms force.
+        for (int i = 0; i < 10; i++)
+            cycle(1, MILLISECONDS.toNanos(100), MILLISECONDS.toNanos(2));
+
+        assertEquals(0, controller.getBatchWindowNanos());
+        assertTrue(controller.getLastDecision(), controller.getLastDecision().startsWith("force immediately"));
+        assertEquals(10, controller.getForceCount());
+        assertEquals(10, controller.getForcedRecordCount());
+    }
+
+    @Test
+    public void testPeakIsBatchedWithinLatencyTarget() throws Exception {
+        // 50 records per 2ms with a 2ms force.
+        for (int i = 0; i < 10; i++)
+            cycle(50, MILLISECONDS.toNanos(2), MILLISECONDS.toNanos(2));
+
+        final long window = controller.getBatchWindowNanos();
+        assertTrue("window was " + window, window > 0);
+        assertTrue("window was " + window, window <= MILLISECONDS.toNanos(10) - MILLISECONDS.toNanos(2));
+        assertTrue(controller.getLastDecision(), controller.getLastDecision().startsWith("batch for"));
+        assertEquals(25000D, controller.getArrivalRatePerSecond(), 50D);
+        assertEquals(MILLISECONDS.toMicros(2), controller.getAverageForceTimeInMicros());
+    }
+
+    @Test
+    public void testSlowForceExceedingTargetIsNotDelayed() throws Exception {
+        for (int i = 0; i < 10; i++)
+            cycle(500, MILLISECONDS.toNanos(20), MILLISECONDS.toNanos(20));
+
+        assertEquals(0, controller.getBatchWindowNanos());
+        assertTrue(controller.getLastDecision(), controller.getLastDecision().contains("exceeds the latency target"));
+    }
+
+    @Test
+    public void testWindowFollowsLoadChanges() throws Exception {
+        for (int i = 0; i < 20; i++)
+            cycle(50, MILLISECONDS.toNanos(2), MICROSECONDS.toNanos(1500));
+        assertTrue(controller.getBatchWindowNanos() > 0);
+
+        for (int i = 0; i < 20; i++)
+            cycle(1, MILLISECONDS.toNanos(500), MICROSECONDS.toNanos(1500));
+        assertEquals(0, controller.getBatchWindowNanos());
+    }
+
+    @Test
+    public void testLatencyTargetCanBeChangedAtRuntime() throws Exception {
+        for (int i = 0; i < 10; i++)
+            cycle(500, MILLISECONDS.toNanos(20), MILLISECONDS.toNanos(20));
+        assertEquals(0, controller.getBatchWindowNanos());
+        assertEquals(50D, controller.getForceRatePerSecond(), 1D);
+
+        controller.setLatencyTargetInMillis(100);
+        cycle(500, MILLISECONDS.toNanos(20), MILLISECONDS.toNanos(20));
+
+        assertEquals(100, controller.getLatencyTargetInMillis());
+        assertTrue(controller.getLastDecision(), controller.getBatchWindowNanos() > 0);
+    }
+
+    private void cycle(int records, long cycleNanos, long forceNanos) {
+        controller.recordArrivals(records);
+        now += cycleNanos;
+        controller.recordForce(forceNanos, now);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Juergen Kellerer.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+
+package bitronix.tm.journal.nio.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the functionality of SequencedRingBuffer.
+ *
+ * @author juergen kellerer, 2011-08-23
+ */
+public class SequencedRingBufferTest {
+
+    @Test
+    public void testCapacityIsRoundedToPowerOfTwo() throws Exception {
+        assertEquals(1, new SequencedRingBuffer<Object>(1).getCapacity());
+        assertEquals(8, new SequencedRingBuffer<Object>(5).getCapacity());
+        assertEquals(1024, new SequencedRingBuffer<Object>(1024).getCapacity());
+    }
+
+    @Test
+    public void testSequencesAreAssignedInClaimOrderAcrossWrapAround() throws Exception {
+        final SequencedRingBuffer<Integer> buffer = new SequencedRingBuffer<Integer>(4);
+
+        long expectedSequence = 1;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 3; i++)
+                assertEquals(expectedSequence + i, buffer.putElement(i));
+            assertEquals(3, buffer.size());
+
+            List<SequencedQueueEntry<Integer>> entries = new ArrayList<SequencedQueueEntry<Integer>>();
+            List<Integer> elements = new ArrayList<Integer>();
+            assertEquals(3, buffer.drainElementsTo(entries, elements));
+
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(i), elements.get(i));
+                assertEquals(expectedSequence + i, entries.get(i).getSequenceNumber());
+            }
+            assertTrue(buffer.isEmpty());
+            expectedSequence += 3;
+        }
+    }
+
+    @Test
+    public void testMaxSequenceOfCurrentThread() throws Exception {
+        final SequencedRingBuffer<Object> buffer = new SequencedRingBuffer<Object>(8);
+        final long sequence = buffer.putElement(new Object());
+
+        Thread otherThread = new Thread() {
+            public void run() {
+                try {
+                    buffer.putElement(new Object());
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        otherThread.start();
+        otherThread.join();
+
+        assertEquals(2, buffer.getMaxElementSequenceNumber());
+        assertEquals(sequence, buffer.getMaxElementSequenceNumberForCurrentThread(true));
+        assertEquals(2, buffer.getMaxElementSequenceNumberForCurrentThread(true));
+    }
+
+    @Test
+    public void testPutBlocksWhileFull() throws Exception {
+        final SequencedRingBuffer<Object> buffer = new SequencedRingBuffer<Object>(2);
+        buffer.putElement(new Object());
+        buffer.putElement(new Object());
+
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> blockedPut = service.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    return buffer.putElement(new Object());
+                }
+            });
+
+            try {
+                blockedPut.get(50, MILLISECONDS);
+                fail("expected the put to block while the buffer is full.");
+            } catch (TimeoutException e) {
+                // expected.
+            }
+
+            assertEquals(2, buffer.drainElementsTo(new ArrayList<Object>()));
+            assertEquals(Long.valueOf(3), blockedPut.get(5, SECONDS));
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPollTimesOutWhenEmpty() throws Exception {
+        final SequencedRingBuffer<Object> buffer = new SequencedRingBuffer<Object>(2);
+        assertEquals(0, buffer.pollAndDrainElementsTo(new ArrayList<SequencedQueueEntry<Object>>(), new ArrayList<Object>(), 10, MILLISECONDS));
+    }
+
+    @Test
+    public void testConcurrentProducersWithBlockingConsumer() throws Exception {
+        final int producers = 32, elementsPerProducer = 2000;
+        final SequencedRingBuffer<Integer> buffer = new SequencedRingBuffer<Integer>(64);
+
+        ExecutorService service = Executors.newFixedThreadPool(producers);
+        try {
+            for (int p = 0; p < producers; p++) {
+                final int offset = p * elementsPerProducer;
+                service.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        for (int i = 0; i < elementsPerProducer; i++)
+                            buffer.putElement(offset + i);
+                        return null;
+                    }
+                });
+            }
+
+            final int total = producers * elementsPerProducer;
+            final Set<Integer> received = new HashSet<Integer>(total);
+            final List<SequencedQueueEntry<Integer>> entries = new ArrayList<SequencedQueueEntry<Integer>>();
+            long expectedSequence = 1;
+            while (received.size() < total) {
+                entries.clear();
+                buffer.takeAndDrainElementsTo(entries, received);
+                for (SequencedQueueEntry<Integer> entry : entries)
+                    assertEquals(expectedSequence++, entry.getSequenceNumber());
+            }
+
+            assertEquals(total, received.size());
+            assertTrue(buffer.isEmpty());
+        } finally {
+            service.shutdownNow();
+        }
+    }
+}
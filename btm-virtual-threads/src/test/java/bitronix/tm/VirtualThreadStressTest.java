@@ -0,0 +1,191 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm;
+
+import java.io.File;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.TestCase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
+import bitronix.tm.resource.jdbc.PoolingDataSource;
+import bitronix.tm.utils.DefaultExceptionAnalyzer;
+
+/**
+ * Runs many concurrent transactions from virtual threads through a small pool and checks that they never pin their
+ * carrier thread nor run much slower than as many platform threads as there are connections.
+ * <p>This test only builds against an installed btm artifact, see the module POM.</p>
+ */
+public class VirtualThreadStressTest extends TestCase {
+
+    private final static Logger log = LoggerFactory.getLogger(VirtualThreadStressTest.class);
+
+    private final static int TRANSACTION_COUNT = 10000;
+    private final static int POOL_SIZE = 20;
+    /**
+     * How many times slower than platform threads virtual threads may run, given that they all queue on the pool.
+     */
+    private final static int MAX_SLOWDOWN = 3;
+    /**
+     * Absorbs the timer granularity and scheduling noise when both runs are very short.
+     */
+    private final static long ELAPSED_TOLERANCE_MILLIS = 500;
+
+    private BitronixTransactionManager btm;
+    private PoolingDataSource pds;
+
+    protected void setUp() throws Exception {
+        TransactionManagerServices.getConfiguration().setGracefulShutdownInterval(1);
+        TransactionManagerServices.getConfiguration().setExceptionAnalyzer(DefaultExceptionAnalyzer.class.getName());
+
+        pds = new PoolingDataSource();
+        pds.setClassName(MockitoXADataSource.class.getName());
+        pds.setUniqueName("pds");
+        pds.setMinPoolSize(POOL_SIZE);
+        pds.setMaxPoolSize(POOL_SIZE);
+        pds.setAcquisitionTimeout(30);
+        pds.init();
+
+        btm = TransactionManagerServices.getTransactionManager();
+    }
+
+    protected void tearDown() throws Exception {
+        pds.close();
+        btm.shutdown();
+    }
+
+    public void testConcurrentTransactionsOnVirtualThreads() throws Exception {
+        // warm up with as many platform threads as there are connections
+        runTransactions(Executors.newFixedThreadPool(POOL_SIZE));
+
+        // the recording of the pinned events slows virtual threads down, measure their throughput without it
+        long platformThreadsElapsed = runTransactions(Executors.newFixedThreadPool(POOL_SIZE));
+        long virtualThreadsElapsed = runTransactions(Executors.newVirtualThreadPerTaskExecutor());
+        if (log.isDebugEnabled()) { log.debug(TRANSACTION_COUNT + " transactions took " + platformThreadsElapsed + "ms on platform threads and " + virtualThreadsElapsed + "ms on virtual threads"); }
+        assertTrue(TRANSACTION_COUNT + " transactions took " + virtualThreadsElapsed + "ms on virtual threads but only "
+                + platformThreadsElapsed + "ms on platform threads",
+                virtualThreadsElapsed <= platformThreadsElapsed * MAX_SLOWDOWN + ELAPSED_TOLERANCE_MILLIS);
+
+        List<RecordedEvent> pinnedEvents = recordPinnedEvents(new Callable<Object>() {
+            public Object call() throws Exception {
+                runTransactions(Executors.newVirtualThreadPerTaskExecutor());
+                return null;
+            }
+        });
+        assertTrue("virtual threads got pinned: " + pinnedEvents, pinnedEvents.isEmpty());
+        assertEquals(POOL_SIZE, pds.getInPoolSize());
+    }
+
+    public void testPinningIsRecorded() throws Exception {
+        final Object monitor = new Object();
+        List<RecordedEvent> pinnedEvents = recordPinnedEvents(new Callable<Object>() {
+            public Object call() throws Exception {
+                Thread thread = Thread.ofVirtual().start(new Runnable() {
+                    public void run() {
+                        synchronized (monitor) {
+                            try {
+                                Thread.sleep(10);
+                            } catch (InterruptedException ex) {
+                                // ignore
+                            }
+                        }
+                    }
+                });
+                thread.join();
+                return null;
+            }
+        });
+        assertEquals(1, pinnedEvents.size());
+    }
+
+    /**
+     * Record the events of virtual threads getting pinned, whatever their duration, while running a task.
+     */
+    private static List<RecordedEvent> recordPinnedEvents(Callable<Object> task) throws Exception {
+        Recording recording = new Recording();
+        recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+        recording.start();
+        try {
+            task.call();
+        } finally {
+            recording.stop();
+        }
+
+        File dump = File.createTempFile("btm-pinning", ".jfr");
+        try {
+            recording.dump(dump.toPath());
+            List<RecordedEvent> pinnedEvents = new ArrayList<RecordedEvent>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+                if (event.getEventType().getName().equals("jdk.VirtualThreadPinned"))
+                    pinnedEvents.add(event);
+            }
+            return pinnedEvents;
+        } finally {
+            recording.close();
+            dump.delete();
+        }
+    }
+
+    private long runTransactions(ExecutorService executor) throws Exception {
+        long before = System.currentTimeMillis();
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(TRANSACTION_COUNT);
+            for (int i = 0; i < TRANSACTION_COUNT; i++) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        btm.begin();
+                        try {
+                            Connection connection = pds.getConnection();
+                            connection.prepareStatement("UPDATE account SET balance = balance + 1").executeUpdate();
+                            connection.close();
+                            btm.commit();
+                        } catch (Exception ex) {
+                            btm.rollback();
+                            throw ex;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return System.currentTimeMillis() - before;
+    }
+
+}
@@ -29,6 +29,8 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.naming.*;
 import javax.transaction.*;
@@ -47,6 +49,7 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
     private final SortedMap<BitronixTransaction, ClearContextSynchronization> inFlightTransactions;
 
     private volatile boolean shuttingDown;
+    private final Lock shutdownLock = new ReentrantLock();
 
     /**
      * Create the {@link BitronixTransactionManager}. Open the journal, load resources and perform recovery
@@ -325,37 +328,42 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
      * {@link javax.transaction.TransactionManager#begin()}) will be rejected with a {@link SystemException}.</p>
      * @see Configuration#getGracefulShutdownInterval()
      */
-    public synchronized void shutdown() {
-        if (isShuttingDown()) {
-            if (log.isDebugEnabled()) { log.debug("Transaction Manager has already shut down"); }
-            return;
-        }
+    public void shutdown() {
+        shutdownLock.lock();
+        try {
+            if (isShuttingDown()) {
+                if (log.isDebugEnabled()) { log.debug("Transaction Manager has already shut down"); }
+                return;
+            }
 
-        log.info("shutting down Bitronix Transaction Manager");
-        internalShutdown();
+            log.info("shutting down Bitronix Transaction Manager");
+            internalShutdown();
 
-        if (log.isDebugEnabled()) { log.debug("shutting down resource loader"); }
-        TransactionManagerServices.getResourceLoader().shutdown();
+            if (log.isDebugEnabled()) { log.debug("shutting down resource loader"); }
+            TransactionManagerServices.getResourceLoader().shutdown();
 
-        if (log.isDebugEnabled()) { log.debug("shutting down executor"); }
-        TransactionManagerServices.getExecutor().shutdown();
+            if (log.isDebugEnabled()) { log.debug("shutting down executor"); }
+            TransactionManagerServices.getExecutor().shutdown();
 
-        if (log.isDebugEnabled()) { log.debug("shutting down task scheduler"); }
-        TransactionManagerServices.getTaskScheduler().shutdown();
+            if (log.isDebugEnabled()) { log.debug("shutting down task scheduler"); }
+            TransactionManagerServices.getTaskScheduler().shutdown();
 
-        if (log.isDebugEnabled()) { log.debug("shutting down journal"); }
-        TransactionManagerServices.getJournal().shutdown();
+            if (log.isDebugEnabled()) { log.debug("shutting down journal"); }
+            TransactionManagerServices.getJournal().shutdown();
 
-        if (log.isDebugEnabled()) { log.debug("shutting down recoverer"); }
-        TransactionManagerServices.getRecoverer().shutdown();
+            if (log.isDebugEnabled()) { log.debug("shutting down recoverer"); }
+            TransactionManagerServices.getRecoverer().shutdown();
 
-        if (log.isDebugEnabled()) { log.debug("shutting down configuration"); }
-        TransactionManagerServices.getConfiguration().shutdown();
+            if (log.isDebugEnabled()) { log.debug("shutting down configuration"); }
+            TransactionManagerServices.getConfiguration().shutdown();
 
-        // clear references
-        TransactionManagerServices.clear();
+            // clear references
+            TransactionManagerServices.clear();
 
-        if (log.isDebugEnabled()) { log.debug("shutdown ran successfully"); }
+            if (log.isDebugEnabled()) { log.debug("shutdown ran successfully"); }
+        } finally {
+            shutdownLock.unlock();
+        }
     }
 
     private void internalShutdown() {
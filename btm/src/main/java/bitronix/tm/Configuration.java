@@ -58,6 +58,12 @@ public class Configuration implements Service {
     private volatile String logPart2Filename;
     private volatile boolean forcedWriteEnabled;
     private volatile boolean forceBatchingEnabled;
+    private volatile int forceBatchingWindowInMicros;
+    private volatile boolean synchronousWriteEnabled;
+    private volatile int writeAlignmentInBytes;
+    private volatile boolean compactLogFormatEnabled;
+    private volatile boolean deferredRecordsEnabled;
+    private volatile int deferredRecordsFlushIntervalInMillis;
     private volatile int maxLogSizeInMb;
     private volatile boolean filterLogStatus;
     private volatile boolean skipCorruptedLogs;
@@ -72,6 +78,8 @@ public class Configuration implements Service {
     private volatile String jndiUserTransactionName;
     private volatile String jndiTransactionSynchronizationRegistryName;
     private volatile String journal;
+    private volatile int journalStripes;
+    private volatile String journalStripeDirectories;
     private volatile String exceptionAnalyzer;
     private volatile boolean currentNodeOnlyRecovery;
     private volatile boolean allowMultipleLrc;
@@ -106,6 +114,12 @@ public class Configuration implements Service {
             logPart2Filename = getString(properties, "bitronix.tm.journal.disk.logPart2Filename", "btm2.tlog");
             forcedWriteEnabled = getBoolean(properties, "bitronix.tm.journal.disk.forcedWriteEnabled", true);
             forceBatchingEnabled = getBoolean(properties, "bitronix.tm.journal.disk.forceBatchingEnabled", true);
+            forceBatchingWindowInMicros = getInt(properties, "bitronix.tm.journal.disk.forceBatchingWindow", 0);
+            synchronousWriteEnabled = getBoolean(properties, "bitronix.tm.journal.disk.synchronousWriteEnabled", false);
+            writeAlignmentInBytes = getInt(properties, "bitronix.tm.journal.disk.writeAlignment", 0);
+            compactLogFormatEnabled = getBoolean(properties, "bitronix.tm.journal.disk.compactLogFormat", false);
+            deferredRecordsEnabled = getBoolean(properties, "bitronix.tm.journal.disk.deferredRecordsEnabled", false);
+            deferredRecordsFlushIntervalInMillis = getInt(properties, "bitronix.tm.journal.disk.deferredRecordsFlushInterval", 100);
             maxLogSizeInMb = getInt(properties, "bitronix.tm.journal.disk.maxLogSize", 2);
             filterLogStatus = getBoolean(properties, "bitronix.tm.journal.disk.filterLogStatus", false);
             skipCorruptedLogs = getBoolean(properties, "bitronix.tm.journal.disk.skipCorruptedLogs", false);
@@ -120,6 +134,8 @@ public class Configuration implements Service {
             jndiUserTransactionName = getString(properties, "bitronix.tm.jndi.userTransactionName", "java:comp/UserTransaction");
             jndiTransactionSynchronizationRegistryName = getString(properties, "bitronix.tm.jndi.transactionSynchronizationRegistryName", "java:comp/TransactionSynchronizationRegistry");
             journal = getString(properties, "bitronix.tm.journal", "disk");
+            journalStripes = getInt(properties, "bitronix.tm.journal.striped.stripes", 4);
+            journalStripeDirectories = getString(properties, "bitronix.tm.journal.striped.directories", null);
             exceptionAnalyzer = getString(properties, "bitronix.tm.exceptionAnalyzer", null);
             currentNodeOnlyRecovery = getBoolean(properties, "bitronix.tm.currentNodeOnlyRecovery", true);
             allowMultipleLrc = getBoolean(properties, "bitronix.tm.allowMultipleLrc", false);
@@ -222,6 +238,8 @@ public class Configuration implements Service {
 
     /**
      * Are disk forces batched? Disabling batching can seriously lower the transaction manager's throughput.
+     * <p>When enabled, threads concurrently requesting a force share a single disk force covering all the records
+     * written up to that point.</p>
      * <p>Property name:<br/><b>bitronix.tm.journal.disk.forceBatchingEnabled -</b> <i>(defaults to true)</i></p>
      * @return true if disk forces are batched, false otherwise.
      */
@@ -237,11 +255,159 @@ public class Configuration implements Service {
      */
     public Configuration setForceBatchingEnabled(boolean forceBatchingEnabled) {
         checkNotStarted();
-        log.warn("forceBatchingEnabled is not longer used");
         this.forceBatchingEnabled = forceBatchingEnabled;
         return this;
     }
 
+    /**
+     * Maximum amount of microseconds a batched disk force is delayed to let more records join it. A larger window
+     * allows more records to be forced at once but adds latency to every forced commit. When set to 0, only threads
+     * which requested a force while another one was in progress are batched together.
+     * <p>Property name:<br/><b>bitronix.tm.journal.disk.forceBatchingWindow -</b> <i>(defaults to 0)</i></p>
+     * @return the maximum delay in microseconds of a batched disk force.
+     */
+    public int getForceBatchingWindowInMicros() {
+        return forceBatchingWindowInMicros;
+    }
+
+    /**
+     * Set the maximum amount of microseconds a batched disk force is delayed to let more records join it.
+     * @see #getForceBatchingWindowInMicros()
+     * @param forceBatchingWindowInMicros the maximum delay in microseconds of a batched disk force.
+     * @return this.
+     */
+    public Configuration setForceBatchingWindowInMicros(int forceBatchingWindowInMicros) {
+        checkNotStarted();
+        this.forceBatchingWindowInMicros = forceBatchingWindowInMicros;
+        return this;
+    }
+
+    /**
+     * Are disk journal files opened for synchronous writes? When enabled, each write is durable when it returns
+     * (like with the O_DSYNC flag) so that forcing the files does not require a separate call anymore. Memory-mapped
+     * journal files are still forced.
+     * <p>This includes the header update that follows each write to move the end position of the log file: since the
+     * journal is only read up to that position, it must be durable together with the records. Each write hence costs
+     * two synchronous disk writes, which only pays off when the disk completes them faster than a write followed by a
+     * force, typically with a battery-backed write cache.</p>
+     * <p>Property name:<br/><b>bitronix.tm.journal.disk.synchronousWriteEnabled -</b> <i>(defaults to false)</i></p>
+     * @return true if disk journal files are opened for synchronous writes.
+     */
+    public boolean isSynchronousWriteEnabled() {
+        return synchronousWriteEnabled;
+    }
+
+    /**
+     * Set if disk journal files are opened for synchronous writes.
+     * @see #isSynchronousWriteEnabled()
+     * @param synchronousWriteEnabled true if disk journal files should be opened for synchronous writes.
+     * @return this.
+     */
+    public Configuration setSynchronousWriteEnabled(boolean synchronousWriteEnabled) {
+        checkNotStarted();
+        this.synchronousWriteEnabled = synchronousWriteEnabled;
+        return this;
+    }
+
+    /**
+     * Size in bytes of the blocks disk journal writes are aligned on. Records are padded so that each write ends on a
+     * block boundary and the next one starts on it, which avoids the operating system reading a partially written
+     * block before writing it. This is mostly useful with synchronous writes, at the cost of larger journal files.
+     * When set to 0, records are not padded.
+     * <p>Padded log files have a format that versions older than 2.2 cannot read, see
+     * {@link #isCompactLogFormatEnabled()} for how to get back to the original format.</p>
+     * <p>Property name:<br/><b>bitronix.tm.journal.disk.writeAlignment -</b> <i>(defaults to 0)</i></p>
+     * @return the size in bytes of the blocks disk journal writes are aligned on.
+     */
+    public int getWriteAlignmentInBytes() {
+        return writeAlignmentInBytes;
+    }
+
+    /**
+     * Set the size in bytes of the blocks disk journal writes are aligned on.
+     * @see #getWriteAlignmentInBytes()
+     * @param writeAlignmentInBytes the size in bytes of the blocks disk journal writes are aligned on, 0 to disable
+     *        padding.
+     * @return this.
+     */
+    public Configuration setWriteAlignmentInBytes(int writeAlignmentInBytes) {
+        checkNotStarted();
+        this.writeAlignmentInBytes = writeAlignmentInBytes;
+        return this;
+    }
+
+    /**
+     * Should the disk journal write its log files in the compact format? This format stores the unique names of the
+     * resources once per log file instead of in each record and encodes numbers with a variable length, which makes
+     * records smaller. Versions older than 2.2 cannot read it.
+     * <p>A log file is converted to the configured format when the journal rewinds it, which happens when it gets
+     * swapped to. Log files of another format keep being written in their format until then. To go back to a version
+     * older than 2.2, disable this setting and padding then run until both log files got swapped to.</p>
+     * <p>Property name:<br/><b>bitronix.tm.journal.disk.compactLogFormat -</b> <i>(defaults to false)</i></p>
+     * @return true if the disk journal writes its log files in the compact format.
+     */
+    public boolean isCompactLogFormatEnabled() {
+        return compactLogFormatEnabled;
+    }
+
+    /**
+     * Set if the disk journal should write its log files in the compact format.
+     * @see #isCompactLogFormatEnabled()
+     * @param compactLogFormatEnabled true if the disk journal should write its log files in the compact format.
+     * @return this.
+     */
+    public Configuration setCompactLogFormatEnabled(boolean compactLogFormatEnabled) {
+        checkNotStarted();
+        this.compactLogFormatEnabled = compactLogFormatEnabled;
+        return this;
+    }
+
+    /**
+     * Are COMMITTED, ROLLEDBACK and UNKNOWN records deferred? When enabled, the disk journal stages these records in
+     * memory and writes them in batches, periodically or just before the next force. They do not need to be durable
+     * immediately as recovery correctly handles a missing one.
+     * <p>Property name:<br/><b>bitronix.tm.journal.disk.deferredRecordsEnabled -</b> <i>(defaults to false)</i></p>
+     * @return true if COMMITTED, ROLLEDBACK and UNKNOWN records are deferred.
+     */
+    public boolean isDeferredRecordsEnabled() {
+        return deferredRecordsEnabled;
+    }
+
+    /**
+     * Set if COMMITTED, ROLLEDBACK and UNKNOWN records are deferred.
+     * @see #isDeferredRecordsEnabled()
+     * @param deferredRecordsEnabled true if COMMITTED, ROLLEDBACK and UNKNOWN records should be deferred.
+     * @return this.
+     */
+    public Configuration setDeferredRecordsEnabled(boolean deferredRecordsEnabled) {
+        checkNotStarted();
+        this.deferredRecordsEnabled = deferredRecordsEnabled;
+        return this;
+    }
+
+    /**
+     * Interval in milliseconds at which the deferred records are written to the disk journal when they were not
+     * written by a force in the meantime.
+     * <p>Property name:<br/><b>bitronix.tm.journal.disk.deferredRecordsFlushInterval -</b> <i>(defaults to 100)</i></p>
+     * @return the interval in milliseconds at which the deferred records are written.
+     */
+    public int getDeferredRecordsFlushIntervalInMillis() {
+        return deferredRecordsFlushIntervalInMillis;
+    }
+
+    /**
+     * Set the interval in milliseconds at which the deferred records are written to the disk journal.
+     * @see #getDeferredRecordsFlushIntervalInMillis()
+     * @param deferredRecordsFlushIntervalInMillis the interval in milliseconds at which the deferred records are
+     *        written.
+     * @return this.
+     */
+    public Configuration setDeferredRecordsFlushIntervalInMillis(int deferredRecordsFlushIntervalInMillis) {
+        checkNotStarted();
+        this.deferredRecordsFlushIntervalInMillis = deferredRecordsFlushIntervalInMillis;
+        return this;
+    }
+
     /**
      * Maximum size in megabytes of the journal fragments. Larger logs allow transactions to stay longer in-doubt but
      * the TM pauses longer when a fragment is full.
@@ -565,7 +731,8 @@ public class Configuration implements Service {
     }
 
     /**
-     * Get the journal implementation. Can be <code>disk</code>, <code>null</code> or a class name.
+     * Get the journal implementation. Can be <code>disk</code>, <code>mapped</code>, <code>striped</code>,
+     * <code>null</code> or a class name.
      * @return the journal name.
      */
     public String getJournal() {
@@ -573,7 +740,8 @@ public class Configuration implements Service {
     }
 
     /**
-     * Set the journal name. Can be <code>disk</code>, <code>null</code> or a class name.
+     * Set the journal name. Can be <code>disk</code>, <code>mapped</code>, <code>striped</code>, <code>null</code>
+     * or a class name.
      * @see #getJournal()
      * @param journal the journal name.
      * @return this.
@@ -584,6 +752,53 @@ public class Configuration implements Service {
         return this;
     }
 
+    /**
+     * Number of independent disk journals the striped journal spreads transactions over. Changing this value
+     * requires the journal to be free of dangling records as transactions are assigned to stripes by GTRID: the
+     * striped journal refuses to open otherwise.
+     * <p>Property name:<br/><b>bitronix.tm.journal.striped.stripes -</b> <i>(defaults to 4)</i></p>
+     * @return the number of stripes of the striped journal.
+     */
+    public int getJournalStripes() {
+        return journalStripes;
+    }
+
+    /**
+     * Set the number of independent disk journals the striped journal spreads transactions over.
+     * @see #getJournalStripes()
+     * @param journalStripes the number of stripes of the striped journal.
+     * @return this.
+     */
+    public Configuration setJournalStripes(int journalStripes) {
+        checkNotStarted();
+        this.journalStripes = journalStripes;
+        return this;
+    }
+
+    /**
+     * Comma-separated list of directories in which the striped journal creates the log files of its stripes, which
+     * are assigned to the directories in a round-robin fashion. Using directories on different devices allows the
+     * stripes to be forced in parallel.
+     * <p>Property name:<br/><b>bitronix.tm.journal.striped.directories -</b> <i>(defaults to null, meaning the
+     * directory of the journal fragment file 1)</i></p>
+     * @return the directories of the striped journal log files.
+     */
+    public String getJournalStripeDirectories() {
+        return journalStripeDirectories;
+    }
+
+    /**
+     * Set the comma-separated list of directories in which the striped journal creates the log files of its stripes.
+     * @see #getJournalStripeDirectories()
+     * @param journalStripeDirectories the directories of the striped journal log files.
+     * @return this.
+     */
+    public Configuration setJournalStripeDirectories(String journalStripeDirectories) {
+        checkNotStarted();
+        this.journalStripeDirectories = journalStripeDirectories;
+        return this;
+    }
+
     /**
      * Get the exception analyzer implementation. Can be <code>null</code> for the default one or a class name.
      * @return the exception analyzer name.
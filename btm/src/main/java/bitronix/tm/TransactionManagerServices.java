@@ -116,6 +116,10 @@ public class TransactionManagerServices {
                 journal = new NullJournal();
             } else if ("disk".equals(configuredJournal)) {
                 journal = new DiskJournal();
+            } else if ("mapped".equals(configuredJournal)) {
+                journal = new MappedDiskJournal();
+            } else if ("striped".equals(configuredJournal)) {
+                journal = new StripedJournal();
             } else {
                 try {
                     Class<?> clazz = ClassLoaderUtils.loadClass(configuredJournal);
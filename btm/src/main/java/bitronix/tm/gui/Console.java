@@ -20,10 +20,10 @@
  */
 package bitronix.tm.gui;
 
-import bitronix.tm.BitronixXid;
 import bitronix.tm.Configuration;
 import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.journal.JournalRecord;
+import bitronix.tm.journal.TransactionLogHeader;
 import bitronix.tm.utils.Uid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -194,14 +194,14 @@ public class Console extends JFrame {
         RandomAccessFile activeRandomAccessFile;
         activeRandomAccessFile = new RandomAccessFile(file1, "r");
         int formatId1 = activeRandomAccessFile.readInt();
-        if (formatId1 != BitronixXid.FORMAT_ID)
+        if (!TransactionLogHeader.isValidFormatId(formatId1))
             throw new IOException("log file 1 " + file1.getName() + " is not a Bitronix Log file (incorrect header)");
         long timestamp1 = activeRandomAccessFile.readLong();
         activeRandomAccessFile.close();
 
         activeRandomAccessFile = new RandomAccessFile(file2, "r");
         int formatId2 = activeRandomAccessFile.readInt();
-        if (formatId2 != BitronixXid.FORMAT_ID)
+        if (!TransactionLogHeader.isValidFormatId(formatId2))
             throw new IOException("log file 2 " + file2.getName() + " is not a Bitronix Log file (incorrect header)");
         long timestamp2 = activeRandomAccessFile.readLong();
         activeRandomAccessFile.close();
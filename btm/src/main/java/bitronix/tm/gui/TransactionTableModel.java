@@ -21,7 +21,7 @@
 package bitronix.tm.gui;
 
 import bitronix.tm.journal.JournalRecord;
-import bitronix.tm.journal.TransactionLogCursor;
+import bitronix.tm.journal.TransactionLogBulkReader;
 import bitronix.tm.journal.TransactionLogRecord;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
@@ -44,12 +44,12 @@ public abstract class TransactionTableModel implements TableModel {
     protected List tLogs = new ArrayList();
 
     protected void readFullTransactionLog(File filename) throws IOException {
-        TransactionLogCursor tlis = new TransactionLogCursor(filename);
+        TransactionLogBulkReader tlis = new TransactionLogBulkReader(filename, true);
 
         int count=0;
         try {
             while (true) {
-                JournalRecord tlog = tlis.readLog(true);
+                JournalRecord tlog = tlis.readLog();
                 if (tlog == null)
                     break;
                 if (!acceptLog(tlog))
@@ -0,0 +1,58 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.journal;
+
+import java.io.IOException;
+import java.util.Set;
+
+import bitronix.tm.utils.Uid;
+
+/**
+ * May be implemented by journal implementations that can log records without blocking the calling thread until they
+ * are durable.
+ * <p>The returned {@link JournalCompletion} is completed once the record is durable so that the caller can continue its
+ * work from a {@link JournalCompletionListener} instead of parking a thread per transaction.</p>
+ * <p>Using this interface is up to the caller: transactions keep logging their status with {@link #log} and
+ * {@link #force} on their own thread.</p>
+ *
+ * @author lorban
+ */
+public interface AsyncJournal extends Journal {
+
+    /**
+     * Log a new transaction status to journal without waiting for it to be durable. Note that the journal will not
+     * check the flow of the transactions. If you call this method with erroneous data, it will be added to the journal
+     * as-is.
+     * <p>When force is true, the returned completion is completed once the record has been forced to permanent storage.
+     * Otherwise it is completed as soon as the journal has accepted the record, like after
+     * {@link Journal#log(int, Uid, Set)}.</p>
+     *
+     * @param status transaction status to log.
+     * @param gtrid GTRID of the transaction.
+     * @param uniqueNames unique names of the RecoverableXAResourceProducers participating in the transaction.
+     * @param force true if the completion must only be completed once the record is forced to permanent storage.
+     * @return the completion of the record.
+     * @throws IOException if an I/O error occurs while accepting the record. Errors happening later are reported
+     *         through the returned completion.
+     */
+    public JournalCompletion logAsync(int status, Uid gtrid, Set<String> uniqueNames, boolean force) throws IOException;
+
+}
@@ -23,17 +23,32 @@ package bitronix.tm.journal;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -43,10 +58,10 @@ import javax.transaction.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import bitronix.tm.BitronixXid;
 import bitronix.tm.Configuration;
 import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.utils.Decoder;
+import bitronix.tm.utils.ManagementRegistrar;
 import bitronix.tm.utils.MonotonicClock;
 import bitronix.tm.utils.Uid;
 
@@ -54,15 +69,38 @@ import bitronix.tm.utils.Uid;
  * Simple implementation of a journal that writes on a two-files disk log.
  * <p>Files are pre-allocated in size, never grow and when the first one is full, dangling records are copied to the
  * second file and logging starts again on the latter.</p>
+ * <p>Once the active file is three quarters full, a background thread rewinds the passive file and copies the dangling
+ * records to it. The swap then only copies the changes made to the dangling records since then, which keeps short the
+ * time during which logging threads are blocked.</p>
  * <p>This implementation is not highly efficient but quite robust and simple. It is based on one of the implementations
  * proposed by Mike Spille.</p>
+ * <p>Dangling records are tracked in memory as records are written. They are also saved in a checkpoint file next to
+ * the first log file on each swap and when the journal is closed, so that opening the journal only requires reading
+ * the records written after the last checkpoint.</p>
+ * <p>New log files are created in the original {@link TransactionLogHeader#FORMAT_ID_V1} format unless the compact
+ * {@link TransactionLogHeader#FORMAT_ID_V2} format where resource unique names are stored once per file in a
+ * {@link TransactionLogDictionary} is enabled, or in the {@link TransactionLogHeader#FORMAT_ID_V3} format when records
+ * are padded. Log files of another format are read and written in their format until they are swapped to, at which
+ * time they get converted. Disabling the compact format and padding this way converts the log files back to the format
+ * older versions are able to read.</p>
+ * <p>When force batching is enabled, threads concurrently calling {@link #force()} are grouped: a single thread forces
+ * the active file for all the records written so far while the others wait for that force to complete.</p>
+ * <p>When synchronous writes are enabled, the log files are opened so that each write reaches the disk before returning
+ * and {@link #force()} does not need to force them anymore. The header update recording the end of the written records
+ * is synchronous too as the records after it would not be read back. Records can also be padded to end on a
+ * configurable block size.</p>
+ * <p>When deferred records are enabled, COMMITTED, ROLLEDBACK and UNKNOWN records are staged in memory instead of being
+ * written right away. They are written in batches by a background thread or before the next force, dangling records
+ * collection or close. Recovery correctly handles such a record missing after a crash.</p>
+ * <p>Records logged with {@link #logAsync(int, Uid, Set, boolean)} are written by the calling thread but forced by a
+ * single background thread, which completes their {@link JournalCompletion} once they are durable.</p>
  * <p>Configurable properties are all starting with <code>bitronix.tm.journal.disk</code>.</p>
  *
  * @see bitronix.tm.Configuration
  * @see <a href="http://jroller.com/page/pyrasun?entry=xa_exposed_part_iii_the">XA Exposed, Part III: The Implementor's Notebook</a>
  * @author lorban
  */
-public class DiskJournal implements Journal, MigratableJournal, ReadableJournal {
+public class DiskJournal implements AsyncJournal, MigratableJournal, ReadableJournal, DiskJournalMBean {
 
     private final static Logger log = LoggerFactory.getLogger(DiskJournal.class);
 
@@ -88,18 +126,120 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
 	
 	private Lock journalLock = new ReentrantLock();
 	private ReadWriteLock swapForceLock = new ReentrantReadWriteLock(true);
-	private Object positionLock = new Object();
-	private AtomicBoolean needsForce;
+	private final Lock positionLock = new ReentrantLock();
+
+	/**
+	 * Lock serializing {@link #open()}, {@link #close()} and {@link #unsafeReadRecordsInto(Collection, boolean)}.
+	 */
+	private final Lock lifecycleLock = new ReentrantLock();
+
+	/**
+	 * Count of records written to the active file, compared against {@link #forcedRecords} to know if a force is needed.
+	 */
+	private final AtomicLong writtenRecords = new AtomicLong();
+
+	/**
+	 * Value of {@link #writtenRecords} when the last successful force started.
+	 */
+	private volatile long forcedRecords;
+
+	/**
+	 * Lock and condition used by batched forces to elect the thread forcing the file and make the others wait for it.
+	 */
+	private final Lock batchLock = new ReentrantLock();
+	private final Condition batchForced = batchLock.newCondition();
+	private boolean batchForceInProgress;
+
+	private final AtomicLong forceCount = new AtomicLong();
+	private final AtomicLong forcedRecordCount = new AtomicLong();
+	private final AtomicLong maxRecordsPerForce = new AtomicLong();
+
+	/**
+	 * Fraction of the active file which, once written, triggers the preparation of the passive file for the next swap.
+	 */
+	private final static double SWAP_PREPARATION_THRESHOLD = 0.75;
+
+	/**
+	 * Maximum number of records copied to the passive file at once while preparing a swap.
+	 */
+	private final static int SWAP_PREPARATION_BATCH_SIZE = 256;
+
+	/**
+	 * Lock protecting the passive file against concurrent swap preparation and swap.
+	 */
+	private final Lock passiveLock = new ReentrantLock();
+
+	/**
+	 * The passive log appender once a swap preparation rewound it, null otherwise. Guarded by {@link #passiveLock}.
+	 */
+	private TransactionLogAppender rewoundTla;
+
+	/**
+	 * The active log appender for which a swap preparation has been scheduled. Guarded by {@link #positionLock}.
+	 */
+	private TransactionLogAppender preparedTla;
+
+	private long swapPreparationPosition;
+	private ExecutorService swapPreparer;
+	private final AtomicLong swapCount = new AtomicLong();
+	private final AtomicLong preparedSwapCount = new AtomicLong();
+
+	/**
+	 * Completions of the records logged with {@link #logAsync(int, Uid, Set, boolean)} which are waiting for a force.
+	 */
+	private final Queue<AsyncForce> asyncForces = new ConcurrentLinkedQueue<AsyncForce>();
+	private final AtomicBoolean asyncForceScheduled = new AtomicBoolean();
+	private volatile ExecutorService asyncForcer;
+
+	/**
+	 * Maximum number of deferred records written at once.
+	 */
+	private final static int DEFERRED_FLUSH_BATCH_SIZE = 256;
+
+	/**
+	 * COMMITTED, ROLLEDBACK and UNKNOWN records staged in memory when deferred records are enabled.
+	 */
+	private final Queue<TransactionLogRecord> deferredRecords = new ConcurrentLinkedQueue<TransactionLogRecord>();
+	private final AtomicInteger deferredRecordCount = new AtomicInteger();
+	private final AtomicLong deferredFlushCount = new AtomicLong();
+	private volatile boolean deferredRecordsEnabled;
+	private ScheduledExecutorService deferredFlusher;
+
+	/**
+	 * Record reused by each thread to write its records without allocating: a record is done with as soon as it has
+	 * been written so a single instance per thread is enough.
+	 */
+	private final static ThreadLocal<List<TransactionLogRecord>> reusableRecords = new ThreadLocal<List<TransactionLogRecord>>() {
+		protected List<TransactionLogRecord> initialValue() {
+			return Collections.singletonList(new TransactionLogRecord());
+		}
+	};
 
 	private Configuration configuration;
+	private final File logPart1File;
+	private final File logPart2File;
+	private File checkpointFile;
+	private String jmxName;
 
     /**
      * Create an uninitialized disk journal. You must call open() prior you can use it.
      */
     public DiskJournal() {
+    	this(null, null);
+    }
+
+    /**
+     * Create an uninitialized disk journal writing on the specified files instead of the configured ones. You must
+     * call open() prior you can use it.
+     *
+     * @param logPart1File the journal fragment file 1, or null to use the configured one.
+     * @param logPart2File the journal fragment file 2, or null to use the configured one.
+     */
+    public DiskJournal(File logPart1File, File logPart2File) {
     	configuration = TransactionManagerServices.getConfiguration();
-    	needsForce = new AtomicBoolean();
     	activeTla = new AtomicReference<TransactionLogAppender>();
+    	this.logPart1File = logPart1File;
+    	this.logPart2File = logPart2File;
     }
 
     /**
@@ -123,34 +263,69 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
             }
         }
 
-        TransactionLogRecord tlog = new TransactionLogRecord(status, gtrid, uniqueNames);
+        if (deferredRecordsEnabled && isDeferrable(status)) {
+            TransactionLogRecord tlog = new TransactionLogRecord(status, gtrid, uniqueNames);
+            if (log.isDebugEnabled()) log.debug("deferring write of " + tlog);
+            deferredRecords.add(tlog);
+            deferredRecordCount.incrementAndGet();
+            return;
+        }
 
+        List<TransactionLogRecord> tlogs = reusableRecords.get();
+        tlogs.get(0).reset(status, gtrid, uniqueNames);
+        writeLogs(tlogs);
+    }
+
+    /**
+     * Write records to the active file with a single write, swapping the log files if they do not fit in it.
+     *
+     * @param tlogs the records to write.
+     * @throws java.io.IOException in case of disk IO failure or if the records do not even fit in an empty file.
+     */
+    private void writeLogs(List<TransactionLogRecord> tlogs) throws IOException {
         try {
         	if (conservativeJournaling) {
         		journalLock.lock();
         	}
 
-	        synchronized (positionLock) {
-	        	boolean rollover = activeTla.get().setPositionAndAdvance(tlog);
+	        positionLock.lock();
+	        try {
+	        	TransactionLogAppender tla = activeTla.get();
+	        	if (tla == null)
+	        	    throw new IOException("cannot write log, disk logger is not open");
+	        	boolean rollover = tla.setPositionAndAdvance(tlogs);
 	            if (rollover) {
 	                // time to swap log files
 	                try {
 	                	swapForceLock.writeLock().lock();
 
 	                	swapJournalFiles();
-	                	activeTla.get().setPositionAndAdvance(tlog);
+	                	if (activeTla.get().setPositionAndAdvance(tlogs))
+	                	    throw new IOException("cannot write " + tlogs.size() + " record(s), " + activeTla.get() + " is full even after a swap");
 	                }
 	                finally {
 	                	swapForceLock.writeLock().unlock();
 	                }
 	            }
 
+	            if (preparedTla != activeTla.get() && activeTla.get().getPosition() > swapPreparationPosition) {
+	                preparedTla = activeTla.get();
+	                prepareSwapInBackground(preparedTla);
+	            }
+
 	        	swapForceLock.readLock().lock();
 	        }
+	        finally {
+	        	positionLock.unlock();
+	        }
 
 	        try {
-	        	activeTla.get().writeLog(tlog);
-	        	needsForce.set(true);
+	        	// close() sets the active file to null under the swap lock, check again now that it is held
+	        	TransactionLogAppender tla = activeTla.get();
+	        	if (tla == null)
+	        	    throw new IOException("cannot write log, disk logger is not open");
+	        	tla.writeLogs(tlogs);
+	        	writtenRecords.addAndGet(tlogs.size());
 	        }
 	        finally {
 	        	swapForceLock.readLock().unlock();
@@ -164,19 +339,76 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
     }
 
     /**
-     * Force active log file to synchronize with the underlying disk device.
+     * Log a new transaction status to journal and return without waiting for the record to be forced. The record is
+     * written by the calling thread, the force is done by a background thread.
+     *
+     * @param status transaction status to log. See {@link javax.transaction.Status} constants.
+     * @param gtrid raw GTRID of the transaction.
+     * @param uniqueNames unique names of the {@link bitronix.tm.resource.common.ResourceBean}s participating in
+     * this transaction.
+     * @param force true if the returned completion must only be completed once the record is forced.
+     * @return the completion of the record.
+     * @throws java.io.IOException in case of disk IO failure or if the disk journal is not open.
+     */
+    public JournalCompletion logAsync(int status, Uid gtrid, Set<String> uniqueNames, boolean force) throws IOException {
+        log(status, gtrid, uniqueNames);
+
+        if (!force || !configuration.isForcedWriteEnabled())
+            return JournalCompletion.completed();
+
+        flushDeferredRecords();
+
+        TransactionLogAppender tla = activeTla.get();
+        if (tla == null)
+            throw new IOException("cannot force log writing, disk logger is not open");
+        if (tla.isSynchronous()) {
+            synchronousForce();
+            return JournalCompletion.completed();
+        }
+
+        long target = writtenRecords.get();
+        if (forcedRecords >= target)
+            return JournalCompletion.completed();
+
+        JournalCompletion completion = new JournalCompletion();
+        asyncForces.add(new AsyncForce(target, completion));
+        scheduleAsyncForce();
+        return completion;
+    }
+
+    /**
+     * Force active log file to synchronize with the underlying disk device. When force batching is enabled, this
+     * method may return after another thread forced the records written by the caller.
      *
      * @throws java.io.IOException in case of disk IO failure or if the disk journal is not open.
      */
     public void force() throws IOException {
-        if (activeTla.get() == null)
+        TransactionLogAppender tla = activeTla.get();
+        if (tla == null)
             throw new IOException("cannot force log writing, disk logger is not open");
 
-        if (needsForce.get() && configuration.isForcedWriteEnabled()) {
+        // the deferred records ride along with the force
+        flushDeferredRecords();
+
+        if (!configuration.isForcedWriteEnabled())
+            return;
+
+        if (tla.isSynchronous()) {
+            synchronousForce();
+            return;
+        }
+
+        if (configuration.isForceBatchingEnabled()) {
+            batchedForce();
+            return;
+        }
+
+        if (writtenRecords.get() > forcedRecords) {
 	        swapForceLock.writeLock().lock();
 	        try {
-	        	activeTla.get().force();
-	        	needsForce.set(false);
+	        	long written = writtenRecords.get();
+	        	activeAppender().force();
+	        	forced(written);
 	        }
 	        finally {
 	        	swapForceLock.writeLock().unlock();
@@ -184,13 +416,285 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
         }
     }
 
+    /**
+     * Make sure all the records written before this method was called are forced to disk, either by forcing the
+     * active file or by waiting for the force of another thread covering them.
+     *
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    private void batchedForce() throws IOException {
+        final long target = writtenRecords.get();
+
+        batchLock.lock();
+        try {
+            while (true) {
+                if (forcedRecords >= target)
+                    return;
+                if (!batchForceInProgress)
+                    break;
+                batchForced.awaitUninterruptibly();
+            }
+            batchForceInProgress = true;
+        } finally {
+            batchLock.unlock();
+        }
+
+        try {
+            long windowInMicros = configuration.getForceBatchingWindowInMicros();
+            if (windowInMicros > 0) {
+                // give concurrent committers a chance to write their record before the force
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(windowInMicros));
+            }
+
+            // the read lock only prevents a swap during the force, writers can continue appending meanwhile
+            swapForceLock.readLock().lock();
+            try {
+                long written = writtenRecords.get();
+                activeAppender().force();
+                forced(written);
+            } finally {
+                swapForceLock.readLock().unlock();
+            }
+        } finally {
+            batchLock.lock();
+            try {
+                batchForceInProgress = false;
+                batchForced.signalAll();
+            } finally {
+                batchLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Can a record of this status be deferred? A missing COMMITTED, ROLLEDBACK or UNKNOWN record only makes recovery
+     * look at a transaction which is already finished.
+     *
+     * @param status the status of the record.
+     * @return true if the record can be deferred.
+     */
+    private static boolean isDeferrable(int status) {
+        return status == Status.STATUS_COMMITTED || status == Status.STATUS_ROLLEDBACK || status == Status.STATUS_UNKNOWN;
+    }
+
+    /**
+     * Write the deferred records to the active file, by batches of {@link #DEFERRED_FLUSH_BATCH_SIZE}.
+     *
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    private void flushDeferredRecords() throws IOException {
+        while (!deferredRecords.isEmpty()) {
+            List<TransactionLogRecord> batch = new ArrayList<TransactionLogRecord>(Math.min(deferredRecordCount.get(), DEFERRED_FLUSH_BATCH_SIZE));
+            TransactionLogRecord tlog;
+            while (batch.size() < DEFERRED_FLUSH_BATCH_SIZE && (tlog = deferredRecords.poll()) != null) {
+                batch.add(tlog);
+            }
+            if (batch.isEmpty())
+                return;
+
+            deferredRecordCount.addAndGet(-batch.size());
+            try {
+                writeLogs(batch);
+            } catch (IOException ex) {
+                // writing a record twice is harmless, losing it is not
+                deferredRecords.addAll(batch);
+                deferredRecordCount.addAndGet(batch.size());
+                throw ex;
+            }
+            deferredFlushCount.incrementAndGet();
+            if (log.isDebugEnabled()) log.debug("wrote " + batch.size() + " deferred record(s)");
+        }
+    }
+
+    /**
+     * Make sure the background thread forcing the records logged with {@link #logAsync(int, Uid, Set, boolean)} runs.
+     */
+    private void scheduleAsyncForce() {
+        if (!asyncForceScheduled.compareAndSet(false, true))
+            return;
+
+        ExecutorService asyncForcer = this.asyncForcer;
+        try {
+            if (asyncForcer == null)
+                throw new RejectedExecutionException("disk journal is closed");
+            asyncForcer.execute(new Runnable() {
+                public void run() {
+                    runAsyncForces();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            asyncForceScheduled.set(false);
+            failAsyncForces(new IOException("cannot force log writing, disk logger is closed"));
+        }
+    }
+
+    /**
+     * Force the active file until no completion is waiting for a force anymore.
+     */
+    private void runAsyncForces() {
+        while (true) {
+            completeAsyncForces(forcedRecords);
+
+            if (asyncForces.isEmpty()) {
+                asyncForceScheduled.set(false);
+                // a completion may have been queued after the emptiness check and before the flag was reset
+                if (asyncForces.isEmpty() || !asyncForceScheduled.compareAndSet(false, true))
+                    return;
+                continue;
+            }
+
+            long before = forcedRecords;
+            try {
+                force();
+            } catch (IOException ex) {
+                log.error("cannot force " + this + ", failing " + asyncForces.size() + " asynchronously logged record(s)", ex);
+                failAsyncForces(ex);
+                continue;
+            }
+            if (forcedRecords == before) {
+                // nothing was forced, the remaining completions cannot be waiting for this force
+                completeAsyncForces(writtenRecords.get());
+            }
+        }
+    }
+
+    /**
+     * Successfully complete the completions of the records covered by a force.
+     *
+     * @param forced the value of {@link #writtenRecords} read before the force started.
+     */
+    private void completeAsyncForces(long forced) {
+        for (AsyncForce asyncForce : asyncForces) {
+            if (asyncForce.target <= forced && asyncForces.remove(asyncForce))
+                asyncForce.completion.complete();
+        }
+    }
+
+    /**
+     * Fail the completions of all records waiting for a force.
+     *
+     * @param ex the error that prevented the records from being forced.
+     */
+    private void failAsyncForces(IOException ex) {
+        AsyncForce asyncForce;
+        while ((asyncForce = asyncForces.poll()) != null) {
+            asyncForce.completion.fail(ex);
+        }
+    }
+
+    /**
+     * Record that the records written so far are on disk without forcing the active file, its writes being
+     * synchronous.
+     *
+     * @throws java.io.IOException if the disk journal is not open.
+     */
+    private void synchronousForce() throws IOException {
+        swapForceLock.readLock().lock();
+        try {
+            // the journal may have been closed since the caller checked it was open
+            activeAppender();
+            batchLock.lock();
+            try {
+                forced(writtenRecords.get());
+            } finally {
+                batchLock.unlock();
+            }
+        } finally {
+            swapForceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the active log appender. Must be called while holding {@link #swapForceLock} as close() sets it to null
+     * under its write lock.
+     *
+     * @return the active log appender.
+     * @throws java.io.IOException if the disk journal is not open.
+     */
+    private TransactionLogAppender activeAppender() throws IOException {
+        TransactionLogAppender tla = activeTla.get();
+        if (tla == null)
+            throw new IOException("cannot force log writing, disk logger is not open");
+        return tla;
+    }
+
+    /**
+     * Record that all records up to the specified count have been forced and update the statistics.
+     *
+     * @param written the value of {@link #writtenRecords} read before the force started.
+     */
+    private void forced(long written) {
+        long records = written - forcedRecords;
+        if (records <= 0)
+            return;
+        forcedRecords = written;
+
+        forceCount.incrementAndGet();
+        forcedRecordCount.addAndGet(records);
+        long max = maxRecordsPerForce.get();
+        while (records > max && !maxRecordsPerForce.compareAndSet(max, records)) {
+            max = maxRecordsPerForce.get();
+        }
+        if (log.isDebugEnabled()) log.debug("forced " + records + " record(s) to disk");
+    }
+
+    /*
+     * DiskJournalMBean implementation
+     */
+
+    public long getForceCount() {
+        return forceCount.get();
+    }
+
+    public long getForcedRecordCount() {
+        return forcedRecordCount.get();
+    }
+
+    public long getAverageRecordsPerForce() {
+        long count = forceCount.get();
+        return count == 0 ? 0 : forcedRecordCount.get() / count;
+    }
+
+    public long getMaxRecordsPerForce() {
+        return maxRecordsPerForce.get();
+    }
+
+    public long getSwapCount() {
+        return swapCount.get();
+    }
+
+    public long getPreparedSwapCount() {
+        return preparedSwapCount.get();
+    }
+
+    public long getDeferredRecordCount() {
+        return deferredRecordCount.get();
+    }
+
+    public long getDeferredFlushCount() {
+        return deferredFlushCount.get();
+    }
+
+    public long getUnforcedRecordCount() {
+        return Math.max(0, writtenRecords.get() - forcedRecords);
+    }
+
     /**
      * Open the disk journal. Files are checked for integrity and DiskJournal will refuse to open corrupted log files.
      * If files are not present on disk, this method will create and pre-allocate them.
      *
      * @throws java.io.IOException in case of disk IO failure.
      */
-    public synchronized void open() throws IOException {
+    public void open() throws IOException {
+        lifecycleLock.lock();
+        try {
+            doOpen();
+        } finally {
+            lifecycleLock.unlock();
+        }
+    }
+
+    private void doOpen() throws IOException {
         if (activeTla.get() != null) {
             log.warn("disk journal already open");
             return;
@@ -198,12 +702,12 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
 
         conservativeJournaling = configuration.isConservativeJournaling();
 
-        File file1 = new File(configuration.getLogPart1Filename());
-        File file2 = new File(configuration.getLogPart2Filename());
+        File file1 = logPart1File != null ? logPart1File : new File(configuration.getLogPart1Filename());
+        File file2 = logPart2File != null ? logPart2File : new File(configuration.getLogPart2Filename());
 
         if (!file1.exists() && !file2.exists()) {
             log.debug("creation of log files");
-            createLogfile(file2, configuration.getMaxLogSizeInMb());
+            createLogfile(file2, configuration.getMaxLogSizeInMb(), getNewLogFileFormatId());
 
             // make the clock run a little before creating the 2nd log file to ensure the timestamp headers are not the same
             long before = MonotonicClock.currentTimeMillis();
@@ -211,7 +715,7 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
                 try { Thread.sleep(100); } catch (InterruptedException ex) { /* ignore */ }
             }
 
-            createLogfile(file1, configuration.getMaxLogSizeInMb());
+            createLogfile(file1, configuration.getMaxLogSizeInMb(), getNewLogFileFormatId());
         }
 
         if (file1.length() != file2.length()) {
@@ -223,14 +727,44 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
         maxFileLength = Math.max(file1.length(), file2.length());
         if (log.isDebugEnabled()) log.debug("disk journal files max length: " + maxFileLength);
 
-        tla1 = new TransactionLogAppender(file1, maxFileLength);
-        tla2 = new TransactionLogAppender(file2, maxFileLength);
+        tla1 = createTransactionLogAppender(file1, maxFileLength);
+        tla2 = createTransactionLogAppender(file2, maxFileLength);
+        swapPreparationPosition = (long) (maxFileLength * SWAP_PREPARATION_THRESHOLD);
+        rewoundTla = null;
+        preparedTla = null;
+        swapPreparer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bitronix-journal-swap-preparer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        asyncForcer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bitronix-journal-forcer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        deferredRecordsEnabled = configuration.isDeferredRecordsEnabled();
+        if (deferredRecordsEnabled)
+            startDeferredFlusher();
 
         byte cleanStatus = pickActiveJournalFile(tla1, tla2);
         if (cleanStatus != TransactionLogHeader.CLEAN_LOG_STATE) {
             log.warn("active log file is unclean, did you call BitronixTransactionManager.shutdown() at the end of the last run?");
         }
 
+        checkpointFile = new File(file1.getPath() + ".checkpoint");
+        loadDanglingRecords(activeTla.get());
+
+        String serverId = configuration.getServerId();
+        if (serverId == null) serverId = "";
+        jmxName = "bitronix.tm:type=Journal,ServerId=" + ManagementRegistrar.makeValidName(serverId);
+        if (logPart1File != null)
+            jmxName += ",LogFile=" + ManagementRegistrar.makeValidName(logPart1File.getName());
+        ManagementRegistrar.register(jmxName, this);
+
         if (log.isDebugEnabled()) log.debug("disk journal opened");
     }
 
@@ -239,28 +773,84 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
      *
      * @throws java.io.IOException in case of disk IO failure.
      */
-    public synchronized void close() throws IOException {
+    public void close() throws IOException {
+        lifecycleLock.lock();
+        try {
+            doClose();
+        } finally {
+            lifecycleLock.unlock();
+        }
+    }
+
+    private void doClose() throws IOException {
         if (activeTla.get() == null) {
             return;
         }
 
+        if (deferredFlusher != null) {
+            deferredFlusher.shutdown();
+            deferredFlusher = null;
+        }
         try {
-            tla1.close();
+            flushDeferredRecords();
         } catch (IOException ex) {
-            log.error("cannot close " + tla1, ex);
+            log.error("cannot write " + deferredRecordCount.get() + " deferred record(s) to " + activeTla.get(), ex);
         }
-        tla1 = null;
+        deferredRecordsEnabled = false;
+
+        swapPreparer.shutdown();
+        swapPreparer = null;
+        asyncForcer.shutdown();
+        asyncForcer = null;
+
+        // writers, forces and swaps use the appenders under the swap lock, wait for them to be done
+        swapForceLock.writeLock().lock();
         try {
-            tla2.close();
-        } catch (IOException ex) {
-            log.error("cannot close " + tla2, ex);
+            long written = writtenRecords.get();
+            try {
+                activeTla.get().force();
+                completeAsyncForces(written);
+                writeCheckpoint(activeTla.get());
+            } catch (IOException ex) {
+                log.error("cannot force " + activeTla.get() + ", not writing journal checkpoint", ex);
+                failAsyncForces(ex);
+            }
+
+            closeTransactionLogAppenders();
+        } finally {
+            swapForceLock.writeLock().unlock();
         }
-        tla2 = null;
-        activeTla.set(null);
+
+        failAsyncForces(new IOException("disk journal closed before the record could be forced"));
+
+        ManagementRegistrar.unregister(jmxName);
+        jmxName = null;
 
         if (log.isDebugEnabled()) log.debug("disk journal closed");
     }
 
+    private void closeTransactionLogAppenders() {
+        passiveLock.lock();
+        try {
+            try {
+                tla1.close();
+            } catch (IOException ex) {
+                log.error("cannot close " + tla1, ex);
+            }
+            tla1 = null;
+            try {
+                tla2.close();
+            } catch (IOException ex) {
+                log.error("cannot close " + tla2, ex);
+            }
+            tla2 = null;
+            activeTla.set(null);
+            rewoundTla = null;
+        } finally {
+            passiveLock.unlock();
+        }
+    }
+
     public void shutdown() {
         try {
             close();
@@ -270,7 +860,8 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
     }
 
     /**
-     * Collect all dangling records of the active log file.
+     * Collect all dangling records of the active log file. The records are tracked in memory, this method does not
+     * read the log file.
      *
      * @return a Map using Uid objects GTRID as key and {@link TransactionLogRecord} as value
      * @throws java.io.IOException in case of disk IO failure or if the disk journal is not open.
@@ -278,7 +869,22 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
     public Map<Uid, JournalRecord> collectDanglingRecords() throws IOException {
         if (activeTla.get() == null)
             throw new IOException("cannot collect dangling records, disk logger is not open");
-        return collectDanglingRecords(activeTla.get());
+
+        // finished transactions must not be reported as dangling because their records are deferred
+        flushDeferredRecords();
+
+        // prevent a swap from moving the dangling records to the passive file while they're collected
+        swapForceLock.readLock().lock();
+        try {
+            List<TransactionLogRecord> danglingLogs = activeTla.get().getDanglingLogs();
+            Map<Uid, JournalRecord> danglingRecords = new HashMap<Uid, JournalRecord>(Math.max(64, danglingLogs.size() * 2));
+            for (TransactionLogRecord tlog : danglingLogs) {
+                danglingRecords.put(tlog.getGtrid(), tlog);
+            }
+            return danglingRecords;
+        } finally {
+            swapForceLock.readLock().unlock();
+        }
     }
 
     /**
@@ -299,25 +905,53 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
     /**
      * {@inheritDoc}
      */
-    public synchronized void unsafeReadRecordsInto(Collection<JournalRecord> target, boolean includeInvalid) throws IOException {
-        if (activeTla.get() == null)
-            throw new IOException("cannot read records, disk logger is not open");
+    public void unsafeReadRecordsInto(Collection<JournalRecord> target, boolean includeInvalid) throws IOException {
+        lifecycleLock.lock();
+        try {
+            if (activeTla.get() == null)
+                throw new IOException("cannot read records, disk logger is not open");
 
-        for (Iterator<TransactionLogRecord> i = iterateRecords(activeTla.get(), includeInvalid); i.hasNext(); )
-            target.add(i.next());
+            flushDeferredRecords();
+            for (Iterator<TransactionLogRecord> i = iterateRecords(activeTla.get(), includeInvalid); i.hasNext(); )
+                target.add(i.next());
+        } finally {
+            lifecycleLock.unlock();
+        }
     }
 
     /*
      * Internal impl.
      */
 
+    /**
+     * Create the appender used to write on one of the two log files.
+     * @param file the log file.
+     * @param maxFileLength the pre-allocated length of the log file.
+     * @return a TransactionLogAppender writing on the file.
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    protected TransactionLogAppender createTransactionLogAppender(File file, long maxFileLength) throws IOException {
+        return new TransactionLogAppender(file, maxFileLength, false, configuration.isSynchronousWriteEnabled(),
+                configuration.getWriteAlignmentInBytes(), configuration.isCompactLogFormatEnabled());
+    }
+
+    /**
+     * Get the format of the log files to create, which must contain padding frames when writes are aligned.
+     * @return {@link TransactionLogHeader#FORMAT_ID_V3} when writes are aligned, {@link TransactionLogHeader#FORMAT_ID_V2}
+     *         when the compact format is enabled, {@link TransactionLogHeader#FORMAT_ID_V1} otherwise.
+     */
+    private int getNewLogFileFormatId() {
+        return TransactionLogAppender.getFormatId(configuration.getWriteAlignmentInBytes(), configuration.isCompactLogFormatEnabled());
+    }
+
     /**
      * Create a fresh log file on disk. If the specified file already exists it will be deleted then recreated.
      * @param logfile the file to create
      * @param maxLogSizeInMb the file size in megabytes to preallocate
+     * @param formatId the format of the log file.
      * @throws java.io.IOException in case of disk IO failure.
      */
-    private static void createLogfile(File logfile, int maxLogSizeInMb) throws IOException {
+    private static void createLogfile(File logfile, int maxLogSizeInMb, int formatId) throws IOException {
         if (logfile.isDirectory())
             throw new IOException("log file is referring to a directory: " + logfile.getAbsolutePath());
         if (logfile.exists()) {
@@ -334,10 +968,10 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
             raf = new RandomAccessFile(logfile, "rw");
 
             raf.seek(TransactionLogHeader.FORMAT_ID_HEADER);
-            raf.writeInt(BitronixXid.FORMAT_ID);
+            raf.writeInt(formatId);
             raf.writeLong(MonotonicClock.currentTimeMillis());
             raf.writeByte(TransactionLogHeader.CLEAN_LOG_STATE);
-            raf.writeLong((long) TransactionLogHeader.HEADER_LENGTH);
+            raf.writeLong(TransactionLogHeader.getFirstRecordPosition(formatId));
 
             byte[] buffer = new byte[4096];
             int length = (maxLogSizeInMb *1024 *1024) /4096;
@@ -359,7 +993,7 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
      * @throws java.io.IOException in case of disk IO failure.
      * @see TransactionLogHeader
      */
-    private synchronized byte pickActiveJournalFile(TransactionLogAppender tla1, TransactionLogAppender tla2) throws IOException {
+    private byte pickActiveJournalFile(TransactionLogAppender tla1, TransactionLogAppender tla2) throws IOException {
         if (tla1.getTimestamp() > tla2.getTimestamp()) {
         	activeTla.set(tla1);
             if (log.isDebugEnabled()) log.debug("logging to file 1: " + activeTla);
@@ -382,49 +1016,226 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
      * becomes active.</p>
      * List of actions taken by this method:
      * <ul>
-     *   <li>ensure the all data has been forced to the active log file.</li>
-     *   <li>copy dangling COMMITTING records to the passive log file.</li>
+     *   <li>rewind the passive log file unless a swap preparation already did it.</li>
+     *   <li>copy to the passive log file the dangling records it is missing, which are all of them unless a swap
+     *       preparation already copied them.</li>
      *   <li>update header timestamp of passive log file (makes it become active).</li>
      *   <li>do a force on passive log file. It is now the active file.</li>
      *   <li>switch references of active/passive files.</li>
      * </ul>
+     * <p>The active log file does not need to be forced as the passive log file contains all its dangling records once
+     * forced.</p>
+     * <p>The caller must hold {@link #positionLock} and the write lock of {@link #swapForceLock}.</p>
      *
      * @throws java.io.IOException in case of disk IO failure.
      */
-    private synchronized void swapJournalFiles() throws IOException {
-        if (log.isDebugEnabled()) log.debug("swapping journal log file to " + getPassiveTransactionLogAppender());
+    private void swapJournalFiles() throws IOException {
+        TransactionLogAppender passiveTla = getPassiveTransactionLogAppender();
+        if (log.isDebugEnabled()) log.debug("swapping journal log file to " + passiveTla);
 
-        //step 1
-        activeTla.get().force();
+        long written = writtenRecords.get();
+        passiveLock.lock();
+        try {
+            //step 1
+            boolean prepared = rewoundTla == passiveTla;
+            if (!prepared) {
+                passiveTla.rewind();
+                passiveTla.clearDanglingLogs();
+            }
 
-        //step 2
-        TransactionLogAppender passiveTla = getPassiveTransactionLogAppender();
-        passiveTla.rewind();
+            //step 2
+            List<TransactionLogRecord> missingRecords = getMissingRecords(activeTla.get(), passiveTla);
+            int copied = appendRecords(passiveTla, missingRecords);
+            if (log.isDebugEnabled()) log.debug(copied + " dangling record(s) copied to " + (prepared ? "prepared " : "") + "passive log file");
 
-        List<TransactionLogRecord> danglingLogs = activeTla.get().getDanglingLogs();
-        for (TransactionLogRecord tlog : danglingLogs) {
-            boolean rolloverError = passiveTla.setPositionAndAdvance(tlog);
-            if (rolloverError) {
-                log.error("Moving in-flight transactions the rollover log file would have resulted in an overflow of that file.");
-                break;
+            activeTla.get().clearDanglingLogs();
+
+            //step 3
+            passiveTla.setTimestamp(MonotonicClock.currentTimeMillis());
+
+            //step 4
+            passiveTla.force();
+            forced(written);
+
+            //step 5
+            activeTla.set(passiveTla);
+            rewoundTla = null;
+        } finally {
+            passiveLock.unlock();
+        }
+
+        writeCheckpoint(passiveTla);
+        swapCount.incrementAndGet();
+
+        if (log.isDebugEnabled()) log.debug("journal log files swapped");
+    }
+
+    /**
+     * Start the background thread periodically writing the deferred records.
+     */
+    private void startDeferredFlusher() {
+        deferredFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bitronix-journal-deferred-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.max(1, configuration.getDeferredRecordsFlushIntervalInMillis());
+        deferredFlusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    flushDeferredRecords();
+                } catch (IOException ex) {
+                    log.error("cannot write deferred records, they will be written again by the next flush", ex);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedule the preparation of the passive journal file for the next swap.
+     *
+     * @param tla the active TransactionLogAppender to prepare the swap of
+     */
+    private void prepareSwapInBackground(final TransactionLogAppender tla) {
+        try {
+            swapPreparer.execute(new Runnable() {
+                public void run() {
+                    try {
+                        prepareSwap(tla);
+                    } catch (IOException ex) {
+                        log.warn("cannot prepare journal swap, it will be fully done when the active log file is full", ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            if (log.isDebugEnabled()) log.debug("disk journal is closing, not preparing journal swap");
+        }
+    }
+
+    /**
+     * Rewind the passive journal file then copy the dangling records of the active one to it, by batches so that a
+     * concurrent swap does not wait for the whole copy. The swap then only copies the changes made to the dangling
+     * records since then.
+     *
+     * @param tla the active TransactionLogAppender to prepare the swap of
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    private void prepareSwap(TransactionLogAppender tla) throws IOException {
+        List<TransactionLogRecord> missingRecords = null;
+        int copied = 0;
+        while (true) {
+            passiveLock.lock();
+            try {
+                if (activeTla.get() != tla) {
+                    if (log.isDebugEnabled()) log.debug("journal log files swapped or closed during swap preparation");
+                    return;
+                }
+
+                TransactionLogAppender passiveTla = getPassiveTransactionLogAppender();
+                if (rewoundTla != passiveTla) {
+                    passiveTla.rewind();
+                    passiveTla.clearDanglingLogs();
+                    rewoundTla = passiveTla;
+                    missingRecords = null;
+                }
+                // only this method writes to the passive file until the swap, the records missing from it are
+                // computed once and the dangling records changed since then are copied by the swap
+                if (missingRecords == null) {
+                    missingRecords = getMissingRecords(tla, passiveTla);
+                    copied = 0;
+                }
+
+                List<TransactionLogRecord> batch = missingRecords.subList(copied, Math.min(copied + SWAP_PREPARATION_BATCH_SIZE, missingRecords.size()));
+                int count = appendRecords(passiveTla, batch);
+                copied += count;
+                if (count < batch.size() || copied == missingRecords.size()) {
+                    passiveTla.force();
+                    break;
+                }
+            } finally {
+                passiveLock.unlock();
             }
-            passiveTla.writeLog(tlog);
         }
 
-        if (log.isDebugEnabled()) log.debug(danglingLogs.size() + " dangling record(s) copied to passive log file");
-        
-        activeTla.get().clearDanglingLogs();
+        preparedSwapCount.incrementAndGet();
+        if (log.isDebugEnabled()) log.debug("journal swap prepared, " + copied + " dangling record(s) copied to passive log file");
+    }
 
-        //step 3
-        passiveTla.setTimestamp(MonotonicClock.currentTimeMillis());
+    /**
+     * Get the records to write to a log file to make its dangling records the same as the ones of another log file:
+     * COMMITTING records for the unique names it is missing and COMMITTED records for the unique names the other log
+     * file does not have anymore.
+     *
+     * @param from the TransactionLogAppender to copy the dangling records of
+     * @param to the TransactionLogAppender to write to
+     * @return the records to write, empty if both log files have the same dangling records.
+     */
+    private static List<TransactionLogRecord> getMissingRecords(TransactionLogAppender from, TransactionLogAppender to) {
+        Map<Uid, Set<String>> source = getDanglingNames(from);
+        Map<Uid, Set<String>> target = getDanglingNames(to);
+        List<TransactionLogRecord> records = new ArrayList<TransactionLogRecord>();
+
+        for (Map.Entry<Uid, Set<String>> entry : source.entrySet()) {
+            Set<String> missing = new TreeSet<String>(entry.getValue());
+            Set<String> present = target.get(entry.getKey());
+            if (present != null)
+                missing.removeAll(present);
+            if (!missing.isEmpty())
+                records.add(new TransactionLogRecord(Status.STATUS_COMMITTING, entry.getKey(), missing));
+        }
 
-        //step 4
-        passiveTla.force();
+        for (Map.Entry<Uid, Set<String>> entry : target.entrySet()) {
+            Set<String> extra = new TreeSet<String>(entry.getValue());
+            Set<String> present = source.get(entry.getKey());
+            if (present != null)
+                extra.removeAll(present);
+            if (!extra.isEmpty())
+                records.add(new TransactionLogRecord(Status.STATUS_COMMITTED, entry.getKey(), extra));
+        }
 
-        //step 5
-        activeTla.set(passiveTla);
+        return records;
+    }
 
-        if (log.isDebugEnabled()) log.debug("journal log files swapped");
+    /**
+     * Append records to a log file, one after the other.
+     *
+     * @param tla the TransactionLogAppender to write to
+     * @param tlogs the records to write
+     * @return the number of records written, less than the number of records if the log file is full.
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    private static int appendRecords(TransactionLogAppender tla, List<TransactionLogRecord> tlogs) throws IOException {
+        int count = 0;
+        for (TransactionLogRecord tlog : tlogs) {
+            if (!appendRecord(tla, tlog))
+                break;
+            count++;
+        }
+        return count;
+    }
+
+    private static Map<Uid, Set<String>> getDanglingNames(TransactionLogAppender tla) {
+        List<TransactionLogRecord> danglingLogs = tla.getDanglingLogs();
+        Map<Uid, Set<String>> danglingNames = new LinkedHashMap<Uid, Set<String>>(Math.max(64, danglingLogs.size() * 2));
+        for (TransactionLogRecord tlog : danglingLogs) {
+            danglingNames.put(tlog.getGtrid(), tlog.getUniqueNames());
+        }
+        return danglingNames;
+    }
+
+    /**
+     * Append a record to a log file.
+     * @return false if the log file is full.
+     */
+    private static boolean appendRecord(TransactionLogAppender tla, TransactionLogRecord tlog) throws IOException {
+        if (tla.setPositionAndAdvance(tlog)) {
+            log.error("Moving in-flight transactions the rollover log file would have resulted in an overflow of that file.");
+            return false;
+        }
+        tla.writeLog(tlog);
+        return true;
     }
 
     /**
@@ -435,20 +1246,42 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
     }
 
     /**
-     * Create a Map of TransactionLogRecord with COMMITTING status objects using the GTRID byte[] as key that have
-     * no corresponding COMMITTED record
+     * Initialize the dangling records of a log file from the checkpoint file, when it matches the log file, and from
+     * the records written after the checkpoint position.
+     *
+     * @param tla the TransactionLogAppender to load
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    private void loadDanglingRecords(TransactionLogAppender tla) throws IOException {
+        long startPosition = TransactionLogHeader.HEADER_LENGTH;
+
+        TransactionLogCheckpoint checkpoint = TransactionLogCheckpoint.read(checkpointFile);
+        if (checkpoint != null && checkpoint.getTimestamp() == tla.getTimestamp() &&
+                checkpoint.getPosition() >= TransactionLogHeader.HEADER_LENGTH && checkpoint.getPosition() <= tla.getPosition()) {
+            for (TransactionLogRecord tlog : checkpoint.getDanglingLogs()) {
+                tla.trackOutstanding(tlog.getStatus(), tlog.getGtrid(), tlog.getUniqueNames());
+            }
+            startPosition = checkpoint.getPosition();
+            if (log.isDebugEnabled()) log.debug("loaded " + checkpoint + " of " + tla);
+        } else if (checkpoint != null) {
+            if (log.isDebugEnabled()) log.debug("ignoring " + checkpoint + " not matching " + tla);
+        }
+
+        scanDanglingRecords(tla, startPosition);
+    }
+
+    /**
+     * Update the dangling records of a log file with the records found from the specified position.
      *
      * @param tla the TransactionLogAppender to scan
-     * @return a Map using Uid objects GTRID as key and {@link TransactionLogRecord} as value
+     * @param startPosition the position of the first record to read
      * @throws java.io.IOException in case of disk IO failure.
      */
-    private static Map<Uid, JournalRecord> collectDanglingRecords(TransactionLogAppender tla) throws IOException {
-        Map<Uid, JournalRecord> danglingRecords = new HashMap<Uid, JournalRecord>(64);
-        TransactionLogCursor tlc = tla.getCursor();
+    private static void scanDanglingRecords(TransactionLogAppender tla, long startPosition) throws IOException {
+        TransactionLogBulkReader tlc = tla.getBulkReader(startPosition, false);
 
         try {
-            int committing = 0;
-            int committed = 0;
+            int count = 0;
 
             while (true) {
                 TransactionLogRecord tlog;
@@ -465,36 +1298,30 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
                 if (tlog == null)
                     break;
 
-                int status = tlog.getStatus();
-                if (status == Status.STATUS_COMMITTING) {
-                    danglingRecords.put(tlog.getGtrid(), tlog);
-                    committing++;
-                }
-
-                // COMMITTED is when there was no problem in the transaction
-                // UNKNOWN is when a 2PC transaction heuristically terminated
-                // ROLLEDBACK is when a 1PC transaction rolled back during commit
-                if (status == Status.STATUS_COMMITTED || status == Status.STATUS_UNKNOWN || status == Status.STATUS_ROLLEDBACK) {
-                    JournalRecord rec = danglingRecords.get(tlog.getGtrid());
-                    if (rec != null) {
-                        Set<String> recUniqueNames = new HashSet<String>(rec.getUniqueNames());
-                        recUniqueNames.removeAll(tlog.getUniqueNames());
-                        if (recUniqueNames.isEmpty()) {
-                            danglingRecords.remove(tlog.getGtrid());
-                            committed++;
-                        } else {
-                            danglingRecords.put(tlog.getGtrid(), new TransactionLogRecord(rec.getStatus(), rec.getGtrid(), recUniqueNames));
-                        }
-                    }
-                }
+                tla.trackOutstanding(tlog.getStatus(), tlog.getGtrid(), tlog.getUniqueNames());
+                count++;
             }
 
-            if (log.isDebugEnabled()) log.debug("collected dangling records of " + tla + ", committing: " + committing + ", committed: " + committed + ", delta: " + danglingRecords.size());
+            if (log.isDebugEnabled()) log.debug("scanned " + count + " record(s) of " + tla + " from position " + startPosition);
         }
         finally {
             tlc.close();
         }
-        return danglingRecords;
+    }
+
+    /**
+     * Save the dangling records of a log file to the checkpoint file. Failures are logged and ignored as the
+     * checkpoint is not required to open the journal.
+     *
+     * @param tla the TransactionLogAppender to checkpoint, it must have been forced and have no write in progress.
+     */
+    private void writeCheckpoint(TransactionLogAppender tla) {
+        try {
+            TransactionLogCheckpoint checkpoint = new TransactionLogCheckpoint(tla.getTimestamp(), tla.getPosition(), tla.getDanglingLogs());
+            checkpoint.write(checkpointFile);
+        } catch (IOException ex) {
+            log.warn("cannot write journal checkpoint file " + checkpointFile.getAbsolutePath(), ex);
+        }
     }
 
     /**
@@ -507,7 +1334,7 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
      */
     private static Iterator<TransactionLogRecord> iterateRecords(
             TransactionLogAppender tla, final boolean skipCrcCheck) throws IOException {
-        final TransactionLogCursor tlc = tla.getCursor();
+        final TransactionLogBulkReader tlc = tla.getBulkReader(TransactionLogHeader.HEADER_LENGTH, skipCrcCheck);
         final Iterator<TransactionLogRecord> it = new Iterator<TransactionLogRecord>() {
 
             TransactionLogRecord tlog;
@@ -516,9 +1343,11 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
                 while (tlog == null) {
                     try {
                         try {
-                            tlog = tlc.readLog(skipCrcCheck);
-                            if (tlog == null)
+                            tlog = tlc.readLog();
+                            if (tlog == null) {
+                                tlc.close();
                                 break;
+                            }
                         } catch (CorruptedTransactionLogException ex) {
                             if (TransactionManagerServices.getConfiguration().isSkipCorruptedLogs()) {
                                 log.error("skipping corrupted log", ex);
@@ -527,6 +1356,11 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
                             throw ex;
                         }
                     } catch (IOException e) {
+                        try {
+                            tlc.close();
+                        } catch (IOException ex) {
+                            log.warn("cannot close " + tlc, ex);
+                        }
                         throw new RuntimeException(e);
                     }
                 }
@@ -558,4 +1392,18 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
             throw e;
         }
     }
+
+    /**
+     * Completion of a record logged with {@link DiskJournal#logAsync(int, Uid, Set, boolean)} waiting for the force of
+     * the records written up to its own.
+     */
+    private final static class AsyncForce {
+        private final long target;
+        private final JournalCompletion completion;
+
+        private AsyncForce(long target, JournalCompletion completion) {
+            this.target = target;
+            this.completion = completion;
+        }
+    }
 }
@@ -0,0 +1,182 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.journal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handle on a record logged through {@link AsyncJournal#logAsync(int, bitronix.tm.utils.Uid, java.util.Set, boolean)}.
+ * <p>It is completed exactly once by the journal, either successfully or with the {@link IOException} that prevented
+ * the record from becoming durable. Callers can either wait for it with {@link #await()} or register
+ * {@link JournalCompletionListener}s.</p>
+ *
+ * @author lorban
+ */
+public class JournalCompletion {
+
+    private final static Logger log = LoggerFactory.getLogger(JournalCompletion.class);
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private List<JournalCompletionListener> listeners = new ArrayList<JournalCompletionListener>(1);
+    private volatile IOException failure;
+
+    /**
+     * Create an already successfully completed completion.
+     * @return a completed completion.
+     */
+    public static JournalCompletion completed() {
+        JournalCompletion completion = new JournalCompletion();
+        completion.complete();
+        return completion;
+    }
+
+    /**
+     * Create an uncompleted completion. Meant to be used by journal implementations.
+     */
+    public JournalCompletion() {
+    }
+
+    /**
+     * Register a listener fired when this completion completes. If it is already completed, the listener is fired
+     * immediately by the calling thread.
+     * @param listener the listener to register.
+     */
+    public void addListener(JournalCompletionListener listener) {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        fire(listener);
+    }
+
+    /**
+     * Wait until this completion is completed.
+     * @throws IOException if the record could not be made durable or if the calling thread is interrupted.
+     */
+    public void await() throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException("interrupted while waiting for journal completion").initCause(ex);
+        }
+        rethrowFailure();
+    }
+
+    /**
+     * Wait until this completion is completed or until the timeout expires.
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of the timeout.
+     * @return true if the completion is completed, false if the timeout expired.
+     * @throws IOException if the record could not be made durable or if the calling thread is interrupted.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws IOException {
+        try {
+            if (!latch.await(timeout, unit))
+                return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException("interrupted while waiting for journal completion").initCause(ex);
+        }
+        rethrowFailure();
+        return true;
+    }
+
+    /**
+     * Is this completion completed?
+     * @return true if this completion succeeded or failed.
+     */
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    /**
+     * Get the error that prevented the record from becoming durable.
+     * @return the error or null if the completion is not completed or succeeded.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Successfully complete this completion. Meant to be used by journal implementations.
+     * @return true if this call completed the completion, false if it was already completed.
+     */
+    public boolean complete() {
+        return done(null);
+    }
+
+    /**
+     * Complete this completion with a failure. Meant to be used by journal implementations.
+     * @param failure the error that prevented the record from becoming durable.
+     * @return true if this call completed the completion, false if it was already completed.
+     */
+    public boolean fail(IOException failure) {
+        if (failure == null)
+            throw new IllegalArgumentException("failure cannot be null");
+        return done(failure);
+    }
+
+    private boolean done(IOException failure) {
+        List<JournalCompletionListener> toFire;
+        synchronized (this) {
+            if (listeners == null)
+                return false;
+            this.failure = failure;
+            toFire = listeners;
+            listeners = null;
+        }
+        latch.countDown();
+
+        for (JournalCompletionListener listener : toFire) {
+            fire(listener);
+        }
+        return true;
+    }
+
+    private void fire(JournalCompletionListener listener) {
+        try {
+            listener.completed(this);
+        } catch (RuntimeException ex) {
+            log.error("error executing JournalCompletionListener " + listener, ex);
+        }
+    }
+
+    private void rethrowFailure() throws IOException {
+        IOException failure = this.failure;
+        if (failure != null)
+            throw (IOException) new IOException("journal record could not be made durable: " + failure.getMessage()).initCause(failure);
+    }
+
+    public String toString() {
+        return "a JournalCompletion (" + (isDone() ? (failure == null ? "succeeded" : "failed: " + failure.getMessage()) : "pending") + ")";
+    }
+}
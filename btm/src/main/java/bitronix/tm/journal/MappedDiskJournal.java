@@ -0,0 +1,57 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.journal;
+
+import java.io.File;
+import java.io.IOException;
+
+import bitronix.tm.Configuration;
+import bitronix.tm.TransactionManagerServices;
+
+/**
+ * Disk journal writing its two log files through memory mappings of their whole pre-allocated length.
+ * <p>Records are serialized straight into the mapped files and forces are performed with
+ * {@link java.nio.MappedByteBuffer#force()}. Apart from that, this journal behaves exactly like {@link DiskJournal}
+ * and uses the same configurable properties and on-disk format.</p>
+ * <p>The log files must not be larger than 2GB to be memory-mapped.</p>
+ * <p>Writes through a mapping are never synchronous, the mapped files are forced even when synchronous writes are
+ * enabled.</p>
+ *
+ * @author lorban
+ */
+public class MappedDiskJournal extends DiskJournal {
+
+    /**
+     * Create an uninitialized memory-mapped disk journal. You must call open() prior you can use it.
+     */
+    public MappedDiskJournal() {
+    }
+
+    protected TransactionLogAppender createTransactionLogAppender(File file, long maxFileLength) throws IOException {
+        Configuration configuration = TransactionManagerServices.getConfiguration();
+        return new TransactionLogAppender(file, maxFileLength, true, configuration.isSynchronousWriteEnabled(),
+                configuration.getWriteAlignmentInBytes(), configuration.isCompactLogFormatEnabled());
+    }
+
+    public String toString() {
+        return "a MappedDiskJournal";
+    }
+}
@@ -34,7 +34,7 @@ import java.util.Set;
  *
  * @author lorban
  */
-public class NullJournal implements Journal {
+public class NullJournal implements AsyncJournal {
 
     public NullJournal() {
     }
@@ -42,6 +42,10 @@ public class NullJournal implements Journal {
     public void log(int status, Uid gtrid, Set<String> uniqueNames) throws IOException {
     }
 
+    public JournalCompletion logAsync(int status, Uid gtrid, Set<String> uniqueNames, boolean force) throws IOException {
+        return JournalCompletion.completed();
+    }
+
     public void open() throws IOException {
     }
 
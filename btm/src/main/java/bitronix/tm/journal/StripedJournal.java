@@ -0,0 +1,402 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bitronix.tm.Configuration;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.utils.Uid;
+
+/**
+ * Journal spreading transactions over multiple independent {@link DiskJournal}s called stripes.
+ * <p>Each transaction is assigned to a stripe by hashing its GTRID so that all the records of a transaction end up in
+ * the same stripe. Each stripe has its own pair of log files, its own locks and its own forces: transactions logged
+ * on different stripes never contend. Placing the stripes on different devices allows their forces to run in
+ * parallel.</p>
+ * <p>{@link #force()} only forces the stripes the calling thread logged to since its last force, or all of them if
+ * there are none.</p>
+ * <p>Records logged with {@link #logAsync(int, Uid, Set, boolean)} are forced by the background thread of their
+ * stripe.</p>
+ * <p>Configurable properties are all starting with <code>bitronix.tm.journal.striped</code>, the stripes themselves
+ * are configured with the <code>bitronix.tm.journal.disk</code> properties. As transactions are assigned to stripes
+ * by GTRID, the number of stripes and their directories must not be changed while the journal contains dangling
+ * records: {@link #open()} refuses to open the journal when the stripe files it finds do not match the configured
+ * layout and contain dangling records.</p>
+ *
+ * @see bitronix.tm.Configuration
+ * @author lorban
+ */
+public class StripedJournal implements AsyncJournal, MigratableJournal, ReadableJournal {
+
+    private final static Logger log = LoggerFactory.getLogger(StripedJournal.class);
+
+    /**
+     * Maximum number of stripes, the stripes a thread logged to are tracked in a long bitmask.
+     */
+    public final static int MAX_STRIPES = 64;
+
+    private final ThreadLocal<long[]> unforcedStripes = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private final Configuration configuration;
+    private volatile DiskJournal[] stripes;
+
+    /**
+     * Create an uninitialized striped journal. You must call open() prior you can use it.
+     */
+    public StripedJournal() {
+        configuration = TransactionManagerServices.getConfiguration();
+    }
+
+    /**
+     * Log a new transaction status to the stripe of the transaction.
+     *
+     * @param status transaction status to log. See {@link javax.transaction.Status} constants.
+     * @param gtrid raw GTRID of the transaction.
+     * @param uniqueNames unique names of the {@link bitronix.tm.resource.common.ResourceBean}s participating in
+     * this transaction.
+     * @throws java.io.IOException in case of disk IO failure or if the striped journal is not open.
+     */
+    public void log(int status, Uid gtrid, Set<String> uniqueNames) throws IOException {
+        DiskJournal[] stripes = this.stripes;
+        if (stripes == null)
+            throw new IOException("cannot write log, striped journal is not open");
+
+        int index = getStripeIndex(gtrid, stripes.length);
+        stripes[index].log(status, gtrid, uniqueNames);
+        unforcedStripes.get()[0] |= 1L << index;
+    }
+
+    /**
+     * Log a new transaction status to the stripe of the transaction without waiting for it to be forced. When force is
+     * true, only the stripe of the transaction gets forced.
+     *
+     * @param status transaction status to log. See {@link javax.transaction.Status} constants.
+     * @param gtrid raw GTRID of the transaction.
+     * @param uniqueNames unique names of the {@link bitronix.tm.resource.common.ResourceBean}s participating in
+     * this transaction.
+     * @param force true if the returned completion must only be completed once the record is forced.
+     * @return the completion of the record.
+     * @throws java.io.IOException in case of disk IO failure or if the striped journal is not open.
+     */
+    public JournalCompletion logAsync(int status, Uid gtrid, Set<String> uniqueNames, boolean force) throws IOException {
+        DiskJournal[] stripes = this.stripes;
+        if (stripes == null)
+            throw new IOException("cannot write log, striped journal is not open");
+
+        int index = getStripeIndex(gtrid, stripes.length);
+        JournalCompletion completion = stripes[index].logAsync(status, gtrid, uniqueNames, force);
+        if (!force)
+            unforcedStripes.get()[0] |= 1L << index;
+        return completion;
+    }
+
+    /**
+     * Force the stripes the calling thread logged to since its last force, or all stripes if it did not log anything.
+     *
+     * @throws java.io.IOException in case of disk IO failure or if the striped journal is not open.
+     */
+    public void force() throws IOException {
+        DiskJournal[] stripes = this.stripes;
+        if (stripes == null)
+            throw new IOException("cannot force log writing, striped journal is not open");
+
+        long[] unforced = unforcedStripes.get();
+        long mask = unforced[0] == 0 ? -1L : unforced[0];
+        unforced[0] = 0;
+
+        for (int i = 0; i < stripes.length; i++) {
+            if ((mask & (1L << i)) != 0)
+                stripes[i].force();
+        }
+    }
+
+    /**
+     * Open all the stripes. If their files are not present on disk, they are created and pre-allocated.
+     * <p>When the stripe files present on disk were created with another number of stripes or other directories, the
+     * files which are not part of the configured layout are deleted, provided that none of the stripes found contains
+     * dangling records.</p>
+     *
+     * @throws java.io.IOException in case of disk IO failure or if the stripe layout changed while the journal
+     * contains dangling records.
+     */
+    public synchronized void open() throws IOException {
+        if (stripes != null) {
+            log.warn("striped journal already open");
+            return;
+        }
+
+        int count = configuration.getJournalStripes();
+        if (count < 1 || count > MAX_STRIPES)
+            throw new IOException("invalid number of journal stripes " + count + ", it must be between 1 and " + MAX_STRIPES);
+
+        List<File> directories = getDirectories();
+        checkStripeLayout(count, directories);
+
+        DiskJournal[] openedStripes = new DiskJournal[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                File directory = directories.get(i % directories.size());
+                File file1 = new File(directory, getStripeFilename(configuration.getLogPart1Filename(), i));
+                File file2 = new File(directory, getStripeFilename(configuration.getLogPart2Filename(), i));
+
+                openedStripes[i] = new DiskJournal(file1, file2);
+                openedStripes[i].open();
+            }
+        } catch (IOException ex) {
+            closeStripes(openedStripes);
+            throw ex;
+        }
+
+        stripes = openedStripes;
+        if (log.isDebugEnabled()) log.debug("striped journal opened with " + count + " stripe(s) in " + directories);
+    }
+
+    /**
+     * Close all the stripes.
+     *
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    public synchronized void close() throws IOException {
+        if (stripes == null)
+            return;
+
+        closeStripes(stripes);
+        stripes = null;
+
+        if (log.isDebugEnabled()) log.debug("striped journal closed");
+    }
+
+    public void shutdown() {
+        try {
+            close();
+        } catch (IOException ex) {
+            log.error("error shutting down striped journal. Transaction log integrity could be compromised!", ex);
+        }
+    }
+
+    /**
+     * Collect and merge the dangling records of all the stripes.
+     *
+     * @return a Map using Uid objects GTRID as key and {@link JournalRecord} as value
+     * @throws java.io.IOException in case of disk IO failure or if the striped journal is not open.
+     */
+    public Map<Uid, JournalRecord> collectDanglingRecords() throws IOException {
+        DiskJournal[] stripes = this.stripes;
+        if (stripes == null)
+            throw new IOException("cannot collect dangling records, striped journal is not open");
+
+        Map<Uid, JournalRecord> danglingRecords = new HashMap<Uid, JournalRecord>(64);
+        for (DiskJournal stripe : stripes) {
+            danglingRecords.putAll(stripe.collectDanglingRecords());
+        }
+        return danglingRecords;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void migrateTo(Journal other) throws IOException, IllegalArgumentException {
+        if (other == this)
+            throw new IllegalArgumentException("Cannot migrate a journal to itself (this == otherJournal).");
+        if (other == null)
+            throw new IllegalArgumentException("The migration target journal may not be 'null'.");
+
+        for (JournalRecord jr : collectDanglingRecords().values()) {
+            other.log(jr.getStatus(), jr.getGtrid(), jr.getUniqueNames());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The records of each stripe are read one stripe after the other.</p>
+     */
+    public synchronized void unsafeReadRecordsInto(Collection<JournalRecord> target, boolean includeInvalid) throws IOException {
+        if (stripes == null)
+            throw new IOException("cannot read records, striped journal is not open");
+
+        for (DiskJournal stripe : stripes) {
+            stripe.unsafeReadRecordsInto(target, includeInvalid);
+        }
+    }
+
+    public String toString() {
+        DiskJournal[] stripes = this.stripes;
+        return "a StripedJournal with " + (stripes == null ? 0 : stripes.length) + " open stripe(s)";
+    }
+
+    /*
+     * Internal impl.
+     */
+
+    /**
+     * Get the stripe of a transaction. The result must not change across restarts for a given number of stripes.
+     * @param gtrid the GTRID of the transaction.
+     * @param count the number of stripes.
+     * @return the index of the stripe.
+     */
+    private static int getStripeIndex(Uid gtrid, int count) {
+        return (gtrid.hashCode() & Integer.MAX_VALUE) % count;
+    }
+
+    /**
+     * Build the name of a stripe's log file by prefixing the name of the configured log file with the stripe index.
+     * @param logPartFilename the configured log file.
+     * @param index the index of the stripe.
+     * @return the name of the stripe's log file, without directory.
+     */
+    private static String getStripeFilename(String logPartFilename, int index) {
+        return "stripe" + index + "-" + new File(logPartFilename).getName();
+    }
+
+    /**
+     * Check that the stripe files found in the stripe directories match the configured layout. Transactions are
+     * assigned to stripes by GTRID so after a change of the number of stripes or of their directories, the dangling
+     * records of the previous stripes would either be ignored or be looked for in the wrong stripe.
+     * @param count the configured number of stripes.
+     * @param directories the configured stripe directories.
+     * @throws IOException if the layout changed while the previous stripes contain dangling records or in case of
+     * disk IO failure.
+     */
+    private void checkStripeLayout(int count, List<File> directories) throws IOException {
+        List<File> foundFiles = new ArrayList<File>();
+        List<File> obsoleteFiles = new ArrayList<File>();
+        boolean[] found = new boolean[count];
+        for (File directory : directories) {
+            File[] files = directory.listFiles();
+            if (files == null)
+                continue;
+            for (File file : files) {
+                int index = parseStripeIndex(file.getName(), configuration.getLogPart1Filename());
+                if (index < 0 || foundFiles.contains(file))
+                    continue;
+                foundFiles.add(file);
+                if (index < count && directories.get(index % directories.size()).equals(directory))
+                    found[index] = true;
+                else
+                    obsoleteFiles.add(file);
+            }
+        }
+
+        boolean changed = !obsoleteFiles.isEmpty();
+        for (int i = 0; i < count && !foundFiles.isEmpty(); i++) {
+            changed |= !found[i];
+        }
+        if (!changed)
+            return;
+
+        int danglingRecords = 0;
+        for (File file1 : foundFiles) {
+            DiskJournal stripe = new DiskJournal(file1, getPart2File(file1));
+            stripe.open();
+            try {
+                danglingRecords += stripe.collectDanglingRecords().size();
+            } finally {
+                stripe.close();
+            }
+        }
+        if (danglingRecords > 0)
+            throw new IOException("found " + foundFiles.size() + " journal stripe(s) not matching the configured " + count +
+                    " stripe(s) in " + directories + " with " + danglingRecords + " dangling record(s), restart with the" +
+                    " previous number of stripes and directories to recover them");
+
+        log.warn("journal stripe layout changed to " + count + " stripe(s) in " + directories + ", deleting " +
+                obsoleteFiles.size() + " obsolete stripe(s) free of dangling records");
+        for (File file1 : obsoleteFiles) {
+            File[] files = { file1, getPart2File(file1), new File(file1.getPath() + ".checkpoint") };
+            for (File file : files) {
+                if (file.exists() && !file.delete())
+                    throw new IOException("cannot delete obsolete journal stripe file " + file);
+            }
+        }
+    }
+
+    /**
+     * Get the index of a stripe from the name of its fragment file 1.
+     * @param filename the name of a file found in a stripe directory.
+     * @param logPart1Filename the configured log file 1.
+     * @return the index of the stripe or -1 if the file is not the fragment file 1 of a stripe.
+     */
+    private static int parseStripeIndex(String filename, String logPart1Filename) {
+        String suffix = "-" + new File(logPart1Filename).getName();
+        if (!filename.startsWith("stripe") || !filename.endsWith(suffix))
+            return -1;
+
+        String index = filename.substring("stripe".length(), filename.length() - suffix.length());
+        if (index.length() == 0 || index.length() > 2)
+            return -1;
+        for (int i = 0; i < index.length(); i++) {
+            if (!Character.isDigit(index.charAt(i)))
+                return -1;
+        }
+        return Integer.parseInt(index);
+    }
+
+    private File getPart2File(File file1) {
+        int index = parseStripeIndex(file1.getName(), configuration.getLogPart1Filename());
+        return new File(file1.getParentFile(), getStripeFilename(configuration.getLogPart2Filename(), index));
+    }
+
+    private List<File> getDirectories() {
+        List<File> directories = new ArrayList<File>();
+
+        String configuredDirectories = configuration.getJournalStripeDirectories();
+        if (configuredDirectories != null) {
+            String[] names = configuredDirectories.split(",");
+            for (String name : names) {
+                if (name.trim().length() > 0)
+                    directories.add(new File(name.trim()));
+            }
+        }
+
+        if (directories.isEmpty()) {
+            File parent = new File(configuration.getLogPart1Filename()).getAbsoluteFile().getParentFile();
+            directories.add(parent);
+        }
+        return directories;
+    }
+
+    private static void closeStripes(DiskJournal[] stripes) {
+        for (DiskJournal stripe : stripes) {
+            if (stripe == null)
+                continue;
+            try {
+                stripe.close();
+            } catch (IOException ex) {
+                log.error("cannot close journal stripe " + stripe, ex);
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.ArrayList;
@@ -32,6 +33,8 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -40,10 +43,23 @@ import javax.transaction.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import bitronix.tm.utils.DirectBuffers;
 import bitronix.tm.utils.Uid;
 
 /**
  * Used to write {@link TransactionLogRecord} objects to a log file.
+ * <p>The log file can either be written through positional writes on its channel or, when memory-mapped, by serializing
+ * the records straight into the mapping of the whole pre-allocated file.</p>
+ * <p>The log file can also be opened for synchronous writes, in which case each write reaches the disk before
+ * returning and forcing the file is not needed. Header updates go through the same synchronous channel since the
+ * records past the position stored in the header are never read back. Records can be padded with a {@link #PADDING_RECORD} frame so that
+ * writes end on a block boundary, which saves the operating system from reading back partially written blocks. Only
+ * {@link TransactionLogHeader#FORMAT_ID_V3} log files contain such frames.</p>
+ * <p>The log file keeps its format until it gets rewound, at which time it is converted to the format matching the
+ * appender settings: {@link TransactionLogHeader#FORMAT_ID_V3} when records are padded,
+ * {@link TransactionLogHeader#FORMAT_ID_V2} when the compact format is enabled and
+ * {@link TransactionLogHeader#FORMAT_ID_V1} otherwise. A log file can this way be converted back to the original
+ * format that older versions are able to read.</p>
  *
  * @author lorban
  */
@@ -58,11 +74,36 @@ public class TransactionLogAppender {
      */
     public static final int END_RECORD = 0x786e7442;
 
+    /**
+     * int-encoded "Pdng" ASCII string.
+     * Status of the frame written after a record to align the next one on a block boundary. The frame is made of this
+     * status, the length of its body and the body filled with zeros. Readers skip it.
+     */
+    public static final int PADDING_RECORD = 0x50646e67;
+
+    private static final int PADDING_HEADER_LENGTH = 8;
+
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    private static final int MAX_POOLED_WRITE_BUFFERS = Math.min(64, Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * Direct buffers are written to the channel without being first copied by the JDK. They are shared by all the
+     * writing threads rather than kept per thread so that the off-heap memory they use stays bounded whatever the
+     * number of threads.
+     */
+    private static final BlockingQueue<ByteBuffer> writeBuffers = new ArrayBlockingQueue<ByteBuffer>(MAX_POOLED_WRITE_BUFFERS);
+
     private final File file;
     private RandomAccessFile randomeAccessFile;
     private final FileChannel fc;
     private final FileLock lock;
+    private final MappedByteBuffer mappedBuffer;
+    private final boolean synchronous;
+    private final int writeAlignment;
+    private final int formatId;
     private final TransactionLogHeader header;
+    private volatile TransactionLogDictionary dictionary;
 	private long maxFileLength;
 	private AtomicInteger outstandingWrites;
 	private long position;
@@ -75,19 +116,84 @@ public class TransactionLogAppender {
      * @throws IOException if an I/O error occurs.
      */
     public TransactionLogAppender(File file, long maxFileLength) throws IOException {
+        this(file, maxFileLength, false);
+    }
+
+    /**
+     * Create an appender that will write to specified file up to the specified maximum length.
+     * @param file the underlying File used to write to disk.
+     * @param maxFileLength size of the file on disk that can never be bypassed.
+     * @param memoryMapped true if the whole file should be memory-mapped and written through the mapping.
+     * @throws IOException if an I/O error occurs.
+     */
+    public TransactionLogAppender(File file, long maxFileLength, boolean memoryMapped) throws IOException {
+        this(file, maxFileLength, memoryMapped, false, 0);
+    }
+
+    /**
+     * Create an appender that will write to specified file up to the specified maximum length.
+     * @param file the underlying File used to write to disk.
+     * @param maxFileLength size of the file on disk that can never be bypassed.
+     * @param memoryMapped true if the whole file should be memory-mapped and written through the mapping.
+     * @param synchronous true if the file should be opened for synchronous writes of its content.
+     * @param writeAlignment the size in bytes of the blocks the writes should end on, 0 to disable padding.
+     * @throws IOException if an I/O error occurs.
+     */
+    public TransactionLogAppender(File file, long maxFileLength, boolean memoryMapped, boolean synchronous, int writeAlignment) throws IOException {
+        this(file, maxFileLength, memoryMapped, synchronous, writeAlignment, false);
+    }
+
+    /**
+     * Create an appender that will write to specified file up to the specified maximum length.
+     * @param file the underlying File used to write to disk.
+     * @param maxFileLength size of the file on disk that can never be bypassed.
+     * @param memoryMapped true if the whole file should be memory-mapped and written through the mapping.
+     * @param synchronous true if the file should be opened for synchronous writes of its content.
+     * @param writeAlignment the size in bytes of the blocks the writes should end on, 0 to disable padding.
+     * @param compactLogFormat true if the file should be converted to the compact format when rewound.
+     * @throws IOException if an I/O error occurs.
+     */
+    public TransactionLogAppender(File file, long maxFileLength, boolean memoryMapped, boolean synchronous, int writeAlignment, boolean compactLogFormat) throws IOException {
         this.file = file;
-        this.randomeAccessFile = new RandomAccessFile(file, "rw");
+        this.synchronous = synchronous;
+        this.writeAlignment = Math.max(0, writeAlignment);
+        this.formatId = getFormatId(this.writeAlignment, compactLogFormat);
+        this.randomeAccessFile = new RandomAccessFile(file, synchronous ? "rwd" : "rw");
         this.fc = randomeAccessFile.getChannel();
-        this.header = new TransactionLogHeader(fc, maxFileLength);
+        if (memoryMapped) {
+            if (maxFileLength > Integer.MAX_VALUE)
+                throw new IOException("transaction log file " + file.getName() + " is too large to be memory-mapped: " + maxFileLength + " bytes");
+            this.mappedBuffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, maxFileLength);
+        } else {
+            this.mappedBuffer = null;
+        }
+        this.header = new TransactionLogHeader(fc, mappedBuffer, maxFileLength);
         this.maxFileLength = maxFileLength;
         this.lock = fc.tryLock(0, TransactionLogHeader.TIMESTAMP_HEADER, false);
-        if (this.lock == null)
+        if (this.lock == null) {
+            DirectBuffers.release(mappedBuffer);
+            randomeAccessFile.close();
             throw new IOException("transaction log file " + file.getName() + " is locked. Is another instance already running?");
+        }
 
         this.outstandingWrites = new AtomicInteger();
 
         this.danglingRecords = new ConcurrentHashMap<Uid, Set<String>>();
 
+        if (!TransactionLogHeader.isValidFormatId(header.getFormatId())) {
+            DirectBuffers.release(mappedBuffer);
+            randomeAccessFile.close();
+            TransactionLogHeader.checkFormatId(header.getFormatId(), file);
+        }
+
+        if (TransactionLogHeader.hasDictionary(header.getFormatId())) {
+            this.dictionary = new TransactionLogDictionary(fc, mappedBuffer);
+            this.dictionary.load();
+        }
+
+        // the upgrade to format 2 may have been interrupted before the position got moved after the dictionary
+        if (header.getPosition() < header.getFirstRecordPosition())
+            header.rewind();
         this.position = header.getPosition();
     }
 
@@ -99,14 +205,36 @@ public class TransactionLogAppender {
      * @throws IOException if an I/O error occurs
      */
     protected boolean setPositionAndAdvance(TransactionLogRecord tlog) throws IOException {
-        int tlogSize = tlog.calculateTotalRecordSize();
-    	if (position + tlogSize > maxFileLength) {
+        return setPositionAndAdvance(Collections.singletonList(tlog));
+    }
+
+    /**
+     * Get the current file position and advance the position by the size of all the records if the maximum file
+     * length won't be exceeded. The records are laid out one after the other so that {@link #writeLogs(List)} writes
+     * them at once.
+     * @param tlogs the TransactionLogRecords
+     * @return true if the log should rollover, false otherwise
+     * @throws IOException if an I/O error occurs
+     */
+    protected boolean setPositionAndAdvance(List<TransactionLogRecord> tlogs) throws IOException {
+        int tlogsSize = 0;
+        for (TransactionLogRecord tlog : tlogs) {
+            if (dictionary != null)
+                dictionary.addAll(tlog.getUniqueNames());
+            tlogsSize += calculateTotalRecordSize(tlog);
+        }
+
+        tlogsSize = calculatePaddedSize(position, tlogsSize);
+    	if (position + tlogsSize > maxFileLength) {
     		return true;
     	}
 
     	long writePosition = position;
-    	position += tlogSize;
-    	tlog.setWritePosition(writePosition);
+    	position += tlogsSize;
+    	for (TransactionLogRecord tlog : tlogs) {
+    	    tlog.setWritePosition(writePosition);
+    	    writePosition += calculateTotalRecordSize(tlog);
+    	}
 
     	outstandingWrites.incrementAndGet();
     	return false;
@@ -119,37 +247,56 @@ public class TransactionLogAppender {
      * @throws IOException if an I/O error occurs.
      */
     protected void writeLog(TransactionLogRecord tlog) throws IOException {
+        writeLogs(Collections.singletonList(tlog));
+    }
+
+    /**
+     * Write {@link TransactionLogRecord} objects laid out by {@link #setPositionAndAdvance(List)} to disk with a
+     * single write.
+     * @param tlogs the records to write to disk.
+     * @throws IOException if an I/O error occurs.
+     */
+    protected void writeLogs(List<TransactionLogRecord> tlogs) throws IOException {
         try {
-            int status = tlog.getStatus();
-            Uid gtrid = tlog.getGtrid();
-
-        	int recordSize = tlog.calculateTotalRecordSize();
-            ByteBuffer buf = ByteBuffer.allocate(recordSize);
-            buf.putInt(tlog.getStatus());
-            buf.putInt(tlog.getRecordLength());
-            buf.putInt(tlog.getHeaderLength());
-            buf.putLong(tlog.getTime());
-            buf.putInt(tlog.getSequenceNumber());
-            buf.putInt(tlog.getCrc32());
-            buf.put((byte) gtrid.getArray().length);
-            buf.put(gtrid.getArray());
-            Set<String> uniqueNames = tlog.getUniqueNames();
-            buf.putInt(uniqueNames.size());
-            for (String uniqueName : uniqueNames) {
-                buf.putShort((short) uniqueName.length());
-                buf.put(uniqueName.getBytes());
+            int recordsSize = 0;
+            for (TransactionLogRecord tlog : tlogs) {
+                recordsSize += calculateTotalRecordSize(tlog);
             }
-            buf.putInt(tlog.getEndRecord());
-            buf.flip();
-
-            if (log.isDebugEnabled()) log.debug("between " + tlog.getWritePosition() + " and " + tlog.getWritePosition() + tlog.calculateTotalRecordSize() + ", writing " + tlog);
-    
-            final long writePosition = tlog.getWritePosition();
-            while (buf.hasRemaining()) {
-            	fc.write(buf, writePosition + buf.position());
+            final long writePosition = tlogs.get(0).getWritePosition();
+            int paddedSize = calculatePaddedSize(writePosition, recordsSize);
+
+            if (log.isDebugEnabled()) log.debug("between " + writePosition + " and " + (writePosition + paddedSize) + ", writing " +
+                    (tlogs.size() == 1 ? tlogs.get(0) : tlogs.size() + " records"));
+
+            if (mappedBuffer != null) {
+                // serialize straight into the slice of the mapping reserved by setPositionAndAdvance
+                ByteBuffer buf = mappedBuffer.duplicate();
+                buf.position((int) writePosition);
+                buf.limit((int) writePosition + paddedSize);
+                for (TransactionLogRecord tlog : tlogs) {
+                    writeTo(tlog, buf);
+                }
+                writePadding(buf);
+            } else {
+                ByteBuffer buf = acquireWriteBuffer(paddedSize);
+                try {
+                    for (TransactionLogRecord tlog : tlogs) {
+                        writeTo(tlog, buf);
+                    }
+                    writePadding(buf);
+                    buf.flip();
+
+                    while (buf.hasRemaining()) {
+                        fc.write(buf, writePosition + buf.position());
+                    }
+                } finally {
+                    releaseWriteBuffer(buf);
+                }
             }
 
-            trackOutstanding(status, gtrid, uniqueNames);
+            for (TransactionLogRecord tlog : tlogs) {
+                trackOutstanding(tlog.getStatus(), tlog.getGtrid(), tlog.getUniqueNames());
+            }
         }
         finally {
         	if (outstandingWrites.decrementAndGet() == 0) {
@@ -158,6 +305,102 @@ public class TransactionLogAppender {
         }
     }
 
+    /**
+     * Get the size of a record in the format of this log file.
+     * @param tlog the record.
+     * @return the size of the record on disk.
+     */
+    private int calculateTotalRecordSize(TransactionLogRecord tlog) {
+        TransactionLogDictionary dictionary = this.dictionary;
+        return dictionary == null ? tlog.calculateTotalRecordSize() : tlog.calculateTotalRecordSize(dictionary);
+    }
+
+    /**
+     * Get the size a record takes once padded so that it ends on a write alignment boundary.
+     * @param writePosition the position the record is written at.
+     * @param recordSize the size of the record.
+     * @return the size of the record and of its padding frame, if any.
+     */
+    private int calculatePaddedSize(long writePosition, int recordSize) {
+        // padding frames can only be written to log files whose format tells readers to expect them
+        if (writeAlignment == 0 || !TransactionLogHeader.hasPadding(header.getFormatId()))
+            return recordSize;
+
+        long end = writePosition + recordSize;
+        int gap = (int) ((writeAlignment - end % writeAlignment) % writeAlignment);
+        // the padding frame must at least fit its header
+        if (gap > 0 && gap < PADDING_HEADER_LENGTH)
+            gap += writeAlignment;
+        return recordSize + gap;
+    }
+
+    /**
+     * Fill the remaining space of a buffer with a padding frame.
+     * @param buf the buffer positioned right after the record.
+     */
+    private static void writePadding(ByteBuffer buf) {
+        int gap = buf.remaining();
+        if (gap == 0)
+            return;
+
+        buf.putInt(PADDING_RECORD);
+        buf.putInt(gap - PADDING_HEADER_LENGTH);
+        while (buf.hasRemaining()) {
+            buf.put((byte) 0);
+        }
+    }
+
+    /**
+     * Write a record in the format of this log file.
+     * @param tlog the record.
+     * @param buf the buffer to write to.
+     */
+    private void writeTo(TransactionLogRecord tlog, ByteBuffer buf) {
+        TransactionLogDictionary dictionary = this.dictionary;
+        if (dictionary == null)
+            tlog.writeTo(buf);
+        else
+            tlog.writeTo(buf, dictionary);
+    }
+
+    /**
+     * Get a cleared write buffer with a limit of the requested size, from the pool when the size allows it.
+     * @param size the number of bytes the buffer must be able to hold.
+     * @return the write buffer, which must be given back with {@link #releaseWriteBuffer(ByteBuffer)}.
+     */
+    private static ByteBuffer acquireWriteBuffer(int size) {
+        ByteBuffer buf;
+        if (size <= WRITE_BUFFER_SIZE) {
+            buf = writeBuffers.poll();
+            if (buf == null)
+                buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        } else {
+            // large batches are rare, their buffer is not worth keeping
+            buf = ByteBuffer.allocateDirect(size);
+        }
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    /**
+     * Give a buffer obtained with {@link #acquireWriteBuffer(int)} back to the pool, or free it right away if it is
+     * oversized or if the pool is full.
+     * @param buf the buffer.
+     */
+    private static void releaseWriteBuffer(ByteBuffer buf) {
+        if (buf.capacity() != WRITE_BUFFER_SIZE || !writeBuffers.offer(buf))
+            DirectBuffers.release(buf);
+    }
+
+    static int getPooledWriteBufferCount() {
+        return writeBuffers.size();
+    }
+
+    static int getMaxPooledWriteBufferCount() {
+        return MAX_POOLED_WRITE_BUFFERS;
+    }
+
     protected List<TransactionLogRecord> getDanglingLogs() {
         List<Uid> sortedUids = new ArrayList<Uid>(danglingRecords.keySet());
         Collections.sort(sortedUids, new Comparator<Uid>() {
@@ -169,7 +412,12 @@ public class TransactionLogAppender {
         List<TransactionLogRecord> outstandingLogs = new ArrayList<TransactionLogRecord>(danglingRecords.size());
         for (Uid uid : sortedUids) {
             Set<String> uniqueNames = danglingRecords.get(uid);
-            outstandingLogs.add(new TransactionLogRecord(Status.STATUS_COMMITTING, uid, uniqueNames));
+            if (uniqueNames == null)
+                continue;
+            synchronized (uniqueNames) {
+                if (!uniqueNames.isEmpty())
+                    outstandingLogs.add(new TransactionLogRecord(Status.STATUS_COMMITTING, uid, uniqueNames));
+            }
         }
 
         return outstandingLogs;
@@ -179,7 +427,13 @@ public class TransactionLogAppender {
         danglingRecords.clear();
     }
 
-    private void trackOutstanding(int status, Uid gtrid, Set<String> uniqueNames) {
+    /**
+     * Update the dangling records of this log file with a record written to it.
+     * @param status the status of the record.
+     * @param gtrid the GTRID of the record.
+     * @param uniqueNames the unique names of the record.
+     */
+    void trackOutstanding(int status, Uid gtrid, Set<String> uniqueNames) {
         switch (status)
         {
             case Status.STATUS_COMMITTING:
@@ -211,12 +465,43 @@ public class TransactionLogAppender {
     }
 
     /**
-     * Return a {@link TransactionLogHeader} that allows reading and controlling the log file's header.
-     * @return this log file's TransactionLogHeader
+     * Get the format of the log files written with the specified settings.
+     * @param writeAlignment the size in bytes of the blocks the writes should end on, 0 when records are not padded.
+     * @param compactLogFormat true if the compact format is enabled.
+     * @return the format ID of the log files.
+     */
+    static int getFormatId(int writeAlignment, boolean compactLogFormat) {
+        if (writeAlignment > 0)
+            return TransactionLogHeader.FORMAT_ID_V3;
+        return compactLogFormat ? TransactionLogHeader.FORMAT_ID_V2 : TransactionLogHeader.FORMAT_ID_V1;
+    }
+
+    /**
+     * Rewind the log file so that it gets overwritten from its first record and empty its unique names dictionary.
+     * The log file is converted at that time to the format matching the appender settings, see
+     * {@link #getFormatId(int, boolean)}.
+     * <p>The file is emptied first and the dictionary initialized before the new format ID and the new position get
+     * written together so that a crash in the middle of the conversion never leaves a header in front of content of
+     * another format.</p>
      * @throws IOException if an I/O error occurs
      */
     void rewind() throws IOException {
         header.rewind();
+        TransactionLogDictionary dictionary = this.dictionary;
+        if (header.getFormatId() != formatId) {
+            if (log.isDebugEnabled()) log.debug("converting " + this + " to log file format 0x" + Integer.toHexString(formatId));
+            if (TransactionLogHeader.hasDictionary(formatId)) {
+                if (dictionary == null)
+                    dictionary = new TransactionLogDictionary(fc, mappedBuffer);
+                dictionary.clear();
+            } else {
+                dictionary = null;
+            }
+            header.setFormatIdAndRewind(formatId);
+            this.dictionary = dictionary;
+        } else if (dictionary != null) {
+            dictionary.clear();
+        }
         position = header.getPosition();
     }
 
@@ -254,6 +539,14 @@ public class TransactionLogAppender {
     	header.setState(state);
     }
 
+    /**
+     * Are the writes to the log file synchronous, making forces unneeded?
+     * @return true if writes to the log file are durable once done.
+     */
+    boolean isSynchronous() {
+        return synchronous && mappedBuffer == null;
+    }
+
     /**
      * Get the current file position.
      * @return the file position
@@ -265,16 +558,25 @@ public class TransactionLogAppender {
 
 
     /**
-     * Close the appender and the underlying file.
+     * Close the appender and the underlying file. A memory-mapped file is unmapped right away rather than when the
+     * mapping gets garbage collected, so that it can be deleted or renamed afterwards whatever the platform. Nothing
+     * must be written to the appender anymore once this method is called.
      * @throws IOException if an I/O error occurs.
      */
     protected void close() throws IOException {
-        header.setState(TransactionLogHeader.CLEAN_LOG_STATE);
-        fc.force(false);
-        if (lock != null)
-        	lock.release();
-        fc.close();
-        randomeAccessFile.close();
+        try {
+            header.setState(TransactionLogHeader.CLEAN_LOG_STATE);
+            if (mappedBuffer != null)
+                mappedBuffer.force();
+            fc.force(false);
+            if (lock != null)
+                lock.release();
+            fc.close();
+            randomeAccessFile.close();
+        } finally {
+            if (mappedBuffer != null && !DirectBuffers.release(mappedBuffer))
+                log.warn("cannot unmap " + file.getName() + ", it stays mapped until garbage collected");
+        }
     }
 
     /**
@@ -288,17 +590,47 @@ public class TransactionLogAppender {
         return new TransactionLogCursor(file);
     }
 
+    /**
+     * Creates a cursor on this journal file allowing iteration of its records, starting at the specified position.
+     * @param startPosition the position of the first record to read.
+     * @return a TransactionLogCursor.
+     * @throws IOException if an I/O error occurs.
+     */
+    protected TransactionLogCursor getCursor(long startPosition) throws IOException {
+        return new TransactionLogCursor(file, startPosition);
+    }
+
+    /**
+     * Creates a bulk reader on this journal file allowing fast iteration of its records, starting at the specified
+     * position.
+     * @param startPosition the position of the first record to read.
+     * @param skipCrcCheck true if the CRC of the records must not be checked.
+     * @return a TransactionLogBulkReader.
+     * @throws IOException if an I/O error occurs.
+     */
+    protected TransactionLogBulkReader getBulkReader(long startPosition, boolean skipCrcCheck) throws IOException {
+        return new TransactionLogBulkReader(file, startPosition, skipCrcCheck);
+    }
+
     /**
      * Force flushing the logs to disk
      * @throws IOException if an I/O error occurs.
      */
     protected void force() throws IOException {
+        if (synchronous && mappedBuffer == null) {
+            if (log.isDebugEnabled()) log.debug("not forcing log writing, writes are synchronous");
+            return;
+        }
         if (log.isDebugEnabled()) log.debug("forcing log writing");
-        fc.force(false);
+        if (mappedBuffer != null)
+            mappedBuffer.force();
+        else
+            fc.force(false);
         if (log.isDebugEnabled()) log.debug("done forcing log");
     }
 
     public String toString() {
-        return "a TransactionLogAppender on " + file.getName();
+        return "a " + (mappedBuffer != null ? "memory-mapped " : "") + (synchronous ? "synchronous " : "")
+                + "TransactionLogAppender on " + file.getName();
     }
 }
@@ -0,0 +1,369 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.journal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Used to read {@link TransactionLogRecord} objects from a log file in bulk.
+ * <p>The file is read sequentially in large chunks which are split on record boundaries. The records of each chunk
+ * are then decoded and their CRC checked by a pool of threads while the next chunks are being read. Records and
+ * errors are returned in the same order as a {@link TransactionLogCursor} would return them.</p>
+ *
+ * @author lorban
+ */
+public class TransactionLogBulkReader {
+
+    private final static Logger log = LoggerFactory.getLogger(TransactionLogBulkReader.class);
+
+    /**
+     * The default size of the chunks read from the log file.
+     */
+    public final static int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final static int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private final static AtomicInteger threadCounter = new AtomicInteger();
+
+    /**
+     * Decoding threads shared by all the readers, created when a file with more than one chunk is first read.
+     */
+    private static ExecutorService decoders;
+
+    private final File file;
+    private final FileInputStream fis;
+    private final FileChannel fileChannel;
+    private final boolean skipCrcCheck;
+    private final int chunkSize;
+    private final long endPosition;
+    private final TransactionLogDictionary dictionary;
+    private final boolean padded;
+
+    private final LinkedList<Future<List<Object>>> pendingChunks = new LinkedList<Future<List<Object>>>();
+    private long readPosition;
+    private ByteBuffer leftover = ByteBuffer.allocate(0);
+    private boolean endOfFile;
+    private List<Object> currentChunk = Collections.emptyList();
+    private int currentIndex;
+
+    /**
+     * Create a TransactionLogBulkReader that will read from the specified file.
+     * This opens a new read-only file descriptor.
+     * @param file the file to read logs from
+     * @param skipCrcCheck if set to false, {@link #readLog()} will throw a CorruptedTransactionLogException for records
+     *        whose CRC on disk does not match the recalculated one.
+     * @throws IOException if an I/O error occurs.
+     */
+    public TransactionLogBulkReader(File file, boolean skipCrcCheck) throws IOException {
+        this(file, TransactionLogHeader.HEADER_LENGTH, skipCrcCheck);
+    }
+
+    /**
+     * Create a TransactionLogBulkReader that will read from the specified file, starting at the specified position.
+     * This opens a new read-only file descriptor.
+     * @param file the file to read logs from
+     * @param startPosition the position of the first record to read, which must be the start of a record.
+     * @param skipCrcCheck if set to false, {@link #readLog()} will throw a CorruptedTransactionLogException for records
+     *        whose CRC on disk does not match the recalculated one.
+     * @throws IOException if an I/O error occurs.
+     */
+    public TransactionLogBulkReader(File file, long startPosition, boolean skipCrcCheck) throws IOException {
+        this(file, startPosition, skipCrcCheck, DEFAULT_CHUNK_SIZE);
+    }
+
+    TransactionLogBulkReader(File file, long startPosition, boolean skipCrcCheck, int chunkSize) throws IOException {
+        this.file = file;
+        this.fis = new FileInputStream(file);
+        this.fileChannel = fis.getChannel();
+        this.skipCrcCheck = skipCrcCheck;
+        this.chunkSize = chunkSize;
+
+        ByteBuffer buf = ByteBuffer.allocate(TransactionLogHeader.HEADER_LENGTH);
+        readFully(buf, TransactionLogHeader.FORMAT_ID_HEADER);
+        int formatId = buf.getInt(TransactionLogHeader.FORMAT_ID_HEADER);
+        if (!TransactionLogHeader.isValidFormatId(formatId)) {
+            fis.close();
+            TransactionLogHeader.checkFormatId(formatId, file);
+        }
+        this.padded = TransactionLogHeader.hasPadding(formatId);
+        this.endPosition = buf.getLong(TransactionLogHeader.CURRENT_POSITION_HEADER);
+        this.readPosition = Math.max(startPosition, TransactionLogHeader.getFirstRecordPosition(formatId));
+
+        if (TransactionLogHeader.hasDictionary(formatId)) {
+            // the dictionary is read after the end position so that it contains all names of the records to read
+            this.dictionary = new TransactionLogDictionary(fileChannel, null);
+            this.dictionary.load();
+        } else {
+            this.dictionary = null;
+        }
+    }
+
+    /**
+     * Fetch the next TransactionLogRecord from log.
+     * @return the TransactionLogRecord or null if the end of the log file has been reached
+     * @throws CorruptedTransactionLogException if the record is corrupted, the next call will return the next record.
+     * @throws IOException if an I/O error occurs.
+     */
+    public TransactionLogRecord readLog() throws IOException {
+        while (currentIndex >= currentChunk.size()) {
+            if (!nextChunk()) {
+                if (log.isDebugEnabled()) log.debug("end of transaction log file reached at " + endPosition);
+                return null;
+            }
+        }
+
+        Object result = currentChunk.set(currentIndex++, null);
+        if (result instanceof IOException)
+            throw (IOException) result;
+        if (result instanceof RuntimeException)
+            throw (RuntimeException) result;
+        return (TransactionLogRecord) result;
+    }
+
+    /**
+     * Close the reader and the underlying file, stopping the decoding of chunks that have been read ahead.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void close() throws IOException {
+        for (Future<List<Object>> pendingChunk : pendingChunks) {
+            pendingChunk.cancel(false);
+        }
+        pendingChunks.clear();
+        fis.close();
+        fileChannel.close();
+    }
+
+    public String toString() {
+        return "a TransactionLogBulkReader on " + file.getName() + " at position " + readPosition + " of " + endPosition;
+    }
+
+    /*
+     * Internal impl.
+     */
+
+    /**
+     * Read ahead as many chunks as there are decoding threads then wait for the oldest one to be decoded.
+     * @return false if there is no chunk left to read.
+     * @throws IOException if an I/O error occurs.
+     */
+    private boolean nextChunk() throws IOException {
+        while (!endOfFile && pendingChunks.size() < PARALLELISM * 2) {
+            Chunk chunk = readChunk();
+            if (chunk == null)
+                break;
+            pendingChunks.add(submit(chunk));
+        }
+
+        if (pendingChunks.isEmpty())
+            return false;
+
+        Future<List<Object>> future = pendingChunks.removeFirst();
+        try {
+            currentChunk = future.get();
+            currentIndex = 0;
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while reading " + this);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Error)
+                throw (Error) ex.getCause();
+            IOException ioe = new IOException("cannot decode records of " + this);
+            ioe.initCause(ex.getCause());
+            throw ioe;
+        }
+    }
+
+    /**
+     * Decode the chunk in the calling thread when it is the last one and no other chunk is pending, otherwise hand
+     * it over to the decoding threads.
+     * @param chunk the chunk to decode.
+     * @return the future result of the decoding.
+     */
+    private Future<List<Object>> submit(Chunk chunk) {
+        if (pendingChunks.isEmpty() && endOfFile || PARALLELISM == 1) {
+            FutureTask<List<Object>> task = new FutureTask<List<Object>>(chunk);
+            task.run();
+            return task;
+        }
+        return getDecoders().submit(chunk);
+    }
+
+    private static synchronized ExecutorService getDecoders() {
+        if (decoders == null) {
+            decoders = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "bitronix-log-reader-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return decoders;
+    }
+
+    /**
+     * Read the next chunk of the file, carrying over to the next chunk the partial record found at its end.
+     * Reads are aligned on the chunk size except for the first one.
+     * @return the chunk or null if there is no record left to read.
+     * @throws IOException if an I/O error occurs.
+     */
+    private Chunk readChunk() throws IOException {
+        while (true) {
+            if (readPosition >= endPosition) {
+                endOfFile = true;
+                if (!leftover.hasRemaining())
+                    return null;
+            }
+
+            long chunkEnd = Math.min(endPosition, (readPosition / chunkSize + 1) * chunkSize);
+            int readSize = (int) Math.max(0, chunkEnd - readPosition);
+            long bufferPosition = readPosition - leftover.remaining();
+            ByteBuffer buffer = ByteBuffer.allocate(leftover.remaining() + readSize);
+            buffer.put(leftover);
+            readFully(buffer, readPosition);
+            readPosition += readSize;
+            buffer.flip();
+
+            Chunk chunk = new Chunk(buffer, bufferPosition);
+            int offset = 0;
+            while (buffer.limit() - offset >= 8) {
+                int recordLength = buffer.getInt(offset + 4);
+                long recordEnd = bufferPosition + offset + 8 + recordLength;
+                if (recordLength < 0 || recordEnd > endPosition) {
+                    chunk.corruption = new CorruptedTransactionLogException("corrupted log found at position "
+                            + (bufferPosition + offset) + " (record terminator outside of file bounds: " + recordEnd
+                            + " of " + endPosition + ", recordLength: " + recordLength + ")");
+                    break;
+                }
+                if (offset + 8 + recordLength > buffer.limit())
+                    break;
+                // padding written to align records on disk blocks carries no record
+                if (!padded || buffer.getInt(offset) != TransactionLogAppender.PADDING_RECORD)
+                    chunk.add(offset);
+                offset += 8 + recordLength;
+            }
+
+            if (chunk.corruption == null && readPosition >= endPosition && offset < buffer.limit()) {
+                chunk.corruption = new CorruptedTransactionLogException("corrupted log found at position "
+                        + (bufferPosition + offset) + " (record header outside of file bounds: " + endPosition + ")");
+            }
+
+            if (chunk.corruption != null) {
+                endOfFile = true;
+                leftover = ByteBuffer.allocate(0);
+                return chunk;
+            }
+
+            buffer.position(offset);
+            leftover = buffer.slice();
+            if (readPosition >= endPosition)
+                endOfFile = true;
+            if (chunk.size() > 0)
+                return chunk;
+            if (endOfFile)
+                return null;
+            // a record bigger than the chunk size, keep reading
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = fileChannel.read(buffer, position);
+            if (read == -1)
+                throw new IOException("unexpected end of file " + file.getAbsolutePath() + " at position " + position);
+            position += read;
+        }
+    }
+
+    /**
+     * A chunk of the log file containing whole records, decoded into a list of {@link TransactionLogRecord} or of the
+     * exceptions the decoding raised, in file order.
+     */
+    private final class Chunk implements Callable<List<Object>> {
+        private final ByteBuffer buffer;
+        private final long bufferPosition;
+        private int[] offsets = new int[64];
+        private int size;
+        private CorruptedTransactionLogException corruption;
+
+        private Chunk(ByteBuffer buffer, long bufferPosition) {
+            this.buffer = buffer;
+            this.bufferPosition = bufferPosition;
+        }
+
+        private void add(int offset) {
+            if (size == offsets.length) {
+                int[] newOffsets = new int[size * 2];
+                System.arraycopy(offsets, 0, newOffsets, 0, size);
+                offsets = newOffsets;
+            }
+            offsets[size++] = offset;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        public List<Object> call() throws Exception {
+            List<Object> results = new ArrayList<Object>(size + 1);
+            ByteBuffer page = buffer.duplicate();
+
+            for (int i = 0; i < size; i++) {
+                int offset = offsets[i];
+                page.position(offset);
+                int status = page.getInt();
+                int recordLength = page.getInt();
+                try {
+                    results.add(TransactionLogCursor.decodeRecord(page, status, recordLength, bufferPosition + offset, skipCrcCheck, dictionary));
+                } catch (IOException ex) {
+                    results.add(ex);
+                } catch (RuntimeException ex) {
+                    results.add(ex);
+                }
+            }
+
+            if (corruption != null)
+                results.add(corruption);
+            return results;
+        }
+    }
+
+}
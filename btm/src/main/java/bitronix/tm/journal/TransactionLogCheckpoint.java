@@ -0,0 +1,216 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.journal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javax.transaction.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bitronix.tm.BitronixXid;
+import bitronix.tm.resource.ResourceRegistrar;
+import bitronix.tm.utils.Uid;
+
+/**
+ * Compact snapshot of the dangling records of a log file, stored in a side file.
+ * <p>A checkpoint is only valid for the log file having the same timestamp header, it then contains all the dangling
+ * records found between the beginning of that file and the checkpoint position. Only the records written after that
+ * position must then be read to rebuild the dangling records of the log file.</p>
+ * <p>On-disk format is <code>[FORMAT_ID :4] [LOG FILE TIMESTAMP :8] [POSITION :8] [RECORD COUNT :4]
+ * ([GTRID LENGTH :1] [GTRID :A] [UNIQUE NAMES COUNT :4] ([UNIQUE NAME LENGTH :2] [UNIQUE NAME :Y] ...) ...) [CRC32 :4]</code>
+ * where the CRC32 covers everything preceding it.</p>
+ * <p>Checkpoints are an optimization only: a missing, outdated or corrupted checkpoint is ignored and the whole log
+ * file is read instead. For that reason, checkpoint files are not forced to disk.</p>
+ *
+ * @author lorban
+ */
+public class TransactionLogCheckpoint {
+
+    private final static Logger log = LoggerFactory.getLogger(TransactionLogCheckpoint.class);
+
+    private final static int HEADER_LENGTH = 4 + 8 + 8 + 4;
+
+    private final long timestamp;
+    private final long position;
+    private final List<TransactionLogRecord> danglingLogs;
+
+    /**
+     * Create a checkpoint.
+     * @param timestamp the timestamp header of the log file.
+     * @param position the position in the log file up to which the dangling records have been collected.
+     * @param danglingLogs the dangling records found before the position.
+     */
+    public TransactionLogCheckpoint(long timestamp, long position, List<TransactionLogRecord> danglingLogs) {
+        this.timestamp = timestamp;
+        this.position = position;
+        this.danglingLogs = Collections.unmodifiableList(danglingLogs);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public List<TransactionLogRecord> getDanglingLogs() {
+        return danglingLogs;
+    }
+
+    /**
+     * Write this checkpoint to the specified file. The checkpoint is first written to a temporary file which then
+     * replaces the specified one. The log file must have been forced up to the checkpoint position.
+     * @param file the checkpoint file.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(File file) throws IOException {
+        int size = HEADER_LENGTH + 4;
+        for (TransactionLogRecord tlog : danglingLogs) {
+            size += 1 + tlog.getGtrid().length() + 4;
+            for (String uniqueName : tlog.getUniqueNames()) {
+                size += 2 + TransactionLogRecord.getUniqueNameBytes(uniqueName).length;
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(BitronixXid.FORMAT_ID);
+        buf.putLong(timestamp);
+        buf.putLong(position);
+        buf.putInt(danglingLogs.size());
+        for (TransactionLogRecord tlog : danglingLogs) {
+            buf.put((byte) tlog.getGtrid().length());
+            buf.put(tlog.getGtrid().getArray());
+            Set<String> uniqueNames = tlog.getUniqueNames();
+            buf.putInt(uniqueNames.size());
+            for (String uniqueName : uniqueNames) {
+                byte[] nameBytes = TransactionLogRecord.getUniqueNameBytes(uniqueName);
+                buf.putShort((short) nameBytes.length);
+                buf.put(nameBytes);
+            }
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc32.getValue());
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            fos.write(buf.array());
+        } finally {
+            fos.close();
+        }
+
+        if (file.exists() && !file.delete())
+            throw new IOException("cannot overwrite checkpoint file " + file.getAbsolutePath());
+        if (!tempFile.renameTo(file))
+            throw new IOException("cannot rename " + tempFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+
+        if (log.isDebugEnabled()) log.debug("wrote " + this + " to " + file);
+    }
+
+    /**
+     * Read the checkpoint stored in the specified file.
+     * @param file the checkpoint file.
+     * @return the checkpoint or null if the file does not exist or is corrupted.
+     * @throws IOException if an I/O error occurs.
+     */
+    public static TransactionLogCheckpoint read(File file) throws IOException {
+        if (!file.exists() || file.length() < HEADER_LENGTH + 4 || file.length() > Integer.MAX_VALUE)
+            return null;
+
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                int count = fis.read(content, read, content.length - read);
+                if (count == -1)
+                    return null;
+                read += count;
+            }
+        } finally {
+            fis.close();
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(content);
+        CRC32 crc32 = new CRC32();
+        crc32.update(content, 0, content.length - 4);
+        if ((int) crc32.getValue() != buf.getInt(content.length - 4)) {
+            log.warn("ignoring corrupted checkpoint file " + file.getAbsolutePath() + " (invalid CRC)");
+            return null;
+        }
+
+        try {
+            if (buf.getInt() != BitronixXid.FORMAT_ID) {
+                log.warn("ignoring checkpoint file " + file.getAbsolutePath() + " (invalid format ID)");
+                return null;
+            }
+            long timestamp = buf.getLong();
+            long position = buf.getLong();
+            int count = buf.getInt();
+
+            List<TransactionLogRecord> danglingLogs = new ArrayList<TransactionLogRecord>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] gtridArray = new byte[buf.get()];
+                buf.get(gtridArray);
+                int uniqueNamesCount = buf.getInt();
+                Set<String> uniqueNames = new HashSet<String>(uniqueNamesCount);
+                for (int j = 0; j < uniqueNamesCount; j++) {
+                    byte[] nameBytes = new byte[buf.getShort()];
+                    buf.get(nameBytes);
+                    uniqueNames.add(decodeUniqueName(nameBytes));
+                }
+                danglingLogs.add(new TransactionLogRecord(Status.STATUS_COMMITTING, new Uid(gtridArray), uniqueNames));
+            }
+            return new TransactionLogCheckpoint(timestamp, position, danglingLogs);
+        } catch (RuntimeException ex) {
+            log.warn("ignoring corrupted checkpoint file " + file.getAbsolutePath(), ex);
+            return null;
+        }
+    }
+
+    private static String decodeUniqueName(byte[] nameBytes) {
+        try {
+            return new String(nameBytes, ResourceRegistrar.UNIQUE_NAME_CHARSET);
+        } catch (UnsupportedEncodingException ex) {
+            return new String(nameBytes);
+        }
+    }
+
+    public String toString() {
+        return "a TransactionLogCheckpoint with timestamp=" + timestamp + ", position=" + position +
+                ", danglingRecords=" + danglingLogs.size();
+    }
+}
@@ -23,6 +23,7 @@ package bitronix.tm.journal;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.HashSet;
@@ -31,6 +32,7 @@ import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import bitronix.tm.utils.Encoder;
 import bitronix.tm.utils.Uid;
 
 /**
@@ -48,6 +50,8 @@ public class TransactionLogCursor {
     private long currentPosition;
     private long endPosition;
     private ByteBuffer page;
+    private final int formatId;
+    private TransactionLogDictionary dictionary;
 
     /**
      * Create a TransactionLogCursor that will read from the specified file.
@@ -56,15 +60,47 @@ public class TransactionLogCursor {
      * @throws IOException if an I/O error occurs.
      */
     public TransactionLogCursor(File file) throws IOException {
+        this(file, TransactionLogHeader.HEADER_LENGTH);
+    }
+
+    /**
+     * Create a TransactionLogCursor that will read from the specified file, starting at the specified position.
+     * This opens a new read-only file descriptor.
+     * @param file the file to read logs from
+     * @param startPosition the position of the first record to read, which must be the start of a record.
+     * @throws IOException if an I/O error occurs.
+     */
+    public TransactionLogCursor(File file, long startPosition) throws IOException {
         this.fis = new FileInputStream(file);
         this.fileChannel = fis.getChannel();
         this.page = ByteBuffer.allocate(8192);
 
-        fileChannel.position(TransactionLogHeader.CURRENT_POSITION_HEADER);
+        fileChannel.position(TransactionLogHeader.FORMAT_ID_HEADER);
         fileChannel.read(page);
         page.rewind();
-        endPosition = page.getLong();
-        currentPosition = TransactionLogHeader.CURRENT_POSITION_HEADER + 8;
+        formatId = page.getInt(TransactionLogHeader.FORMAT_ID_HEADER);
+        if (!TransactionLogHeader.isValidFormatId(formatId)) {
+            fis.close();
+            TransactionLogHeader.checkFormatId(formatId, file);
+        }
+        endPosition = page.getLong(TransactionLogHeader.CURRENT_POSITION_HEADER);
+        page.position(TransactionLogHeader.HEADER_LENGTH);
+        currentPosition = TransactionLogHeader.HEADER_LENGTH;
+
+        if (TransactionLogHeader.hasDictionary(formatId)) {
+            // the dictionary is read after the end position so that it contains all names of the records to read
+            dictionary = new TransactionLogDictionary(fileChannel, null);
+            dictionary.load();
+            startPosition = Math.max(startPosition, TransactionLogHeader.getFirstRecordPosition(formatId));
+        }
+
+        if (startPosition > currentPosition) {
+            page.clear();
+            fileChannel.position(startPosition);
+            fileChannel.read(page);
+            page.rewind();
+            currentPosition = startPosition;
+        }
     }
 
     /**
@@ -91,12 +127,34 @@ public class TransactionLogCursor {
             return null;
         }
 
-        final int status = page.getInt();
+        int status = page.getInt();
         // currentPosition += 4;
-        final int recordLength = page.getInt();
+        int recordLength = page.getInt();
         // currentPosition += 4;
         currentPosition += 8;
 
+        while (status == TransactionLogAppender.PADDING_RECORD && TransactionLogHeader.hasPadding(formatId)) {
+            if (recordLength < 0 || currentPosition + recordLength > endPosition)
+                throw new CorruptedTransactionLogException("corrupted log found at position " + (currentPosition - 8)
+                        + " (padding outside of file bounds, length: " + recordLength + ")");
+            currentPosition += recordLength;
+            if (currentPosition >= endPosition)
+                return readLog(skipCrcCheck);
+
+            if (page.position() + recordLength + 8 > page.limit()) {
+                page.clear();
+                fileChannel.position(currentPosition);
+                fileChannel.read(page);
+                page.rewind();
+            } else {
+                page.position(page.position() + recordLength);
+            }
+
+            status = page.getInt();
+            recordLength = page.getInt();
+            currentPosition += 8;
+        }
+
         if (page.position() + recordLength + 8 > page.limit())
         {
             page.compact();
@@ -104,7 +162,6 @@ public class TransactionLogCursor {
             page.rewind();
         }
 
-        final int endOfRecordPosition = page.position() + recordLength;
         if (currentPosition + recordLength > endPosition) {
             page.position(page.position() + recordLength);
             currentPosition += recordLength;
@@ -113,62 +170,79 @@ public class TransactionLogCursor {
                     + endPosition + ", recordLength: " + recordLength + ")");
         }
 
+        final long recordPosition = currentPosition - 8;
+        currentPosition += recordLength;
+        return decodeRecord(page, status, recordLength, recordPosition, skipCrcCheck, dictionary);
+    }
+
+    /**
+     * Decode the body of a TransactionLogRecord. The buffer must be positioned right after the record length and
+     * contain the whole record, it is left positioned at the end of the record even when the record is corrupted.
+     * @param page the buffer to decode the record from.
+     * @param status the already read record status.
+     * @param recordLength the already read record length.
+     * @param recordPosition the position of the record in the log file, used for error reporting.
+     * @param skipCrcCheck if set to false, a CorruptedTransactionLogException is thrown if the CRC does not match.
+     * @param dictionary the dictionary of a {@link TransactionLogHeader#FORMAT_ID_V2} log file, null for a
+     *        {@link TransactionLogHeader#FORMAT_ID_V1} log file.
+     * @return the decoded TransactionLogRecord.
+     * @throws CorruptedTransactionLogException if the record is corrupted.
+     * @throws IOException if the unique names cannot be decoded.
+     */
+    static TransactionLogRecord decodeRecord(ByteBuffer page, int status, int recordLength, long recordPosition,
+                                             boolean skipCrcCheck, TransactionLogDictionary dictionary) throws IOException {
+        if (dictionary != null)
+            return decodeRecordV2(page, status, recordLength, recordPosition, skipCrcCheck, dictionary);
+
+        final int endOfRecordPosition = page.position() + recordLength;
+
         final int headerLength = page.getInt();
-        // currentPosition += 4;
         final long time = page.getLong();
-        // currentPosition += 8;
         final int sequenceNumber = page.getInt();
-        // currentPosition += 4;
         final int crc32 = page.getInt();
-        // currentPosition += 4;
         final byte gtridSize = page.get();
-        // currentPosition += 1;
-        currentPosition += 21;
 
         // check for log terminator
         page.mark();
         page.position(endOfRecordPosition - 4);
         int endCode = page.getInt();
         page.reset();
-        if (endCode != TransactionLogAppender.END_RECORD)
-            throw new CorruptedTransactionLogException("corrupted log found at position " + currentPosition + " (no record terminator found)");
+        if (endCode != TransactionLogAppender.END_RECORD) {
+            page.position(endOfRecordPosition);
+            throw new CorruptedTransactionLogException("corrupted log found at position " + recordPosition + " (no record terminator found)");
+        }
 
         // check that GTRID is not too long
         if (4 + 8 + 4 + 4 + 1 + gtridSize > recordLength) {
             page.position(endOfRecordPosition);
-            throw new CorruptedTransactionLogException("corrupted log found at position " + currentPosition
+            throw new CorruptedTransactionLogException("corrupted log found at position " + recordPosition
                     + " (GTRID size too long)");
         }
 
         final byte[] gtridArray = new byte[gtridSize];
         page.get(gtridArray);
-        currentPosition += gtridSize;
         Uid gtrid = new Uid(gtridArray);
         final int uniqueNamesCount = page.getInt();
-        currentPosition += 4;
         Set<String> uniqueNames = new HashSet<String>();
         int currentReadCount = 4 + 8 + 4 + 4 + 1 + gtridSize + 4;
 
         for (int i = 0; i < uniqueNamesCount; i++) {
             int length = page.getShort();
-            currentPosition += 2;
 
             // check that names aren't too long
             currentReadCount += 2 + length;
             if (currentReadCount > recordLength) {
                 page.position(endOfRecordPosition);
-                throw new CorruptedTransactionLogException("corrupted log found at position " + currentPosition
+                throw new CorruptedTransactionLogException("corrupted log found at position " + recordPosition
                         + " (unique names too long, " + (i + 1) + " out of " + uniqueNamesCount + ", length: " + length
                         + ", currentReadCount: " + currentReadCount + ", recordLength: " + recordLength + ")");
             }
 
             byte[] nameBytes = new byte[length];
             page.get(nameBytes);
-            currentPosition += length;
             uniqueNames.add(new String(nameBytes, "US-ASCII"));
         }
         final int cEndRecord = page.getInt();
-        currentPosition += 4;
 
         TransactionLogRecord tlog = new TransactionLogRecord(status, recordLength, headerLength, time, sequenceNumber,
                 crc32, gtrid, uniqueNames, cEndRecord);
@@ -176,7 +250,90 @@ public class TransactionLogCursor {
         // check that CRC is okay
         if (!skipCrcCheck && !tlog.isCrc32Correct()) {
             page.position(endOfRecordPosition);
-            throw new CorruptedTransactionLogException("corrupted log found at position " + currentPosition
+            throw new CorruptedTransactionLogException("corrupted log found at position " + recordPosition
+                    + "(invalid CRC, recorded: " + tlog.getCrc32() + ", calculated: " + tlog.calculateCrc32() + ")");
+        }
+
+        return tlog;
+    }
+
+    /**
+     * Decode the body of a TransactionLogRecord stored in the {@link TransactionLogHeader#FORMAT_ID_V2} format.
+     * @see #decodeRecord(ByteBuffer, int, int, long, boolean, TransactionLogDictionary)
+     */
+    private static TransactionLogRecord decodeRecordV2(ByteBuffer page, int status, int recordLength, long recordPosition,
+                                                       boolean skipCrcCheck, TransactionLogDictionary dictionary) throws IOException {
+        final int endOfRecordPosition = page.position() + recordLength;
+        final ByteBuffer record = page.duplicate();
+        record.limit(endOfRecordPosition);
+        page.position(endOfRecordPosition);
+
+        if (recordLength < 4 || record.getInt(endOfRecordPosition - 4) != TransactionLogAppender.END_RECORD)
+            throw new CorruptedTransactionLogException("corrupted log found at position " + recordPosition + " (no record terminator found)");
+
+        TransactionLogRecord tlog;
+        try {
+            final long time = Encoder.getVarLong(record);
+            final int sequenceNumber = (int) Encoder.getVarLong(record);
+            final int crc32 = record.getInt();
+            final byte gtridSize = record.get();
+
+            // check that GTRID is not too long
+            if (gtridSize < 0 || gtridSize > record.remaining()) {
+                throw new CorruptedTransactionLogException("corrupted log found at position " + recordPosition
+                        + " (GTRID size too long)");
+            }
+
+            final byte[] gtridArray = new byte[gtridSize];
+            record.get(gtridArray);
+            Uid gtrid = new Uid(gtridArray);
+            final long uniqueNamesCount = Encoder.getVarLong(record);
+            Set<String> uniqueNames = new HashSet<String>();
+
+            for (long i = 0; i < uniqueNamesCount; i++) {
+                long id = Encoder.getVarLong(record) - 1;
+                String uniqueName;
+                if (id < 0) {
+                    long length = Encoder.getVarLong(record);
+
+                    // check that names aren't too long
+                    if (length > record.remaining()) {
+                        throw new CorruptedTransactionLogException("corrupted log found at position " + recordPosition
+                                + " (unique names too long, " + (i + 1) + " out of " + uniqueNamesCount + ", length: " + length
+                                + ", recordLength: " + recordLength + ")");
+                    }
+
+                    byte[] nameBytes = new byte[(int) length];
+                    record.get(nameBytes);
+                    uniqueName = new String(nameBytes, "US-ASCII");
+                } else {
+                    uniqueName = id > Integer.MAX_VALUE ? null : dictionary.getUniqueName((int) id);
+                    if (uniqueName == null) {
+                        throw new CorruptedTransactionLogException("corrupted log found at position " + recordPosition
+                                + " (unknown unique name ID " + id + ", " + (i + 1) + " out of " + uniqueNamesCount + ")");
+                    }
+                }
+                uniqueNames.add(uniqueName);
+            }
+            final int cEndRecord = record.getInt();
+            if (record.hasRemaining()) {
+                throw new CorruptedTransactionLogException("corrupted log found at position " + recordPosition
+                        + " (" + record.remaining() + " extra byte(s) before record terminator)");
+            }
+
+            tlog = new TransactionLogRecord(status, recordLength, TransactionLogRecord.RECORD_HEADER_LENGTH, time,
+                    sequenceNumber, crc32, gtrid, uniqueNames, cEndRecord);
+        } catch (BufferUnderflowException ex) {
+            throw new CorruptedTransactionLogException("corrupted log found at position " + recordPosition
+                    + " (record fields outside of record bounds, recordLength: " + recordLength + ")");
+        } catch (IllegalArgumentException ex) {
+            throw new CorruptedTransactionLogException("corrupted log found at position " + recordPosition
+                    + " (" + ex.getMessage() + ")");
+        }
+
+        // check that CRC is okay
+        if (!skipCrcCheck && !tlog.isCrc32Correct()) {
+            throw new CorruptedTransactionLogException("corrupted log found at position " + recordPosition
                     + "(invalid CRC, recorded: " + tlog.getCrc32() + ", calculated: " + tlog.calculateCrc32() + ")");
         }
 
@@ -0,0 +1,194 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bitronix.tm.resource.ResourceRegistrar;
+
+/**
+ * Used to control the unique names dictionary of a {@link TransactionLogHeader#FORMAT_ID_V2} log file.
+ * <p>The dictionary occupies the {@link TransactionLogHeader#DICTIONARY_LENGTH} bytes following the header. It contains
+ * <code>([UNIQUE NAME LENGTH :2] [UNIQUE NAME :Y] ...)</code> terminated by a zero length or by the end of the
+ * dictionary, the ID of a unique name being its index in the dictionary. Records refer to unique names by ID, unique
+ * names which do not fit in the dictionary anymore are stored in the records.</p>
+ * <p>A unique name is written in the dictionary before any record referring to it so that forcing the log file makes
+ * both durable.</p>
+ *
+ * @author lorban
+ */
+class TransactionLogDictionary {
+
+    private final static Logger log = LoggerFactory.getLogger(TransactionLogDictionary.class);
+
+    private final static int DICTIONARY_POSITION = TransactionLogHeader.HEADER_LENGTH;
+
+    private final FileChannel fc;
+    private final MappedByteBuffer mappedBuffer;
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private final List<String> uniqueNames = new CopyOnWriteArrayList<String>();
+    private int length;
+
+    /**
+     * Create an empty dictionary for the specified log file, call {@link #load()} to read its content.
+     * @param fc the file channel of the log file.
+     * @param mappedBuffer the memory-mapped content of the file to write to, or null to write through the channel.
+     */
+    TransactionLogDictionary(FileChannel fc, MappedByteBuffer mappedBuffer) {
+        this.fc = fc;
+        this.mappedBuffer = mappedBuffer;
+    }
+
+    /**
+     * Read the dictionary content from the log file.
+     * @throws IOException if an I/O error occurs.
+     */
+    synchronized void load() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(TransactionLogHeader.DICTIONARY_LENGTH);
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, DICTIONARY_POSITION + buf.position()) == -1)
+                throw new IOException("log file is too short to contain a unique names dictionary");
+        }
+        buf.flip();
+
+        ids.clear();
+        uniqueNames.clear();
+        length = 0;
+        while (buf.remaining() >= 2) {
+            int nameLength = buf.getShort();
+            if (nameLength <= 0 || nameLength > buf.remaining())
+                break;
+
+            byte[] nameBytes = new byte[nameLength];
+            buf.get(nameBytes);
+            String uniqueName = new String(nameBytes, ResourceRegistrar.UNIQUE_NAME_CHARSET);
+            ids.put(uniqueName, uniqueNames.size());
+            uniqueNames.add(uniqueName);
+            length += 2 + nameLength;
+        }
+
+        if (log.isDebugEnabled()) log.debug("read " + this);
+    }
+
+    /**
+     * Empty the dictionary.
+     * @throws IOException if an I/O error occurs.
+     */
+    synchronized void clear() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(2);
+        buf.putShort((short) 0);
+        buf.flip();
+        write(buf, DICTIONARY_POSITION);
+
+        ids.clear();
+        uniqueNames.clear();
+        length = 0;
+    }
+
+    /**
+     * Add the unique names missing from the dictionary, as long as they fit in it.
+     * @param names the unique names to add.
+     * @throws IOException if an I/O error occurs.
+     */
+    synchronized void addAll(Collection<String> names) throws IOException {
+        for (String uniqueName : names) {
+            if (ids.containsKey(uniqueName))
+                continue;
+
+            byte[] nameBytes = TransactionLogRecord.getUniqueNameBytes(uniqueName);
+            int entryLength = 2 + nameBytes.length;
+            if (length + entryLength > TransactionLogHeader.DICTIONARY_LENGTH || nameBytes.length > Short.MAX_VALUE) {
+                if (log.isDebugEnabled()) log.debug("no room left in " + this + " for unique name " + uniqueName);
+                continue;
+            }
+
+            boolean terminated = length + entryLength + 2 <= TransactionLogHeader.DICTIONARY_LENGTH;
+            ByteBuffer buf = ByteBuffer.allocate(entryLength + (terminated ? 2 : 0));
+            buf.putShort((short) nameBytes.length);
+            buf.put(nameBytes);
+            if (terminated)
+                buf.putShort((short) 0);
+            buf.flip();
+            write(buf, DICTIONARY_POSITION + length);
+
+            // only publish the ID once the entry has been written
+            length += entryLength;
+            uniqueNames.add(uniqueName);
+            ids.put(uniqueName, uniqueNames.size() - 1);
+        }
+    }
+
+    /**
+     * Get the ID of a unique name.
+     * @param uniqueName the unique name.
+     * @return the ID of the unique name or -1 if it is not in the dictionary.
+     */
+    int getId(String uniqueName) {
+        Integer id = ids.get(uniqueName);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the unique name of an ID.
+     * @param id the ID.
+     * @return the unique name or null if the ID is not in the dictionary.
+     */
+    String getUniqueName(int id) {
+        if (id < 0 || id >= uniqueNames.size())
+            return null;
+        return uniqueNames.get(id);
+    }
+
+    /**
+     * Write the content of the buffer at the specified position of the log file.
+     * @param buf the buffer containing the data to write.
+     * @param position the position to write at.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void write(ByteBuffer buf, int position) throws IOException {
+        if (mappedBuffer != null) {
+            ByteBuffer target = mappedBuffer.duplicate();
+            target.position(position);
+            target.put(buf);
+            return;
+        }
+
+        while (buf.hasRemaining()) {
+            fc.write(buf, position + buf.position());
+        }
+    }
+
+    public String toString() {
+        return "a TransactionLogDictionary with " + uniqueNames.size() + " unique name(s) in " + length + " byte(s)";
+    }
+
+}
@@ -20,18 +20,22 @@
  */
 package bitronix.tm.journal;
 
+import bitronix.tm.BitronixXid;
 import bitronix.tm.utils.Decoder;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
 /**
  * Used to control a log file's header.
  * <p>The physical data is read when this object is created then cached. Calling setter methods sets the header field
  * then moves the file pointer back to the previous location.</p>
+ * <p>When the log file is memory-mapped, the header fields are written through the mapping instead of the channel.</p>
  *
  * @author lorban
  */
@@ -64,6 +68,30 @@ public class TransactionLogHeader {
      */
     public final static int HEADER_LENGTH = CURRENT_POSITION_HEADER + 8;
 
+    /**
+     * Format ID of log files whose records contain their unique names.
+     */
+    public final static int FORMAT_ID_V1 = BitronixXid.FORMAT_ID;
+
+    /**
+     * Format ID of log files starting with a {@link TransactionLogDictionary} of unique names their records refer to.
+     * This is the int-encoded "Btn2" ASCII string.
+     */
+    public final static int FORMAT_ID_V2 = 0x42746e32;
+
+    /**
+     * Format ID of {@link #FORMAT_ID_V2} log files whose records can be followed by a
+     * {@link TransactionLogAppender#PADDING_RECORD} frame aligning the next one on a block boundary.
+     * This is the int-encoded "Btn3" ASCII string.
+     */
+    public final static int FORMAT_ID_V3 = 0x42746e33;
+
+    /**
+     * Length of the unique names dictionary following the header in {@link #FORMAT_ID_V2} and {@link #FORMAT_ID_V3}
+     * log files.
+     */
+    public final static int DICTIONARY_LENGTH = 4096;
+
     /**
      * State of the log file when it has been closed properly.
      */
@@ -75,6 +103,7 @@ public class TransactionLogHeader {
     public final static byte UNCLEAN_LOG_STATE = -1;
 
     private final FileChannel fc;
+    private final MappedByteBuffer mappedBuffer;
     private final long maxFileLength;
 
     private volatile int formatId;
@@ -89,7 +118,19 @@ public class TransactionLogHeader {
      * @throws IOException if an I/O error occurs.
      */
     public TransactionLogHeader(FileChannel fc, long maxFileLength) throws IOException {
+        this(fc, null, maxFileLength);
+    }
+
+    /**
+     * TransactionLogHeader are used to control headers of the specified RandomAccessFile.
+     * @param fc the file channel to read from.
+     * @param mappedBuffer the memory-mapped content of the file to write to, or null to write through the channel.
+     * @param maxFileLength the max file length.
+     * @throws IOException if an I/O error occurs.
+     */
+    public TransactionLogHeader(FileChannel fc, MappedByteBuffer mappedBuffer, long maxFileLength) throws IOException {
         this.fc = fc;
+        this.mappedBuffer = mappedBuffer;
         this.maxFileLength = maxFileLength;
 
         fc.position(FORMAT_ID_HEADER);
@@ -143,6 +184,63 @@ public class TransactionLogHeader {
         return position;
     }
 
+    /**
+     * Get the position of the first record of the log file, which depends on its format.
+     * @return the position of the first record.
+     */
+    public long getFirstRecordPosition() {
+        return getFirstRecordPosition(formatId);
+    }
+
+    /**
+     * Get the position of the first record of a log file of the specified format.
+     * @param formatId the FORMAT_ID_HEADER value of the log file.
+     * @return the position of the first record.
+     */
+    public static long getFirstRecordPosition(int formatId) {
+        return hasDictionary(formatId) ? HEADER_LENGTH + DICTIONARY_LENGTH : HEADER_LENGTH;
+    }
+
+    /**
+     * Check if the specified format ID is one of a log file.
+     * @param formatId the FORMAT_ID_HEADER value to check.
+     * @return true if the format ID is {@link #FORMAT_ID_V1}, {@link #FORMAT_ID_V2} or {@link #FORMAT_ID_V3}.
+     */
+    public static boolean isValidFormatId(int formatId) {
+        return formatId == FORMAT_ID_V1 || formatId == FORMAT_ID_V2 || formatId == FORMAT_ID_V3;
+    }
+
+    /**
+     * Check that the specified format ID is one of a log file this version can read.
+     * @param formatId the FORMAT_ID_HEADER value to check.
+     * @param file the log file the format ID was read from.
+     * @throws IOException if the format ID is not one of a log file.
+     */
+    public static void checkFormatId(int formatId, File file) throws IOException {
+        if (!isValidFormatId(formatId))
+            throw new IOException("log file " + file.getName() + " has an unsupported format (format ID 0x" +
+                    Integer.toHexString(formatId) + ")");
+    }
+
+    /**
+     * Check if log files of the specified format start with a {@link TransactionLogDictionary}.
+     * @param formatId the FORMAT_ID_HEADER value of the log file.
+     * @return true if the format ID is {@link #FORMAT_ID_V2} or {@link #FORMAT_ID_V3}.
+     */
+    public static boolean hasDictionary(int formatId) {
+        return formatId == FORMAT_ID_V2 || formatId == FORMAT_ID_V3;
+    }
+
+    /**
+     * Check if records of log files of the specified format can be followed by a
+     * {@link TransactionLogAppender#PADDING_RECORD} frame.
+     * @param formatId the FORMAT_ID_HEADER value of the log file.
+     * @return true if the format ID is {@link #FORMAT_ID_V3}.
+     */
+    public static boolean hasPadding(int formatId) {
+        return formatId == FORMAT_ID_V3;
+    }
+
     /**
      * Set FORMAT_ID_HEADER.
      * @see #FORMAT_ID_HEADER
@@ -153,9 +251,7 @@ public class TransactionLogHeader {
         ByteBuffer buf = ByteBuffer.allocate(8);
         buf.putInt(formatId);
         buf.flip();
-        while (buf.hasRemaining()) {
-        	fc.write(buf, FORMAT_ID_HEADER + buf.position());
-        }
+        write(buf, FORMAT_ID_HEADER);
         this.formatId = formatId;
     }
 
@@ -169,9 +265,7 @@ public class TransactionLogHeader {
         ByteBuffer buf = ByteBuffer.allocate(8);
         buf.putLong(timestamp);
         buf.flip();
-        while (buf.hasRemaining()) {
-        	fc.write(buf, TIMESTAMP_HEADER + buf.position());
-        }
+        write(buf, TIMESTAMP_HEADER);
         this.timestamp = timestamp;
     }
 
@@ -185,9 +279,7 @@ public class TransactionLogHeader {
         ByteBuffer buf = ByteBuffer.allocate(1);
         buf.put(state);
         buf.flip();
-        while (buf.hasRemaining()) {
-        	fc.write(buf, STATE_HEADER + buf.position());
-        }
+        write(buf, STATE_HEADER);
         this.state = state;
     }
 
@@ -198,7 +290,7 @@ public class TransactionLogHeader {
      * @throws IOException if an I/O error occurs.
      */
     public void setPosition(long position) throws IOException {
-        if (position < HEADER_LENGTH)
+        if (position < getFirstRecordPosition())
             throw new IOException("invalid position " + position + " (too low)");
         if (position > maxFileLength)
             throw new IOException("invalid position " + position + " (too high)");
@@ -206,9 +298,7 @@ public class TransactionLogHeader {
         ByteBuffer buf = ByteBuffer.allocate(8);
         buf.putLong(position);
         buf.flip();
-        while (buf.hasRemaining()) {
-        	fc.write(buf, CURRENT_POSITION_HEADER + buf.position());
-        }
+        write(buf, CURRENT_POSITION_HEADER);
 
         this.position = position;
         fc.position(position);
@@ -220,7 +310,50 @@ public class TransactionLogHeader {
      * @throws IOException if an I/O error occurs.
      */
     public void rewind() throws IOException {
-        setPosition(HEADER_LENGTH);
+        setPosition(getFirstRecordPosition());
+    }
+
+    /**
+     * Set FORMAT_ID_HEADER and rewind CURRENT_POSITION_HEADER back to the first record position of that format.
+     * Both fields are written at once so that the header never holds a position that is invalid for its format.
+     * @see #FORMAT_ID_HEADER
+     * @see #rewind
+     * @param formatId the FORMAT_ID_HEADER value.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void setFormatIdAndRewind(int formatId) throws IOException {
+        long position = getFirstRecordPosition(formatId);
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH);
+        buf.putInt(formatId);
+        buf.putLong(timestamp);
+        buf.put(state);
+        buf.putLong(position);
+        buf.flip();
+        write(buf, FORMAT_ID_HEADER);
+
+        this.formatId = formatId;
+        this.position = position;
+        fc.position(position);
+    }
+
+    /**
+     * Write the content of the buffer at the specified header position.
+     * @param buf the buffer containing the header field value.
+     * @param headerPosition the position of the header field.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void write(ByteBuffer buf, int headerPosition) throws IOException {
+        if (mappedBuffer != null) {
+            ByteBuffer target = mappedBuffer.duplicate();
+            target.position(headerPosition);
+            target.put(buf);
+            return;
+        }
+
+        while (buf.hasRemaining()) {
+        	fc.write(buf, headerPosition + buf.position());
+        }
     }
 
     /**
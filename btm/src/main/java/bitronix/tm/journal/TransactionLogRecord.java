@@ -24,20 +24,24 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.util.Collections;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import bitronix.tm.resource.ResourceRegistrar;
 import bitronix.tm.utils.Decoder;
+import bitronix.tm.utils.Encoder;
 import bitronix.tm.utils.MonotonicClock;
 import bitronix.tm.utils.Uid;
 
@@ -71,6 +75,13 @@ import bitronix.tm.utils.Uid;
  * which makes a major difference with Mike's proposed format because here a record can vary in length: the GTRID size
  * is A bytes long (A being the GTRID length) and there can be X unique names that are Y characters long, Y being eventually
  * different for each name.</p>
+ * <p/>
+ * <p>In {@link TransactionLogHeader#FORMAT_ID_V2} log files, records are stored as
+ * <code>[RECORD_TYPE :4] [RECORD_LEN :4] [System.currentTimeMillis :V] [Sequence number :V] [Checksum :4]
+ * [GTRID LENGTH :1] [GTRID :A] [UNIQUE NAMES COUNT :V] ([UNIQUE NAME ID + 1 :V] | [0 :1] [UNIQUE NAME LENGTH :V]
+ * [UNIQUE NAME :Y] ...) [END_RECORD_INDICATOR :4]</code> where V fields are variable length quantities (see
+ * {@link Encoder#putVarLong}) and unique names are looked up in the {@link TransactionLogDictionary} of the log file.
+ * The checksum is calculated over the same fields in both formats so it does not depend on the format.</p>
  *
  * @see <a href="http://jroller.com/page/pyrasun?entry=xa_exposed_part_iii_the">XA Exposed, Part III: The Implementor's Notebook</a>
  * @author lorban
@@ -80,19 +91,32 @@ public class TransactionLogRecord implements JournalRecord {
     private final static Logger log = LoggerFactory.getLogger(TransactionLogRecord.class);
 
     // status + record length + record header length + current time + sequence number + checksum
-    private final static int RECORD_HEADER_LENGTH = 4 + 4 + 4 + 8 + 4 + 4;
+    final static int RECORD_HEADER_LENGTH = 4 + 4 + 4 + 8 + 4 + 4;
 
     private final static AtomicInteger sequenceGenerator = new AtomicInteger();
 
-    private final int status;
+    // unique names are a small, stable set: their encoded bytes are cached to avoid re-encoding them for each record
+    private final static int MAX_CACHED_UNIQUE_NAMES = 1024;
+    private final static ConcurrentMap<String, byte[]> uniqueNamesBytes = new ConcurrentHashMap<String, byte[]>();
+
+    private final static ThreadLocal<Crc32Calculator> crc32Calculators = new ThreadLocal<Crc32Calculator>() {
+        protected Crc32Calculator initialValue() {
+            return new Crc32Calculator();
+        }
+    };
+
+    private int status;
     private int recordLength;
     private int headerLength;
-    private final long time;
-    private final int sequenceNumber;
+    private long time;
+    private int sequenceNumber;
     private int crc32;
-    private final Uid gtrid;
-    private final SortedSet<String> uniqueNames;
-    private final int endRecord;
+    private Uid gtrid;
+    // unique names sorted in their natural order, only the first uniqueNamesCount elements are used
+    private String[] uniqueNames = new String[4];
+    private int uniqueNamesCount;
+    private final Set<String> unmodifiableUniqueNames = new UniqueNamesView();
+    private int endRecord;
     private long writePosition;
 
     /**
@@ -116,7 +140,7 @@ public class TransactionLogRecord implements JournalRecord {
         this.sequenceNumber = sequenceNumber;
         this.crc32 = crc32;
         this.gtrid = gtrid;
-        this.uniqueNames = new TreeSet<String>(uniqueNames);
+        setUniqueNames(uniqueNames);
         this.endRecord = endRecord;
     }
 
@@ -127,17 +151,55 @@ public class TransactionLogRecord implements JournalRecord {
      * @param uniqueNames unique names of XA data sources used in this transaction
      */
     public TransactionLogRecord(int status, Uid gtrid, Set<String> uniqueNames) {
+        reset(status, gtrid, uniqueNames);
+    }
+
+    /**
+     * Create an empty transaction log to be filled with {@link #reset(int, Uid, Set)}.
+     */
+    TransactionLogRecord() {
+    }
+
+    /**
+     * Turn this record into a new transaction log ready to be stored so that a thread can reuse a single instance for
+     * all the records it writes instead of allocating one per record. The unique names are copied into an array
+     * owned by this record: the {@link #getUniqueNames()} view changes with each reset so it must not be kept.
+     * @param status record type
+     * @param gtrid global transaction id
+     * @param uniqueNames unique names of XA data sources used in this transaction
+     */
+    void reset(int status, Uid gtrid, Set<String> uniqueNames) {
         this.status = status;
         this.time = MonotonicClock.currentTimeMillis();
         this.sequenceNumber = sequenceGenerator.incrementAndGet();
         this.gtrid = gtrid;
-        this.uniqueNames = new TreeSet<String>(uniqueNames);
+        setUniqueNames(uniqueNames);
         this.endRecord = TransactionLogAppender.END_RECORD;
         this.headerLength = RECORD_HEADER_LENGTH;
+        this.writePosition = 0;
 
         refresh();
     }
 
+    /**
+     * Copy the unique names into the sorted array of this record. Sorting a handful of names in place does not
+     * allocate, unlike copying them into a {@link java.util.TreeSet}.
+     * @param uniqueNames the unique names to copy.
+     */
+    private void setUniqueNames(Set<String> uniqueNames) {
+        int count = uniqueNames.size();
+        if (this.uniqueNames.length < count)
+            this.uniqueNames = new String[Math.max(count, this.uniqueNames.length * 2)];
+
+        count = 0;
+        for (String uniqueName : uniqueNames) {
+            this.uniqueNames[count++] = uniqueName;
+        }
+        Arrays.fill(this.uniqueNames, count, this.uniqueNames.length, null);
+        Arrays.sort(this.uniqueNames, 0, count);
+        this.uniqueNamesCount = count;
+    }
+
     public int getStatus() {
         return status;
     }
@@ -176,8 +238,12 @@ public class TransactionLogRecord implements JournalRecord {
     	writePosition = position;
     }
 
+    /**
+     * Get the unique names of this record as an unmodifiable set iterated in the natural order of the names.
+     * @return the unique names of this record.
+     */
     public Set<String> getUniqueNames() {
-        return Collections.unmodifiableSortedSet(uniqueNames);
+        return unmodifiableUniqueNames;
     }
 
     public int getEndRecord() {
@@ -189,6 +255,7 @@ public class TransactionLogRecord implements JournalRecord {
      * and {@link #calculateCrc32()}. This method must be called each time after the set of contained unique names is updated.
      */
     private void refresh() {
+        recordLength = calculateRecordLength();
         crc32 = calculateCrc32();
     }
 
@@ -221,38 +288,111 @@ public class TransactionLogRecord implements JournalRecord {
 
     /**
      * Calculate the CRC32 value of this record.
+     * <p>The checksum is computed incrementally over the fields of the record, in this order: status, record length,
+     * header length, time, sequence number, GTRID, unique names count then length and bytes of each unique name and
+     * finally the end record marker.</p>
      * @return the CRC32 value of this record.
      */
     public int calculateCrc32() {
-        int total = 0;
-        for (String uniqueName : uniqueNames) {
-        	total += 2 + uniqueName.length(); // 2 bytes for storing the unique name length + unique name length
+        Crc32Calculator calculator = crc32Calculators.get();
+        calculator.reset();
+
+        ByteBuffer buf = calculator.buffer;
+        buf.putInt(status);              // offset: 0
+        buf.putInt(calculateRecordLength()); // offset: 4
+        buf.putInt(headerLength);        // offset: 8
+        buf.putLong(time);               // offset: 12
+        buf.putInt(sequenceNumber);      // offset: 20
+        calculator.update();
+        calculator.update(gtrid.getArray());
+        buf.putInt(uniqueNamesCount);
+        calculator.update();
+
+        for (int i = 0; i < uniqueNamesCount; i++) {
+            String name = uniqueNames[i];
+            buf.putShort((short) name.length());
+            calculator.update();
+            calculator.update(getUniqueNameBytes(name));
         }
-        recordLength = total + getFixedRecordLength();
-
-    	ByteBuffer buf = ByteBuffer.allocate(24 + gtrid.length() + 4 /*uniqueNames.size*/ + total + 4 /*endRecord*/);
-    	buf.putInt(status);              // offset: 0
-    	buf.putInt(recordLength);        // offset: 4
-    	buf.putInt(headerLength);        // offset: 8
-    	buf.putLong(time);               // offset: 12
-    	buf.putInt(sequenceNumber);      // offset: 20
-    	buf.put(gtrid.getArray());       // offset: 24
-    	buf.putInt(uniqueNames.size());  // offset: 24 + gtridArray.length
-
-        for (String name : uniqueNames) {
-        	buf.putShort((short) name.length());
-            try {
-            	buf.put(name.getBytes("US-ASCII"));
-            } catch (UnsupportedEncodingException ex) {
-                log.error("unable to convert unique name bytes to US-ASCII", ex);
-            }
+
+        buf.putInt(endRecord);
+        calculator.update();
+
+        return calculator.getValue();
+    }
+
+    /**
+     * Write this record in its on-disk format into the specified buffer, starting at its current position.
+     * @param buf the buffer to write to, it must have at least {@link #calculateTotalRecordSize()} bytes remaining.
+     */
+    void writeTo(ByteBuffer buf) {
+        buf.putInt(status);
+        buf.putInt(recordLength);
+        buf.putInt(headerLength);
+        buf.putLong(time);
+        buf.putInt(sequenceNumber);
+        buf.putInt(crc32);
+        buf.put((byte) gtrid.length());
+        buf.put(gtrid.getArray());
+        buf.putInt(uniqueNamesCount);
+        for (int i = 0; i < uniqueNamesCount; i++) {
+            String uniqueName = uniqueNames[i];
+            buf.putShort((short) uniqueName.length());
+            buf.put(getUniqueNameBytes(uniqueName));
         }
+        buf.putInt(endRecord);
+    }
 
+    /**
+     * Write this record in the {@link TransactionLogHeader#FORMAT_ID_V2} on-disk format into the specified buffer,
+     * starting at its current position.
+     * @param buf the buffer to write to, it must have at least {@link #calculateTotalRecordSize(TransactionLogDictionary)}
+     *        bytes remaining.
+     * @param dictionary the dictionary of the log file the record is written to.
+     */
+    void writeTo(ByteBuffer buf, TransactionLogDictionary dictionary) {
+        buf.putInt(status);
+        buf.putInt(calculateRecordLength(dictionary));
+        Encoder.putVarLong(buf, time);
+        Encoder.putVarLong(buf, sequenceNumber & 0xFFFFFFFFL);
+        buf.putInt(crc32);
+        buf.put((byte) gtrid.length());
+        buf.put(gtrid.getArray());
+        Encoder.putVarLong(buf, uniqueNamesCount);
+        for (int i = 0; i < uniqueNamesCount; i++) {
+            String uniqueName = uniqueNames[i];
+            int id = dictionary.getId(uniqueName);
+            if (id >= 0) {
+                Encoder.putVarLong(buf, id + 1);
+            } else {
+                byte[] nameBytes = getUniqueNameBytes(uniqueName);
+                Encoder.putVarLong(buf, 0);
+                Encoder.putVarLong(buf, nameBytes.length);
+                buf.put(nameBytes);
+            }
+        }
         buf.putInt(endRecord);
+    }
 
-        CRC32 crc32 = new CRC32();
-        crc32.update(buf.array());
-        return (int) crc32.getValue();
+    /**
+     * Get the encoded bytes of a unique name. {@link ResourceRegistrar} guarantees that unique names only contain
+     * characters of the {@link ResourceRegistrar#UNIQUE_NAME_CHARSET} charset so that one character is one byte.
+     * @param uniqueName the unique name to encode.
+     * @return the encoded bytes, the returned array must not be modified.
+     */
+    static byte[] getUniqueNameBytes(String uniqueName) {
+        byte[] bytes = uniqueNamesBytes.get(uniqueName);
+        if (bytes == null) {
+            try {
+                bytes = uniqueName.getBytes(ResourceRegistrar.UNIQUE_NAME_CHARSET);
+            } catch (UnsupportedEncodingException ex) {
+                log.error("unable to convert unique name bytes to " + ResourceRegistrar.UNIQUE_NAME_CHARSET, ex);
+                bytes = uniqueName.getBytes();
+            }
+            if (uniqueNamesBytes.size() < MAX_CACHED_UNIQUE_NAMES)
+                uniqueNamesBytes.putIfAbsent(uniqueName, bytes);
+        }
+        return bytes;
     }
 
     public String toString() {
@@ -267,12 +407,10 @@ public class TransactionLogRecord implements JournalRecord {
         sb.append("crc32="); sb.append(crc32); sb.append(", ");
         sb.append("gtrid="); sb.append(gtrid.toString()); sb.append(", ");
         sb.append("uniqueNames=");
-        Iterator<String> it = uniqueNames.iterator();
-        while (it.hasNext()) {
-            String s = it.next();
-            sb.append(s);
-            if (it.hasNext())
+        for (int i = 0; i < uniqueNamesCount; i++) {
+            if (i > 0)
                 sb.append(',');
+            sb.append(uniqueNames[i]);
         }
 
         return sb.toString();
@@ -287,6 +425,51 @@ public class TransactionLogRecord implements JournalRecord {
         return recordLength + 4 + 4; // + status + record length
     }
 
+    /**
+     * this is the total size on disk of a TransactionLog in a {@link TransactionLogHeader#FORMAT_ID_V2} log file.
+     * @param dictionary the dictionary of the log file.
+     * @return record length in the log file
+     */
+    int calculateTotalRecordSize(TransactionLogDictionary dictionary) {
+        return calculateRecordLength(dictionary) + 4 + 4; // + status + record length
+    }
+
+    /**
+     * Calculate the record length, excluding status and record length, of the {@link TransactionLogHeader#FORMAT_ID_V1}
+     * on-disk format. The checksum covers this value whatever the format of the log file is.
+     * @return the record length
+     */
+    private int calculateRecordLength() {
+        int total = 0;
+        for (int i = 0; i < uniqueNamesCount; i++) {
+        	total += 2 + uniqueNames[i].length(); // 2 bytes for storing the unique name length + unique name length
+        }
+        return total + getFixedRecordLength();
+    }
+
+    /**
+     * Calculate the record length, excluding status and record length, of the {@link TransactionLogHeader#FORMAT_ID_V2}
+     * on-disk format.
+     * @param dictionary the dictionary of the log file.
+     * @return the record length
+     */
+    private int calculateRecordLength(TransactionLogDictionary dictionary) {
+        // current time + sequence number + checksum + GTRID size + GTRID + unique names count + end record marker
+        int total = Encoder.varLongSize(time) + Encoder.varLongSize(sequenceNumber & 0xFFFFFFFFL) + 4 + 1 + gtrid.length()
+                + Encoder.varLongSize(uniqueNamesCount) + 4;
+        for (int i = 0; i < uniqueNamesCount; i++) {
+            String uniqueName = uniqueNames[i];
+            int id = dictionary.getId(uniqueName);
+            if (id >= 0) {
+                total += Encoder.varLongSize(id + 1);
+            } else {
+                int nameLength = getUniqueNameBytes(uniqueName).length;
+                total += 1 + Encoder.varLongSize(nameLength) + nameLength;
+            }
+        }
+        return total;
+    }
+
     /**
      * Length of all the fixed size fields part of the record length header except status and record length.
      * @return fixedRecordLength
@@ -296,6 +479,72 @@ public class TransactionLogRecord implements JournalRecord {
         return 4 + 8 + 4 + 4 + 1 + gtrid.length() + 4 + 4;
     }
 
+    /**
+     * Per-thread CRC32 and scratch buffer used to checksum records without allocating.
+     */
+    private static class Crc32Calculator {
+        private final CRC32 crc32 = new CRC32();
+        private final ByteBuffer buffer = ByteBuffer.allocate(24);
+
+        void reset() {
+            crc32.reset();
+            buffer.clear();
+        }
+
+        /**
+         * Add the bytes put in the scratch buffer since the last update to the checksum.
+         */
+        void update() {
+            crc32.update(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+
+        void update(byte[] bytes) {
+            crc32.update(bytes, 0, bytes.length);
+        }
+
+        int getValue() {
+            return (int) crc32.getValue();
+        }
+    }
+
+    /**
+     * Unmodifiable view of the sorted unique names array of the record.
+     */
+    private class UniqueNamesView extends AbstractSet<String> {
+        public int size() {
+            return uniqueNamesCount;
+        }
+
+        public boolean contains(Object o) {
+            for (int i = 0; i < uniqueNamesCount; i++) {
+                if (uniqueNames[i].equals(o))
+                    return true;
+            }
+            return false;
+        }
+
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int index;
+
+                public boolean hasNext() {
+                    return index < uniqueNamesCount;
+                }
+
+                public String next() {
+                    if (index >= uniqueNamesCount)
+                        throw new NoSuchElementException();
+                    return uniqueNames[index++];
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException("unique names of a record cannot be modified");
+                }
+            };
+        }
+    }
+
     static class NullOutputStream extends OutputStream {
         static final NullOutputStream INSTANCE = new NullOutputStream();
 
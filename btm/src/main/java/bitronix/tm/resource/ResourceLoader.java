@@ -39,6 +39,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * XA resources pools configurator & loader.
@@ -58,6 +60,7 @@ public class ResourceLoader implements Service {
     private final static String JMS_RESOURCE_CLASSNAME = "bitronix.tm.resource.jms.PoolingConnectionFactory";
 
     private final Map<String, XAResourceProducer> resourcesByUniqueName = new HashMap<String, XAResourceProducer>();
+    private final Lock shutdownLock = new ReentrantLock();
 
     public ResourceLoader() {
     }
@@ -89,18 +92,23 @@ public class ResourceLoader implements Service {
         }
     }
 
-    public synchronized void shutdown() {
-        if (log.isDebugEnabled()) log.debug("resource loader has registered " + resourcesByUniqueName.entrySet().size() + " resource(s), unregistering them now");
-        for (Map.Entry<String, XAResourceProducer> entry : resourcesByUniqueName.entrySet()) {
-            XAResourceProducer producer = entry.getValue();
-            if (log.isDebugEnabled()) log.debug("closing " + producer);
-            try {
-                producer.close();
-            } catch (Exception ex) {
-                log.warn("error closing resource " + producer, ex);
+    public void shutdown() {
+        shutdownLock.lock();
+        try {
+            if (log.isDebugEnabled()) log.debug("resource loader has registered " + resourcesByUniqueName.entrySet().size() + " resource(s), unregistering them now");
+            for (Map.Entry<String, XAResourceProducer> entry : resourcesByUniqueName.entrySet()) {
+                XAResourceProducer producer = entry.getValue();
+                if (log.isDebugEnabled()) log.debug("closing " + producer);
+                try {
+                    producer.close();
+                } catch (Exception ex) {
+                    log.warn("error closing resource " + producer, ex);
+                }
             }
+            resourcesByUniqueName.clear();
+        } finally {
+            shutdownLock.unlock();
         }
-        resourcesByUniqueName.clear();
     }
 
     /*
@@ -44,6 +44,15 @@ public abstract class AbstractXAStatefulHolder implements XAStatefulHolder {
         return creationDate;
     }
 
+    /**
+     * Check that the physical connection this pooled object represents is still usable. This is called on idle
+     * pooled objects to keep them alive and to discard dead ones. Pooled objects which can be tested should override
+     * this method, by default they are always considered valid.
+     * @throws Exception a resource-specific exception thrown when the physical connection is not usable anymore.
+     */
+    public void validate() throws Exception {
+    }
+
     public int getState() {
         return state;
     }
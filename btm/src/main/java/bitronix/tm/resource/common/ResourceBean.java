@@ -22,6 +22,7 @@ package bitronix.tm.resource.common;
 
 import java.io.Serializable;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Abstract javabean container for all common properties of a {@link bitronix.tm.resource.common.XAResourceProducer} as configured in the
@@ -32,6 +33,8 @@ import java.util.Properties;
 @SuppressWarnings("serial")
 public abstract class ResourceBean implements Serializable {
 
+    private final static AtomicIntegerFieldUpdater<ResourceBean> createdResourcesCounterUpdater = AtomicIntegerFieldUpdater.newUpdater(ResourceBean.class, "createdResourcesCounter");
+
     private volatile String className;
     private volatile String uniqueName;
     private volatile boolean automaticEnlistingEnabled = true;
@@ -45,6 +48,9 @@ public abstract class ResourceBean implements Serializable {
     private volatile int acquisitionTimeout = 30;
     private volatile boolean deferConnectionRelease = true;
     private volatile int acquisitionInterval = 1;
+    private volatile int acquisitionConcurrency = 1;
+    private volatile int validationWindowInMillis = 0;
+    private volatile int keepAliveInterval = 0;
     private volatile boolean allowLocalTransactions = false;
     private volatile int twoPcOrderingPosition = 1;
     private volatile boolean applyTransactionTimeout = false;
@@ -266,6 +272,55 @@ public abstract class ResourceBean implements Serializable {
         this.acquisitionInterval = acquisitionInterval;
     }
 
+    /**
+     * @return the maximum amount of connections the pool creates in parallel.
+     */
+    public int getAcquisitionConcurrency() {
+        return acquisitionConcurrency;
+    }
+
+    /**
+     * Set the maximum amount of connections the pool creates in parallel, in the background when it needs to grow and
+     * when it is filled up to its minimum size. Raising it speeds up pool warm-up with databases having slow logins.
+     * @param acquisitionConcurrency the maximum amount of connections created in parallel.
+     */
+    public void setAcquisitionConcurrency(int acquisitionConcurrency) {
+        this.acquisitionConcurrency = acquisitionConcurrency;
+    }
+
+    /**
+     * @return the amount of time in milliseconds during which a connection is not tested again after having been
+     * released or validated.
+     */
+    public int getValidationWindowInMillis() {
+        return validationWindowInMillis;
+    }
+
+    /**
+     * Set the amount of time in milliseconds during which a connection is not tested again when it is acquired after
+     * having been released or validated. 0 means connections are tested every time they are acquired.
+     * @param validationWindowInMillis amount of time in milliseconds.
+     */
+    public void setValidationWindowInMillis(int validationWindowInMillis) {
+        this.validationWindowInMillis = validationWindowInMillis;
+    }
+
+    /**
+     * @return the amount of time in seconds after which idle connections are validated in the background.
+     */
+    public int getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    /**
+     * Set the amount of time in seconds after which idle connections are validated in the background. Connections
+     * failing validation are closed and replaced. 0 disables background validation.
+     * @param keepAliveInterval amount of time in seconds.
+     */
+    public void setKeepAliveInterval(int keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
     /**
      * @return true if the transaction manager should allow mixing XA and non-XA transactions.
      */
@@ -365,7 +420,8 @@ public abstract class ResourceBean implements Serializable {
      * @return the current value of the counter.
      */
     public int incCreatedResourcesCounter() {
-        return this.createdResourcesCounter++;
+        // pooled objects can be created in parallel
+        return createdResourcesCounterUpdater.getAndIncrement(this);
     }
 
 }
@@ -21,17 +21,23 @@
 package bitronix.tm.resource.common;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.transaction.Synchronization;
 
@@ -62,18 +68,26 @@ public class XAPool implements StateChangeListener {
     private final static Logger log = LoggerFactory.getLogger(XAPool.class);
 
     /**
-     * The stateTransitionLock makes sure that transitions of XAStatefulHolders from one state to another
-     * (movement from one pool to another) are atomic.  A ReentrantReadWriteLock allows any number of 
-     * readers to access and iterate the accessiblePool and inaccessiblePool without blocking.  Readers 
-     * are blocked only for the instant when a connection is moving between pools.  These locks are 
-     * sufficient to protect the collections, which are left intentionally non-concurrent so that failures
-     * in locking logic will be quickly uncovered.
+     * How often a thread waiting for the pool to grow checks if the creation of new connections failed.
      */
-    private final ReentrantReadWriteLock stateTransitionLock = new ReentrantReadWriteLock();
+    private final static long GROWTH_CHECK_INTERVAL_MS = 100;
 
-    private final BlockingQueue<XAStatefulHolder> availablePool = new LinkedBlockingQueue<XAStatefulHolder>();
-    private final Queue<XAStatefulHolder> accessiblePool = new LinkedList<XAStatefulHolder>();
-    private final Queue<XAStatefulHolder> inaccessiblePool = new LinkedList<XAStatefulHolder>();
+    /**
+     * Creation count standing for as many pooled objects as the pool misses to reach its min size.
+     */
+    private final static int MISSING_TO_MIN_POOL_SIZE = -1;
+
+    /**
+     * All pooled XAStatefulHolders live in this bag. A holder is reserved in the bag from the moment it is borrowed
+     * until its state goes back to IN_POOL, whatever ACCESSIBLE or NOT_ACCESSIBLE state it goes through in between.
+     * Borrowing and giving back holders does not require any pool-wide lock.
+     */
+    private final XAStatefulHolderBag bag = new XAStatefulHolderBag();
+
+    /**
+     * NOT_ACCESSIBLE XAStatefulHolders indexed by the GTRID of the transaction they have been released in.
+     */
+    private final XAStatefulHolderGtridIndex notAccessibleIndex = new XAStatefulHolderGtridIndex();
 
     /**
      * This map is used to implement the connection sharing feature of Bitronix.
@@ -85,6 +99,32 @@ public class XAPool implements StateChangeListener {
     private final Object xaFactory;
     private final AtomicBoolean failed = new AtomicBoolean();
 
+    /**
+     * Serializes the pool-wide operations (close, shrinking, reset and reinitialization). Those can block on I/O
+     * for a long time, which must not happen while holding a monitor as this would pin virtual threads.
+     */
+    private final Lock poolLock = new ReentrantLock();
+
+    /**
+     * Pooled objects are created in the background by this executor, up to the configured acquisition concurrency.
+     */
+    private volatile ExecutorService poolFiller;
+    private final AtomicInteger pendingCreations = new AtomicInteger();
+    /**
+     * Makes adding a created pooled object to the bag and decrementing the pending creations one atomic step, so that
+     * sizing the pool never counts a pooled object twice.
+     */
+    private final Lock creationLock = new ReentrantLock();
+    private final AtomicInteger failedCreations = new AtomicInteger();
+    private volatile Exception lastCreationFailure;
+    /**
+     * Idle pooled objects are validated in the background by this executor. It is distinct from the pool filler so
+     * that validating against an unresponsive resource never delays the creation of new pooled objects.
+     */
+    private volatile ExecutorService keepAliveValidator;
+
+    private final XAPoolStatistics statistics = new XAPoolStatistics();
+
     public XAPool(XAResourceProducer xaResourceProducer, ResourceBean bean) throws Exception {
         this.xaResourceProducer = xaResourceProducer;
         this.bean = bean;
@@ -92,6 +132,8 @@ public class XAPool implements StateChangeListener {
             throw new IllegalArgumentException("cannot create a pool with min " + bean.getMinPoolSize() + " connection(s) and max " + bean.getMaxPoolSize() + " connection(s)");
         if (bean.getAcquireIncrement() < 1)
             throw new IllegalArgumentException("cannot create a pool with a connection acquisition increment less than 1, configured value is " + bean.getAcquireIncrement());
+        if (bean.getAcquisitionConcurrency() < 1)
+            throw new IllegalArgumentException("cannot create a pool with a connection acquisition concurrency less than 1, configured value is " + bean.getAcquisitionConcurrency());
 
         xaFactory = XAFactoryHelper.createXAFactory(bean);
         init();
@@ -101,39 +143,64 @@ public class XAPool implements StateChangeListener {
     }
 
     private void init() throws Exception {
-        growUntilMinPoolSize();
+        ExecutorService poolFiller = createPoolFiller();
+        this.poolFiller = poolFiller;
+        try {
+            growUntilMinPoolSize();
+        } catch (Exception ex) {
+            // nothing will ever close a pool which failed to initialize, release its connections and threads now
+            close();
+            poolFiller.shutdownNow();
+            throw ex;
+        }
 
         if (bean.getMaxIdleTime() > 0 || bean.getMaxLifeTime() > 0) {
             TransactionManagerServices.getTaskScheduler().schedulePoolShrinking(this);
         }
+        if (bean.getKeepAliveInterval() > 0) {
+            keepAliveValidator = createExecutor("bitronix-pool-keepalive-" + bean.getUniqueName(), 1);
+            TransactionManagerServices.getTaskScheduler().schedulePoolKeepAlive(this);
+        }
     }
 
     /**
      * Close down and cleanup this XAPool instance.
      */
-    public synchronized void close() {
-        if (log.isDebugEnabled()) { log.debug("closing all connections of " + this); }
-        
-        for (XAStatefulHolder xaStatefulHolder : getXAResourceHolders()) {
-            try {
-                xaStatefulHolder.close();
-            } catch (Exception ex) {
-                if (log.isDebugEnabled()) { log.debug("ignoring exception while closing connection " + xaStatefulHolder, ex); }
+    public void close() {
+        poolLock.lock();
+        try {
+            if (log.isDebugEnabled()) { log.debug("closing all connections of " + this); }
+
+            for (XAStatefulHolder xaStatefulHolder : getXAResourceHolders()) {
+                try {
+                    xaStatefulHolder.close();
+                } catch (Exception ex) {
+                    if (log.isDebugEnabled()) { log.debug("ignoring exception while closing connection " + xaStatefulHolder, ex); }
+                }
             }
-        }
 
-        if (TransactionManagerServices.isTaskSchedulerRunning())
-            TransactionManagerServices.getTaskScheduler().cancelPoolShrinking(this);
+            if (TransactionManagerServices.isTaskSchedulerRunning()) {
+                TransactionManagerServices.getTaskScheduler().cancelPoolShrinking(this);
+                TransactionManagerServices.getTaskScheduler().cancelPoolKeepAlive(this);
+            }
 
-        stateTransitionLock.writeLock().lock();
-        try {
-            availablePool.clear();
-            accessiblePool.clear();
-            inaccessiblePool.clear();
+            // connections still being created will be closed as soon as they are ready
+            ExecutorService poolFiller = this.poolFiller;
+            if (poolFiller != null) {
+                poolFiller.shutdown();
+                this.poolFiller = null;
+            }
+            ExecutorService keepAliveValidator = this.keepAliveValidator;
+            if (keepAliveValidator != null) {
+                keepAliveValidator.shutdown();
+                this.keepAliveValidator = null;
+            }
+
+            bag.clear();
+            notAccessibleIndex.clear();
             failed.set(false);
-        }
-        finally {
-            stateTransitionLock.writeLock().unlock();
+        } finally {
+            poolLock.unlock();
         }
     }
 
@@ -185,16 +252,12 @@ public class XAPool implements StateChangeListener {
                     putSharedXAStatefulHolder(xaStatefulHolder);
                 }
 
-                try {
-                	growUntilMinPoolSize();
-                }
-                catch (Exception e) {
-                	log.warn("exception while trying to fill pool to minimum size");
-                }
+                requestMinPoolSize();
 
                 return connectionHandle;
             } catch (Exception ex) {
             	if (log.isDebugEnabled()) { log.debug("connection is invalid, trying to close it", ex); }
+                statistics.recordEviction();
                 try {
                     xaStatefulHolder.close();
                 } catch (Exception ex2) {
@@ -210,9 +273,7 @@ public class XAPool implements StateChangeListener {
                     long waitTime = TimeUnit.SECONDS.toMillis(bean.getAcquisitionInterval());
                     if (waitTime > 0) {
                         try {
-                            synchronized (this) {
-                                wait(waitTime);
-                            }
+                            Thread.sleep(waitTime);
                         } catch (InterruptedException ex2) {
                             // ignore
                         }
@@ -231,54 +292,36 @@ public class XAPool implements StateChangeListener {
     }
 
     public void stateChanging(XAStatefulHolder source, int currentState, int futureState) {
-        stateTransitionLock.writeLock().lock();
-        try {
-            switch (currentState) {
-            case XAStatefulHolder.STATE_IN_POOL:
-                if (log.isDebugEnabled()) { log.debug("removed " + source + " from the available pool"); }
-                availablePool.remove(source);
-                break;
-            case XAStatefulHolder.STATE_ACCESSIBLE:
-                if (log.isDebugEnabled()) { log.debug("removed " + source + " from the accessible pool"); }
-                accessiblePool.remove(source);
-                break;
-            case XAStatefulHolder.STATE_NOT_ACCESSIBLE:
-                if (log.isDebugEnabled()) { log.debug("removed " + source + " from the inaccessible pool"); }
-                inaccessiblePool.remove(source);
-                break;
-            case XAStatefulHolder.STATE_CLOSED:
-                source.removeStateChangeEventListener(this);
-                break;
-            }
+        if (currentState == XAStatefulHolder.STATE_NOT_ACCESSIBLE) {
+            if (log.isDebugEnabled()) { log.debug("removed " + source + " from the inaccessible pool"); }
+            notAccessibleIndex.remove(source);
         }
-        finally {
-            stateTransitionLock.writeLock().unlock();
+        if (currentState == XAStatefulHolder.STATE_IN_POOL && futureState != XAStatefulHolder.STATE_CLOSED) {
+            // holders normally leave the IN_POOL state after having been borrowed, make sure one that
+            // did not cannot be borrowed concurrently
+            if (bag.reserve(source)) {
+                if (log.isDebugEnabled()) { log.debug("reserved " + source + " leaving the IN_POOL state without having been borrowed"); }
+            }
         }
     }
 
     public void stateChanged(XAStatefulHolder source, int oldState, int newState) {
-        stateTransitionLock.writeLock().lock();
-        try {
-        	switch (newState) {
-        	case XAStatefulHolder.STATE_IN_POOL:
-        		if (log.isDebugEnabled()) { log.debug("added " + source + " to the available pool"); }
-        		availablePool.add(source);
-        		break;
-        	case XAStatefulHolder.STATE_ACCESSIBLE:
-        		if (log.isDebugEnabled()) { log.debug("added " + source + " to the accessible pool"); }
-        		accessiblePool.add(source);
-        		break;
-        	case XAStatefulHolder.STATE_NOT_ACCESSIBLE:
-        		if (log.isDebugEnabled()) { log.debug("added " + source + " to the inaccessible pool"); }
-        		inaccessiblePool.add(source);
-        		break;
-        	case XAStatefulHolder.STATE_CLOSED:
-                source.removeStateChangeEventListener(this);
-        		break;
-        	}
-        }
-        finally {
-            stateTransitionLock.writeLock().unlock();
+        switch (newState) {
+        case XAStatefulHolder.STATE_IN_POOL:
+            if (log.isDebugEnabled()) { log.debug("giving back " + source + " to the available pool"); }
+            long borrowedFor = bag.requite(source);
+            if (borrowedFor >= 0)
+                statistics.recordHoldTime(borrowedFor);
+            break;
+        case XAStatefulHolder.STATE_NOT_ACCESSIBLE:
+            indexNotAccessible(source);
+            break;
+        case XAStatefulHolder.STATE_CLOSED:
+            if (log.isDebugEnabled()) { log.debug("removed " + source + " from " + this); }
+            notAccessibleIndex.remove(source);
+            bag.remove(source);
+            source.removeStateChangeEventListener(this);
+            break;
         }
     }
 
@@ -297,20 +340,36 @@ public class XAPool implements StateChangeListener {
         Uid currentTxGtrid = transaction.getResourceManager().getGtrid();
         if (log.isDebugEnabled()) { log.debug("current transaction GTRID is [" + currentTxGtrid + "]"); }
 
-        stateTransitionLock.readLock().lock();
-        try {
-            for (XAStatefulHolder xaStatefulHolder : inaccessiblePool) {
-                if (log.isDebugEnabled()) { log.debug("found a connection in NOT_ACCESSIBLE state: " + xaStatefulHolder); }
-                if (containsXAResourceHolderMatchingGtrid(xaStatefulHolder, currentTxGtrid))
-                    return xaStatefulHolder;
-            } // for
-    
-            if (log.isDebugEnabled()) { log.debug("no NOT_ACCESSIBLE connection enlisted in this transaction"); }
-            return null;
-        }
-        finally {
-            stateTransitionLock.readLock().unlock();
+        for (XAStatefulHolder xaStatefulHolder : notAccessibleIndex.get(currentTxGtrid)) {
+            if (log.isDebugEnabled()) { log.debug("found a connection in NOT_ACCESSIBLE state: " + xaStatefulHolder); }
+            // the index only gives candidates: the holder may have changed state or its XA states may
+            // have been removed since it was indexed
+            if (xaStatefulHolder.getState() == XAStatefulHolder.STATE_NOT_ACCESSIBLE &&
+                    containsXAResourceHolderMatchingGtrid(xaStatefulHolder, currentTxGtrid))
+                return xaStatefulHolder;
+        } // for
+
+        if (log.isDebugEnabled()) { log.debug("no NOT_ACCESSIBLE connection enlisted in this transaction"); }
+        return null;
+    }
+
+    /**
+     * Index a XAStatefulHolder which just became NOT_ACCESSIBLE. This only happens when a connection handle gets
+     * closed in the global transaction the holder is enlisted in, so that transaction's GTRID is the one under
+     * which it can be recycled. XA states can only be attached to the holder again after it left the
+     * NOT_ACCESSIBLE state, which unindexes it.
+     *
+     * @param xaStatefulHolder the NOT_ACCESSIBLE holder.
+     */
+    private void indexNotAccessible(XAStatefulHolder xaStatefulHolder) {
+        BitronixTransaction transaction = TransactionContextHelper.currentTransaction();
+        if (transaction == null) {
+            if (log.isDebugEnabled()) { log.debug("no current transaction, " + xaStatefulHolder + " cannot be recycled until it is released"); }
+            return;
         }
+        Uid currentTxGtrid = transaction.getResourceManager().getGtrid();
+        if (log.isDebugEnabled()) { log.debug("added " + xaStatefulHolder + " to the inaccessible pool of GTRID [" + currentTxGtrid + "]"); }
+        notAccessibleIndex.add(xaStatefulHolder, currentTxGtrid);
     }
 
     private boolean containsXAResourceHolderMatchingGtrid(XAStatefulHolder xaStatefulHolder, final Uid currentTxGtrid) {
@@ -353,23 +412,45 @@ public class XAPool implements StateChangeListener {
     private XAStatefulHolder getInPool(long remainingTimeMs) throws Exception {
         if (log.isDebugEnabled()) { log.debug("getting a IN_POOL connection from " + this); }
 
-        if (inPoolSize() == 0) {
+        long startTime = System.nanoTime();
+        try {
+            XAStatefulHolder xaStatefulHolder = bag.borrow(0);
+            if (xaStatefulHolder != null) {
+                statistics.recordAcquisitionWaitTime(System.nanoTime() - startTime);
+                return xaStatefulHolder;
+            }
+
             if (log.isDebugEnabled()) { log.debug("no more free connections in " + this + ", trying to grow it"); }
+            int failedCreationsBefore = failedCreations.get();
             grow();
-        }
 
-        if (log.isDebugEnabled()) { log.debug("getting IN_POOL connection, waiting if necessary, current size is " + inPoolSize()); }
+            if (log.isDebugEnabled()) { log.debug("getting IN_POOL connection, waiting if necessary, current size is " + inPoolSize()); }
+            long deadline = MonotonicClock.currentTimeMillis() + remainingTimeMs;
+            while (true) {
+                xaStatefulHolder = bag.borrow(Math.min(remainingTimeMs, GROWTH_CHECK_INTERVAL_MS));
+                if (xaStatefulHolder != null) {
+                    statistics.recordAcquisitionWaitTime(System.nanoTime() - startTime);
+                    return xaStatefulHolder;
+                }
 
-        try {
-        	XAStatefulHolder xaStatefulHolder = availablePool.poll(remainingTimeMs, TimeUnit.MILLISECONDS);
-        	if (xaStatefulHolder == null) {
-        		if (TransactionManagerServices.isTransactionManagerRunning())
-        			TransactionManagerServices.getTransactionManager().dumpTransactionContexts();
-        		
-        		throw new BitronixRuntimeException("XA pool of resource " + bean.getUniqueName() + " still empty after " + bean.getAcquisitionTimeout() + "s wait time");
-        	}
-
-        	return xaStatefulHolder;
+                // do not wait for the timeout when the pool cannot grow
+                Exception creationFailure = lastCreationFailure;
+                if (failedCreations.get() != failedCreationsBefore && pendingCreations.get() == 0 && creationFailure != null)
+                    throw creationFailure;
+
+                remainingTimeMs = deadline - MonotonicClock.currentTimeMillis();
+                if (remainingTimeMs <= 0)
+                    break;
+
+                // connections may have been closed in the meantime, leaving room to grow again
+                grow();
+            }
+
+            statistics.recordAcquisitionTimeout();
+            if (TransactionManagerServices.isTransactionManagerRunning())
+                TransactionManagerServices.getTransactionManager().dumpTransactionContexts();
+
+            throw new BitronixRuntimeException("XA pool of resource " + bean.getUniqueName() + " still empty after " + bean.getAcquisitionTimeout() + "s wait time");
 		} catch (InterruptedException e) {
 			throw new BitronixRuntimeException("Interrupted while waiting for IN_POOL connection.");
 		}
@@ -380,39 +461,220 @@ public class XAPool implements StateChangeListener {
      * ------------------------------------------------------------------------*/
 
     /**
-     * Grow the pool by "acquire increment" amount up to the max pool size.
+     * Grow the pool by "acquire increment" amount up to the max pool size. The pooled objects are created
+     * asynchronously and handed off to the threads waiting for one as soon as they are ready.
+     */
+    private void grow() {
+        List<Future<XAStatefulHolder>> creations = createPooledObjects(bean.getAcquireIncrement(), false);
+        if (creations.isEmpty()) {
+            if (log.isDebugEnabled()) { log.debug("pool " + bean.getUniqueName() + " already at max size of " + totalPoolSize() + " connection(s) or already growing, not growing it"); }
+        }
+        else {
+            statistics.recordGrowth();
+        }
+    }
+
+    /**
+     * Grow the pool up to the min pool size in the background.
+     */
+    private void requestMinPoolSize() {
+        if (totalPoolSize() + pendingCreations.get() < bean.getMinPoolSize()) {
+            if (log.isDebugEnabled()) { log.debug("growing " + this + " to minimum pool size " + bean.getMinPoolSize() + " in the background"); }
+            createPooledObjects(MISSING_TO_MIN_POOL_SIZE, true);
+        }
+    }
+
+    /**
+     * Grow the pool up to the min pool size, creating the pooled objects in parallel and waiting for all of them.
      *
-     * @throws Exception thrown if creating a pooled objects fails
+     * @throws Exception the first exception thrown by the creation of a pooled object.
      */
-    private synchronized void grow() throws Exception {
-    	final long totalPoolSize = totalPoolSize();
-        if (totalPoolSize < bean.getMaxPoolSize()) {
-            long increment = bean.getAcquireIncrement();
-            if (totalPoolSize + increment > bean.getMaxPoolSize()) {
-                increment = bean.getMaxPoolSize() - totalPoolSize;
+    private void growUntilMinPoolSize() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("growing " + this + " to minimum pool size " + bean.getMinPoolSize()); }
+        Exception failure = null;
+        for (Future<XAStatefulHolder> creation : createPooledObjects(MISSING_TO_MIN_POOL_SIZE, false)) {
+            try {
+                creation.get();
+            } catch (ExecutionException ex) {
+                if (failure == null)
+                    failure = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : new BitronixRuntimeException("error creating pooled object of " + this, ex.getCause());
+            } catch (InterruptedException ex) {
+                throw new BitronixRuntimeException("interrupted while growing " + this + " to minimum pool size", ex);
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Schedule the creation of up to <code>count</code> pooled objects without going over the max pool size.
+     *
+     * @param count the amount of pooled objects to create, or {@link #MISSING_TO_MIN_POOL_SIZE}.
+     * @param logFailure true if creation failures have to be logged as no one waits for their outcome.
+     * @return the scheduled creations, possibly none.
+     */
+    private List<Future<XAStatefulHolder>> createPooledObjects(int count, boolean logFailure) {
+        ExecutorService poolFiller = this.poolFiller;
+        if (poolFiller == null)
+            return Collections.emptyList();
+
+        int scheduled;
+        creationLock.lock();
+        try {
+            int pending = pendingCreations.get();
+            if (count == MISSING_TO_MIN_POOL_SIZE)
+                count = bean.getMinPoolSize() - totalPoolSize() - pending;
+            scheduled = Math.min(count, bean.getMaxPoolSize() - totalPoolSize() - pending);
+            if (scheduled <= 0)
+                return Collections.emptyList();
+            pendingCreations.addAndGet(scheduled);
+        } finally {
+            creationLock.unlock();
+        }
+
+        if (log.isDebugEnabled()) { log.debug("incrementing " + bean.getUniqueName() + " pool size by " + scheduled + " unit(s)"); }
+        List<Future<XAStatefulHolder>> creations = new ArrayList<Future<XAStatefulHolder>>(scheduled);
+        for (int i = 0; i < scheduled; i++) {
+            try {
+                creations.add(poolFiller.submit(new PooledObjectCreation(poolFiller, logFailure)));
+            } catch (RejectedExecutionException ex) {
+                // the pool got closed in the meantime
+                pendingCreations.addAndGet(-(scheduled - i));
+                break;
             }
+        }
+        return creations;
+    }
 
-            if (log.isDebugEnabled()) { log.debug("incrementing " + bean.getUniqueName() + " pool size by " + increment + " unit(s) to reach " + (totalPoolSize() + increment) + " connection(s)"); }
-            for (int i=0; i < increment ;i++) {
-                createPooledObject(xaFactory);
+    private ExecutorService createPoolFiller() {
+        return createExecutor("bitronix-pool-filler-" + bean.getUniqueName(), bean.getAcquisitionConcurrency());
+    }
+
+    private static ExecutorService createExecutor(final String threadName, int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
             }
+        });
+    }
+
+    private final class PooledObjectCreation implements Callable<XAStatefulHolder> {
+        private final ExecutorService poolFiller;
+        private final boolean logFailure;
+
+        private PooledObjectCreation(ExecutorService poolFiller, boolean logFailure) {
+            this.poolFiller = poolFiller;
+            this.logFailure = logFailure;
         }
-        else {
-            if (log.isDebugEnabled()) { log.debug("pool " + bean.getUniqueName() + " already at max size of " + totalPoolSize() + " connection(s), not growing it"); }
+
+        public XAStatefulHolder call() throws Exception {
+            boolean created = false;
+            try {
+                long startTime = System.nanoTime();
+                XAStatefulHolder xaStatefulHolder = xaResourceProducer.createPooledConnection(xaFactory, bean);
+                statistics.recordConnectTime(System.nanoTime() - startTime);
+                if (poolFiller.isShutdown()) {
+                    if (log.isDebugEnabled()) { log.debug("closing " + xaStatefulHolder + " created after its pool got closed"); }
+                    xaStatefulHolder.close();
+                    return null;
+                }
+                xaStatefulHolder.addStateChangeEventListener(XAPool.this);
+                creationLock.lock();
+                try {
+                    bag.add(xaStatefulHolder);
+                    pendingCreations.decrementAndGet();
+                    created = true;
+                } finally {
+                    creationLock.unlock();
+                }
+                return xaStatefulHolder;
+            } catch (Exception ex) {
+                if (logFailure)
+                    log.warn("exception while trying to fill " + XAPool.this + " to minimum size", ex);
+                else if (log.isDebugEnabled()) { log.debug("exception while trying to grow " + XAPool.this, ex); }
+                lastCreationFailure = ex;
+                failedCreations.incrementAndGet();
+                statistics.recordConnectFailure();
+                throw ex;
+            } finally {
+                if (!created)
+                    pendingCreations.decrementAndGet();
+            }
         }
     }
 
-    private synchronized void growUntilMinPoolSize() throws Exception {
-        if (log.isDebugEnabled()) { log.debug("growing " + this + " to minimum pool size " + bean.getMinPoolSize()); }
-        for (int i = totalPoolSize(); i < bean.getMinPoolSize(); i++) {
-            createPooledObject(xaFactory);
+    /* ------------------------------------------------------------------------
+     * Idle pooled object keep alive
+     * ------------------------------------------------------------------------*/
+
+    public Date getNextKeepAliveDate() {
+        return new Date(MonotonicClock.currentTimeMillis() + bean.getKeepAliveInterval() * 1000L);
+    }
+
+    /**
+     * Validate the pooled objects which have been idle for at least the keep alive interval. The validation is
+     * done in the background by a dedicated thread, pooled objects failing it are closed and replaced.
+     */
+    public void keepAlive() {
+        ExecutorService keepAliveValidator = this.keepAliveValidator;
+        if (keepAliveValidator == null)
+            return;
+
+        final long idleSince = MonotonicClock.currentTimeMillis() - bean.getKeepAliveInterval() * 1000L;
+        int scheduled = 0;
+        for (XAStatefulHolder xaStatefulHolder : bag.values()) {
+            // only pooled objects extending AbstractXAStatefulHolder know how to validate themselves
+            if (!(xaStatefulHolder instanceof AbstractXAStatefulHolder))
+                continue;
+            Date lastReleaseDate = xaStatefulHolder.getLastReleaseDate();
+            if (lastReleaseDate != null && lastReleaseDate.getTime() > idleSince)
+                continue;
+            // only idle holders can be reserved, and reserving them keeps them from being handed out while validated
+            if (!bag.reserve(xaStatefulHolder))
+                continue;
+
+            try {
+                keepAliveValidator.execute(new PooledObjectValidation((AbstractXAStatefulHolder) xaStatefulHolder));
+                scheduled++;
+            } catch (RejectedExecutionException ex) {
+                // the pool got closed in the meantime
+                bag.requite(xaStatefulHolder);
+                break;
+            }
         }
+        if (log.isDebugEnabled()) { log.debug("validating " + scheduled + " idle connection(s) of " + this); }
     }
 
-    private void createPooledObject(Object xaFactory) throws Exception {
-        XAStatefulHolder xaStatefulHolder = xaResourceProducer.createPooledConnection(xaFactory, bean);
-        xaStatefulHolder.addStateChangeEventListener(this);
-        availablePool.add(xaStatefulHolder);
+    private final class PooledObjectValidation implements Runnable {
+        private final AbstractXAStatefulHolder xaStatefulHolder;
+
+        private PooledObjectValidation(AbstractXAStatefulHolder xaStatefulHolder) {
+            this.xaStatefulHolder = xaStatefulHolder;
+        }
+
+        public void run() {
+            try {
+                xaStatefulHolder.validate();
+                if (log.isDebugEnabled()) { log.debug("successfully validated idle connection " + xaStatefulHolder); }
+                bag.requite(xaStatefulHolder);
+                return;
+            } catch (Exception ex) {
+                log.warn("idle connection " + xaStatefulHolder + " of " + XAPool.this + " failed validation, closing it", ex);
+            }
+            statistics.recordEviction();
+
+            try {
+                xaStatefulHolder.close();
+            } catch (Exception ex) {
+                if (log.isDebugEnabled()) { log.debug("exception while trying to close invalid connection, ignoring it", ex); }
+            }
+            if (xaStatefulHolder.getState() != XAStatefulHolder.STATE_CLOSED) {
+                stateChanged(xaStatefulHolder, xaStatefulHolder.getState(), XAStatefulHolder.STATE_CLOSED);
+            }
+            requestMinPoolSize();
+        }
     }
 
     /* ------------------------------------------------------------------------
@@ -425,24 +687,33 @@ public class XAPool implements StateChangeListener {
     
     public void shrink() throws Exception {
         if (log.isDebugEnabled()) { log.debug("shrinking " + this); }
-        expireOrCloseStatefulHolders(false);
+        poolLock.lock();
+        try {
+            expireOrCloseStatefulHolders(false);
+        } finally {
+            poolLock.unlock();
+        }
         if (log.isDebugEnabled()) { log.debug("shrunk " + this); }
     }
 
     public void reset() throws Exception {
         if (log.isDebugEnabled()) { log.debug("resetting " + this); }
-        expireOrCloseStatefulHolders(true);
+        poolLock.lock();
+        try {
+            expireOrCloseStatefulHolders(true);
+        } finally {
+            poolLock.unlock();
+        }
         if (log.isDebugEnabled()) { log.debug("reset " + this); }
     }
 
-    private synchronized void expireOrCloseStatefulHolders(boolean forceClose) throws Exception {
+    private void expireOrCloseStatefulHolders(boolean forceClose) throws Exception {
         int closed = 0;
         final long now = MonotonicClock.currentTimeMillis();
-        final int availableSize = availablePool.size();
-        for (int i = 0; i < availableSize; i++) {
-            XAStatefulHolder xaStatefulHolder = availablePool.poll();
-            if (xaStatefulHolder == null) {
-                break;
+        for (XAStatefulHolder xaStatefulHolder : bag.values()) {
+            // only holders that can be reserved are idle, the others are in use or already gone
+            if (!bag.reserve(xaStatefulHolder)) {
+                continue;
             }
 
             long expirationTime = Integer.MAX_VALUE;
@@ -457,6 +728,8 @@ public class XAPool implements StateChangeListener {
 
             if (!forceClose && log.isDebugEnabled()) { log.debug("checking if connection can be closed: " + xaStatefulHolder + " - closing time: " + expirationTime + ", now time: " + now); }
             if (expirationTime <= now || forceClose) {
+                if (!forceClose)
+                    statistics.recordEviction();
                 try {
                     closed++;
                     xaStatefulHolder.close();
@@ -464,7 +737,7 @@ public class XAPool implements StateChangeListener {
                     log.warn("error closing " + xaStatefulHolder, ex);
                 }
             } else {
-                availablePool.add(xaStatefulHolder);
+                bag.requite(xaStatefulHolder);
             }
         } // for
 
@@ -474,7 +747,8 @@ public class XAPool implements StateChangeListener {
     }
 
     private void reinitializePool() {
-        synchronized (this) {
+        poolLock.lock();
+        try {
             try {
                 if (isFailed()) {
                     if (log.isDebugEnabled()) { log.debug("resource '" + bean.getUniqueName() + "' is marked as failed, resetting and recovering it before trying connection acquisition"); }
@@ -489,6 +763,8 @@ public class XAPool implements StateChangeListener {
             catch (Exception ex) {
                 throw new BitronixRuntimeException("pool reset failed when trying to acquire a connection from failed resource '" + bean.getUniqueName() + "'", ex);
             }
+        } finally {
+            poolLock.unlock();
         }
     }
 
@@ -523,13 +799,22 @@ public class XAPool implements StateChangeListener {
         return failed.get();
     }
 
+    /**
+     * Get the acquisition, usage, creation and validation statistics of this pool.
+     *
+     * @return the statistics of this pool
+     */
+    public XAPoolStatistics getStatistics() {
+        return statistics;
+    }
+
     /**
      * Get the total size of this pool. 
      *
      * @return the total size of this pool
      */
     public int totalPoolSize() {
-        return availablePool.size() + accessiblePool.size() + inaccessiblePool.size();
+        return bag.size();
     }
 
     /**
@@ -538,21 +823,11 @@ public class XAPool implements StateChangeListener {
      * @return the number of available objects
      */
     public int inPoolSize() {
-        return availablePool.size();
+        return bag.freeCount();
     }
 
     public List<XAStatefulHolder> getXAResourceHolders() {
-        stateTransitionLock.readLock().lock();
-        try {
-            List<XAStatefulHolder> holders = new ArrayList<XAStatefulHolder>();
-            holders.addAll(availablePool);
-            holders.addAll(accessiblePool);
-            holders.addAll(inaccessiblePool);
-            return holders;
-        }
-        finally {
-            stateTransitionLock.readLock().unlock();
-        }
+        return bag.values();
     }
 
     /* ------------------------------------------------------------------------
@@ -0,0 +1,174 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.resource.common;
+
+import java.util.concurrent.TimeUnit;
+
+import bitronix.tm.utils.LatencyHistogram;
+import bitronix.tm.utils.StripedCounter;
+
+/**
+ * Acquisition, usage, creation and validation statistics of a {@link XAPool}. Recording never locks so that it
+ * can stay enabled in production. Times are recorded in nanoseconds and reported in microseconds.
+ *
+ * @author lorban
+ */
+public final class XAPoolStatistics implements XAPoolStatisticsMBean {
+
+    private final LatencyHistogram acquisitionWaitTime = new LatencyHistogram();
+    private final LatencyHistogram holdTime = new LatencyHistogram();
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LatencyHistogram validationTime = new LatencyHistogram();
+    private final StripedCounter acquisitionTimeouts = new StripedCounter();
+    private final StripedCounter growths = new StripedCounter();
+    private final StripedCounter connectFailures = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+
+    public void recordAcquisitionWaitTime(long nanos) {
+        acquisitionWaitTime.record(toMicros(nanos));
+    }
+
+    public void recordAcquisitionTimeout() {
+        acquisitionTimeouts.increment();
+    }
+
+    public void recordHoldTime(long nanos) {
+        holdTime.record(toMicros(nanos));
+    }
+
+    public void recordGrowth() {
+        growths.increment();
+    }
+
+    public void recordConnectTime(long nanos) {
+        connectTime.record(toMicros(nanos));
+    }
+
+    public void recordConnectFailure() {
+        connectFailures.increment();
+    }
+
+    public void recordValidationTime(long nanos) {
+        validationTime.record(toMicros(nanos));
+    }
+
+    public void recordEviction() {
+        evictions.increment();
+    }
+
+    /* management */
+
+    public long getAcquisitionCount() {
+        return acquisitionWaitTime.getCount();
+    }
+
+    public long getAcquisitionTimeoutCount() {
+        return acquisitionTimeouts.sum();
+    }
+
+    public long getAcquisitionWaitTimeMeanInMicros() {
+        return acquisitionWaitTime.getMean();
+    }
+
+    public long getAcquisitionWaitTime99thPercentileInMicros() {
+        return acquisitionWaitTime.getValueAtPercentile(99.0);
+    }
+
+    public long getAcquisitionWaitTimeMaxInMicros() {
+        return acquisitionWaitTime.getMax();
+    }
+
+    public long getHoldTimeMeanInMicros() {
+        return holdTime.getMean();
+    }
+
+    public long getHoldTime99thPercentileInMicros() {
+        return holdTime.getValueAtPercentile(99.0);
+    }
+
+    public long getHoldTimeMaxInMicros() {
+        return holdTime.getMax();
+    }
+
+    public long getGrowCount() {
+        return growths.sum();
+    }
+
+    public long getConnectCount() {
+        return connectTime.getCount();
+    }
+
+    public long getConnectFailureCount() {
+        return connectFailures.sum();
+    }
+
+    public long getConnectTimeMeanInMicros() {
+        return connectTime.getMean();
+    }
+
+    public long getConnectTime99thPercentileInMicros() {
+        return connectTime.getValueAtPercentile(99.0);
+    }
+
+    public long getConnectTimeMaxInMicros() {
+        return connectTime.getMax();
+    }
+
+    public long getValidationCount() {
+        return validationTime.getCount();
+    }
+
+    public long getValidationTimeMeanInMicros() {
+        return validationTime.getMean();
+    }
+
+    public long getValidationTime99thPercentileInMicros() {
+        return validationTime.getValueAtPercentile(99.0);
+    }
+
+    public long getValidationTimeMaxInMicros() {
+        return validationTime.getMax();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public void resetStatistics() {
+        acquisitionWaitTime.reset();
+        holdTime.reset();
+        connectTime.reset();
+        validationTime.reset();
+        acquisitionTimeouts.reset();
+        growths.reset();
+        connectFailures.reset();
+        evictions.reset();
+    }
+
+    public String toString() {
+        return "a XAPoolStatistics with " + getAcquisitionCount() + " acquisition(s), " + getAcquisitionTimeoutCount() +
+                " timeout(s), " + getConnectCount() + " connect(s) and " + getEvictionCount() + " eviction(s)";
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.resource.common;
+
+/**
+ * {@link XAPool} statistics management interface, shared by the management interfaces of the pooling resources.
+ * All times are in microseconds.
+ *
+ * @author lorban
+ */
+public interface XAPoolStatisticsMBean {
+
+    /**
+     * @return the number of connections taken out of the pool.
+     */
+    public long getAcquisitionCount();
+
+    /**
+     * @return the number of times no connection could be taken out of the pool before the acquisition timeout.
+     */
+    public long getAcquisitionTimeoutCount();
+
+    public long getAcquisitionWaitTimeMeanInMicros();
+
+    public long getAcquisitionWaitTime99thPercentileInMicros();
+
+    public long getAcquisitionWaitTimeMaxInMicros();
+
+    /**
+     * @return the average time a connection is used before going back to the pool.
+     */
+    public long getHoldTimeMeanInMicros();
+
+    public long getHoldTime99thPercentileInMicros();
+
+    public long getHoldTimeMaxInMicros();
+
+    /**
+     * @return the number of times the pool had to grow because it had no free connection.
+     */
+    public long getGrowCount();
+
+    /**
+     * @return the number of physical connections created.
+     */
+    public long getConnectCount();
+
+    /**
+     * @return the number of physical connections which could not be created.
+     */
+    public long getConnectFailureCount();
+
+    public long getConnectTimeMeanInMicros();
+
+    public long getConnectTime99thPercentileInMicros();
+
+    public long getConnectTimeMaxInMicros();
+
+    /**
+     * @return the number of successful connection tests.
+     */
+    public long getValidationCount();
+
+    public long getValidationTimeMeanInMicros();
+
+    public long getValidationTime99thPercentileInMicros();
+
+    public long getValidationTimeMaxInMicros();
+
+    /**
+     * @return the number of connections closed because they expired or failed a test.
+     */
+    public long getEvictionCount();
+
+    public void resetStatistics();
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.resource.common;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free container of the {@link XAStatefulHolder}s of a {@link XAPool}.
+ * <p>Every holder is wrapped in an entry carrying an atomic borrow state, all entries are kept in a shared
+ * copy-on-write array and borrowing an entry is a single CAS on that state. Each thread additionally remembers
+ * the entries it recently gave back so that in the common case a borrow succeeds on the first entry it looks at,
+ * without scanning the shared array nor contending with other threads. Threads that find nothing to borrow wait
+ * on a synchronous queue into which returning threads directly hand their entry off. A returning thread only offers
+ * its entry for a short time, waiting threads rescan the shared array periodically to pick up the entries whose
+ * hand-off they missed.</p>
+ * <p>The borrow state is independent from the holder's own state: an entry is reserved as soon as it leaves the
+ * bag and only becomes free again when it is explicitly given back with {@link #requite(XAStatefulHolder)}, which
+ * tells for how long it was borrowed.</p>
+ *
+ * @author lorban
+ */
+final class XAStatefulHolderBag {
+
+    private final static int STATE_FREE = 0;
+    private final static int STATE_RESERVED = 1;
+    private final static int STATE_REMOVED = -1;
+
+    private final static int MAX_THREAD_LOCAL_ENTRIES = 16;
+    private final static long HANDOFF_TIMEOUT_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private final static long RESCAN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final List<Entry> sharedEntries = new CopyOnWriteArrayList<Entry>();
+    private final Map<XAStatefulHolder, Entry> entriesByHolder = new ConcurrentHashMap<XAStatefulHolder, Entry>();
+    private final SynchronousQueue<Entry> handoffQueue = new SynchronousQueue<Entry>(true);
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final ThreadLocal<List<WeakReference<Entry>>> recentlyUsed = new ThreadLocal<List<WeakReference<Entry>>>() {
+        @Override
+        protected List<WeakReference<Entry>> initialValue() {
+            return new ArrayList<WeakReference<Entry>>(MAX_THREAD_LOCAL_ENTRIES);
+        }
+    };
+
+    /**
+     * Add a new, free holder to the bag and hand it off to a waiting thread if there is one.
+     *
+     * @param xaStatefulHolder the holder to add.
+     */
+    public void add(XAStatefulHolder xaStatefulHolder) {
+        Entry entry = new Entry(xaStatefulHolder);
+        entriesByHolder.put(xaStatefulHolder, entry);
+        sharedEntries.add(entry);
+        handOff(entry);
+    }
+
+    /**
+     * Definitively remove a holder from the bag, whatever its borrow state.
+     *
+     * @param xaStatefulHolder the holder to remove.
+     * @return true if the holder was part of the bag, false otherwise.
+     */
+    public boolean remove(XAStatefulHolder xaStatefulHolder) {
+        Entry entry = entriesByHolder.remove(xaStatefulHolder);
+        if (entry == null)
+            return false;
+        entry.set(STATE_REMOVED);
+        sharedEntries.remove(entry);
+        return true;
+    }
+
+    /**
+     * Borrow a free holder, waiting up to the specified timeout for one to be given back.
+     *
+     * @param timeoutInMillis the maximum time to wait, 0 to return immediately when no holder is free.
+     * @return a reserved holder or null if none became free before the timeout expired.
+     * @throws InterruptedException if the thread got interrupted while waiting.
+     */
+    public XAStatefulHolder borrow(long timeoutInMillis) throws InterruptedException {
+        // first try the entries this thread gave back most recently, they are the most likely not to be contended
+        List<WeakReference<Entry>> recent = recentlyUsed.get();
+        for (int i = recent.size() - 1; i >= 0; i--) {
+            Entry entry = recent.remove(i).get();
+            if (entry != null && entry.compareAndSet(STATE_FREE, STATE_RESERVED))
+                return entry.borrowed();
+        }
+
+        // registering as a waiter before scanning guarantees that an entry given back after the scan is handed off
+        waiters.incrementAndGet();
+        try {
+            for (Entry entry : sharedEntries) {
+                if (entry.compareAndSet(STATE_FREE, STATE_RESERVED))
+                    return entry.borrowed();
+            }
+
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutInMillis);
+            while (remainingNanos > 0) {
+                long before = System.nanoTime();
+                Entry entry = handoffQueue.poll(Math.min(remainingNanos, RESCAN_INTERVAL_NANOS), TimeUnit.NANOSECONDS);
+                if (entry != null && entry.compareAndSet(STATE_FREE, STATE_RESERVED))
+                    return entry.borrowed();
+                if (entry == null) {
+                    // the entry given back while this thread was not polling yet has not been handed off
+                    for (Entry sharedEntry : sharedEntries) {
+                        if (sharedEntry.compareAndSet(STATE_FREE, STATE_RESERVED))
+                            return sharedEntry.borrowed();
+                    }
+                }
+                remainingNanos -= System.nanoTime() - before;
+            }
+            return null;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reserve a specific free holder, as if it had been borrowed.
+     *
+     * @param xaStatefulHolder the holder to reserve.
+     * @return true if the holder was free and is now reserved by the caller, false otherwise.
+     */
+    public boolean reserve(XAStatefulHolder xaStatefulHolder) {
+        Entry entry = entriesByHolder.get(xaStatefulHolder);
+        if (entry == null || !entry.compareAndSet(STATE_FREE, STATE_RESERVED))
+            return false;
+        entry.borrowTime = 0;
+        return true;
+    }
+
+    /**
+     * Give a reserved holder back to the bag.
+     *
+     * @param xaStatefulHolder the holder to give back.
+     * @return the time in nanoseconds the holder was borrowed for, -1 if it was not borrowed but reserved or if it
+     *         was not reserved at all.
+     */
+    public long requite(XAStatefulHolder xaStatefulHolder) {
+        Entry entry = entriesByHolder.get(xaStatefulHolder);
+        if (entry == null)
+            return -1;
+        // read before giving the entry back, after that it can be borrowed again at any time
+        long borrowTime = entry.borrowTime;
+        if (!entry.compareAndSet(STATE_RESERVED, STATE_FREE))
+            return -1;
+        long borrowedFor = borrowTime == 0 ? -1 : System.nanoTime() - borrowTime;
+
+        List<WeakReference<Entry>> recent = recentlyUsed.get();
+        if (recent.size() == MAX_THREAD_LOCAL_ENTRIES)
+            recent.remove(0);
+        recent.add(entry.reference);
+
+        handOff(entry);
+        return borrowedFor;
+    }
+
+    /**
+     * @return a snapshot of all the holders in the bag.
+     */
+    public List<XAStatefulHolder> values() {
+        List<XAStatefulHolder> result = new ArrayList<XAStatefulHolder>(sharedEntries.size());
+        for (Entry entry : sharedEntries) {
+            result.add(entry.xaStatefulHolder);
+        }
+        return result;
+    }
+
+    public int size() {
+        return sharedEntries.size();
+    }
+
+    public int freeCount() {
+        int count = 0;
+        for (Entry entry : sharedEntries) {
+            if (entry.get() == STATE_FREE)
+                count++;
+        }
+        return count;
+    }
+
+    public void clear() {
+        for (Entry entry : sharedEntries) {
+            entry.set(STATE_REMOVED);
+        }
+        sharedEntries.clear();
+        entriesByHolder.clear();
+    }
+
+    /**
+     * Hand a free entry off to a waiting thread, if there is one polling the queue within a short delay. A waiter
+     * missing the hand-off finds the entry the next time it scans the shared array.
+     */
+    private void handOff(Entry entry) {
+        if (waiters.get() == 0 || entry.get() != STATE_FREE)
+            return;
+        try {
+            handoffQueue.offer(entry, HANDOFF_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final static class Entry extends AtomicInteger {
+        private static final long serialVersionUID = -2471393285327052931L;
+
+        private final XAStatefulHolder xaStatefulHolder;
+        /**
+         * Reference remembered by the threads giving the entry back, so that it does not prevent the entry from
+         * being garbage collected once removed from the bag.
+         */
+        private final WeakReference<Entry> reference = new WeakReference<Entry>(this);
+        /**
+         * {@link System#nanoTime()} at which the entry got borrowed, 0 when it got reserved instead.
+         */
+        private volatile long borrowTime;
+
+        private Entry(XAStatefulHolder xaStatefulHolder) {
+            super(STATE_FREE);
+            this.xaStatefulHolder = xaStatefulHolder;
+        }
+
+        private XAStatefulHolder borrowed() {
+            borrowTime = System.nanoTime();
+            return xaStatefulHolder;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.resource.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import bitronix.tm.utils.Uid;
+
+/**
+ * Index of the {@link XAStatefulHolder}s in NOT_ACCESSIBLE state by the GTRID of the transaction they were
+ * released in, so that recycling a connection within the same transaction does not need to scan the whole pool.
+ * <p>Only the holders of a single GTRID are ever locked together, there is no index-wide lock.</p>
+ *
+ * @author lorban
+ */
+final class XAStatefulHolderGtridIndex {
+
+    private final ConcurrentMap<Uid, Set<XAStatefulHolder>> holdersByGtrid = new ConcurrentHashMap<Uid, Set<XAStatefulHolder>>();
+    private final ConcurrentMap<XAStatefulHolder, Uid> gtridsByHolder = new ConcurrentHashMap<XAStatefulHolder, Uid>();
+
+    /**
+     * Index a holder under a GTRID, replacing any GTRID it was previously indexed under.
+     *
+     * @param xaStatefulHolder the holder to index.
+     * @param gtrid the GTRID of the transaction the holder is enlisted in.
+     */
+    public void add(XAStatefulHolder xaStatefulHolder, Uid gtrid) {
+        remove(xaStatefulHolder);
+
+        while (true) {
+            Set<XAStatefulHolder> holders = holdersByGtrid.get(gtrid);
+            if (holders == null) {
+                holders = new HashSet<XAStatefulHolder>(4);
+                Set<XAStatefulHolder> previous = holdersByGtrid.putIfAbsent(gtrid, holders);
+                if (previous != null)
+                    holders = previous;
+            }
+
+            synchronized (holders) {
+                // the set may have been dropped by a concurrent remove() after emptying it, retry with a new one
+                if (holdersByGtrid.get(gtrid) != holders)
+                    continue;
+                holders.add(xaStatefulHolder);
+            }
+            gtridsByHolder.put(xaStatefulHolder, gtrid);
+            return;
+        }
+    }
+
+    /**
+     * Remove a holder from the index.
+     *
+     * @param xaStatefulHolder the holder to remove.
+     * @return true if the holder was indexed, false otherwise.
+     */
+    public boolean remove(XAStatefulHolder xaStatefulHolder) {
+        Uid gtrid = gtridsByHolder.remove(xaStatefulHolder);
+        if (gtrid == null)
+            return false;
+
+        Set<XAStatefulHolder> holders = holdersByGtrid.get(gtrid);
+        if (holders == null)
+            return true;
+
+        synchronized (holders) {
+            holders.remove(xaStatefulHolder);
+            if (holders.isEmpty())
+                holdersByGtrid.remove(gtrid, holders);
+        }
+        return true;
+    }
+
+    /**
+     * Get the holders indexed under a GTRID.
+     *
+     * @param gtrid the GTRID to look up.
+     * @return a snapshot of the holders indexed under the GTRID, possibly empty.
+     */
+    public List<XAStatefulHolder> get(Uid gtrid) {
+        Set<XAStatefulHolder> holders = holdersByGtrid.get(gtrid);
+        if (holders == null)
+            return Collections.emptyList();
+
+        synchronized (holders) {
+            return new ArrayList<XAStatefulHolder>(holders);
+        }
+    }
+
+    public int size() {
+        return gtridsByHolder.size();
+    }
+
+    public void clear() {
+        holdersByGtrid.clear();
+        gtridsByHolder.clear();
+    }
+}
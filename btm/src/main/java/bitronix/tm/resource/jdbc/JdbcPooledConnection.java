@@ -46,6 +46,7 @@ import bitronix.tm.resource.common.RecoveryXAResourceHolder;
 import bitronix.tm.resource.common.ResourceBean;
 import bitronix.tm.resource.common.StateChangeListener;
 import bitronix.tm.resource.common.TransactionContextHelper;
+import bitronix.tm.resource.common.XAPoolStatistics;
 import bitronix.tm.resource.common.XAResourceHolder;
 import bitronix.tm.resource.common.XAStatefulHolder;
 import bitronix.tm.resource.jdbc.lrc.LrcXADataSource;
@@ -77,6 +78,7 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
     private final String jmxName;
     private volatile Date acquisitionDate;
     private volatile Date lastReleaseDate;
+    private volatile long lastValidationTime;
 
     private volatile int jdbcVersionDetected;
 
@@ -164,7 +166,24 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
         return new RecoveryXAResourceHolder(this);
     }
 
+    public void validate() throws Exception {
+        testConnection(connection);
+    }
+
+    /**
+     * A connection released or validated within the validation window is considered to be still valid.
+     * @return true if the connection has to be tested before being handed out.
+     */
+    private boolean isTestRequired() {
+        int validationWindow = poolingDataSource.getValidationWindowInMillis();
+        if (validationWindow <= 0)
+            return true;
+        long lastKnownValidTime = Math.max(lastReleaseDate.getTime(), lastValidationTime);
+        return MonotonicClock.currentTimeMillis() - lastKnownValidTime >= validationWindow;
+    }
+
     private void testConnection(Connection connection) throws SQLException {
+        long startTime = System.nanoTime();
         if (poolingDataSource.isEnableJdbc4ConnectionTest() && jdbcVersionDetected >= 4) {
             Boolean isValid = null;
             try {
@@ -179,6 +198,7 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
             if (isValid != null) {
                 if (isValid.booleanValue()) {
                     if (log.isDebugEnabled()) { log.debug("isValid successfully tested connection of " + this); }
+                    validated(startTime);
                     return;
                 }
                 throw new SQLException("connection is no longer valid");
@@ -198,6 +218,14 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
         rs.close();
         stmt.close();
         if (log.isDebugEnabled()) log.debug("testQuery successfully tested connection of " + this);
+        validated(startTime);
+    }
+
+    private void validated(long startTime) {
+        lastValidationTime = MonotonicClock.currentTimeMillis();
+        XAPoolStatistics statistics = poolingDataSource.getPoolStatistics();
+        if (statistics != null)
+            statistics.recordValidationTime(System.nanoTime() - startTime);
     }
 
     public boolean release() throws SQLException {
@@ -286,8 +314,13 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
         }
 
         if (oldState == STATE_IN_POOL) {
-            if (log.isDebugEnabled()) log.debug("connection " + xaConnection + " was in state IN_POOL, testing it");
-            testConnection(connection);
+            if (isTestRequired()) {
+                if (log.isDebugEnabled()) log.debug("connection " + xaConnection + " was in state IN_POOL, testing it");
+                testConnection(connection);
+            }
+            else {
+                if (log.isDebugEnabled()) log.debug("connection " + xaConnection + " was in state IN_POOL and validated less than " + poolingDataSource.getValidationWindowInMillis() + "ms ago, not testing it");
+            }
             applyIsolationLevel();
             applyCursorHoldabilty();
             if (TransactionContextHelper.currentTransaction() == null) {
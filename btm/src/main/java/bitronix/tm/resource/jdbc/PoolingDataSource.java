@@ -20,6 +20,8 @@
  */
 package bitronix.tm.resource.jdbc;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
@@ -28,6 +30,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.naming.NamingException;
 import javax.naming.Reference;
@@ -47,6 +51,7 @@ import bitronix.tm.resource.ResourceRegistrar;
 import bitronix.tm.resource.common.RecoveryXAResourceHolder;
 import bitronix.tm.resource.common.ResourceBean;
 import bitronix.tm.resource.common.XAPool;
+import bitronix.tm.resource.common.XAPoolStatistics;
 import bitronix.tm.resource.common.XAResourceHolder;
 import bitronix.tm.resource.common.XAResourceProducer;
 import bitronix.tm.resource.common.XAStatefulHolder;
@@ -64,6 +69,7 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
     private final static Logger log = LoggerFactory.getLogger(PoolingDataSource.class);
 
     private volatile transient XAPool pool;
+    private transient Lock initLock = new ReentrantLock();
     private volatile transient XADataSource xaDataSource;
     private volatile transient RecoveryXAResourceHolder recoveryXAResourceHolder;
     private volatile transient Connection recoveryConnectionHandle;
@@ -81,19 +87,31 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
         xaResourceHolderMap = new ConcurrentHashMap<XAResource, XAResourceHolder>();
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initLock = new ReentrantLock();
+        xaResourceHolderMap = new ConcurrentHashMap<XAResource, XAResourceHolder>();
+    }
+
     /**
      * Initializes the pool by creating the initial amount of connections.
      */
-    public synchronized void init() {
+    public void init() {
     	if (this.pool != null)
     		return;
     	
+        initLock.lock();
         try {
+            if (this.pool != null)
+                return;
+
             buildXAPool();
             this.jmxName = "bitronix.tm:type=JDBC,UniqueName=" + ManagementRegistrar.makeValidName(getUniqueName());
             ManagementRegistrar.register(jmxName, this);
         } catch (Exception ex) {
             throw new ResourceConfigurationException("cannot create JDBC datasource named " + getUniqueName(), ex);
+        } finally {
+            initLock.unlock();
         }
     }
 
@@ -417,6 +435,94 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
         pool.reset();
     }
 
+    public long getAcquisitionCount() {
+        return pool.getStatistics().getAcquisitionCount();
+    }
+
+    public long getAcquisitionTimeoutCount() {
+        return pool.getStatistics().getAcquisitionTimeoutCount();
+    }
+
+    public long getAcquisitionWaitTimeMeanInMicros() {
+        return pool.getStatistics().getAcquisitionWaitTimeMeanInMicros();
+    }
+
+    public long getAcquisitionWaitTime99thPercentileInMicros() {
+        return pool.getStatistics().getAcquisitionWaitTime99thPercentileInMicros();
+    }
+
+    public long getAcquisitionWaitTimeMaxInMicros() {
+        return pool.getStatistics().getAcquisitionWaitTimeMaxInMicros();
+    }
+
+    public long getHoldTimeMeanInMicros() {
+        return pool.getStatistics().getHoldTimeMeanInMicros();
+    }
+
+    public long getHoldTime99thPercentileInMicros() {
+        return pool.getStatistics().getHoldTime99thPercentileInMicros();
+    }
+
+    public long getHoldTimeMaxInMicros() {
+        return pool.getStatistics().getHoldTimeMaxInMicros();
+    }
+
+    public long getGrowCount() {
+        return pool.getStatistics().getGrowCount();
+    }
+
+    public long getConnectCount() {
+        return pool.getStatistics().getConnectCount();
+    }
+
+    public long getConnectFailureCount() {
+        return pool.getStatistics().getConnectFailureCount();
+    }
+
+    public long getConnectTimeMeanInMicros() {
+        return pool.getStatistics().getConnectTimeMeanInMicros();
+    }
+
+    public long getConnectTime99thPercentileInMicros() {
+        return pool.getStatistics().getConnectTime99thPercentileInMicros();
+    }
+
+    public long getConnectTimeMaxInMicros() {
+        return pool.getStatistics().getConnectTimeMaxInMicros();
+    }
+
+    public long getValidationCount() {
+        return pool.getStatistics().getValidationCount();
+    }
+
+    public long getValidationTimeMeanInMicros() {
+        return pool.getStatistics().getValidationTimeMeanInMicros();
+    }
+
+    public long getValidationTime99thPercentileInMicros() {
+        return pool.getStatistics().getValidationTime99thPercentileInMicros();
+    }
+
+    public long getValidationTimeMaxInMicros() {
+        return pool.getStatistics().getValidationTimeMaxInMicros();
+    }
+
+    public long getEvictionCount() {
+        return pool.getStatistics().getEvictionCount();
+    }
+
+    public void resetStatistics() {
+        pool.getStatistics().resetStatistics();
+    }
+
+    /**
+     * @return the statistics of the pool, null if it is closed.
+     */
+    XAPoolStatistics getPoolStatistics() {
+        XAPool pool = this.pool;
+        return pool == null ? null : pool.getStatistics();
+    }
+
     public void unregister(XAResourceHolder xaResourceHolder) {
         xaResourceHolderMap.remove(xaResourceHolder.getXAResource());
         
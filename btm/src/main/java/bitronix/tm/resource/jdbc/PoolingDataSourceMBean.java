@@ -20,11 +20,13 @@
  */
 package bitronix.tm.resource.jdbc;
 
+import bitronix.tm.resource.common.XAPoolStatisticsMBean;
+
 /**
  *
  * @author lorban
  */
-public interface PoolingDataSourceMBean {
+public interface PoolingDataSourceMBean extends XAPoolStatisticsMBean {
 
     public int getMinPoolSize();
     public int getMaxPoolSize();
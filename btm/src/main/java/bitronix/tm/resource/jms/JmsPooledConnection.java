@@ -32,6 +32,9 @@ import javax.jms.*;
 import javax.transaction.xa.XAResource;
 
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implementation of a JMS pooled connection wrapping vendor's {@link XAConnection} implementation.
@@ -45,12 +48,15 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
 
     private volatile XAConnection xaConnection;
     private final PoolingConnectionFactory poolingConnectionFactory;
-    private final Set<DualSessionWrapper> sessions = Collections.synchronizedSet(new HashSet<DualSessionWrapper>());
+    // iterated without locking as closing the sessions can block on I/O
+    private final Set<DualSessionWrapper> sessions = new CopyOnWriteArraySet<DualSessionWrapper>();
+    private final Lock connectionLock = new ReentrantLock();
 
     /* management */
     private final String jmxName;
     private volatile Date acquisitionDate;
     private volatile Date lastReleaseDate;
+    private volatile long lastValidationTime;
 
     protected JmsPooledConnection(PoolingConnectionFactory poolingConnectionFactory, XAConnection connection) {
         this.poolingConnectionFactory = poolingConnectionFactory;
@@ -79,25 +85,33 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
         return poolingConnectionFactory;
     }
 
-    public synchronized RecoveryXAResourceHolder createRecoveryXAResourceHolder() throws JMSException {
-        DualSessionWrapper dualSessionWrapper = new DualSessionWrapper(this, false, 0);
-        dualSessionWrapper.getSession(true); // force creation of XASession to allow access to XAResource
-        return new RecoveryXAResourceHolder(dualSessionWrapper);
+    public RecoveryXAResourceHolder createRecoveryXAResourceHolder() throws JMSException {
+        connectionLock.lock();
+        try {
+            DualSessionWrapper dualSessionWrapper = new DualSessionWrapper(this, false, 0);
+            dualSessionWrapper.getSession(true); // force creation of XASession to allow access to XAResource
+            return new RecoveryXAResourceHolder(dualSessionWrapper);
+        } finally {
+            connectionLock.unlock();
+        }
     }
 
-    public synchronized void close() throws JMSException {
-        if (xaConnection != null) {
-            poolingConnectionFactory.unregister(this);
-            setState(STATE_CLOSED);
-            xaConnection.close();
+    public void close() throws JMSException {
+        connectionLock.lock();
+        try {
+            if (xaConnection != null) {
+                poolingConnectionFactory.unregister(this);
+                setState(STATE_CLOSED);
+                xaConnection.close();
+            }
+            xaConnection = null;
+        } finally {
+            connectionLock.unlock();
         }
-        xaConnection = null;
     }
 
     public List<XAResourceHolder> getXAResourceHolders() {
-        synchronized (sessions) {
-            return new ArrayList<XAResourceHolder>(sessions);
-        }
+        return new ArrayList<XAResourceHolder>(sessions);
     }
 
     public Object getConnectionHandle() throws Exception {
@@ -107,8 +121,13 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
         setState(STATE_ACCESSIBLE);
 
         if (oldState == STATE_IN_POOL) {
-            if (log.isDebugEnabled()) log.debug("connection " + xaConnection + " was in state IN_POOL, testing it");
-            testXAConnection();
+            if (isTestRequired()) {
+                if (log.isDebugEnabled()) log.debug("connection " + xaConnection + " was in state IN_POOL, testing it");
+                testXAConnection();
+            }
+            else {
+                if (log.isDebugEnabled()) log.debug("connection " + xaConnection + " was in state IN_POOL and validated less than " + poolingConnectionFactory.getValidationWindowInMillis() + "ms ago, not testing it");
+            }
         }
         else {
             if (log.isDebugEnabled()) log.debug("connection " + xaConnection + " was in state " + Decoder.decodeXAStatefulHolderState(oldState) + ", no need to test it");
@@ -118,6 +137,22 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
         return new JmsConnectionHandle(this, xaConnection);
     }
 
+    public void validate() throws Exception {
+        testXAConnection();
+    }
+
+    /**
+     * A connection released or validated within the validation window is considered to be still valid.
+     * @return true if the connection has to be tested before being handed out.
+     */
+    private boolean isTestRequired() {
+        int validationWindow = poolingConnectionFactory.getValidationWindowInMillis();
+        if (validationWindow <= 0)
+            return true;
+        long lastKnownValidTime = Math.max(lastReleaseDate.getTime(), lastValidationTime);
+        return MonotonicClock.currentTimeMillis() - lastKnownValidTime >= validationWindow;
+    }
+
     private void testXAConnection() throws JMSException {
         if (!poolingConnectionFactory.getTestConnections()) {
             if (log.isDebugEnabled()) log.debug("not testing connection of " + this);
@@ -125,10 +160,15 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
         }
 
         if (log.isDebugEnabled()) log.debug("testing connection of " + this);
+        long startTime = System.nanoTime();
         XASession xaSession = xaConnection.createXASession();
         try {
             TemporaryQueue tq = xaSession.createTemporaryQueue();
             tq.delete();
+            lastValidationTime = MonotonicClock.currentTimeMillis();
+            XAPoolStatistics statistics = poolingConnectionFactory.getPoolStatistics();
+            if (statistics != null)
+                statistics.recordValidationTime(System.nanoTime() - startTime);
         } finally {
             xaSession.close();
         }
@@ -149,17 +189,15 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
     }
 
     private void closePendingSessions() {
-        synchronized (sessions) {
-            for (DualSessionWrapper dualSessionWrapper : sessions) {
-                if (dualSessionWrapper.getState() != STATE_ACCESSIBLE)
-                    continue;
-
-                try {
-                    if (log.isDebugEnabled()) log.debug("trying to close pending session " + dualSessionWrapper);
-                    dualSessionWrapper.close();
-                } catch (JMSException ex) {
-                    log.warn("error closing pending session " + dualSessionWrapper, ex);
-                }
+        for (DualSessionWrapper dualSessionWrapper : sessions) {
+            if (dualSessionWrapper.getState() != STATE_ACCESSIBLE)
+                continue;
+
+            try {
+                if (log.isDebugEnabled()) log.debug("trying to close pending session " + dualSessionWrapper);
+                dualSessionWrapper.close();
+            } catch (JMSException ex) {
+                log.warn("error closing pending session " + dualSessionWrapper, ex);
             }
         }
     }
@@ -171,9 +209,7 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
             if (log.isDebugEnabled()) log.debug("no session handle found in NOT_ACCESSIBLE state, creating new session");
             sessionHandle = new DualSessionWrapper(this, transacted, acknowledgeMode);
             sessionHandle.addStateChangeEventListener(new JmsConnectionHandleStateChangeListener());
-            synchronized (sessions) {
-                sessions.add(sessionHandle);
-            }
+            sessions.add(sessionHandle);
         }
         else {
             if (log.isDebugEnabled()) log.debug("found session handle in NOT_ACCESSIBLE state, recycling it: " + sessionHandle);
@@ -184,14 +220,12 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
     }
 
      private DualSessionWrapper getNotAccessibleSession() {
-        synchronized (sessions) {
-            if (log.isDebugEnabled()) log.debug(sessions.size() + " session(s) open from " + this);
-            for (DualSessionWrapper sessionHandle : sessions) {
-                if (sessionHandle.getState() == XAResourceHolder.STATE_NOT_ACCESSIBLE)
-                    return sessionHandle;
-            }
-            return null;
+        if (log.isDebugEnabled()) log.debug(sessions.size() + " session(s) open from " + this);
+        for (DualSessionWrapper sessionHandle : sessions) {
+            if (sessionHandle.getState() == XAResourceHolder.STATE_NOT_ACCESSIBLE)
+                return sessionHandle;
         }
+        return null;
     }
 
     public Date getLastReleaseDate() {
@@ -199,10 +233,8 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
     }
 
     public String toString() {
-        synchronized (sessions) {
-            return "a JmsPooledConnection of pool " + poolingConnectionFactory.getUniqueName() + " in state " +
-                    Decoder.decodeXAStatefulHolderState(getState()) + " with underlying connection " + xaConnection;
-        }
+        return "a JmsPooledConnection of pool " + poolingConnectionFactory.getUniqueName() + " in state " +
+                Decoder.decodeXAStatefulHolderState(getState()) + " with underlying connection " + xaConnection;
     }
 
     /* management */
@@ -216,13 +248,11 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
     }
 
     public Collection<String> getTransactionGtridsCurrentlyHoldingThis() {
-        synchronized (sessions) {
-            Set<String> result = new HashSet<String>();
-            for (DualSessionWrapper dsw : sessions) {
-                result.addAll(dsw.getXAResourceHolderStateGtrids());
-            }
-            return result;
+        Set<String> result = new HashSet<String>();
+        for (DualSessionWrapper dsw : sessions) {
+            result.addAll(dsw.getXAResourceHolderStateGtrids());
         }
+        return result;
     }
 
     /**
@@ -255,10 +285,8 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
     private final class JmsConnectionHandleStateChangeListener implements StateChangeListener {
         public void stateChanged(XAStatefulHolder source, int oldState, int newState) {
             if (newState == XAResourceHolder.STATE_CLOSED) {
-                synchronized (sessions) {
-                    sessions.remove(source);
-                    if (log.isDebugEnabled()) log.debug("DualSessionWrapper has been closed, " + sessions.size() + " session(s) left open in pooled connection");
-                }
+                sessions.remove(source);
+                if (log.isDebugEnabled()) log.debug("DualSessionWrapper has been closed, " + sessions.size() + " session(s) left open in pooled connection");
             }
         }
 
@@ -267,13 +295,11 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
     }
 
     public XAResourceHolder getXAResourceHolderForXaResource(XAResource xaResource) {
-        synchronized (sessions) {
-            for (XAResourceHolder xaResourceHolder : sessions) {
-                if (xaResourceHolder.getXAResource() == xaResource) {
-                    return xaResourceHolder;
-                }
+        for (XAResourceHolder xaResourceHolder : sessions) {
+            if (xaResourceHolder.getXAResource() == xaResource) {
+                return xaResourceHolder;
             }
-            return null;
         }
+        return null;
     }
 }
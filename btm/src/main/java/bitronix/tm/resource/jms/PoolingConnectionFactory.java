@@ -33,7 +33,11 @@ import javax.jms.*;
 import javax.naming.*;
 import javax.transaction.xa.XAResource;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implementation of a JMS {@link ConnectionFactory} wrapping vendor's {@link XAConnectionFactory} implementation.
@@ -46,6 +50,7 @@ public class PoolingConnectionFactory extends ResourceBean implements Connection
     private final static Logger log = LoggerFactory.getLogger(PoolingConnectionFactory.class);
 
     private volatile transient XAPool pool;
+    private transient Lock initLock = new ReentrantLock();
     private volatile transient JmsPooledConnection recoveryPooledConnection;
     private volatile transient RecoveryXAResourceHolder recoveryXAResourceHolder;
     private volatile transient List<JmsPooledConnection> xaStatefulHolders;
@@ -61,10 +66,20 @@ public class PoolingConnectionFactory extends ResourceBean implements Connection
         xaStatefulHolders = Collections.synchronizedList(new ArrayList<JmsPooledConnection>());
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initLock = new ReentrantLock();
+        xaStatefulHolders = Collections.synchronizedList(new ArrayList<JmsPooledConnection>());
+    }
+
     /**
      * Initialize the pool by creating the initial amount of connections.
      */
-    public synchronized void init() {
+    public void init() {
+        if (pool != null)
+            return;
+
+        initLock.lock();
         try {
             if (pool != null)
                 return;
@@ -76,6 +91,9 @@ public class PoolingConnectionFactory extends ResourceBean implements Connection
         catch (Exception ex) {
             throw new ResourceConfigurationException("cannot create JMS connection factory named " + getUniqueName(), ex);
         }
+        finally {
+            initLock.unlock();
+        }
     }
 
     public boolean getCacheProducersConsumers() {
@@ -280,6 +298,94 @@ public class PoolingConnectionFactory extends ResourceBean implements Connection
         pool.reset();
     }
 
+    public long getAcquisitionCount() {
+        return pool.getStatistics().getAcquisitionCount();
+    }
+
+    public long getAcquisitionTimeoutCount() {
+        return pool.getStatistics().getAcquisitionTimeoutCount();
+    }
+
+    public long getAcquisitionWaitTimeMeanInMicros() {
+        return pool.getStatistics().getAcquisitionWaitTimeMeanInMicros();
+    }
+
+    public long getAcquisitionWaitTime99thPercentileInMicros() {
+        return pool.getStatistics().getAcquisitionWaitTime99thPercentileInMicros();
+    }
+
+    public long getAcquisitionWaitTimeMaxInMicros() {
+        return pool.getStatistics().getAcquisitionWaitTimeMaxInMicros();
+    }
+
+    public long getHoldTimeMeanInMicros() {
+        return pool.getStatistics().getHoldTimeMeanInMicros();
+    }
+
+    public long getHoldTime99thPercentileInMicros() {
+        return pool.getStatistics().getHoldTime99thPercentileInMicros();
+    }
+
+    public long getHoldTimeMaxInMicros() {
+        return pool.getStatistics().getHoldTimeMaxInMicros();
+    }
+
+    public long getGrowCount() {
+        return pool.getStatistics().getGrowCount();
+    }
+
+    public long getConnectCount() {
+        return pool.getStatistics().getConnectCount();
+    }
+
+    public long getConnectFailureCount() {
+        return pool.getStatistics().getConnectFailureCount();
+    }
+
+    public long getConnectTimeMeanInMicros() {
+        return pool.getStatistics().getConnectTimeMeanInMicros();
+    }
+
+    public long getConnectTime99thPercentileInMicros() {
+        return pool.getStatistics().getConnectTime99thPercentileInMicros();
+    }
+
+    public long getConnectTimeMaxInMicros() {
+        return pool.getStatistics().getConnectTimeMaxInMicros();
+    }
+
+    public long getValidationCount() {
+        return pool.getStatistics().getValidationCount();
+    }
+
+    public long getValidationTimeMeanInMicros() {
+        return pool.getStatistics().getValidationTimeMeanInMicros();
+    }
+
+    public long getValidationTime99thPercentileInMicros() {
+        return pool.getStatistics().getValidationTime99thPercentileInMicros();
+    }
+
+    public long getValidationTimeMaxInMicros() {
+        return pool.getStatistics().getValidationTimeMaxInMicros();
+    }
+
+    public long getEvictionCount() {
+        return pool.getStatistics().getEvictionCount();
+    }
+
+    public void resetStatistics() {
+        pool.getStatistics().resetStatistics();
+    }
+
+    /**
+     * @return the statistics of the pool, null if it is closed.
+     */
+    XAPoolStatistics getPoolStatistics() {
+        XAPool pool = this.pool;
+        return pool == null ? null : pool.getStatistics();
+    }
+
     public void unregister(JmsPooledConnection jmsPooledConnection) {
         xaStatefulHolders.remove(jmsPooledConnection);
     }
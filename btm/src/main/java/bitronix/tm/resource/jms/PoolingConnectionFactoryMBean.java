@@ -20,11 +20,13 @@
  */
 package bitronix.tm.resource.jms;
 
+import bitronix.tm.resource.common.XAPoolStatisticsMBean;
+
 /**
  *
  * @author lorban
  */
-public interface PoolingConnectionFactoryMBean {
+public interface PoolingConnectionFactoryMBean extends XAPoolStatisticsMBean {
 
     public int getMinPoolSize();
     public int getMaxPoolSize();
@@ -21,6 +21,7 @@
 package bitronix.tm.timer;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Asbtract superclass of all timed tasks.
@@ -29,8 +30,11 @@ import java.util.Date;
  */
 public abstract class Task implements Comparable<Task> {
 
+    private final static AtomicLong sequenceGenerator = new AtomicLong();
+
     private final Date executionTime;
     private final TaskScheduler taskScheduler;
+    private final long sequence = sequenceGenerator.incrementAndGet();
 
     protected Task(Date executionTime, TaskScheduler scheduler) {
         this.executionTime = executionTime;
@@ -46,7 +50,11 @@ public abstract class Task implements Comparable<Task> {
     }
 
     public int compareTo(Task otherTask) {
-        return this.executionTime.compareTo(otherTask.executionTime);
+        int result = this.executionTime.compareTo(otherTask.executionTime);
+        if (result != 0)
+            return result;
+        // tasks scheduled for the same time must not be considered equal by the sorted set holding them
+        return this.sequence < otherTask.sequence ? -1 : (this.sequence == otherTask.sequence ? 0 : 1);
     }
 
     public abstract Object getObject();
@@ -35,12 +35,17 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Timed tasks service.
+ * <p>Queued tasks are sorted by execution time and also indexed by class and by the object they are based on, so that
+ * cancelling a task does not require scanning all the queued ones. There is a queued transaction timeout task per
+ * in-flight transaction.</p>
  *
  * @author lorban
  */
@@ -49,6 +54,7 @@ public class TaskScheduler extends Thread implements Service {
     private final static Logger log = LoggerFactory.getLogger(TaskScheduler.class);
 
     private final SortedSet<Task> tasks;
+    private final ConcurrentMap<Class<? extends Task>, ConcurrentMap<Object, Task>> tasksByObject = new ConcurrentHashMap<Class<? extends Task>, ConcurrentMap<Object, Task>>();
     private final Lock tasksLock;
     private final AtomicBoolean active = new AtomicBoolean(true);
 
@@ -198,14 +204,45 @@ public class TaskScheduler extends Thread implements Service {
         if (xaPool == null)
             throw new IllegalArgumentException("expected a non-null XA pool");
 
-        if (!removeTaskByObject(xaPool))
+        if (!removeTaskByObject(xaPool, PoolShrinkingTask.class))
+            if (log.isDebugEnabled()) log.debug("no task found based on object " + xaPool);
+    }
+
+    /**
+     * Schedule a task that will tell a XA pool to validate idle connections. The execution time will be provided by
+     * the XA pool itself via the {@link bitronix.tm.resource.common.XAPool#getNextKeepAliveDate()}.
+     * @param xaPool the XA pool to notify.
+     */
+    public void schedulePoolKeepAlive(XAPool xaPool) {
+        Date executionTime = xaPool.getNextKeepAliveDate();
+        if (log.isDebugEnabled()) log.debug("scheduling pool keep alive task on " + xaPool + " for " + executionTime);
+        if (executionTime == null)
+            throw new IllegalArgumentException("expected a non-null execution date");
+
+        PoolKeepAliveTask task = new PoolKeepAliveTask(xaPool, executionTime, this);
+        addTask(task);
+        if (log.isDebugEnabled()) log.debug("scheduled " + task + ", total task(s) queued: " + tasks.size());
+    }
+
+    /**
+     * Cancel the task that will tell a XA pool to validate idle connections.
+     * @param xaPool the XA pool to notify.
+     */
+    public void cancelPoolKeepAlive(XAPool xaPool) {
+        if (log.isDebugEnabled()) log.debug("cancelling pool keep alive task on " + xaPool);
+        if (xaPool == null)
+            throw new IllegalArgumentException("expected a non-null XA pool");
+
+        if (!removeTaskByObject(xaPool, PoolKeepAliveTask.class))
             if (log.isDebugEnabled()) log.debug("no task found based on object " + xaPool);
     }
 
     void addTask(Task task) {
         lock();
         try {
-            removeTaskByObject(task.getObject());
+            Task previous = getTasksByObject(task.getClass()).put(task.getObject(), task);
+            if (previous != null && tasks.remove(previous))
+                if (log.isDebugEnabled()) log.debug("cancelled " + previous + ", total task(s) still queued: " + tasks.size());
             tasks.add(task);
         } finally {
             unlock();
@@ -213,16 +250,26 @@ public class TaskScheduler extends Thread implements Service {
     }
 
     boolean removeTaskByObject(Object obj) {
+        return removeTaskByObject(obj, null);
+    }
+
+    /**
+     * Remove the task of the specified class based on the specified object. Different kinds of tasks can be
+     * scheduled on the same object, like the shrinking and keep alive tasks of a XA pool.
+     * @param obj the object the task is based on.
+     * @param taskClass the class of the task to remove, null to remove a task of any class.
+     * @return true if a task got removed, false otherwise.
+     */
+    boolean removeTaskByObject(Object obj, Class<? extends Task> taskClass) {
         lock();
         try {
             if (log.isDebugEnabled()) log.debug("removing task by " + obj);
 
-            for (Task task : tasks) {
-                if (task.getObject() == obj) {
-                    tasks.remove(task);
-                    if (log.isDebugEnabled()) log.debug("cancelled " + task + ", total task(s) still queued: " + tasks.size());
+            if (taskClass != null)
+                return removeTask(getTasksByObject(taskClass), obj);
+            for (ConcurrentMap<Object, Task> tasksOfClass : tasksByObject.values()) {
+                if (removeTask(tasksOfClass, obj))
                     return true;
-                }
             }
             return false;
         } finally {
@@ -230,6 +277,25 @@ public class TaskScheduler extends Thread implements Service {
         }
     }
 
+    private boolean removeTask(ConcurrentMap<Object, Task> tasksOfClass, Object obj) {
+        Task task = tasksOfClass.remove(obj);
+        if (task == null || !tasks.remove(task))
+            return false;
+        if (log.isDebugEnabled()) log.debug("cancelled " + task + ", total task(s) still queued: " + tasks.size());
+        return true;
+    }
+
+    private ConcurrentMap<Object, Task> getTasksByObject(Class<? extends Task> taskClass) {
+        ConcurrentMap<Object, Task> tasksOfClass = tasksByObject.get(taskClass);
+        if (tasksOfClass == null) {
+            tasksOfClass = new ConcurrentHashMap<Object, Task>();
+            ConcurrentMap<Object, Task> existing = tasksByObject.putIfAbsent(taskClass, tasksOfClass);
+            if (existing != null)
+                tasksOfClass = existing;
+        }
+        return tasksOfClass;
+    }
+
     boolean setActive(boolean active) {
         return this.active.getAndSet(active);
     }
@@ -257,19 +323,23 @@ public class TaskScheduler extends Thread implements Service {
 
             Set<Task> toRemove = new HashSet<Task>();
             for (Task task : tasks) {
-                if (task.getExecutionTime().compareTo(new Date(MonotonicClock.currentTimeMillis())) <= 0) {
-                    // if the execution time is now or in the past
-                    if (log.isDebugEnabled()) log.debug("running " + task);
-                    try {
-                        task.execute();
-                        if (log.isDebugEnabled()) log.debug("successfully ran " + task);
-                    } catch (Exception ex) {
-                        log.warn("error running " + task, ex);
-                    } finally {
-                        toRemove.add(task);
-                        if (log.isDebugEnabled()) log.debug("total task(s) still queued: " + tasks.size());
-                    }
-                } // if
+                // tasks are sorted by execution time so none of the following ones is due either
+                if (task.getExecutionTime().compareTo(new Date(MonotonicClock.currentTimeMillis())) > 0)
+                    break;
+
+                // the execution time is now or in the past
+                if (log.isDebugEnabled()) log.debug("running " + task);
+                try {
+                    task.execute();
+                    if (log.isDebugEnabled()) log.debug("successfully ran " + task);
+                } catch (Exception ex) {
+                    log.warn("error running " + task, ex);
+                } finally {
+                    toRemove.add(task);
+                    // a task rescheduled by its own execution stays indexed
+                    getTasksByObject(task.getClass()).remove(task.getObject(), task);
+                    if (log.isDebugEnabled()) log.debug("total task(s) still queued: " + tasks.size());
+                }
             }
             this.tasks.removeAll(toRemove);
         } finally {
@@ -0,0 +1,96 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.utils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Static utility methods for direct and memory-mapped {@link ByteBuffer}s.
+ * <p>The memory of a direct buffer, or the mapping of a memory-mapped one, is normally only released once the buffer
+ * gets garbage collected. Until then a mapped file cannot be deleted or renamed on some platforms, Windows in
+ * particular. There is no public API to release it earlier, so this class calls the JDK internal cleaner by
+ * reflection when it is available.</p>
+ */
+public final class DirectBuffers {
+
+    private final static Logger log = LoggerFactory.getLogger(DirectBuffers.class);
+
+    /**
+     * sun.misc.Unsafe instance and its invokeCleaner(ByteBuffer) method, available since Java 9.
+     */
+    private final static Object unsafe;
+    private final static Method invokeCleaner;
+
+    static {
+        Object theUnsafe = null;
+        Method method = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            theUnsafe = field.get(null);
+        } catch (Exception ex) {
+            // before Java 9, the cleaner is reached through the buffer itself
+            method = null;
+        }
+        unsafe = theUnsafe;
+        invokeCleaner = method;
+    }
+
+    private DirectBuffers() {
+    }
+
+    /**
+     * Release the memory or the mapping of a direct buffer right away. The buffer, and any duplicate or slice of it,
+     * must not be accessed anymore after this call.
+     * @param buffer the buffer to release, which must not be a duplicate nor a slice.
+     * @return true if the buffer got released, false if it is not direct or if the JVM does not allow releasing it,
+     *         in which case it is released when garbage collected.
+     */
+    public static boolean release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect())
+            return false;
+
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buffer);
+                return true;
+            }
+
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null)
+                return false;
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+            return true;
+        } catch (Exception ex) {
+            if (log.isDebugEnabled()) log.debug("cannot release " + buffer + ", leaving it to the garbage collector", ex);
+            return false;
+        }
+    }
+}
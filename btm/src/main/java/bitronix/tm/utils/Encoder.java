@@ -20,6 +20,8 @@
  */
 package bitronix.tm.utils;
 
+import java.nio.ByteBuffer;
+
 /**
  * Number to byte array and byte array to number encoder.
  *
@@ -89,4 +91,50 @@ public class Encoder {
 
         return result;
     }
+
+    /**
+     * Write a long as a variable length quantity: 7 bits per byte, least significant group first, with the high bit of
+     * each byte set when more bytes follow. Small positive values take a single byte, negative values take 10 bytes.
+     * @param buf the buffer to write to.
+     * @param aLong the value to write.
+     */
+    public static void putVarLong(ByteBuffer buf, long aLong) {
+        while ((aLong & ~0x7FL) != 0) {
+            buf.put((byte) ((aLong & 0x7F) | 0x80));
+            aLong >>>= 7;
+        }
+        buf.put((byte) aLong);
+    }
+
+    /**
+     * Read a long written by {@link #putVarLong(ByteBuffer, long)}.
+     * @param buf the buffer to read from.
+     * @return the read value.
+     */
+    public static long getVarLong(ByteBuffer buf) {
+        long result = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+
+        throw new IllegalArgumentException("a variable length long cannot be longer than 10 bytes");
+    }
+
+    /**
+     * Get the number of bytes {@link #putVarLong(ByteBuffer, long)} writes for a value.
+     * @param aLong the value.
+     * @return the encoded size of the value.
+     */
+    public static int varLongSize(long aLong) {
+        int size = 1;
+        while ((aLong & ~0x7FL) != 0) {
+            size++;
+            aLong >>>= 7;
+        }
+        return size;
+    }
 }
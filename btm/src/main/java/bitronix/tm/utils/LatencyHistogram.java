@@ -0,0 +1,147 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of positive values with a bounded relative error.
+ * <p>Values are counted in logarithmic buckets, one per power of two, each of them split into 8 linear sub-buckets.
+ * Recording a value only increments its bucket and never allocates nor locks, while percentiles are known within
+ * 12.5% of the recorded values whatever their magnitude. Values below 8 are counted exactly.</p>
+ * <p>Reading the histogram while it is being updated does not give an atomic snapshot but every statistic stays
+ * individually consistent.</p>
+ *
+ * @author lorban
+ */
+public final class LatencyHistogram {
+
+    private final static int SUB_BUCKET_BITS = 3;
+    private final static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private final static int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter total = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value, negative values are recorded as 0.
+     * @param value the value to record.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+
+        buckets.incrementAndGet(bucketIndex(value));
+        count.increment();
+        total.add(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value))
+                break;
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the average of the recorded values, 0 if none got recorded.
+     */
+    public long getMean() {
+        long count = this.count.sum();
+        if (count == 0)
+            return 0;
+        return total.sum() / count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the value below which a percentage of the recorded values fall.
+     * @param percentile the percentage, between 0 and 100.
+     * @return the highest value of the bucket holding the percentile, never more than the highest recorded value
+     *         and 0 if no value got recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0)
+            throw new IllegalArgumentException("percentile must be between 0 and 100, was " + percentile);
+
+        long[] counts = new long[BUCKET_COUNT];
+        long recorded = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            recorded += counts[i];
+        }
+        if (recorded == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * recorded));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValueOfBucket(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Forget all recorded values. Values concurrently recorded may or may not be forgotten.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+
+    public String toString() {
+        return "a LatencyHistogram with " + getCount() + " value(s), mean=" + getMean() + ", 99th percentile=" +
+                getValueAtPercentile(99.0) + ", max=" + getMax();
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long highestValueOfBucket(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        long lowest = ((long) SUB_BUCKET_COUNT + subBucket) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counter spreading its updates over several cells so that threads incrementing it concurrently
+ * rarely contend on the same cache line. Reading the counter sums all the cells, which makes it much cheaper
+ * to update than to read.
+ *
+ * @author lorban
+ */
+public final class StripedCounter {
+
+    /**
+     * Each cell is spaced by a cache line worth of longs to avoid false sharing.
+     */
+    private final static int CELL_SPACING = 8;
+    private final static int MAX_CELLS = 64;
+    private final static int CELLS = cellCount();
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS * CELL_SPACING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(cellIndex(), delta);
+    }
+
+    /**
+     * @return the sum of all the cells. This is not an atomic snapshot when the counter is concurrently updated.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < CELLS; i++) {
+            sum += cells.get(i * CELL_SPACING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < CELLS; i++) {
+            cells.set(i * CELL_SPACING, 0);
+        }
+    }
+
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+    private static int cellIndex() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32));
+        // thread IDs are sequential, spread them over the cells
+        hash *= 0x9e3779b9;
+        hash ^= hash >>> 16;
+        return (hash & (CELLS - 1)) * CELL_SPACING;
+    }
+
+    private static int cellCount() {
+        int wanted = Math.min(Runtime.getRuntime().availableProcessors() * 2, MAX_CELLS);
+        int cells = 1;
+        while (cells < wanted) {
+            cells <<= 1;
+        }
+        return cells;
+    }
+}
@@ -96,15 +96,16 @@ public class ConfigurationTest extends TestCase {
 
     public void testToString() {
         final String expectation = "a Configuration with [allowMultipleLrc=false, asynchronous2Pc=false," +
-                " backgroundRecoveryInterval=1, backgroundRecoveryIntervalSeconds=60, conservativeJournaling=false, currentNodeOnlyRecovery=true," +
-                " debugZeroResourceTransaction=false, defaultTransactionTimeout=60, disableJmx=false," +
+                " backgroundRecoveryInterval=1, backgroundRecoveryIntervalSeconds=60, compactLogFormatEnabled=false, conservativeJournaling=false, currentNodeOnlyRecovery=true," +
+                " debugZeroResourceTransaction=false, defaultTransactionTimeout=60, deferredRecordsEnabled=false," +
+                " deferredRecordsFlushIntervalInMillis=100, disableJmx=false," +
                 " exceptionAnalyzer=null, filterLogStatus=false," +
-                " forceBatchingEnabled=true, forcedWriteEnabled=true, gracefulShutdownInterval=10, jdbcProxyFactoryClass=auto," +
+                " forceBatchingEnabled=true, forceBatchingWindowInMicros=0, forcedWriteEnabled=true, gracefulShutdownInterval=10, jdbcProxyFactoryClass=auto," +
                 " jndiTransactionSynchronizationRegistryName=java:comp/TransactionSynchronizationRegistry," +
-                " jndiUserTransactionName=java:comp/UserTransaction, journal=disk," +
+                " jndiUserTransactionName=java:comp/UserTransaction, journal=disk, journalStripeDirectories=null, journalStripes=4," +
                 " logPart1Filename=target/btm1.tlog, logPart2Filename=target/btm2.tlog, maxLogSizeInMb=2," +
                 " resourceConfigurationFilename=null, serverId=null, skipCorruptedLogs=false, synchronousJmxRegistration=false," +
-                " warnAboutZeroResourceTransaction=true]";
+                " synchronousWriteEnabled=false, warnAboutZeroResourceTransaction=true, writeAlignmentInBytes=0]";
 
         assertEquals(expectation, new Configuration().toString());
     }
@@ -40,8 +40,12 @@ public class JdbcFailedPoolTest extends TestCase {
     }
 
     protected void tearDown() throws Exception {
+        // a failed test must not make the following ones unable to create connections
+        MockitoXADataSource.setStaticGetXAConnectionException(null);
         TransactionManagerServices.getJournal().close();
         TransactionManagerServices.getTaskScheduler().shutdown();
+        // the next test needs a new task scheduler, a stopped one never runs the pool shrinking task
+        TransactionManagerServices.clear();
     }
 
     public void testAcquiringConnectionAfterRecoveryDoesNotMarkAsFailed() throws Exception {
@@ -55,7 +59,10 @@ public class JdbcFailedPoolTest extends TestCase {
         IncrementalRecoverer.recover(poolingDataSource);
 
         MockitoXADataSource.setStaticGetXAConnectionException(new SQLException("creating a new connection does not work"));
-        Thread.sleep(2000); // wait for shrink
+        // wait for shrink, the scheduler only checks its tasks twice per second
+        for (int i = 0; i < 50 && poolingDataSource.getTotalPoolSize() > 0; i++) {
+            Thread.sleep(100);
+        }
 
         // should not work but should not mark the pool as failed as it could recover
         try {
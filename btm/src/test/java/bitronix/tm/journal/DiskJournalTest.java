@@ -20,20 +20,28 @@
  */
 package bitronix.tm.journal;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.transaction.Status;
 
 import junit.framework.TestCase;
 import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.utils.MonotonicClock;
 import bitronix.tm.utils.Uid;
 import bitronix.tm.utils.UidGenerator;
 
@@ -46,6 +54,7 @@ public class DiskJournalTest extends TestCase {
     protected void setUp() throws Exception {
         new File(TransactionManagerServices.getConfiguration().getLogPart1Filename()).delete();
         new File(TransactionManagerServices.getConfiguration().getLogPart2Filename()).delete();
+        getCheckpointFile().delete();
     }
 
     public void testExceptions() throws Exception {
@@ -136,6 +145,29 @@ public class DiskJournalTest extends TestCase {
         journal.shutdown();
     }
 
+    public void testRecordsLoggedByTheSameThread() throws Exception {
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+        Uid gtrid1 = UidGenerator.generateUid();
+        Uid gtrid2 = UidGenerator.generateUid();
+
+        journal.log(Status.STATUS_COMMITTING, gtrid1, new HashSet<String>(csvToSet("name3,name1,name2")));
+        journal.log(Status.STATUS_COMMITTING, gtrid2, csvToSet("name4"));
+        journal.log(Status.STATUS_COMMITTED, gtrid1, csvToSet("name2"));
+        journal.close();
+
+        journal.open();
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(2, danglingRecords.size());
+        assertEquals(csvToSet("name1,name3"), danglingRecords.get(gtrid1).getUniqueNames());
+        assertEquals(csvToSet("name4"), danglingRecords.get(gtrid2).getUniqueNames());
+        assertTrue(danglingRecords.get(gtrid1).isValid());
+        assertTrue(danglingRecords.get(gtrid2).isValid());
+
+        journal.close();
+        journal.shutdown();
+    }
+
     public void testCorruptedCollectDanglingRecords() throws Exception {
         DiskJournal journal = new DiskJournal();
         journal.open();
@@ -199,11 +231,11 @@ public class DiskJournalTest extends TestCase {
         journal.open();
 
         List<Uid> uncommitted = new ArrayList<Uid>();
-        for (int i = 1; i < 4000; i++) {
+        for (int i = 1; i < 8000; i++) {
 	        Uid gtrid = UidGenerator.generateUid();
 	        journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2,name3"));
 
-	        if (i < 3600)
+	        if (i < 7600)
 	        {
 		        journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1"));
 		        journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name2"));
@@ -230,6 +262,702 @@ public class DiskJournalTest extends TestCase {
         journal.shutdown();
     }
 
+    public void testPreparedSwap() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+
+        Uid gtrid1 = UidGenerator.generateUid();
+        Uid gtrid2 = UidGenerator.generateUid();
+        Uid gtrid3 = UidGenerator.generateUid();
+        journal.log(Status.STATUS_COMMITTING, gtrid1, csvToSet("name1,name2"));
+        journal.log(Status.STATUS_COMMITTING, gtrid2, csvToSet("name1,name2"));
+
+        // fill the active file until the passive one gets prepared
+        for (int i = 0; journal.getPreparedSwapCount() == 0; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2,name3"));
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2,name3"));
+            if (i % 100 == 0)
+                Thread.sleep(1);
+        }
+        assertEquals(0, journal.getSwapCount());
+
+        // dangling records changed after the preparation must be copied by the swap
+        journal.log(Status.STATUS_COMMITTED, gtrid1, csvToSet("name1,name2"));
+        journal.log(Status.STATUS_COMMITTED, gtrid2, csvToSet("name1"));
+        journal.log(Status.STATUS_COMMITTING, gtrid3, csvToSet("name3"));
+        while (journal.getSwapCount() == 0) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2,name3"));
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2,name3"));
+        }
+
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(2, danglingRecords.size());
+        assertEquals(csvToSet("name2"), danglingRecords.get(gtrid2).getUniqueNames());
+        assertEquals(csvToSet("name3"), danglingRecords.get(gtrid3).getUniqueNames());
+        journal.close();
+
+        getCheckpointFile().delete();
+        journal = new DiskJournal();
+        journal.open();
+        danglingRecords = journal.collectDanglingRecords();
+        assertEquals(2, danglingRecords.size());
+        assertEquals(csvToSet("name2"), danglingRecords.get(gtrid2).getUniqueNames());
+        assertEquals(csvToSet("name3"), danglingRecords.get(gtrid3).getUniqueNames());
+        journal.shutdown();
+    }
+
+    public void testPreparedSwapOfManyDanglingRecords() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+
+        // more dangling records than a swap preparation copies at once
+        Set<Uid> dangling = new HashSet<Uid>();
+        for (int i = 0; i < 1000; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+            dangling.add(gtrid);
+        }
+
+        for (int i = 0; journal.getPreparedSwapCount() == 0; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2,name3"));
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2,name3"));
+            if (i % 100 == 0)
+                Thread.sleep(1);
+        }
+        while (journal.getSwapCount() == 0) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2,name3"));
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2,name3"));
+        }
+
+        assertEquals(dangling, journal.collectDanglingRecords().keySet());
+        journal.close();
+
+        getCheckpointFile().delete();
+        journal = new DiskJournal();
+        journal.open();
+        assertEquals(dangling, journal.collectDanglingRecords().keySet());
+        journal.shutdown();
+    }
+
+    public void testBatchedForce() throws Exception {
+        TransactionManagerServices.getConfiguration().setForcedWriteEnabled(true);
+        TransactionManagerServices.getConfiguration().setForceBatchingEnabled(true);
+        TransactionManagerServices.getConfiguration().setForceBatchingWindowInMicros(100);
+        final DiskJournal journal = new DiskJournal();
+        journal.open();
+
+        final int threads = 8;
+        final int count = 200;
+
+        class Runner extends Thread {
+            private int ndx;
+
+            Runner(int i) {
+                this.ndx = i;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    SortedSet<String> set = csvToSet(String.format("%d.name1,%d.name2", ndx, ndx));
+                    for (int i = 0; i < count; i++) {
+                        Uid gtrid = UidGenerator.generateUid();
+                        journal.log(Status.STATUS_COMMITTING, gtrid, set);
+                        journal.force();
+                        journal.log(Status.STATUS_COMMITTED, gtrid, set);
+                    }
+                }
+                catch (IOException io) {
+                    fail(io.getMessage());
+                }
+            }
+        };
+
+        Runner[] runners = new Runner[threads];
+        for (int i = 0; i < threads; i++) {
+            runners[i] = new Runner(i);
+            runners[i].start();
+        }
+
+        for (int i = 0; i < threads; i++) {
+            runners[i].join();
+        }
+
+        journal.force();
+        assertEquals(0, journal.getUnforcedRecordCount());
+        assertEquals(threads * count * 2, journal.getForcedRecordCount());
+        assertTrue(journal.getForceCount() <= threads * count + 1);
+        assertTrue(journal.getMaxRecordsPerForce() >= journal.getAverageRecordsPerForce());
+        assertEquals(0, journal.collectDanglingRecords().size());
+
+        journal.shutdown();
+        TransactionManagerServices.getConfiguration().setForceBatchingWindowInMicros(0);
+    }
+
+    public void testAsyncLog() throws Exception {
+        TransactionManagerServices.getConfiguration().setForcedWriteEnabled(true);
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+
+        final AtomicInteger succeeded = new AtomicInteger();
+        JournalCompletionListener listener = new JournalCompletionListener() {
+            public void completed(JournalCompletion completion) {
+                if (completion.getFailure() == null)
+                    succeeded.incrementAndGet();
+            }
+        };
+
+        List<JournalCompletion> completions = new ArrayList<JournalCompletion>();
+        for (int i = 0; i < 500; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            JournalCompletion completion = journal.logAsync(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"), true);
+            completion.addListener(listener);
+            completions.add(completion);
+
+            // records which do not need to be forced are completed once written
+            assertTrue(journal.logAsync(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"), false).isDone());
+        }
+
+        for (JournalCompletion completion : completions) {
+            assertTrue(completion.await(10, TimeUnit.SECONDS));
+        }
+        assertEquals(500, succeeded.get());
+        assertEquals(0, journal.collectDanglingRecords().size());
+
+        // closing the journal forces the records still waiting for the background force
+        JournalCompletion completion = journal.logAsync(Status.STATUS_COMMITTING, UidGenerator.generateUid(), csvToSet("name1"), true);
+        journal.close();
+        assertTrue(completion.isDone());
+        assertNull(completion.getFailure());
+
+        try {
+            journal.logAsync(Status.STATUS_COMMITTING, UidGenerator.generateUid(), csvToSet("name1"), true);
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("cannot write log, disk logger is not open", ex.getMessage());
+        }
+        journal.shutdown();
+    }
+
+    public void testAsyncLogRacingClose() throws Exception {
+        TransactionManagerServices.getConfiguration().setForcedWriteEnabled(true);
+
+        for (int round = 0; round < 20; round++) {
+            final DiskJournal journal = new DiskJournal();
+            journal.open();
+
+            final List<JournalCompletion> completions = Collections.synchronizedList(new ArrayList<JournalCompletion>());
+            Thread logger = new Thread() {
+                public void run() {
+                    try {
+                        while (true) {
+                            completions.add(journal.logAsync(Status.STATUS_COMMITTING, UidGenerator.generateUid(), csvToSet("name1"), true));
+                        }
+                    } catch (IOException ex) {
+                        // the journal got closed
+                    }
+                }
+            };
+            logger.start();
+            Thread.sleep(5);
+            journal.close();
+            logger.join();
+
+            // every record must either be forced or failed, even when the close happened during a background force
+            synchronized (completions) {
+                for (JournalCompletion completion : completions) {
+                    try {
+                        assertTrue("completion never completed in round " + round, completion.await(10, TimeUnit.SECONDS));
+                    } catch (IOException ex) {
+                        assertNotNull(completion.getFailure());
+                    }
+                }
+            }
+            journal.shutdown();
+        }
+    }
+
+    public void testDeferredRecords() throws Exception {
+        TransactionManagerServices.getConfiguration().setDeferredRecordsEnabled(true);
+        TransactionManagerServices.getConfiguration().setDeferredRecordsFlushIntervalInMillis(60000);
+        DiskJournal journal = new DiskJournal();
+        try {
+            journal.open();
+
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"));
+            assertEquals(1, journal.getDeferredRecordCount());
+
+            // deferred records are written before the next force
+            journal.force();
+            assertEquals(0, journal.getDeferredRecordCount());
+            assertEquals(1, journal.getDeferredFlushCount());
+
+            // and before dangling records are collected, by batches
+            for (int i = 0; i < 300; i++) {
+                gtrid = UidGenerator.generateUid();
+                journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+                journal.log(i % 2 == 0 ? Status.STATUS_COMMITTED : Status.STATUS_ROLLEDBACK, gtrid, csvToSet("name1,name2"));
+            }
+            assertEquals(300, journal.getDeferredRecordCount());
+            assertEquals(0, journal.collectDanglingRecords().size());
+            assertEquals(0, journal.getDeferredRecordCount());
+            assertEquals(3, journal.getDeferredFlushCount());
+
+            // and when the journal is closed
+            gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1"));
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1"));
+            journal.close();
+
+            getCheckpointFile().delete();
+            TransactionManagerServices.getConfiguration().setDeferredRecordsFlushIntervalInMillis(10);
+            journal = new DiskJournal();
+            journal.open();
+            assertEquals(0, journal.collectDanglingRecords().size());
+
+            // and periodically
+            gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1"));
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1"));
+            for (int i = 0; i < 100 && journal.getDeferredRecordCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, journal.getDeferredRecordCount());
+        } finally {
+            journal.shutdown();
+            TransactionManagerServices.getConfiguration().setDeferredRecordsEnabled(false);
+            TransactionManagerServices.getConfiguration().setDeferredRecordsFlushIntervalInMillis(100);
+        }
+    }
+
+    public void testMappedJournal() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        DiskJournal journal = new MappedDiskJournal();
+        journal.open();
+
+        List<Uid> uncommitted = new ArrayList<Uid>();
+        for (int i = 1; i < 4000; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2,name3"));
+            journal.force();
+
+            if (i < 3900)
+                journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2,name3"));
+            else
+                uncommitted.add(gtrid);
+        }
+
+        assertEquals(100, journal.collectDanglingRecords().size());
+        journal.close();
+
+        // the on-disk format must be the same as the one of the non-mapped journal
+        journal = new DiskJournal();
+        journal.open();
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(100, danglingRecords.size());
+        for (Uid gtrid : uncommitted) {
+            assertEquals(csvToSet("name1,name2,name3"), danglingRecords.get(gtrid).getUniqueNames());
+        }
+
+        journal.shutdown();
+    }
+
+    public void testSynchronousAlignedWrites() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        TransactionManagerServices.getConfiguration().setForcedWriteEnabled(true);
+        TransactionManagerServices.getConfiguration().setSynchronousWriteEnabled(true);
+        TransactionManagerServices.getConfiguration().setWriteAlignmentInBytes(4096);
+        DiskJournal journal = new DiskJournal();
+        List<Uid> uncommitted = new ArrayList<Uid>();
+        try {
+            journal.open();
+
+            // with records padded to 4 KB, a 1 MB file is swapped every 256 records
+            for (int i = 1; i < 600; i++) {
+                Uid gtrid = UidGenerator.generateUid();
+                journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2,name3"));
+                journal.force();
+
+                if (i < 580)
+                    journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2,name3"));
+                else
+                    uncommitted.add(gtrid);
+            }
+
+            assertEquals(0, journal.getUnforcedRecordCount());
+            assertTrue(journal.getSwapCount() > 0);
+            assertEquals(20, journal.collectDanglingRecords().size());
+            journal.close();
+        } finally {
+            TransactionManagerServices.getConfiguration().setSynchronousWriteEnabled(false);
+            TransactionManagerServices.getConfiguration().setWriteAlignmentInBytes(0);
+        }
+
+        File[] files = new File[] {
+                new File(TransactionManagerServices.getConfiguration().getLogPart1Filename()),
+                new File(TransactionManagerServices.getConfiguration().getLogPart2Filename())
+        };
+        for (File file : files) {
+            assertEquals(TransactionLogHeader.FORMAT_ID_V3, readFormatId(file));
+            int recordCount = assertRecordsAligned(file, 4096);
+
+            int cursorCount = 0;
+            TransactionLogCursor cursor = new TransactionLogCursor(file);
+            while (cursor.readLog() != null) {
+                cursorCount++;
+            }
+            cursor.close();
+            assertEquals(recordCount, cursorCount);
+
+            int bulkReaderCount = 0;
+            TransactionLogBulkReader reader = new TransactionLogBulkReader(file, false);
+            while (reader.readLog() != null) {
+                bulkReaderCount++;
+            }
+            reader.close();
+            assertEquals(recordCount, bulkReaderCount);
+        }
+
+        // padded files must be readable by a journal which does not pad its records
+        getCheckpointFile().delete();
+        journal = new DiskJournal();
+        journal.open();
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(20, danglingRecords.size());
+        for (Uid gtrid : uncommitted) {
+            assertEquals(csvToSet("name1,name2,name3"), danglingRecords.get(gtrid).getUniqueNames());
+        }
+        journal.shutdown();
+    }
+
+    public void testCheckpoint() throws Exception {
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+        Uid gtrid1 = UidGenerator.generateUid();
+        Uid gtrid2 = UidGenerator.generateUid();
+        Uid gtrid3 = UidGenerator.generateUid();
+
+        journal.log(Status.STATUS_COMMITTING, gtrid1, csvToSet("name1,name2"));
+        journal.log(Status.STATUS_COMMITTING, gtrid2, csvToSet("name1,name2"));
+        journal.log(Status.STATUS_COMMITTED, gtrid2, csvToSet("name1"));
+        journal.close();
+
+        File checkpointFile = getCheckpointFile();
+        assertTrue(checkpointFile.exists());
+        TransactionLogCheckpoint checkpoint = TransactionLogCheckpoint.read(checkpointFile);
+        assertEquals(2, checkpoint.getDanglingLogs().size());
+        byte[] firstCheckpoint = readFile(checkpointFile);
+
+        journal = new DiskJournal();
+        journal.open();
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(2, danglingRecords.size());
+        assertEquals(csvToSet("name1,name2"), danglingRecords.get(gtrid1).getUniqueNames());
+        assertEquals(csvToSet("name2"), danglingRecords.get(gtrid2).getUniqueNames());
+
+        journal.log(Status.STATUS_COMMITTED, gtrid2, csvToSet("name2"));
+        journal.log(Status.STATUS_COMMITTING, gtrid3, csvToSet("name3"));
+        journal.close();
+
+        // an older checkpoint of the same file requires reading the records written after it
+        writeFile(checkpointFile, firstCheckpoint);
+        journal = new DiskJournal();
+        journal.open();
+        danglingRecords = journal.collectDanglingRecords();
+        assertEquals(2, danglingRecords.size());
+        assertTrue(danglingRecords.containsKey(gtrid1));
+        assertTrue(danglingRecords.containsKey(gtrid3));
+        journal.close();
+
+        // a corrupted checkpoint requires reading the whole file
+        firstCheckpoint[firstCheckpoint.length / 2]++;
+        writeFile(checkpointFile, firstCheckpoint);
+        assertNull(TransactionLogCheckpoint.read(checkpointFile));
+        journal = new DiskJournal();
+        journal.open();
+        danglingRecords = journal.collectDanglingRecords();
+        assertEquals(2, danglingRecords.size());
+        assertTrue(danglingRecords.containsKey(gtrid1));
+        assertTrue(danglingRecords.containsKey(gtrid3));
+        journal.shutdown();
+    }
+
+    public void testFormatV1() throws Exception {
+        File file1 = new File(TransactionManagerServices.getConfiguration().getLogPart1Filename());
+        File file2 = new File(TransactionManagerServices.getConfiguration().getLogPart2Filename());
+        createV1Logfile(file2, 1);
+        Thread.sleep(10);
+        createV1Logfile(file1, 1);
+
+        TransactionManagerServices.getConfiguration().setCompactLogFormatEnabled(true);
+        try {
+            assertV1LogFileUpgrade(file1, file2);
+        } finally {
+            TransactionManagerServices.getConfiguration().setCompactLogFormatEnabled(false);
+        }
+
+        // both formats can be read by the cursor
+        for (File file : new File[] {file1, file2}) {
+            TransactionLogCursor cursor = new TransactionLogCursor(file);
+            try {
+                int count = 0;
+                while (cursor.readLog() != null) {
+                    count++;
+                }
+                assertTrue(count > 1);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private void assertV1LogFileUpgrade(File file1, File file2) throws Exception {
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+        Uid gtrid1 = UidGenerator.generateUid();
+        journal.log(Status.STATUS_COMMITTING, gtrid1, csvToSet("name1,name2,name3"));
+        journal.close();
+
+        // records keep being written in the format of the log file
+        assertEquals(TransactionLogHeader.FORMAT_ID_V1, readFormatId(file1));
+        getCheckpointFile().delete();
+        journal = new DiskJournal();
+        journal.open();
+        assertEquals(csvToSet("name1,name2,name3"), journal.collectDanglingRecords().get(gtrid1).getUniqueNames());
+
+        // the log file swapped to gets upgraded
+        for (int i = 1; i < 8000; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2,name3"));
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2,name3"));
+        }
+        journal.log(Status.STATUS_COMMITTED, gtrid1, csvToSet("name1"));
+        journal.close();
+
+        assertEquals(TransactionLogHeader.FORMAT_ID_V1, readFormatId(file1));
+        assertEquals(TransactionLogHeader.FORMAT_ID_V2, readFormatId(file2));
+
+        getCheckpointFile().delete();
+        journal = new DiskJournal();
+        journal.open();
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(1, danglingRecords.size());
+        assertEquals(csvToSet("name2,name3"), danglingRecords.get(gtrid1).getUniqueNames());
+        journal.shutdown();
+    }
+
+    public void testCompactFormatCanBeDisabled() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        File file1 = new File(TransactionManagerServices.getConfiguration().getLogPart1Filename());
+        File file2 = new File(TransactionManagerServices.getConfiguration().getLogPart2Filename());
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+        journal.close();
+        assertEquals(TransactionLogHeader.FORMAT_ID_V1, readFormatId(file1));
+        assertEquals(TransactionLogHeader.FORMAT_ID_V1, readFormatId(file2));
+
+        TransactionManagerServices.getConfiguration().setCompactLogFormatEnabled(true);
+        try {
+            getCheckpointFile().delete();
+            file1.delete();
+            file2.delete();
+            journal = new DiskJournal();
+            journal.open();
+            journal.close();
+        } finally {
+            TransactionManagerServices.getConfiguration().setCompactLogFormatEnabled(false);
+        }
+        assertEquals(TransactionLogHeader.FORMAT_ID_V2, readFormatId(file1));
+        assertEquals(TransactionLogHeader.FORMAT_ID_V2, readFormatId(file2));
+
+        // the log file swapped to gets converted back to the original format
+        journal = new DiskJournal();
+        journal.open();
+        Uid gtrid1 = UidGenerator.generateUid();
+        journal.log(Status.STATUS_COMMITTING, gtrid1, csvToSet("name1,name2"));
+        while (journal.getSwapCount() == 0) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"));
+        }
+        journal.close();
+
+        assertEquals(TransactionLogHeader.FORMAT_ID_V2, readFormatId(file1));
+        assertEquals(TransactionLogHeader.FORMAT_ID_V1, readFormatId(file2));
+
+        getCheckpointFile().delete();
+        journal = new DiskJournal();
+        journal.open();
+        assertEquals(csvToSet("name1,name2"), journal.collectDanglingRecords().get(gtrid1).getUniqueNames());
+        journal.shutdown();
+    }
+
+    public void testAlignedWritesConvertLogFiles() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        File file1 = new File(TransactionManagerServices.getConfiguration().getLogPart1Filename());
+        File file2 = new File(TransactionManagerServices.getConfiguration().getLogPart2Filename());
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+        journal.close();
+        assertEquals(TransactionLogHeader.FORMAT_ID_V1, readFormatId(file1));
+
+        TransactionManagerServices.getConfiguration().setWriteAlignmentInBytes(4096);
+        try {
+            journal = new DiskJournal();
+            journal.open();
+
+            // the format 1 log file does not get padded, the one swapped to gets converted
+            for (int i = 0; journal.getSwapCount() == 0 || i < 10; i++) {
+                if (journal.getSwapCount() == 0)
+                    i = 0;
+                Uid gtrid = UidGenerator.generateUid();
+                journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+                journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"));
+            }
+            assertEquals(1, journal.getSwapCount());
+            journal.close();
+        } finally {
+            TransactionManagerServices.getConfiguration().setWriteAlignmentInBytes(0);
+        }
+
+        assertEquals(TransactionLogHeader.FORMAT_ID_V1, readFormatId(file1));
+        assertEquals(TransactionLogHeader.FORMAT_ID_V3, readFormatId(file2));
+        assertTrue(assertRecordsAligned(file2, 4096) > 0);
+
+        RandomAccessFile raf = new RandomAccessFile(file1, "r");
+        try {
+            raf.seek(TransactionLogHeader.CURRENT_POSITION_HEADER);
+            long endPosition = raf.readLong();
+            long position = TransactionLogHeader.getFirstRecordPosition(TransactionLogHeader.FORMAT_ID_V1);
+            while (position < endPosition) {
+                raf.seek(position);
+                assertTrue("padding found at " + position, raf.readInt() != TransactionLogAppender.PADDING_RECORD);
+                position += 8 + raf.readInt();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    public void testUnsupportedFormatIsRejected() throws Exception {
+        File file1 = new File(TransactionManagerServices.getConfiguration().getLogPart1Filename());
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+        journal.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file1, "rw");
+        try {
+            raf.writeInt(0x42746e39);
+        } finally {
+            raf.close();
+        }
+
+        try {
+            new TransactionLogCursor(file1);
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("log file " + file1.getName() + " has an unsupported format (format ID 0x42746e39)", ex.getMessage());
+        }
+        try {
+            new TransactionLogBulkReader(file1, false);
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("log file " + file1.getName() + " has an unsupported format (format ID 0x42746e39)", ex.getMessage());
+        }
+        try {
+            new TransactionLogAppender(file1, 1024 * 1024, false, false, 0);
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("log file " + file1.getName() + " has an unsupported format (format ID 0x42746e39)", ex.getMessage());
+        }
+        // the file must not have been left locked
+        new RandomAccessFile(file1, "rw").getChannel().tryLock().release();
+    }
+
+    public void testInterruptedFormatUpgrade() throws Exception {
+        File file1 = new File(TransactionManagerServices.getConfiguration().getLogPart1Filename());
+        File file2 = new File(TransactionManagerServices.getConfiguration().getLogPart2Filename());
+        createV1Logfile(file2, 1);
+        Thread.sleep(10);
+        createV1Logfile(file1, 1);
+
+        // the format ID got written but the position was still the one of a format 1 log file
+        RandomAccessFile raf = new RandomAccessFile(file1, "rw");
+        try {
+            raf.writeInt(TransactionLogHeader.FORMAT_ID_V2);
+        } finally {
+            raf.close();
+        }
+
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+        Uid gtrid = UidGenerator.generateUid();
+        journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+        journal.close();
+
+        getCheckpointFile().delete();
+        journal = new DiskJournal();
+        journal.open();
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(1, danglingRecords.size());
+        assertEquals(csvToSet("name1,name2"), danglingRecords.get(gtrid).getUniqueNames());
+        journal.shutdown();
+    }
+
+    public void testWriteBuffersAreBounded() throws Exception {
+        final DiskJournal journal = new DiskJournal();
+        journal.open();
+
+        final int threadCount = TransactionLogAppender.getMaxPooledWriteBufferCount() * 4;
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 50; i++) {
+                            Uid gtrid = UidGenerator.generateUid();
+                            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+                            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"));
+                        }
+                    } catch (IOException ex) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertTrue(TransactionLogAppender.getPooledWriteBufferCount() <= TransactionLogAppender.getMaxPooledWriteBufferCount());
+
+        // a record larger than the pooled buffers is written through a temporary buffer
+        Set<String> names = new TreeSet<String>();
+        for (int i = 0; i < 200; i++) {
+            names.add("a-resource-with-a-rather-long-unique-name-" + i);
+        }
+        Uid gtrid = UidGenerator.generateUid();
+        journal.log(Status.STATUS_COMMITTING, gtrid, names);
+        journal.close();
+
+        getCheckpointFile().delete();
+        journal.open();
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(1, danglingRecords.size());
+        assertEquals(names, danglingRecords.get(gtrid).getUniqueNames());
+        journal.close();
+    }
+
     public void testJournalPerformance() throws IOException, InterruptedException {
         TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(40);
         TransactionManagerServices.getConfiguration().setForcedWriteEnabled(false);
@@ -323,6 +1051,89 @@ public class DiskJournalTest extends TestCase {
         journal.shutdown();
     }
 
+    private static File getCheckpointFile() {
+        return new File(TransactionManagerServices.getConfiguration().getLogPart1Filename() + ".checkpoint");
+    }
+
+    /**
+     * Check that all the records of a log file but the first one start on an alignment boundary.
+     * @return the number of records in the file.
+     */
+    private static int assertRecordsAligned(File file, int alignment) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            int formatId = raf.readInt();
+            raf.seek(TransactionLogHeader.CURRENT_POSITION_HEADER);
+            long endPosition = raf.readLong();
+            long position = TransactionLogHeader.getFirstRecordPosition(formatId);
+            if (endPosition > position)
+                assertEquals(0, endPosition % alignment);
+
+            int recordCount = 0;
+            int paddingCount = 0;
+            while (position < endPosition) {
+                raf.seek(position);
+                int status = raf.readInt();
+                int recordLength = raf.readInt();
+                if (status == TransactionLogAppender.PADDING_RECORD) {
+                    paddingCount++;
+                } else {
+                    if (recordCount > 0)
+                        assertEquals("record at " + position + " is not aligned", 0, position % alignment);
+                    recordCount++;
+                }
+                position += 8 + recordLength;
+            }
+            assertEquals(endPosition, position);
+            assertEquals(recordCount, paddingCount);
+            return recordCount;
+        } finally {
+            raf.close();
+        }
+    }
+
+    static void createV1Logfile(File logfile, int maxLogSizeInMb) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(logfile, "rw");
+        try {
+            raf.writeInt(TransactionLogHeader.FORMAT_ID_V1);
+            raf.writeLong(MonotonicClock.currentTimeMillis());
+            raf.writeByte(TransactionLogHeader.CLEAN_LOG_STATE);
+            raf.writeLong((long) TransactionLogHeader.HEADER_LENGTH);
+            raf.setLength(TransactionLogHeader.HEADER_LENGTH + maxLogSizeInMb * 1024 * 1024);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int readFormatId(File file) throws IOException {
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            return dis.readInt();
+        } finally {
+            dis.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            dis.readFully(content);
+        } finally {
+            dis.close();
+        }
+        return content;
+    }
+
+    private static void writeFile(File file, byte[] content) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content);
+        } finally {
+            fos.close();
+        }
+    }
+
     private SortedSet<String> csvToSet(String s) {
         SortedSet<String> result = new TreeSet<String>();
         String[] names = s.split("\\,");
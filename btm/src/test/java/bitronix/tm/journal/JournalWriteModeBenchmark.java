@@ -0,0 +1,147 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.transaction.Status;
+
+import bitronix.tm.Configuration;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.utils.Uid;
+import bitronix.tm.utils.UidGenerator;
+
+/**
+ * Compares the throughput and latency of the disk journal write modes on the local filesystem:
+ * <ul>
+ *   <li>force-per-commit: each committer forces the log file after writing its COMMITTING record,</li>
+ *   <li>group commit: concurrent forces are batched,</li>
+ *   <li>synchronous: log files are opened for synchronous writes with records aligned on 4 KB blocks.</li>
+ * </ul>
+ * <p>Usage: <code>JournalWriteModeBenchmark [threads] [commits per thread] [directory]</code>. The latency reported is
+ * the one of writing and forcing the COMMITTING record.</p>
+ *
+ * @author lorban
+ */
+public class JournalWriteModeBenchmark {
+
+    private final static int WRITE_ALIGNMENT = 4096;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int commits = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        File directory = new File(args.length > 2 ? args[2] : "target");
+
+        Configuration configuration = TransactionManagerServices.getConfiguration();
+        configuration.setLogPart1Filename(new File(directory, "benchmark1.tlog").getPath());
+        configuration.setLogPart2Filename(new File(directory, "benchmark2.tlog").getPath());
+        configuration.setMaxLogSizeInMb(16);
+        configuration.setForcedWriteEnabled(true);
+
+        System.out.println("journal write mode benchmark, " + threads + " thread(s), " + commits + " commit(s) per thread, in " + directory.getAbsolutePath());
+
+        // warm up the JIT and the files with the cheapest mode first
+        run("warm-up", false, false, 0, threads, Math.max(1, commits / 10));
+
+        run("force-per-commit", false, false, 0, threads, commits);
+        run("group commit", true, false, 0, threads, commits);
+        run("synchronous", false, true, WRITE_ALIGNMENT, threads, commits);
+        run("synchronous + group commit", true, true, WRITE_ALIGNMENT, threads, commits);
+    }
+
+    private static void run(String mode, boolean forceBatching, boolean synchronous, int writeAlignment, int threadCount, final int commits) throws Exception {
+        Configuration configuration = TransactionManagerServices.getConfiguration();
+        configuration.setForceBatchingEnabled(forceBatching);
+        configuration.setSynchronousWriteEnabled(synchronous);
+        configuration.setWriteAlignmentInBytes(writeAlignment);
+        new File(configuration.getLogPart1Filename()).delete();
+        new File(configuration.getLogPart2Filename()).delete();
+        new File(configuration.getLogPart1Filename() + ".checkpoint").delete();
+
+        final DiskJournal journal = new DiskJournal();
+        journal.open();
+
+        final long[][] latencies = new long[threadCount][];
+        final Exception[] failures = new Exception[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int ndx = i;
+            threads[i] = new Thread("benchmark-" + i) {
+                public void run() {
+                    try {
+                        latencies[ndx] = commit(journal, ndx, commits);
+                    } catch (Exception ex) {
+                        failures[ndx] = ex;
+                    }
+                }
+            };
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        journal.close();
+
+        for (Exception failure : failures) {
+            if (failure != null)
+                throw failure;
+        }
+
+        long[] all = new long[threadCount * commits];
+        for (int i = 0; i < threadCount; i++) {
+            System.arraycopy(latencies[i], 0, all, i * commits, commits);
+        }
+        Arrays.sort(all);
+
+        double throughput = all.length / (elapsed / 1000000000.0);
+        System.out.println(String.format("%-28s %10.0f commits/s   p50 %8.1f us   p99 %8.1f us   max %9.1f us   %6d records/force",
+                mode, throughput, percentile(all, 50) / 1000.0, percentile(all, 99) / 1000.0, all[all.length - 1] / 1000.0,
+                journal.getAverageRecordsPerForce()));
+    }
+
+    private static long[] commit(DiskJournal journal, int ndx, int commits) throws IOException {
+        Set<String> uniqueNames = new TreeSet<String>(Arrays.asList(ndx + ".name1", ndx + ".name2"));
+        long[] latencies = new long[commits];
+        for (int i = 0; i < commits; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            long start = System.nanoTime();
+            journal.log(Status.STATUS_COMMITTING, gtrid, uniqueNames);
+            journal.force();
+            latencies[i] = System.nanoTime() - start;
+            journal.log(Status.STATUS_COMMITTED, gtrid, uniqueNames);
+        }
+        return latencies;
+    }
+
+    private static long percentile(long[] sortedValues, int percentile) {
+        int index = (int) Math.ceil(sortedValues.length * percentile / 100.0) - 1;
+        return sortedValues[Math.max(0, Math.min(sortedValues.length - 1, index))];
+    }
+}
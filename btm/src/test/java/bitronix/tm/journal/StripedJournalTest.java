@@ -0,0 +1,215 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.transaction.Status;
+
+import junit.framework.TestCase;
+import bitronix.tm.Configuration;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.utils.Uid;
+import bitronix.tm.utils.UidGenerator;
+
+/**
+ *
+ * @author lorban
+ */
+public class StripedJournalTest extends TestCase {
+
+    private final static String[] DIRECTORIES = { "target/stripes-a", "target/stripes-b" };
+
+    protected void setUp() throws Exception {
+        Configuration configuration = TransactionManagerServices.getConfiguration();
+        configuration.setMaxLogSizeInMb(1);
+        configuration.setJournalStripes(3);
+        configuration.setJournalStripeDirectories(DIRECTORIES[0] + ", " + DIRECTORIES[1]);
+        deleteStripeFiles();
+    }
+
+    protected void tearDown() throws Exception {
+        Configuration configuration = TransactionManagerServices.getConfiguration();
+        configuration.setJournalStripes(4);
+        configuration.setJournalStripeDirectories(null);
+        deleteStripeFiles();
+    }
+
+    public void testExceptions() throws Exception {
+        StripedJournal journal = new StripedJournal();
+
+        try {
+            journal.force();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("cannot force log writing, striped journal is not open", ex.getMessage());
+        }
+        try {
+            journal.log(0, null, null);
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("cannot write log, striped journal is not open", ex.getMessage());
+        }
+        try {
+            journal.collectDanglingRecords();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("cannot collect dangling records, striped journal is not open", ex.getMessage());
+        }
+
+        TransactionManagerServices.getConfiguration().setJournalStripes(StripedJournal.MAX_STRIPES + 1);
+        try {
+            journal.open();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("invalid number of journal stripes 65, it must be between 1 and 64", ex.getMessage());
+        }
+
+        journal.close();
+        journal.shutdown();
+    }
+
+    public void testStripeFiles() throws Exception {
+        StripedJournal journal = new StripedJournal();
+        journal.open();
+
+        assertTrue(new File(DIRECTORIES[0], "stripe0-btm1.tlog").exists());
+        assertTrue(new File(DIRECTORIES[0], "stripe0-btm2.tlog").exists());
+        assertTrue(new File(DIRECTORIES[1], "stripe1-btm1.tlog").exists());
+        assertTrue(new File(DIRECTORIES[1], "stripe1-btm2.tlog").exists());
+        assertTrue(new File(DIRECTORIES[0], "stripe2-btm1.tlog").exists());
+        assertTrue(new File(DIRECTORIES[0], "stripe2-btm2.tlog").exists());
+
+        journal.shutdown();
+    }
+
+    public void testCollectDanglingRecordsOfAllStripes() throws Exception {
+        StripedJournal journal = new StripedJournal();
+        journal.open();
+
+        List<Uid> uncommitted = new ArrayList<Uid>();
+        for (int i = 0; i < 100; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+            journal.force();
+
+            if (i % 10 == 0) {
+                uncommitted.add(gtrid);
+            } else {
+                journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1"));
+                journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name2"));
+            }
+        }
+
+        assertEquals(10, journal.collectDanglingRecords().size());
+        journal.close();
+
+        journal = new StripedJournal();
+        journal.open();
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(10, danglingRecords.size());
+        for (Uid gtrid : uncommitted) {
+            assertTrue(danglingRecords.containsKey(gtrid));
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"));
+        }
+        assertEquals(0, journal.collectDanglingRecords().size());
+
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        journal.unsafeReadRecordsInto(records, false);
+        assertEquals(100 + 90 * 2 + 10, records.size());
+
+        journal.shutdown();
+    }
+
+    public void testStripeCountChange() throws Exception {
+        StripedJournal journal = new StripedJournal();
+        journal.open();
+
+        List<Uid> uncommitted = new ArrayList<Uid>();
+        for (int i = 0; i < 10; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1"));
+            uncommitted.add(gtrid);
+        }
+        journal.close();
+
+        TransactionManagerServices.getConfiguration().setJournalStripes(2);
+        journal = new StripedJournal();
+        try {
+            journal.open();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("found 3 journal stripe(s) not matching the configured 2 stripe(s)"));
+        }
+        TransactionManagerServices.getConfiguration().setJournalStripes(4);
+        try {
+            journal.open();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("found 3 journal stripe(s) not matching the configured 4 stripe(s)"));
+        }
+
+        TransactionManagerServices.getConfiguration().setJournalStripes(3);
+        journal.open();
+        assertEquals(10, journal.collectDanglingRecords().size());
+        for (Uid gtrid : uncommitted) {
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1"));
+        }
+        journal.close();
+
+        TransactionManagerServices.getConfiguration().setJournalStripes(2);
+        journal.open();
+        assertEquals(0, journal.collectDanglingRecords().size());
+        assertFalse(new File(DIRECTORIES[0], "stripe2-btm1.tlog").exists());
+        assertFalse(new File(DIRECTORIES[0], "stripe2-btm2.tlog").exists());
+        assertTrue(new File(DIRECTORIES[1], "stripe1-btm1.tlog").exists());
+
+        journal.shutdown();
+    }
+
+    private void deleteStripeFiles() {
+        for (String directory : DIRECTORIES) {
+            File[] files = new File(directory).listFiles();
+            if (files == null)
+                continue;
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private SortedSet<String> csvToSet(String s) {
+        SortedSet<String> result = new TreeSet<String>();
+        String[] names = s.split("\\,");
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            result.add(name);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.journal;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.transaction.Status;
+
+import junit.framework.TestCase;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.utils.Encoder;
+import bitronix.tm.utils.UidGenerator;
+
+/**
+ *
+ * @author lorban
+ */
+public class TransactionLogBulkReaderTest extends TestCase {
+
+    private File logFile;
+
+    protected void setUp() throws Exception {
+        logFile = new File(TransactionManagerServices.getConfiguration().getLogPart1Filename());
+        logFile.delete();
+        new File(TransactionManagerServices.getConfiguration().getLogPart2Filename()).delete();
+        new File(logFile.getPath() + ".checkpoint").delete();
+        writeRecords();
+    }
+
+    private void writeRecords() throws Exception {
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+        for (int i = 0; i < 2000; i++) {
+            Set<String> names = new HashSet<String>();
+            int count = (i % 500 == 0) ? 400 : i % 5;
+            for (int j = 0; j < count; j++) {
+                names.add("resource-" + j);
+            }
+            journal.log(i % 2 == 0 ? Status.STATUS_COMMITTING : Status.STATUS_COMMITTED, UidGenerator.generateUid(), names);
+        }
+        journal.close();
+        journal.shutdown();
+    }
+
+    public void testSameRecordsAsCursor() throws Exception {
+        List<TransactionLogRecord> expected = readWithCursor();
+        assertEquals(2000, expected.size());
+
+        assertRecordsEquals(expected, readWithBulkReader(new TransactionLogBulkReader(logFile, false)));
+        assertRecordsEquals(expected, readWithBulkReader(new TransactionLogBulkReader(logFile, TransactionLogHeader.HEADER_LENGTH, false, 4096)));
+        assertRecordsEquals(expected, readWithBulkReader(new TransactionLogBulkReader(logFile, TransactionLogHeader.HEADER_LENGTH, false, 100)));
+    }
+
+    public void testFormatV1() throws Exception {
+        logFile.delete();
+        new File(TransactionManagerServices.getConfiguration().getLogPart2Filename()).delete();
+        DiskJournalTest.createV1Logfile(new File(TransactionManagerServices.getConfiguration().getLogPart2Filename()), 2);
+        Thread.sleep(10);
+        DiskJournalTest.createV1Logfile(logFile, 2);
+        writeRecords();
+
+        List<TransactionLogRecord> expected = readWithCursor();
+        assertEquals(2000, expected.size());
+        assertEquals(TransactionLogHeader.HEADER_LENGTH + 1000 * 8 + sumRecordLengths(expected.subList(0, 1000)), getRecordPosition(1000));
+
+        assertRecordsEquals(expected, readWithBulkReader(new TransactionLogBulkReader(logFile, TransactionLogHeader.HEADER_LENGTH, false, 4096)));
+        assertRecordsEquals(expected.subList(1000, 2000), readWithBulkReader(new TransactionLogBulkReader(logFile, getRecordPosition(1000), false, 4096)));
+    }
+
+    public void testStartPosition() throws Exception {
+        List<TransactionLogRecord> expected = readWithCursor();
+        long position = getRecordPosition(1000);
+
+        List<TransactionLogRecord> records = readWithBulkReader(new TransactionLogBulkReader(logFile, position, false, 4096));
+        assertRecordsEquals(expected.subList(1000, 2000), records);
+    }
+
+    public void testCorruptedRecord() throws Exception {
+        List<TransactionLogRecord> expected = readWithCursor();
+        long position = getRecordPosition(1234);
+
+        // flip a byte of the GTRID of the 1235th record
+        TransactionLogRecord corrupted = expected.get(1234);
+        long corruptedPosition = position + 8 + Encoder.varLongSize(corrupted.getTime())
+                + Encoder.varLongSize(corrupted.getSequenceNumber() & 0xFFFFFFFFL) + 4 + 1;
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        try {
+            raf.seek(corruptedPosition);
+            int b = raf.read();
+            raf.seek(corruptedPosition);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        TransactionLogBulkReader reader = new TransactionLogBulkReader(logFile, TransactionLogHeader.HEADER_LENGTH, false, 4096);
+        try {
+            for (int i = 0; i < 1234; i++) {
+                assertEquals(expected.get(i).getGtrid(), reader.readLog().getGtrid());
+            }
+            try {
+                reader.readLog();
+                fail("expected CorruptedTransactionLogException");
+            } catch (CorruptedTransactionLogException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().startsWith("corrupted log found at position " + position));
+            }
+            for (int i = 1235; i < 2000; i++) {
+                assertEquals(expected.get(i).getGtrid(), reader.readLog().getGtrid());
+            }
+            assertNull(reader.readLog());
+        } finally {
+            reader.close();
+        }
+
+        assertEquals(2000, readWithBulkReader(new TransactionLogBulkReader(logFile, true)).size());
+    }
+
+    public void testReadersShareDecodingThreads() throws Exception {
+        List<TransactionLogRecord> expected = readWithCursor();
+
+        for (int i = 0; i < 10; i++) {
+            // closing a reader before its end must not stop the decoding of the others
+            TransactionLogBulkReader reader = new TransactionLogBulkReader(logFile, TransactionLogHeader.HEADER_LENGTH, false, 4096);
+            reader.readLog();
+            reader.close();
+
+            assertRecordsEquals(expected, readWithBulkReader(new TransactionLogBulkReader(logFile, TransactionLogHeader.HEADER_LENGTH, false, 4096)));
+        }
+
+        int decodingThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("bitronix-log-reader-"))
+                decodingThreads++;
+        }
+        assertTrue("found " + decodingThreads + " decoding threads", decodingThreads <= Runtime.getRuntime().availableProcessors());
+    }
+
+    private long getRecordPosition(int index) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+        try {
+            long position = TransactionLogHeader.getFirstRecordPosition(raf.readInt());
+            for (int i = 0; i < index; i++) {
+                raf.seek(position + 4);
+                position += 8 + raf.readInt();
+            }
+            return position;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long sumRecordLengths(List<TransactionLogRecord> records) {
+        long total = 0;
+        for (TransactionLogRecord record : records) {
+            total += record.getRecordLength();
+        }
+        return total;
+    }
+
+    private List<TransactionLogRecord> readWithCursor() throws Exception {
+        List<TransactionLogRecord> records = new ArrayList<TransactionLogRecord>();
+        TransactionLogCursor cursor = new TransactionLogCursor(logFile);
+        try {
+            TransactionLogRecord tlog;
+            while ((tlog = cursor.readLog()) != null) {
+                records.add(tlog);
+            }
+        } finally {
+            cursor.close();
+        }
+        return records;
+    }
+
+    private static List<TransactionLogRecord> readWithBulkReader(TransactionLogBulkReader reader) throws Exception {
+        List<TransactionLogRecord> records = new ArrayList<TransactionLogRecord>();
+        try {
+            TransactionLogRecord tlog;
+            while ((tlog = reader.readLog()) != null) {
+                records.add(tlog);
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private static void assertRecordsEquals(List<TransactionLogRecord> expected, List<TransactionLogRecord> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            TransactionLogRecord e = expected.get(i);
+            TransactionLogRecord a = actual.get(i);
+            assertEquals(e.getStatus(), a.getStatus());
+            assertEquals(e.getGtrid(), a.getGtrid());
+            assertEquals(e.getSequenceNumber(), a.getSequenceNumber());
+            assertEquals(e.getCrc32(), a.getCrc32());
+            assertEquals(e.getUniqueNames(), a.getUniqueNames());
+            assertTrue(a.isCrc32Correct());
+        }
+    }
+
+}
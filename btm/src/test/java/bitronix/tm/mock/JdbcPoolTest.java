@@ -20,6 +20,12 @@
  */
 package bitronix.tm.mock;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
 import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
 import bitronix.tm.recovery.RecoveryException;
@@ -35,12 +41,17 @@ import javax.transaction.TransactionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
@@ -90,6 +101,29 @@ public class JdbcPoolTest extends TestCase {
         pds.init();
     }
 
+    public void testInitAfterDeserialization() throws Exception {
+        pds.close();
+
+        pds = new PoolingDataSource();
+        pds.setUniqueName("pds");
+        pds.setClassName(MockitoXADataSource.class.getName());
+        pds.setMinPoolSize(1);
+        pds.setMaxPoolSize(1);
+        pds.setAllowLocalTransactions(true);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(pds);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        pds = (PoolingDataSource) ois.readObject();
+        ois.close();
+
+        pds.init();
+        pds.getConnection().close();
+        assertEquals(1, pds.getInPoolSize());
+    }
+
     public void testInitFailure() throws Exception {
         if (log.isDebugEnabled()) { log.debug("*** Starting testInitFailure"); }
         pds.close();
@@ -468,6 +502,37 @@ public class JdbcPoolTest extends TestCase {
         assertTrue(unwrappedCStmt.getClass().getName().contains("java.sql.CallableStatement") && unwrappedCStmt.getClass().getName().contains("EnhancerByMockito"));
     }
 
+    public void testValidationWindowSkipsConnectionTest() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testValidationWindowSkipsConnectionTest"); }
+        pds.close();
+
+        pds = new PoolingDataSource();
+        pds.setMinPoolSize(1);
+        pds.setMaxPoolSize(1);
+        pds.setClassName(MockitoXADataSource.class.getName());
+        pds.setUniqueName("pds");
+        pds.setAllowLocalTransactions(true);
+        pds.setAcquisitionTimeout(1);
+        pds.setTestQuery("SELECT 1");
+        pds.setValidationWindowInMillis(60000);
+        pds.init();
+
+        Connection c = pds.getConnection();
+        Connection physicalConnection = (Connection) unwrap(c, Connection.class);
+        c.close();
+        pds.getConnection().close();
+        verify(physicalConnection, never()).prepareStatement("SELECT 1");
+
+        PreparedStatement testStatement = mock(PreparedStatement.class);
+        ResultSet testResultSet = mock(ResultSet.class);
+        when(testStatement.executeQuery()).thenReturn(testResultSet);
+        when(physicalConnection.prepareStatement("SELECT 1")).thenReturn(testStatement);
+
+        pds.setValidationWindowInMillis(0);
+        pds.getConnection().close();
+        verify(physicalConnection, times(1)).prepareStatement("SELECT 1");
+    }
+
     private static boolean isWrapperFor(Object obj, Class param) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
         Method isWrapperForMethod = obj.getClass().getMethod("isWrapperFor", Class.class);
         return (Boolean) isWrapperForMethod.invoke(obj, param);
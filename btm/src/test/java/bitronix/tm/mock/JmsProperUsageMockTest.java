@@ -111,7 +111,11 @@ public class JmsProperUsageMockTest extends AbstractMockJmsTest {
 
         ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
         ObjectInputStream ois = new ObjectInputStream(bais);
-        poolingConnectionFactory1 = (PoolingConnectionFactory) ois.readObject();
+        PoolingConnectionFactory deserialized = (PoolingConnectionFactory) ois.readObject();
         ois.close();
+
+        // the copy does not own the pool, close the original so that its unique name gets unregistered
+        poolingConnectionFactory1.close();
+        poolingConnectionFactory1 = deserialized;
     }
 }
@@ -1144,8 +1144,12 @@ public class NewJdbcProperUsageMockTest extends AbstractMockJdbcTest {
 
         ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
         ObjectInputStream ois = new ObjectInputStream(bais);
-        poolingDataSource1 = (PoolingDataSource) ois.readObject();
+        PoolingDataSource deserialized = (PoolingDataSource) ois.readObject();
         ois.close();
+
+        // the copy does not own the pool, close the original so that its unique name gets unregistered
+        poolingDataSource1.close();
+        poolingDataSource1 = deserialized;
     }
 
 }
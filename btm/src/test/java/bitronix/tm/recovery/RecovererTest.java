@@ -84,6 +84,9 @@ public class RecovererTest extends TestCase {
         // recoverer needs the journal to be open to be run manually
         journal = TransactionManagerServices.getJournal();
         journal.open();
+
+        // other tests may have left events behind
+        EventRecorder.clear();
     }
 
 
@@ -20,8 +20,24 @@
  */
 package bitronix.tm.resource.common;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
 import bitronix.tm.*;
+import bitronix.tm.internal.BitronixRuntimeException;
 import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
 import bitronix.tm.resource.jdbc.PoolingDataSource;
 import bitronix.tm.utils.CryptoEngine;
@@ -64,4 +80,275 @@ public class XAPoolTest extends TestCase {
         assertFalse(TransactionManagerServices.isTaskSchedulerRunning());
     }
 
-}
\ No newline at end of file
+    public void testParallelWarmUp() throws Exception {
+        ResourceBean rb = createResourceBean();
+        rb.setMinPoolSize(4);
+        rb.setMaxPoolSize(4);
+        rb.setAcquisitionConcurrency(4);
+
+        XAPool xaPool = new XAPool(createSlowXAResourceProducer(500), rb);
+        try {
+            // the warm-up is done when the pool is constructed
+            assertEquals(4, xaPool.totalPoolSize());
+            assertEquals(4, xaPool.inPoolSize());
+        } finally {
+            xaPool.close();
+        }
+    }
+
+    public void testWarmUpConcurrency() throws Exception {
+        ResourceBean rb = createResourceBean();
+        rb.setMinPoolSize(4);
+        rb.setMaxPoolSize(4);
+        rb.setAcquisitionConcurrency(4);
+
+        AtomicInteger maxInFlight = new AtomicInteger();
+        XAPool xaPool = new XAPool(createSlowXAResourceProducer(500, maxInFlight), rb);
+        xaPool.close();
+        assertEquals(4, maxInFlight.get());
+
+        // the acquisition concurrency is a hard limit
+        rb.setAcquisitionConcurrency(2);
+        maxInFlight.set(0);
+        xaPool = new XAPool(createSlowXAResourceProducer(500, maxInFlight), rb);
+        xaPool.close();
+        assertEquals(2, maxInFlight.get());
+    }
+
+    public void testFailedWarmUpReleasesThreads() throws Exception {
+        ResourceBean rb = createResourceBean();
+        rb.setUniqueName("failing-xapool-test");
+        rb.setMinPoolSize(4);
+        rb.setMaxPoolSize(4);
+        rb.setAcquisitionConcurrency(4);
+
+        final AtomicInteger creations = new AtomicInteger();
+        XAResourceProducer producer = (XAResourceProducer) Proxy.newProxyInstance(XAPoolTest.class.getClassLoader(), new Class[] { XAResourceProducer.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class)
+                    return method.invoke(this, args);
+                if (method.getName().equals("createPooledConnection")) {
+                    // half of the connections can be created
+                    if (creations.incrementAndGet() % 2 == 0)
+                        throw new SQLException("database down");
+                    return new StubXAStatefulHolder();
+                }
+                return null;
+            }
+        });
+
+        for (int i = 0; i < 10; i++) {
+            try {
+                new XAPool(producer, rb);
+                fail("expected SQLException");
+            } catch (SQLException ex) {
+                assertEquals("database down", ex.getMessage());
+            }
+        }
+
+        int fillerThreads = 0;
+        for (int i = 0; i < 50; i++) {
+            fillerThreads = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("bitronix-pool-filler-failing-xapool-test"))
+                    fillerThreads++;
+            }
+            if (fillerThreads == 0)
+                break;
+            Thread.sleep(100);
+        }
+        assertEquals(0, fillerThreads);
+    }
+
+    public void testGrowthFailureDoesNotWaitForAcquisitionTimeout() throws Exception {
+        ResourceBean rb = createResourceBean();
+        rb.setMaxPoolSize(2);
+        rb.setAcquisitionTimeout(30);
+
+        XAResourceProducer producer = mock(XAResourceProducer.class);
+        doAnswer(new Answer<XAStatefulHolder>() {
+            public XAStatefulHolder answer(InvocationOnMock invocation) throws Throwable {
+                throw new SQLException("database down");
+            }
+        }).when(producer).createPooledConnection(any(), any(ResourceBean.class));
+
+        XAPool xaPool = new XAPool(producer, rb);
+        long before = System.currentTimeMillis();
+        try {
+            xaPool.getConnectionHandle();
+            fail("expected SQLException");
+        } catch (SQLException ex) {
+            assertEquals("database down", ex.getMessage());
+        } finally {
+            xaPool.close();
+        }
+        long elapsed = System.currentTimeMillis() - before;
+        assertTrue("connection acquisition failed after " + elapsed + "ms", elapsed < 5000);
+    }
+
+    public void testKeepAliveEvictsDeadConnections() throws Exception {
+        ResourceBean rb = createResourceBean();
+        rb.setMinPoolSize(2);
+        rb.setMaxPoolSize(2);
+        rb.setKeepAliveInterval(60);
+
+        XAPool xaPool = new XAPool(createSlowXAResourceProducer(0), rb);
+        try {
+            StubXAStatefulHolder dead = (StubXAStatefulHolder) xaPool.getXAResourceHolders().get(0);
+            dead.valid = false;
+
+            xaPool.keepAlive();
+
+            // validation happens in the background
+            for (int i = 0; i < 50 && (xaPool.getXAResourceHolders().contains(dead) || xaPool.inPoolSize() < 2); i++) {
+                Thread.sleep(100);
+            }
+            assertFalse(xaPool.getXAResourceHolders().contains(dead));
+            assertEquals(XAStatefulHolder.STATE_CLOSED, dead.getState());
+            assertEquals(2, xaPool.totalPoolSize());
+            assertEquals(2, xaPool.inPoolSize());
+        } finally {
+            xaPool.close();
+        }
+    }
+
+    public void testKeepAliveDoesNotDelayGrowth() throws Exception {
+        ResourceBean rb = createResourceBean();
+        rb.setMinPoolSize(1);
+        rb.setMaxPoolSize(2);
+        rb.setAcquisitionTimeout(5);
+        rb.setKeepAliveInterval(60);
+
+        XAPool xaPool = new XAPool(createSlowXAResourceProducer(0), rb);
+        StubXAStatefulHolder stuck = (StubXAStatefulHolder) xaPool.getXAResourceHolders().get(0);
+        stuck.validation = new CountDownLatch(1);
+        try {
+            xaPool.keepAlive();
+            // wait until the only pooled object is being validated
+            for (int i = 0; i < 50 && xaPool.inPoolSize() > 0; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(0, xaPool.inPoolSize());
+
+            long before = System.currentTimeMillis();
+            Object handle = xaPool.getConnectionHandle();
+            assertNotSame(stuck, handle);
+            assertTrue("growing the pool waited for the validation to finish", System.currentTimeMillis() - before < 5000);
+        } finally {
+            stuck.validation.countDown();
+            xaPool.close();
+        }
+    }
+
+    public void testStatistics() throws Exception {
+        ResourceBean rb = createResourceBean();
+        rb.setMinPoolSize(1);
+        rb.setMaxPoolSize(1);
+        rb.setAcquisitionTimeout(1);
+
+        XAPool xaPool = new XAPool(createSlowXAResourceProducer(50), rb);
+        try {
+            XAPoolStatistics statistics = xaPool.getStatistics();
+            assertEquals(1, statistics.getConnectCount());
+            assertTrue(statistics.getConnectTimeMaxInMicros() >= 50000);
+
+            StubXAStatefulHolder holder = (StubXAStatefulHolder) xaPool.getConnectionHandle();
+            holder.setState(XAStatefulHolder.STATE_ACCESSIBLE);
+            Thread.sleep(20);
+            holder.setState(XAStatefulHolder.STATE_IN_POOL);
+            assertTrue(statistics.getHoldTimeMaxInMicros() >= 20000);
+            assertTrue(statistics.getHoldTimeMeanInMicros() >= 20000);
+
+            assertSame(holder, xaPool.getConnectionHandle());
+            try {
+                xaPool.getConnectionHandle();
+                fail("expected BitronixRuntimeException");
+            } catch (BitronixRuntimeException ex) {
+                // the only connection is in use
+            }
+
+            assertEquals(2, statistics.getAcquisitionCount());
+            assertEquals(1, statistics.getAcquisitionTimeoutCount());
+            assertEquals(0, statistics.getGrowCount());
+            assertEquals(0, statistics.getEvictionCount());
+
+            statistics.resetStatistics();
+            assertEquals(0, statistics.getAcquisitionCount());
+            assertEquals(0, statistics.getAcquisitionTimeoutCount());
+            assertEquals(0, statistics.getConnectCount());
+            assertEquals(0, statistics.getHoldTimeMaxInMicros());
+        } finally {
+            xaPool.close();
+        }
+    }
+
+    private static ResourceBean createResourceBean() {
+        ResourceBean rb = new ResourceBean() {};
+        rb.setUniqueName("xapool-test");
+        rb.setClassName(MockitoXADataSource.class.getName());
+        rb.setMaxIdleTime(0);
+        return rb;
+    }
+
+    private static XAResourceProducer createSlowXAResourceProducer(long creationTimeInMillis) {
+        return createSlowXAResourceProducer(creationTimeInMillis, new AtomicInteger());
+    }
+
+    /**
+     * @param maxInFlight updated with the highest number of pooled objects seen being created at the same time.
+     */
+    private static XAResourceProducer createSlowXAResourceProducer(final long creationTimeInMillis, final AtomicInteger maxInFlight) {
+        final AtomicInteger inFlight = new AtomicInteger();
+        // mockito serializes invocations, a plain proxy lets pooled objects be created concurrently
+        return (XAResourceProducer) Proxy.newProxyInstance(XAPoolTest.class.getClassLoader(), new Class[] { XAResourceProducer.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class)
+                    return method.invoke(this, args);
+                if (method.getName().equals("createPooledConnection")) {
+                    int current = inFlight.incrementAndGet();
+                    try {
+                        int max;
+                        while ((max = maxInFlight.get()) < current && !maxInFlight.compareAndSet(max, current)) {
+                            // retry
+                        }
+                        Thread.sleep(creationTimeInMillis);
+                        return new StubXAStatefulHolder();
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private static class StubXAStatefulHolder extends AbstractXAStatefulHolder {
+        private volatile boolean valid = true;
+        private volatile CountDownLatch validation;
+
+        public void validate() throws Exception {
+            CountDownLatch validation = this.validation;
+            if (validation != null)
+                validation.await();
+            if (!valid)
+                throw new Exception("connection is dead");
+        }
+
+        public java.util.List<XAResourceHolder> getXAResourceHolders() {
+            return java.util.Collections.emptyList();
+        }
+
+        public Object getConnectionHandle() throws Exception {
+            return this;
+        }
+
+        public void close() throws Exception {
+            setState(STATE_CLOSED);
+        }
+
+        public java.util.Date getLastReleaseDate() {
+            return null;
+        }
+    }
+
+}
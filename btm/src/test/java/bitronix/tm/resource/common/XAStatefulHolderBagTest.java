@@ -0,0 +1,179 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.resource.common;
+
+import static org.mockito.Mockito.mock;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author lorban
+ */
+public class XAStatefulHolderBagTest extends TestCase {
+
+    public void testBorrowAndRequite() throws Exception {
+        XAStatefulHolderBag bag = new XAStatefulHolderBag();
+        XAStatefulHolder holder1 = mock(XAStatefulHolder.class);
+        XAStatefulHolder holder2 = mock(XAStatefulHolder.class);
+        bag.add(holder1);
+        bag.add(holder2);
+        assertEquals(2, bag.size());
+        assertEquals(2, bag.freeCount());
+
+        XAStatefulHolder borrowed1 = bag.borrow(0);
+        XAStatefulHolder borrowed2 = bag.borrow(0);
+        assertNotSame(borrowed1, borrowed2);
+        assertEquals(0, bag.freeCount());
+        assertNull(bag.borrow(0));
+        assertNull(bag.borrow(10));
+
+        bag.requite(borrowed2);
+        assertEquals(1, bag.freeCount());
+        assertSame(borrowed2, bag.borrow(0));
+
+        // giving back a free holder twice must not make it borrowable twice
+        bag.requite(borrowed1);
+        bag.requite(borrowed1);
+        assertSame(borrowed1, bag.borrow(0));
+        assertNull(bag.borrow(0));
+    }
+
+    public void testThreadPrefersRecentlyReturnedHolder() throws Exception {
+        XAStatefulHolderBag bag = new XAStatefulHolderBag();
+        for (int i = 0; i < 8; i++) {
+            bag.add(mock(XAStatefulHolder.class));
+        }
+
+        XAStatefulHolder holder = bag.borrow(0);
+        for (int i = 0; i < 10; i++) {
+            bag.requite(holder);
+            assertSame(holder, bag.borrow(0));
+        }
+    }
+
+    public void testRequiteTellsBorrowTime() throws Exception {
+        XAStatefulHolderBag bag = new XAStatefulHolderBag();
+        XAStatefulHolder holder = mock(XAStatefulHolder.class);
+        bag.add(holder);
+
+        assertSame(holder, bag.borrow(0));
+        Thread.sleep(10);
+        assertTrue(bag.requite(holder) >= 10000000L);
+        assertEquals(-1, bag.requite(holder));
+
+        // a reserved holder was not borrowed
+        assertTrue(bag.reserve(holder));
+        assertEquals(-1, bag.requite(holder));
+    }
+
+    public void testReserveAndRemove() throws Exception {
+        XAStatefulHolderBag bag = new XAStatefulHolderBag();
+        XAStatefulHolder holder = mock(XAStatefulHolder.class);
+        bag.add(holder);
+
+        assertTrue(bag.reserve(holder));
+        assertFalse(bag.reserve(holder));
+        assertNull(bag.borrow(0));
+
+        assertTrue(bag.remove(holder));
+        assertFalse(bag.remove(holder));
+        assertEquals(0, bag.size());
+
+        // a removed holder cannot come back through requite
+        bag.requite(holder);
+        assertNull(bag.borrow(0));
+    }
+
+    public void testWaiterGetsHandedOffHolder() throws Exception {
+        final XAStatefulHolderBag bag = new XAStatefulHolderBag();
+        XAStatefulHolder holder = mock(XAStatefulHolder.class);
+        bag.add(holder);
+        assertSame(holder, bag.borrow(0));
+
+        final AtomicReference<XAStatefulHolder> received = new AtomicReference<XAStatefulHolder>();
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    received.set(bag.borrow(5000));
+                } catch (InterruptedException ex) {
+                    // leave received empty
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(100);
+
+        bag.requite(holder);
+        waiter.join(5000);
+        assertSame(holder, received.get());
+        assertEquals(0, bag.freeCount());
+    }
+
+    public void testConcurrentBorrowersNeverShareAHolder() throws Exception {
+        final int holderCount = 4;
+        final int threadCount = 16;
+        final int iterations = 2000;
+
+        final XAStatefulHolderBag bag = new XAStatefulHolderBag();
+        for (int i = 0; i < holderCount; i++) {
+            bag.add(mock(XAStatefulHolder.class));
+        }
+
+        final Set<XAStatefulHolder> inUse = Collections.synchronizedSet(new HashSet<XAStatefulHolder>());
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < iterations; i++) {
+                            XAStatefulHolder holder = bag.borrow(10000);
+                            if (holder == null || !inUse.add(holder)) {
+                                failures.incrementAndGet();
+                                continue;
+                            }
+                            Thread.yield();
+                            inUse.remove(holder);
+                            bag.requite(holder);
+                        }
+                    } catch (InterruptedException ex) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        done.await();
+        assertEquals(0, failures.get());
+        assertEquals(holderCount, bag.freeCount());
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.resource.common;
+
+import static org.mockito.Mockito.mock;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import bitronix.tm.utils.Uid;
+import bitronix.tm.utils.UidGenerator;
+
+/**
+ *
+ * @author lorban
+ */
+public class XAStatefulHolderGtridIndexTest extends TestCase {
+
+    public void testAddGetRemove() throws Exception {
+        XAStatefulHolderGtridIndex index = new XAStatefulHolderGtridIndex();
+        Uid gtrid1 = UidGenerator.generateUid();
+        Uid gtrid2 = UidGenerator.generateUid();
+        XAStatefulHolder holder1 = mock(XAStatefulHolder.class);
+        XAStatefulHolder holder2 = mock(XAStatefulHolder.class);
+        XAStatefulHolder holder3 = mock(XAStatefulHolder.class);
+
+        index.add(holder1, gtrid1);
+        index.add(holder2, gtrid1);
+        index.add(holder3, gtrid2);
+        assertEquals(3, index.size());
+
+        List<XAStatefulHolder> holders = index.get(gtrid1);
+        assertEquals(2, holders.size());
+        assertTrue(holders.contains(holder1));
+        assertTrue(holders.contains(holder2));
+        assertEquals(1, index.get(gtrid2).size());
+        assertTrue(index.get(UidGenerator.generateUid()).isEmpty());
+
+        assertTrue(index.remove(holder1));
+        assertFalse(index.remove(holder1));
+        assertEquals(1, index.get(gtrid1).size());
+
+        assertTrue(index.remove(holder2));
+        assertTrue(index.get(gtrid1).isEmpty());
+        assertEquals(1, index.size());
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertTrue(index.get(gtrid2).isEmpty());
+    }
+
+    public void testReindexingMovesHolder() throws Exception {
+        XAStatefulHolderGtridIndex index = new XAStatefulHolderGtridIndex();
+        Uid gtrid1 = UidGenerator.generateUid();
+        Uid gtrid2 = UidGenerator.generateUid();
+        XAStatefulHolder holder = mock(XAStatefulHolder.class);
+
+        index.add(holder, gtrid1);
+        index.add(holder, gtrid2);
+
+        assertTrue(index.get(gtrid1).isEmpty());
+        assertEquals(1, index.get(gtrid2).size());
+        assertEquals(1, index.size());
+    }
+
+}
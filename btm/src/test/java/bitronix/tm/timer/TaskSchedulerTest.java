@@ -78,6 +78,29 @@ public class TaskSchedulerTest extends TestCase {
         assertEquals(2, result.get(2).getObject());
     }
 
+    public void testTaskReplacementAndCancellation() throws Exception {
+        List<SimpleTask> result = Collections.synchronizedList(new ArrayList<SimpleTask>());
+        Object obj = new Object();
+        Object other = new Object();
+
+        ts.addTask(new SimpleTask(new Date(MonotonicClock.currentTimeMillis() + 60000), ts, obj, result));
+        ts.addTask(new SimpleTask(new Date(MonotonicClock.currentTimeMillis() + 60000), ts, obj, result));
+        ts.addTask(new SimpleTask(new Date(MonotonicClock.currentTimeMillis() + 60000), ts, other, result));
+        assertEquals(2, ts.countTasksQueued());
+
+        assertTrue(ts.removeTaskByObject(obj));
+        assertFalse(ts.removeTaskByObject(obj));
+        assertEquals(1, ts.countTasksQueued());
+
+        ts.addTask(new SimpleTask(new Date(MonotonicClock.currentTimeMillis() + 100), ts, obj, result));
+        Thread.sleep(1100);
+        assertEquals(1, result.size());
+        assertFalse(ts.removeTaskByObject(obj));
+        assertEquals(1, ts.countTasksQueued());
+
+        assertTrue(ts.removeTaskByObject(other));
+    }
+
     private static class SimpleTask extends Task {
 
         private final Object obj;
@@ -20,6 +20,7 @@
  */
 package bitronix.tm.twopc;
 
+import java.io.IOException;
 import java.lang.reflect.*;
 import java.sql.Connection;
 import java.util.*;
@@ -248,6 +249,86 @@ public class Phase2FailureTest extends TestCase {
         assertEquals("TM haven't properly tried to commit", 2, commitEventCount);
     }
 
+    /**
+     * Test scenario:
+     *
+     * XAResources: 2
+     * TX timeout: 10s
+     * TX resolution: none, the COMMITTING record cannot be made durable
+     *
+     * XAResource 1 resolution: successful
+     * XAResource 2 resolution: successful
+     *
+     * Expected outcome:
+     *   TM fails the commit with a SystemException without sending phase 2 to any resource, the
+     *   recoverer will clean that up
+     * Expected TM events:
+     *  2 XAResourcePrepareEvent, 0 XAResourceCommitEvent
+     * Expected journal events:
+     *   ACTIVE, PREPARING, PREPARED, COMMITTING
+     * @throws Exception if any error happens.
+     */
+    public void testCommittingRecordNotDurable() throws Exception {
+        Field field = TransactionManagerServices.class.getDeclaredField("journalRef");
+        field.setAccessible(true);
+        AtomicReference<Journal> journalRef = (AtomicReference<Journal>) field.get(TransactionManagerServices.class);
+        MockUndurableJournal journal = new MockUndurableJournal();
+        journal.open();
+        journalRef.set(journal);
+
+        tm.begin();
+        tm.setTransactionTimeout(10); // TX must not timeout
+
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+        Connection connection2 = poolingDataSource2.getConnection();
+        connection2.createStatement();
+
+        try {
+            tm.commit();
+            fail("expected SystemException");
+        } catch (SystemException ex) {
+            assertEquals("error logging status", ex.getMessage());
+        }
+
+        log.info(EventRecorder.dumpToString());
+
+        int prepareEventCount = 0;
+        int commitEventCount = 0;
+        int journalCommittingEventCount = 0;
+        int journalCommittedEventCount = 0;
+        List events = EventRecorder.getOrderedEvents();
+        for (int i = 0; i < events.size(); i++) {
+            Event event = (Event) events.get(i);
+
+            if (event instanceof XAResourcePrepareEvent)
+                prepareEventCount++;
+
+            if (event instanceof XAResourceCommitEvent)
+                commitEventCount++;
+
+            if (event instanceof JournalLogEvent) {
+                if (((JournalLogEvent) event).getStatus() == Status.STATUS_COMMITTING)
+                    journalCommittingEventCount++;
+                if (((JournalLogEvent) event).getStatus() == Status.STATUS_COMMITTED)
+                    journalCommittedEventCount++;
+            }
+        }
+        assertEquals("TM haven't properly tried to prepare", 2, prepareEventCount);
+        assertEquals("TM should have logged a COMMITTING status", 1, journalCommittingEventCount);
+        assertEquals("TM must not commit before the COMMITTING status is durable", 0, commitEventCount);
+        assertEquals("TM must not log a COMMITTED status", 0, journalCommittedEventCount);
+    }
+
+    /**
+     * Mock journal failing to make forced records durable.
+     */
+    private static class MockUndurableJournal extends MockJournal {
+        public void force() throws IOException {
+            throw new IOException("disk full");
+        }
+    }
+
     protected void setUp() throws Exception {
         Iterator it = ResourceRegistrar.getResourcesUniqueNames().iterator();
         while (it.hasNext()) {
@@ -0,0 +1,56 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2011, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.utils;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import junit.framework.TestCase;
+
+public class DirectBuffersTest extends TestCase {
+
+    public void testRelease() throws Exception {
+        assertFalse(DirectBuffers.release(null));
+        assertFalse(DirectBuffers.release(ByteBuffer.allocate(16)));
+        assertTrue(DirectBuffers.release(ByteBuffer.allocateDirect(16)));
+    }
+
+    public void testReleasedMappingDoesNotHoldTheFile() throws Exception {
+        File file = File.createTempFile("btm-direct-buffers", ".tlog");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer mappedBuffer;
+        try {
+            raf.setLength(4096);
+            mappedBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 4096);
+            mappedBuffer.putInt(0, 42);
+            mappedBuffer.force();
+        } finally {
+            raf.close();
+        }
+
+        assertTrue(DirectBuffers.release(mappedBuffer));
+        assertTrue(file.delete());
+    }
+
+}
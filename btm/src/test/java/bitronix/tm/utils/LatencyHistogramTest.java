@@ -0,0 +1,106 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.utils;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author lorban
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBucketsBoundTheRelativeError() throws Exception {
+        int previousIndex = -1;
+        for (long value = 0; value < 100000; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue("bucket index decreased at " + value, index >= previousIndex);
+            previousIndex = index;
+
+            long highest = LatencyHistogram.highestValueOfBucket(index);
+            assertTrue(value + " is above its bucket's highest value " + highest, highest >= value);
+            assertTrue(value + " is too far from its bucket's highest value " + highest, highest - value <= value / 8);
+        }
+
+        assertEquals(7, LatencyHistogram.highestValueOfBucket(LatencyHistogram.bucketIndex(7)));
+        assertTrue(LatencyHistogram.highestValueOfBucket(LatencyHistogram.bucketIndex(Long.MAX_VALUE / 2)) >= Long.MAX_VALUE / 2);
+    }
+
+    public void testStatistics() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getValueAtPercentile(99.0));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+
+        assertEquals(1001, histogram.getCount());
+        assertEquals(500, histogram.getMean());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(0.0));
+        assertEquals(1000, histogram.getValueAtPercentile(100.0));
+        long median = histogram.getValueAtPercentile(50.0);
+        assertTrue("median is " + median, median >= 500 && median <= 500 + 500 / 8);
+        long p99 = histogram.getValueAtPercentile(99.0);
+        assertTrue("99th percentile is " + p99, p99 >= 990 && p99 <= 1000);
+
+        try {
+            histogram.getValueAtPercentile(101.0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            assertEquals("percentile must be between 0 and 100, was 101.0", ex.getMessage());
+        }
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50.0));
+    }
+
+    public void testConcurrentRecording() throws Exception {
+        final int threadCount = 8;
+        final int iterations = 10000;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final CountDownLatch done = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t;
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < iterations; i++) {
+                        histogram.record(offset + i);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+
+        assertEquals(threadCount * iterations, histogram.getCount());
+        assertEquals(threadCount - 1 + iterations - 1, histogram.getMax());
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.utils;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author lorban
+ */
+public class StripedCounterTest extends TestCase {
+
+    public void testConcurrentIncrements() throws Exception {
+        final int threadCount = 16;
+        final int iterations = 100000;
+        final StripedCounter counter = new StripedCounter();
+        final CountDownLatch done = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; t++) {
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < iterations; i++) {
+                        counter.increment();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(threadCount * iterations, counter.sum());
+
+        counter.add(-10);
+        assertEquals(threadCount * iterations - 10, counter.sum());
+
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+}